@@ -53,6 +53,8 @@ val documentation: Configuration by configurations.creating
 
 dependencies {
     implementation("com.squareup.okhttp3:okhttp:5.3.2")
+    // Optional: TlsSessionStore only persists sessions when the app also depends on Conscrypt.
+    compileOnly("org.conscrypt:conscrypt-android:2.5.3")
     documentation("com.squareup.okhttp3:okhttp:5.3.2") {
         attributes {
             attribute(
@@ -65,6 +67,8 @@ dependencies {
     testImplementation("junit:junit:4.13.2")
     testImplementation("com.squareup.okhttp3:mockwebserver3:5.3.2")
     testImplementation("com.squareup.okhttp3:mockwebserver3-junit4:5.3.2")
+    testImplementation("com.squareup.okhttp3:okhttp-tls:5.3.2")
+    testImplementation("org.conscrypt:conscrypt-openjdk-uber:2.5.2")
     testImplementation("org.testcontainers:testcontainers:2.0.5")
     testImplementation("com.fasterxml.jackson.core:jackson-databind:2.22.1")
     testImplementation("ch.qos.logback:logback-core:1.6.2")
@@ -87,6 +91,11 @@ cargo {
     targets = rustTargets
     profile = "release"
     pythonCommand = "python3"
+    if (project.hasProperty("jniBenchmarks")) {
+        features {
+            defaultAnd(arrayOf("jni-benchmarks"))
+        }
+    }
 }
 
 tasks.matching { it.name.matches(Regex("merge.*JniLibFolders")) }.configureEach {
@@ -98,6 +107,10 @@ tasks.withType<Test>().matching { it.name.matches(Regex("test.*UnitTest"))}.conf
     systemProperty("java.library.path", layout.buildDirectory.dir("rustJniLibs/desktop/${hostRustTarget}").get().toString())
     val capitalizedHostRustTarget = hostRustTarget.replaceFirstChar { it.uppercase() }
     dependsOn(tasks.named("cargoBuild${capitalizedHostRustTarget}"))
+    // Pass -Ddivviup.* settings, such as the soak test's duration, through to the test JVM.
+    System.getProperties().stringPropertyNames().filter { it.startsWith("divviup.") }.forEach {
+        systemProperty(it, System.getProperty(it))
+    }
 }
 
 afterEvaluate {
@@ -0,0 +1,249 @@
+package org.divviup.commontest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mockwebserver3.Dispatcher;
+import mockwebserver3.MockResponse;
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+import okhttp3.Headers;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * A stand-in for both aggregators of a task, which verifies and aggregates every uploaded report.
+ * Reports are decrypted with the private key matching the HPKE config served by
+ * {@link MockAggregator}, and both aggregators' Prio3 preparation steps are run in-process. This
+ * lets tests check that every report sent under load is valid, and is counted exactly once.
+ * <p>
+ * Single and multi-report uploads are accepted. Invalid reports are rejected, and reports whose ID
+ * was already seen are accepted but not aggregated again, as real aggregators do.
+ * <p>
+ * Verification uses test-only entry points of the native library, which are only built for the
+ * host, so this is only available in unit tests, not on Android devices. Objects of this class are
+ * thread-safe.
+ */
+public final class InProcessAggregator implements Closeable {
+    private static final int VDAF_PRIO3COUNT = 0;
+    private static final int VDAF_PRIO3SUM = 1;
+    private static final int VDAF_PRIO3SUMVEC = 2;
+    private static final int VDAF_PRIO3HISTOGRAM = 3;
+    private static final int MAX_ERRORS = 16;
+
+    static {
+        System.loadLibrary("divviup_android");
+    }
+
+    private final int vdaf;
+    private final long length, bits, chunkLength;
+    private final byte[] hpkeConfigList;
+    private final byte[] hpkePrivateKey;
+    private final MockWebServer server;
+
+    private final long[] aggregate;
+    private final Set<ByteString> reportIds;
+    private final List<String> errors;
+    private long duplicates;
+    private long rejected;
+
+    private InProcessAggregator(int vdaf, long length, long bits, long chunkLength, int aggregateLength)
+            throws IOException {
+        this.vdaf = vdaf;
+        this.length = length;
+        this.bits = bits;
+        this.chunkLength = chunkLength;
+        this.hpkeConfigList = MockAggregator.loadHpkeConfigList().readByteArray();
+        this.hpkePrivateKey = MockAggregator.loadHpkePrivateKey().readByteArray();
+        this.aggregate = new long[aggregateLength];
+        this.reportIds = new HashSet<>();
+        this.errors = new ArrayList<>();
+        this.server = new MockWebServer();
+        this.server.setDispatcher(new VerifyingDispatcher());
+        this.server.start();
+    }
+
+    /**
+     * Starts an aggregator for a Prio3Count task.
+     */
+    public static InProcessAggregator startPrio3Count() throws IOException {
+        return new InProcessAggregator(VDAF_PRIO3COUNT, 1, 0, 0, 1);
+    }
+
+    /**
+     * Starts an aggregator for a Prio3Sum task.
+     */
+    public static InProcessAggregator startPrio3Sum(long bits) throws IOException {
+        return new InProcessAggregator(VDAF_PRIO3SUM, 1, bits, 0, 1);
+    }
+
+    /**
+     * Starts an aggregator for a Prio3SumVec task.
+     */
+    public static InProcessAggregator startPrio3SumVec(long length, long bits, long chunkLength) throws IOException {
+        return new InProcessAggregator(VDAF_PRIO3SUMVEC, length, bits, chunkLength, (int) length);
+    }
+
+    /**
+     * Starts an aggregator for a Prio3Histogram task.
+     */
+    public static InProcessAggregator startPrio3Histogram(long length, long chunkLength) throws IOException {
+        return new InProcessAggregator(VDAF_PRIO3HISTOGRAM, length, 0, chunkLength, (int) length);
+    }
+
+    /**
+     * Gets the endpoint of this aggregator, to be used as both the leader and helper endpoint.
+     */
+    public URI uri() {
+        return this.server.url("/").uri();
+    }
+
+    /**
+     * Gets the underlying server, for inspecting recorded requests.
+     */
+    public MockWebServer getServer() {
+        return this.server;
+    }
+
+    /**
+     * Gets the sum of the measurements of all accepted reports. For Prio3Count and Prio3Sum, this
+     * has one element.
+     */
+    public synchronized long[] getAggregate() {
+        return this.aggregate.clone();
+    }
+
+    /**
+     * Gets the number of distinct valid reports that were aggregated.
+     */
+    public synchronized long getReportCount() {
+        return this.reportIds.size();
+    }
+
+    /**
+     * Gets the number of valid reports that were not aggregated, because a report with the same
+     * ID was already aggregated.
+     */
+    public synchronized long getDuplicateCount() {
+        return this.duplicates;
+    }
+
+    /**
+     * Gets the number of reports that could not be decrypted or decoded, or failed verification.
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejected;
+    }
+
+    /**
+     * Gets the reasons that the first few reports were rejected, for failure messages.
+     */
+    public synchronized List<String> getErrors() {
+        return new ArrayList<>(this.errors);
+    }
+
+    @Override
+    public void close() {
+        this.server.close();
+    }
+
+    /**
+     * Verifies one report, and aggregates it if its ID has not been seen.
+     *
+     * @return  false if the report was rejected
+     */
+    private boolean accept(byte[] taskId, byte[] report) {
+        long[] measurement = new long[this.aggregate.length];
+        try {
+            verifyReportNative(
+                    this.vdaf,
+                    this.length,
+                    this.bits,
+                    this.chunkLength,
+                    taskId,
+                    this.hpkeConfigList,
+                    this.hpkePrivateKey,
+                    report,
+                    measurement
+            );
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                this.rejected++;
+                if (this.errors.size() < MAX_ERRORS) {
+                    this.errors.add(String.valueOf(e.getMessage()));
+                }
+            }
+            return false;
+        }
+        synchronized (this) {
+            if (!this.reportIds.add(ByteString.of(report, 0, MockAggregator.REPORT_ID_LENGTH))) {
+                this.duplicates++;
+                return true;
+            }
+            for (int i = 0; i < measurement.length; i++) {
+                this.aggregate[i] += measurement[i];
+            }
+        }
+        return true;
+    }
+
+    private static native void verifyReportNative(
+            int vdaf,
+            long length,
+            long bits,
+            long chunkLength,
+            byte[] taskId,
+            byte[] hpkeConfigList,
+            byte[] hpkePrivateKey,
+            byte[] report,
+            long[] output
+    );
+
+    private class VerifyingDispatcher extends Dispatcher {
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            List<String> segments = request.getUrl().pathSegments();
+            if (request.getMethod().equals("GET") && segments.equals(Collections.singletonList("hpke_config"))) {
+                return new MockResponse.Builder()
+                        .code(200)
+                        .addHeader("Content-Type", "application/dap-hpke-config-list")
+                        .addHeader("Cache-Control", "max-age=3600")
+                        .body(new Buffer().write(hpkeConfigList))
+                        .build();
+            }
+            if (!request.getMethod().equals("PUT")
+                    || segments.size() != 3
+                    || !segments.get(0).equals("tasks")
+                    || !segments.get(2).equals("reports")) {
+                return new MockResponse(404, Headers.EMPTY, "");
+            }
+            ByteString taskId = ByteString.decodeBase64(segments.get(1));
+            ByteString body = request.getBody();
+            if (taskId == null || body == null) {
+                return new MockResponse(400, Headers.EMPTY, "");
+            }
+            String contentType = request.getHeaders().get("Content-Type");
+            if (MockAggregator.REPORT_CONTENT_TYPE.equals(contentType)) {
+                boolean valid = accept(taskId.toByteArray(), body.toByteArray());
+                return new MockResponse(valid ? 200 : 400, Headers.EMPTY, "");
+            } else if (MockAggregator.MULTI_REPORT_CONTENT_TYPE.equals(contentType)) {
+                Buffer statuses = new Buffer();
+                for (byte[] report : MockAggregator.splitReports(body.toByteArray())) {
+                    if (!accept(taskId.toByteArray(), report)) {
+                        statuses.write(report, 0, MockAggregator.REPORT_ID_LENGTH);
+                        statuses.writeByte(MockAggregator.STATUS_REJECTED);
+                    }
+                }
+                return new MockResponse.Builder().code(200).body(statuses).build();
+            } else {
+                return new MockResponse(415, Headers.EMPTY, "");
+            }
+        }
+    }
+}
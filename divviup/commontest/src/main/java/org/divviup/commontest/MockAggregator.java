@@ -2,22 +2,45 @@ package org.divviup.commontest;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 
+import mockwebserver3.Dispatcher;
 import mockwebserver3.MockResponse;
 import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
 import okhttp3.Headers;
 import okio.Buffer;
+import okio.ByteString;
 
 public class MockAggregator {
-    private static Buffer loadHpkeConfigList() throws IOException {
-        Buffer hpkeConfigListBuffer;
+    static final String REPORT_CONTENT_TYPE = "application/dap-report";
+    static final String MULTI_REPORT_CONTENT_TYPE = "application/dap-report-list";
+    static final int REPORT_ID_LENGTH = 16;
+    static final byte STATUS_REJECTED = 1;
+
+    static Buffer loadHpkeConfigList() throws IOException {
+        return loadResource("hpke_config_list.bin");
+    }
+
+    /**
+     * Loads the HPKE private key matching the config served by mock aggregators.
+     */
+    static Buffer loadHpkePrivateKey() throws IOException {
+        return loadResource("hpke_private_key.bin");
+    }
+
+    private static Buffer loadResource(String name) throws IOException {
+        Buffer buffer;
         ClassLoader classLoader = Objects.requireNonNull(MockAggregator.class.getClassLoader());
-        try (InputStream is = classLoader.getResourceAsStream("hpke_config_list.bin")) {
-            hpkeConfigListBuffer = new Buffer();
-            hpkeConfigListBuffer.readFrom(is);
+        try (InputStream is = classLoader.getResourceAsStream(name)) {
+            buffer = new Buffer();
+            buffer.readFrom(is);
         }
-        return hpkeConfigListBuffer;
+        return buffer;
     }
 
     public static MockWebServer setupMockServer() throws IOException {
@@ -41,4 +64,130 @@ public class MockAggregator {
         server.start();
         return server;
     }
+
+    /**
+     * Sets up a mock aggregator that answers any number of HPKE config requests and report uploads,
+     * for tests that send many reports with one server.
+     */
+    public static MockWebServer setupDispatchingMockServer() throws IOException {
+        return setupDispatchingMockServer(null);
+    }
+
+    /**
+     * Sets up a mock aggregator like {@link #setupDispatchingMockServer()}, which sends the given
+     * Cache-Control header with HPKE configs, or none if it is null.
+     */
+    public static MockWebServer setupDispatchingMockServer(String cacheControl) throws IOException {
+        return startDispatchingServer(cacheControl, false, 0);
+    }
+
+    /**
+     * Sets up a mock aggregator like {@link #setupDispatchingMockServer()}, which also accepts
+     * multi-report uploads. If rejectEveryNth is positive, every nth report in each multi-report
+     * upload is rejected, counting from the first.
+     */
+    public static MockWebServer setupMultiReportMockServer(int rejectEveryNth) throws IOException {
+        return startDispatchingServer(null, true, rejectEveryNth);
+    }
+
+    /**
+     * Counts the reports in the body of an upload request, which may hold one report, or several
+     * in a multi-report upload.
+     */
+    public static int countReports(ByteString body) {
+        return splitReports(body.toByteArray()).size();
+    }
+
+    private static MockWebServer startDispatchingServer(
+            String cacheControl,
+            boolean multiReport,
+            int rejectEveryNth
+    ) throws IOException {
+        ByteString hpkeConfigList = loadHpkeConfigList().readByteString();
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new AggregatorDispatcher(hpkeConfigList, cacheControl, multiReport, rejectEveryNth));
+        server.start();
+        return server;
+    }
+
+    /**
+     * Splits a concatenation of encoded reports into individual reports. Each report starts with
+     * its report ID.
+     */
+    static List<byte[]> splitReports(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        List<byte[]> reports = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            // Skip the report ID, the timestamp and the public share.
+            skip(buffer, REPORT_ID_LENGTH);
+            buffer.getLong();
+            skip(buffer, buffer.getInt());
+            // Skip both encrypted input shares.
+            for (int i = 0; i < 2; i++) {
+                buffer.get();
+                skip(buffer, buffer.getShort() & 0xffff);
+                skip(buffer, buffer.getInt());
+            }
+            reports.add(Arrays.copyOfRange(body, start, buffer.position()));
+        }
+        return reports;
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        buffer.position(buffer.position() + length);
+    }
+
+    private static class AggregatorDispatcher extends Dispatcher {
+        private final ByteString hpkeConfigList;
+        private final String cacheControl;
+        private final boolean multiReport;
+        private final int rejectEveryNth;
+
+        AggregatorDispatcher(ByteString hpkeConfigList, String cacheControl, boolean multiReport, int rejectEveryNth) {
+            this.hpkeConfigList = hpkeConfigList;
+            this.cacheControl = cacheControl;
+            this.multiReport = multiReport;
+            this.rejectEveryNth = rejectEveryNth;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String path = request.getUrl().encodedPath();
+            if (request.getMethod().equals("GET") && path.endsWith("/hpke_config")) {
+                MockResponse.Builder builder = new MockResponse.Builder()
+                        .code(200)
+                        .addHeader("Content-Type", "application/dap-hpke-config-list")
+                        .body(new Buffer().write(hpkeConfigList));
+                if (cacheControl != null) {
+                    builder.addHeader("Cache-Control", cacheControl);
+                }
+                return builder.build();
+            } else if (request.getMethod().equals("PUT") && path.endsWith("/reports")) {
+                String contentType = request.getHeaders().get("Content-Type");
+                if (REPORT_CONTENT_TYPE.equals(contentType)) {
+                    return new MockResponse(200, Headers.EMPTY, "");
+                } else if (multiReport && MULTI_REPORT_CONTENT_TYPE.equals(contentType)) {
+                    return uploadMultiple(request);
+                } else {
+                    return new MockResponse(415, Headers.EMPTY, "");
+                }
+            } else {
+                return new MockResponse(404, Headers.EMPTY, "");
+            }
+        }
+
+        private MockResponse uploadMultiple(RecordedRequest request) {
+            ByteString body = request.getBody();
+            List<byte[]> reports = splitReports(body != null ? body.toByteArray() : new byte[0]);
+            Buffer statuses = new Buffer();
+            for (int i = 0; i < reports.size(); i++) {
+                if (rejectEveryNth > 0 && (i + 1) % rejectEveryNth == 0) {
+                    statuses.write(reports.get(i), 0, REPORT_ID_LENGTH);
+                    statuses.writeByte(STATUS_REJECTED);
+                }
+            }
+            return new MockResponse.Builder().code(200).body(statuses).build();
+        }
+    }
 }
@@ -0,0 +1 @@
+-dontwarn org.conscrypt.**
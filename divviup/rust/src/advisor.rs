@@ -0,0 +1,99 @@
+//! Measurements of the cost of sharding Prio3SumVec and Prio3Histogram measurements with different
+//! chunk lengths, used by `ChunkLengthAdvisor` to choose one for a new task.
+//!
+//! Only sharding is timed. Encryption and encoding the rest of the report take time proportional
+//! to the size of the shares, which is reported separately.
+
+use std::time::Instant;
+
+use prio::{
+    codec::Encode,
+    vdaf::{self, prio3::Prio3},
+};
+use rand::random;
+
+use crate::Error;
+
+/// The cost of sharding measurements with one set of VDAF parameters.
+#[derive(Debug)]
+pub(crate) struct ShardCost {
+    /// Total time taken by all timed samples, in nanoseconds.
+    pub(crate) total_nanos: u64,
+    /// Combined encoded length of the public share and both input shares.
+    pub(crate) share_bytes: usize,
+}
+
+/// Measure sharding an all-zero Prio3SumVec measurement.
+pub(crate) fn measure_sum_vec(
+    length: usize,
+    bits: usize,
+    chunk_length: usize,
+    samples: u32,
+) -> Result<ShardCost, Error> {
+    let vdaf = Prio3::new_sum_vec(2, bits, length, chunk_length)?;
+    measure(&vdaf, &vec![0; length], samples)
+}
+
+/// Measure sharding a Prio3Histogram measurement.
+pub(crate) fn measure_histogram(
+    length: usize,
+    chunk_length: usize,
+    samples: u32,
+) -> Result<ShardCost, Error> {
+    let vdaf = Prio3::new_histogram(2, length, chunk_length)?;
+    measure(&vdaf, &0, samples)
+}
+
+/// Shard a measurement `samples` times, after one untimed warm-up iteration.
+fn measure<V>(vdaf: &V, measurement: &V::Measurement, samples: u32) -> Result<ShardCost, Error>
+where
+    V: vdaf::Client<16>,
+{
+    let mut total_nanos = 0u64;
+    let mut share_bytes = 0;
+    for sample in 0..=samples {
+        let nonce: [u8; 16] = random();
+        let start = Instant::now();
+        let (public_share, input_shares) = vdaf.shard(measurement, &nonce)?;
+        let elapsed = start.elapsed();
+        if sample == 0 {
+            share_bytes = public_share.get_encoded()?.len();
+            for input_share in input_shares.iter() {
+                share_bytes += input_share.get_encoded()?.len();
+            }
+        } else {
+            let nanos = u64::try_from(elapsed.as_nanos()).unwrap_or(u64::MAX);
+            total_nanos = total_nanos.saturating_add(nanos);
+        }
+    }
+    Ok(ShardCost {
+        total_nanos,
+        share_bytes,
+    })
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{measure_histogram, measure_sum_vec};
+
+    /// Checks that a chunk length near the square root of the measurement length gives much
+    /// smaller shares than either extreme.
+    #[test]
+    fn chunk_length_affects_share_size() {
+        let balanced = measure_sum_vec(1000, 1, 32, 1).unwrap();
+        let one = measure_sum_vec(1000, 1, 1, 1).unwrap();
+        let whole = measure_sum_vec(1000, 1, 1000, 1).unwrap();
+        assert!(balanced.share_bytes < one.share_bytes);
+        assert!(balanced.share_bytes < whole.share_bytes);
+
+        let histogram = measure_histogram(1000, 32, 2).unwrap();
+        assert!(histogram.share_bytes > 0);
+        assert!(histogram.total_nanos > 0);
+    }
+
+    #[test]
+    fn invalid_parameters() {
+        assert!(measure_sum_vec(10, 8, 0, 1).is_err());
+        assert!(measure_histogram(0, 1, 1).is_err());
+    }
+}
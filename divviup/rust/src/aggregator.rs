@@ -0,0 +1,275 @@
+//! Verification of uploaded reports by both aggregators in one process, used by
+//! `InProcessAggregator` in the `commontest` module, so that host unit tests can check that every
+//! report sent under load is valid. This is not compiled for Android, since it is only needed by
+//! tests, and would otherwise add the VDAF preparation code to the library.
+//!
+//! Each report is decrypted with the aggregators' HPKE private key, both aggregators' preparation
+//! steps are run with a fresh verify key, and the two output shares are combined. Since only one
+//! report is combined at a time, this yields the report's measurement, which the caller aggregates.
+
+use janus_core::hpke::{self, HpkeApplicationInfo, HpkeKeypair, HpkePrivateKey, Label};
+use janus_messages::{HpkeCiphertext, InputShareAad, PlaintextInputShare, Report, Role, TaskId};
+use jni::{
+    objects::{JByteArray, JClass, JLongArray, ReleaseMode},
+    sys::{jint, jlong},
+    Env, EnvUnowned,
+};
+use prio::{
+    codec::{Decode, Encode, ParameterizedDecode},
+    vdaf::{self, prio3::Prio3, PrepareTransition},
+};
+use rand::random;
+
+use crate::{decode_hpke_config_list, jni_try, parse_task_id, Error};
+
+/// Prio3Count, as selected by the `vdaf` argument of `verifyReportNative`.
+const VDAF_PRIO3COUNT: jint = 0;
+/// Prio3Sum, as selected by the `vdaf` argument of `verifyReportNative`.
+const VDAF_PRIO3SUM: jint = 1;
+/// Prio3SumVec, as selected by the `vdaf` argument of `verifyReportNative`.
+const VDAF_PRIO3SUMVEC: jint = 2;
+/// Prio3Histogram, as selected by the `vdaf` argument of `verifyReportNative`.
+const VDAF_PRIO3HISTOGRAM: jint = 3;
+
+/// JNI entry point to decrypt and verify a report, and write its measurement to the output array,
+/// which must have one element for Prio3Count and Prio3Sum, or `length` elements otherwise.
+///
+/// An exception is thrown if the report cannot be decrypted or decoded, or fails verification.
+#[no_mangle]
+#[allow(clippy::too_many_arguments)]
+pub extern "system" fn Java_org_divviup_commontest_InProcessAggregator_verifyReportNative<
+    'local,
+>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    vdaf: jint,
+    length: jlong,
+    bits: jlong,
+    chunk_length: jlong,
+    task_id_byte_array: JByteArray<'local>,
+    hpke_config_list_byte_array: JByteArray<'local>,
+    private_key_byte_array: JByteArray<'local>,
+    report_byte_array: JByteArray<'local>,
+    output_long_array: JLongArray<'local>,
+) {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        // Safety: These byte arrays are not mutated again from the Java side once they are passed
+        // in. Only one `AutoElements` is constructed from each, in these calls.
+        let task_id = unsafe { parse_task_id(&task_id_byte_array, false, env)? };
+        let config_list =
+            unsafe { decode_hpke_config_list(&hpke_config_list_byte_array, false, env)? };
+        let private_key = unsafe { read_byte_array(&private_key_byte_array, env)? };
+        let report = Report::get_decoded(&unsafe { read_byte_array(&report_byte_array, env)? })?;
+        let config = config_list
+            .hpke_configs()
+            .first()
+            .ok_or(Error::MissingHpkeConfigs)?
+            .clone();
+        let keypair = HpkeKeypair::new(config, HpkePrivateKey::new(private_key));
+
+        let measurement = match vdaf {
+            VDAF_PRIO3COUNT => {
+                let count = verify(&Prio3::new_count(2)?, &task_id, &keypair, &report)?;
+                vec![u128::from(count)]
+            }
+            VDAF_PRIO3SUM => {
+                let bits = to_usize(bits, "bits")?;
+                vec![verify(&Prio3::new_sum(2, bits)?, &task_id, &keypair, &report)?]
+            }
+            VDAF_PRIO3SUMVEC => {
+                let vdaf = Prio3::new_sum_vec(
+                    2,
+                    to_usize(bits, "bits")?,
+                    to_usize(length, "length")?,
+                    to_usize(chunk_length, "chunk_length")?,
+                )?;
+                verify(&vdaf, &task_id, &keypair, &report)?
+            }
+            VDAF_PRIO3HISTOGRAM => {
+                let vdaf = Prio3::new_histogram(
+                    2,
+                    to_usize(length, "length")?,
+                    to_usize(chunk_length, "chunk_length")?,
+                )?;
+                verify(&vdaf, &task_id, &keypair, &report)?
+            }
+            _ => return Err(Error::InvalidParameter("vdaf")),
+        };
+
+        // Safety: The array is freshly allocated by the caller, and is not accessed from Java until
+        // this call returns. Only one `AutoElements` is constructed from it, in this call.
+        let mut elements = unsafe { output_long_array.get_elements(env, ReleaseMode::CopyBack) }?;
+        if elements.len() != measurement.len() {
+            return Err(Error::InvalidParameter("output array has the wrong length"));
+        }
+        for (element, value) in elements.iter_mut().zip(measurement) {
+            *element = jlong::try_from(value)
+                .map_err(|_| Error::InvalidParameter("measurement does not fit in a long"))?;
+        }
+        elements.commit()?;
+        Ok(())
+    })
+}
+
+fn to_usize(value: jlong, name: &'static str) -> Result<usize, Error> {
+    usize::try_from(value).map_err(|_| Error::InvalidParameter(name))
+}
+
+/// Copy the contents of a Java byte[] array. This returns an error if the argument is null.
+///
+/// # Safety
+///
+/// There must not be any data races on the `byte[]` array, from either Java or Rust.
+///
+/// This function creates an [`AutoElements`][jni::objects::AutoElements] with the [`JByteArray`],
+/// and no other [`AutoElements`][jni::objects::AutoElements] or
+/// [`AutoElementsCritical`][jni::objects::AutoElementsCritical] may alias the array.
+unsafe fn read_byte_array<'local, 'a>(
+    array: &'a JByteArray<'local>,
+    env: &'a mut Env<'local>,
+) -> Result<Vec<u8>, Error> {
+    // Safety: All safety requirements of get_elements() are imposed on the caller.
+    let elements = unsafe { array.get_elements(env, ReleaseMode::NoCopyBack) }?;
+    Ok(elements.iter().map(|byte| *byte as u8).collect())
+}
+
+/// Decrypts both input shares of a report, runs preparation for both aggregators, and combines
+/// their output shares into the report's measurement.
+fn verify<V>(
+    vdaf: &V,
+    task_id: &TaskId,
+    keypair: &HpkeKeypair,
+    report: &Report,
+) -> Result<V::AggregateResult, Error>
+where
+    V: vdaf::Aggregator<16, 16> + vdaf::Collector,
+    V: vdaf::Vdaf<AggregationParam = ()>,
+{
+    let aad = InputShareAad::new(
+        *task_id,
+        report.metadata().clone(),
+        report.public_share().to_vec(),
+    )
+    .get_encoded()?;
+    let public_share = V::PublicShare::get_decoded_with_param(vdaf, report.public_share())?;
+    let nonce: &[u8; 16] = report.metadata().id().as_ref();
+    let verify_key: [u8; 16] = random();
+
+    let mut states = Vec::with_capacity(2);
+    let mut prepare_shares = Vec::with_capacity(2);
+    for (agg_id, role, ciphertext) in [
+        (0, Role::Leader, report.leader_encrypted_input_share()),
+        (1, Role::Helper, report.helper_encrypted_input_share()),
+    ] {
+        let input_share = decrypt_input_share(keypair, &role, ciphertext, &aad)?;
+        let input_share = V::InputShare::get_decoded_with_param(&(vdaf, agg_id), &input_share)?;
+        let (state, prepare_share) =
+            vdaf.prepare_init(&verify_key, agg_id, &(), nonce, &public_share, &input_share)?;
+        states.push(state);
+        prepare_shares.push(prepare_share);
+    }
+    let message = vdaf.prepare_shares_to_prepare_message(&(), prepare_shares)?;
+
+    let mut aggregate_shares = Vec::with_capacity(2);
+    for state in states {
+        match vdaf.prepare_next(state, message.clone())? {
+            PrepareTransition::Finish(output_share) => {
+                aggregate_shares.push(vdaf.aggregate(&(), [output_share])?);
+            }
+            _ => return Err(Error::InvalidParameter("preparation did not finish in one round")),
+        }
+    }
+    Ok(vdaf.unshard(&(), aggregate_shares, 1)?)
+}
+
+/// Decrypts an input share for one aggregator, and returns its VDAF payload.
+fn decrypt_input_share(
+    keypair: &HpkeKeypair,
+    role: &Role,
+    ciphertext: &HpkeCiphertext,
+    aad: &[u8],
+) -> Result<Vec<u8>, Error> {
+    let plaintext = hpke::open(
+        keypair,
+        &HpkeApplicationInfo::new(&Label::InputShare, &Role::Client, role),
+        ciphertext,
+        aad,
+    )?;
+    Ok(PlaintextInputShare::get_decoded(&plaintext)?.payload().to_vec())
+}
+
+#[cfg(test)]
+mod tests {
+    use janus_core::hpke::{HpkeKeypair, HpkePrivateKey};
+    use janus_messages::{HpkeConfigList, Report, TaskId, Time};
+    use prio::{codec::Decode, vdaf::prio3::Prio3};
+
+    use super::verify;
+    use crate::{prepare_report_generic, select_hpke_config, ReportContext, ShareLengths};
+
+    const HPKE_CONFIG_LIST: &[u8] =
+        include_bytes!("../../commontest/src/main/resources/hpke_config_list.bin");
+    const HPKE_PRIVATE_KEY: &[u8] =
+        include_bytes!("../../commontest/src/main/resources/hpke_private_key.bin");
+
+    fn setup() -> (ReportContext, HpkeKeypair) {
+        let list = HpkeConfigList::get_decoded(HPKE_CONFIG_LIST).unwrap();
+        let config = select_hpke_config(&list).unwrap();
+        let context = ReportContext {
+            task_id: TaskId::from([7; 32]),
+            leader_hpke_config: config.clone(),
+            helper_hpke_config: config.clone(),
+            time: Time::from_seconds_since_epoch(1_700_000_000),
+        };
+        let keypair = HpkeKeypair::new(config, HpkePrivateKey::new(HPKE_PRIVATE_KEY.to_vec()));
+        (context, keypair)
+    }
+
+    /// Reports prepared by the client are verified, and yield their measurements.
+    #[test]
+    fn reports_round_trip() {
+        let (context, keypair) = setup();
+
+        let vdaf = Prio3::new_count(2).unwrap();
+        let share_lengths = ShareLengths::count();
+        let mut output = Vec::new();
+        prepare_report_generic(&context, vdaf.clone(), &share_lengths, &true, &mut output).unwrap();
+        let report = Report::get_decoded(&output).unwrap();
+        assert_eq!(verify(&vdaf, &context.task_id, &keypair, &report).unwrap(), 1);
+
+        let vdaf = Prio3::new_sum_vec(2, 8, 10, 4).unwrap();
+        let share_lengths = ShareLengths::sum_vec(8, 10, 4).unwrap();
+        let measurement = vec![252, 7, 80, 194, 190, 217, 141, 85, 222, 243];
+        prepare_report_generic(
+            &context,
+            vdaf.clone(),
+            &share_lengths,
+            &measurement,
+            &mut output,
+        )
+        .unwrap();
+        let report = Report::get_decoded(&output).unwrap();
+        assert_eq!(
+            verify(&vdaf, &context.task_id, &keypair, &report).unwrap(),
+            measurement
+        );
+    }
+
+    /// Reports bound to a different task, or with tampered shares, are rejected.
+    #[test]
+    fn tampered_reports_are_rejected() {
+        let (context, keypair) = setup();
+        let vdaf = Prio3::new_histogram(2, 5, 2).unwrap();
+        let share_lengths = ShareLengths::histogram(5, 2).unwrap();
+        let mut output = Vec::new();
+        prepare_report_generic(&context, vdaf.clone(), &share_lengths, &3, &mut output).unwrap();
+
+        let report = Report::get_decoded(&output).unwrap();
+        assert!(verify(&vdaf, &TaskId::from([8; 32]), &keypair, &report).is_err());
+
+        let last = output.len() - 1;
+        output[last] ^= 1;
+        let report = Report::get_decoded(&output).unwrap();
+        assert!(verify(&vdaf, &context.task_id, &keypair, &report).is_err());
+    }
+}
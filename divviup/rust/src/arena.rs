@@ -0,0 +1,222 @@
+//! Per-thread buffers for the temporaries of report preparation.
+//!
+//! Each report needs a few large, short-lived buffers: the expanded Prio3SumVec measurement, both
+//! encoded plaintext input shares, and the encoded AAD. Rather than allocating and freeing these for
+//! every report, each thread keeps a set of buffers that are emptied, but not freed, after each
+//! report. Buffers keep track of how much of them the last few reports used, and give memory back to
+//! the allocator once they are much larger than recent reports need, so that one unusually large
+//! report does not pin its memory for the life of the thread.
+//!
+//! Shares and ciphertexts produced by `prio` and `janus_core` are allocated by those crates, and are
+//! not covered. Reports for Java callers are assembled in a per-thread output buffer, and copied
+//! into the caller's array once they are complete.
+
+use std::{
+    cell::RefCell,
+    mem,
+    ops::Deref,
+    sync::atomic::{AtomicBool, Ordering},
+    thread::LocalKey,
+};
+
+/// Number of recent reports whose usage determines how much memory each buffer keeps.
+const HISTORY: usize = 8;
+
+/// Buffers never give back memory below this size, since small allocations are cheap to keep.
+const MIN_RETAINED_BYTES: usize = 16 * 1024;
+
+/// A buffer is shrunk once its capacity exceeds this multiple of what recent reports used.
+const SHRINK_FACTOR: usize = 2;
+
+static ENABLED: AtomicBool = AtomicBool::new(true);
+
+thread_local! {
+    static MEASUREMENT: RefCell<Buffer<u128>> = RefCell::new(Buffer::default());
+    static SHARES: RefCell<ShareBuffers> = RefCell::new(ShareBuffers::default());
+    static OUTPUT: RefCell<Buffer<u8>> = RefCell::new(Buffer::default());
+}
+
+/// Enables or disables reuse of buffers. While disabled, every report gets new buffers, which are
+/// freed when it is done, so that the effect of reuse can be measured. Buffers already kept by each
+/// thread are not freed.
+#[cfg_attr(not(feature = "jni-benchmarks"), allow(dead_code))]
+pub(crate) fn set_enabled(enabled: bool) {
+    ENABLED.store(enabled, Ordering::Relaxed);
+}
+
+/// A growable buffer that is reused across reports.
+pub(crate) struct Buffer<T> {
+    vec: Vec<T>,
+    /// Lengths of the buffer at the end of recent reports.
+    recent: [usize; HISTORY],
+    next: usize,
+}
+
+impl<T> Default for Buffer<T> {
+    fn default() -> Self {
+        Self {
+            vec: Vec::new(),
+            recent: [0; HISTORY],
+            next: 0,
+        }
+    }
+}
+
+impl<T> Buffer<T> {
+    /// Empties the buffer, and returns it to be filled.
+    pub(crate) fn start(&mut self) -> &mut Vec<T> {
+        self.vec.clear();
+        &mut self.vec
+    }
+
+    /// Returns the number of bytes of memory held by the buffer.
+    #[cfg(test)]
+    fn retained_bytes(&self) -> usize {
+        self.vec.capacity() * mem::size_of::<T>()
+    }
+}
+
+impl<T> Deref for Buffer<T> {
+    type Target = Vec<T>;
+
+    fn deref(&self) -> &Vec<T> {
+        &self.vec
+    }
+}
+
+/// Buffers for the encoded inputs to HPKE encryption of both input shares.
+#[derive(Default)]
+pub(crate) struct ShareBuffers {
+    pub(crate) leader_plaintext: Buffer<u8>,
+    pub(crate) helper_plaintext: Buffer<u8>,
+    /// The encoded `InputShareAad`, which also holds the report metadata and public share that are
+    /// copied into the report.
+    pub(crate) aad: Buffer<u8>,
+}
+
+/// Buffers that are emptied after each report.
+trait Reset: Default {
+    fn reset(&mut self);
+}
+
+impl<T> Reset for Buffer<T> {
+    /// Records how much of the buffer the current report used, empties it, and shrinks it if it is
+    /// much larger than any recent report needed.
+    fn reset(&mut self) {
+        self.recent[self.next] = self.vec.len();
+        self.next = (self.next + 1) % HISTORY;
+        self.vec.clear();
+
+        let element_size = mem::size_of::<T>().max(1);
+        let needed = self
+            .recent
+            .iter()
+            .copied()
+            .max()
+            .unwrap_or_default()
+            .max(MIN_RETAINED_BYTES / element_size);
+        if self.vec.capacity() > SHRINK_FACTOR * needed {
+            self.vec.shrink_to(needed);
+        }
+    }
+}
+
+impl Reset for ShareBuffers {
+    fn reset(&mut self) {
+        self.leader_plaintext.reset();
+        self.helper_plaintext.reset();
+        self.aad.reset();
+    }
+}
+
+/// Runs `f` with this thread's measurement buffer.
+pub(crate) fn with_measurement<T>(f: impl FnOnce(&mut Buffer<u128>) -> T) -> T {
+    with_buffers(&MEASUREMENT, f)
+}
+
+/// Runs `f` with this thread's share buffers.
+pub(crate) fn with_shares<T>(f: impl FnOnce(&mut ShareBuffers) -> T) -> T {
+    with_buffers(&SHARES, f)
+}
+
+/// Runs `f` with this thread's output buffer.
+pub(crate) fn with_output<T>(f: impl FnOnce(&mut Buffer<u8>) -> T) -> T {
+    with_buffers(&OUTPUT, f)
+}
+
+/// Runs `f` with a thread's buffers, and resets them afterwards. If reuse is disabled, the buffers
+/// are already in use further up the stack, or the thread is exiting, `f` is given new buffers
+/// instead.
+fn with_buffers<B: Reset, T>(key: &'static LocalKey<RefCell<B>>, f: impl FnOnce(&mut B) -> T) -> T {
+    let mut f = Some(f);
+    if ENABLED.load(Ordering::Relaxed) {
+        let result = key.try_with(|cell| {
+            let mut buffers = cell.try_borrow_mut().ok()?;
+            // Unwrap safety: `f` is only taken once, here or below.
+            let result = (f.take().unwrap())(&mut *buffers);
+            buffers.reset();
+            Some(result)
+        });
+        if let Ok(Some(result)) = result {
+            return result;
+        }
+    }
+    // Unwrap safety: `f` was not taken above, since no result was returned.
+    (f.take().unwrap())(&mut B::default())
+}
+
+#[cfg(test)]
+mod tests {
+    use super::{with_shares, Buffer, Reset, HISTORY, MIN_RETAINED_BYTES};
+
+    fn fill(buffer: &mut Buffer<u8>, length: usize) {
+        buffer.start().resize(length, 1);
+        buffer.reset();
+    }
+
+    /// Memory is kept while reports stay the same size.
+    #[test]
+    fn steady_reports_keep_memory() {
+        let mut buffer = Buffer::default();
+        fill(&mut buffer, 100_000);
+        let retained = buffer.retained_bytes();
+        assert!(retained >= 100_000);
+        for _ in 0..3 * HISTORY {
+            fill(&mut buffer, 100_000);
+            assert_eq!(buffer.retained_bytes(), retained);
+            assert!(buffer.is_empty());
+        }
+    }
+
+    /// Memory from a large report is given back once it falls out of the history.
+    #[test]
+    fn large_report_is_forgotten() {
+        let mut buffer = Buffer::default();
+        fill(&mut buffer, 1_000_000);
+        for _ in 0..HISTORY - 1 {
+            fill(&mut buffer, 50_000);
+            assert!(buffer.retained_bytes() >= 1_000_000);
+        }
+        fill(&mut buffer, 50_000);
+        assert!(buffer.retained_bytes() < 1_000_000);
+        assert!(buffer.retained_bytes() >= 50_000);
+
+        for _ in 0..HISTORY {
+            fill(&mut buffer, 10);
+        }
+        assert!(buffer.retained_bytes() <= MIN_RETAINED_BYTES);
+    }
+
+    /// Buffers that are already in use are not handed out again.
+    #[test]
+    fn nested_use_gets_new_buffers() {
+        with_shares(|outer| {
+            outer.aad.start().push(1);
+            with_shares(|inner| {
+                assert!(inner.aad.is_empty());
+                inner.aad.start().push(2);
+            });
+            assert_eq!(outer.aad.as_slice(), &[1]);
+        });
+    }
+}
@@ -0,0 +1,280 @@
+//! No-op JNI entry points for measuring the cost of crossing into native code and accessing array
+//! arguments, separately from the cost of preparing a report. These are used by
+//! `JniOverheadBenchmark` in the host unit tests, and are only compiled with the `jni-benchmarks`
+//! feature.
+//!
+//! Each entry point takes the same arguments as the Prio3Count entry point, except where noted, and
+//! reads every input byte and writes `output_length` bytes of output, using one strategy for
+//! accessing arrays.
+//!
+//! There is also a switch for the reuse of buffers in [`arena`], so that full preparation can be
+//! timed with and without it.
+
+use std::hint::black_box;
+
+use jni::{
+    objects::{JByteArray, JByteBuffer, JClass, JLongArray, ReleaseMode},
+    sys::{jboolean, jbyte, jint, jlong},
+    Env, EnvUnowned,
+};
+
+use crate::{arena, jni_try, Error};
+
+/// Sums bytes, so that reads of the input cannot be optimized away.
+fn checksum(bytes: &[jbyte]) -> jint {
+    bytes
+        .iter()
+        .fold(0, |sum: jint, byte| sum.wrapping_add(jint::from(*byte)))
+}
+
+/// Converts the requested output length from Java.
+fn checked_length(length: jint) -> Result<usize, Error> {
+    usize::try_from(length).map_err(|_| Error::InvalidParameter("output_length"))
+}
+
+/// Crosses into native code and returns, without touching any arguments.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_emptyNative<'local>(
+    _env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    _task_id_byte_array: JByteArray<'local>,
+    _leader_hpke_config_list_byte_array: JByteArray<'local>,
+    _helper_hpke_config_list_byte_array: JByteArray<'local>,
+    _timestamp: jlong,
+    _measurement: jboolean,
+    _output_byte_array: JByteArray<'local>,
+    output_length: jint,
+) -> jint {
+    black_box(output_length)
+}
+
+/// Crosses into native code through [`jni_try`], without touching any arguments.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_jniTryNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    _task_id_byte_array: JByteArray<'local>,
+    _leader_hpke_config_list_byte_array: JByteArray<'local>,
+    _helper_hpke_config_list_byte_array: JByteArray<'local>,
+    _timestamp: jlong,
+    _measurement: jboolean,
+    _output_byte_array: JByteArray<'local>,
+    output_length: jint,
+) -> jint {
+    jni_try(&mut env, |_env: &mut Env<'_>| Ok(black_box(output_length)))
+}
+
+/// Crosses into native code through [`jni_try`], and throws an exception.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_throwingNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    _task_id_byte_array: JByteArray<'local>,
+    _leader_hpke_config_list_byte_array: JByteArray<'local>,
+    _helper_hpke_config_list_byte_array: JByteArray<'local>,
+    _timestamp: jlong,
+    _measurement: jboolean,
+    _output_byte_array: JByteArray<'local>,
+    _output_length: jint,
+) -> jint {
+    jni_try(&mut env, |_env: &mut Env<'_>| -> Result<jint, Error> {
+        Err(Error::InvalidParameter("benchmark"))
+    })
+}
+
+/// Enables or disables reuse of the buffers for temporaries of report preparation.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_setArenaEnabledNative<'local>(
+    _env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    enabled: jboolean,
+) {
+    arena::set_enabled(enabled);
+}
+
+/// Accesses arrays with `Get<Type>ArrayElements`, as the real entry points do.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_elementsNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    task_id_byte_array: JByteArray<'local>,
+    leader_hpke_config_list_byte_array: JByteArray<'local>,
+    helper_hpke_config_list_byte_array: JByteArray<'local>,
+    _timestamp: jlong,
+    _measurement: jboolean,
+    output_byte_array: JByteArray<'local>,
+    output_length: jint,
+) -> jint {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let mut sum = 0;
+        for array in [
+            &task_id_byte_array,
+            &leader_hpke_config_list_byte_array,
+            &helper_hpke_config_list_byte_array,
+        ] {
+            // Safety: The benchmark does not access these arrays from Java during the call, and
+            // only one `AutoElements` exists for each array at a time.
+            let elements = unsafe { array.get_elements(env, ReleaseMode::NoCopyBack) }?;
+            sum = checksum(&elements).wrapping_add(sum);
+        }
+        // Safety: As above.
+        let mut output = unsafe { output_byte_array.get_elements(env, ReleaseMode::CopyBack) }?;
+        let length = checked_length(output_length)?;
+        output[..length].fill(black_box(1));
+        output.commit()?;
+        Ok(sum)
+    })
+}
+
+/// Accesses arrays with `Get<Type>ArrayElements`, with the Prio3SumVec measurement argument added.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_elementsSumVecNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    task_id_byte_array: JByteArray<'local>,
+    leader_hpke_config_list_byte_array: JByteArray<'local>,
+    helper_hpke_config_list_byte_array: JByteArray<'local>,
+    _timestamp: jlong,
+    measurement: JLongArray<'local>,
+    output_byte_array: JByteArray<'local>,
+    output_length: jint,
+) -> jint {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let mut sum = 0;
+        for array in [
+            &task_id_byte_array,
+            &leader_hpke_config_list_byte_array,
+            &helper_hpke_config_list_byte_array,
+        ] {
+            // Safety: The benchmark does not access these arrays from Java during the call, and
+            // only one `AutoElements` exists for each array at a time.
+            let elements = unsafe { array.get_elements(env, ReleaseMode::NoCopyBack) }?;
+            sum = checksum(&elements).wrapping_add(sum);
+        }
+        // Safety: As above.
+        let elements = unsafe { measurement.get_elements(env, ReleaseMode::NoCopyBack) }?;
+        sum = elements
+            .iter()
+            .fold(sum, |sum, value| sum.wrapping_add(*value as jint));
+        drop(elements);
+        // Safety: As above.
+        let mut output = unsafe { output_byte_array.get_elements(env, ReleaseMode::CopyBack) }?;
+        let length = checked_length(output_length)?;
+        output[..length].fill(black_box(1));
+        output.commit()?;
+        Ok(sum)
+    })
+}
+
+/// Copies arrays in and out of native buffers with `Get<Type>ArrayRegion` and
+/// `Set<Type>ArrayRegion`.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_regionNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    task_id_byte_array: JByteArray<'local>,
+    leader_hpke_config_list_byte_array: JByteArray<'local>,
+    helper_hpke_config_list_byte_array: JByteArray<'local>,
+    _timestamp: jlong,
+    _measurement: jboolean,
+    output_byte_array: JByteArray<'local>,
+    output_length: jint,
+) -> jint {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let mut sum = 0;
+        let mut buffer = Vec::new();
+        for array in [
+            &task_id_byte_array,
+            &leader_hpke_config_list_byte_array,
+            &helper_hpke_config_list_byte_array,
+        ] {
+            buffer.resize(array.len(env)?, 0);
+            array.get_region(env, 0, &mut buffer)?;
+            sum = checksum(&buffer).wrapping_add(sum);
+        }
+        let length = checked_length(output_length)?;
+        buffer.clear();
+        buffer.resize(length, black_box(1));
+        output_byte_array.set_region(env, 0, &buffer)?;
+        Ok(sum)
+    })
+}
+
+/// Accesses arrays with `GetPrimitiveArrayCritical`, which may pause garbage collection while
+/// arrays are held.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_criticalNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    task_id_byte_array: JByteArray<'local>,
+    leader_hpke_config_list_byte_array: JByteArray<'local>,
+    helper_hpke_config_list_byte_array: JByteArray<'local>,
+    _timestamp: jlong,
+    _measurement: jboolean,
+    output_byte_array: JByteArray<'local>,
+    output_length: jint,
+) -> jint {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let mut sum = 0;
+        for array in [
+            &task_id_byte_array,
+            &leader_hpke_config_list_byte_array,
+            &helper_hpke_config_list_byte_array,
+        ] {
+            // Safety: No other JNI calls are made while the critical section is held, and the
+            // benchmark does not access these arrays from Java during the call.
+            let elements = unsafe { array.get_elements_critical(env, ReleaseMode::NoCopyBack) }?;
+            sum = checksum(&elements).wrapping_add(sum);
+        }
+        // Safety: As above.
+        let mut output =
+            unsafe { output_byte_array.get_elements_critical(env, ReleaseMode::CopyBack) }?;
+        let length = checked_length(output_length)?;
+        output[..length].fill(black_box(1));
+        Ok(sum)
+    })
+}
+
+/// Accesses direct `ByteBuffer`s, whose memory is not managed by the garbage collector. The array
+/// arguments are replaced by buffers.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_JniOverheadBenchmark_directNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    task_id_buffer: JByteBuffer<'local>,
+    leader_hpke_config_list_buffer: JByteBuffer<'local>,
+    helper_hpke_config_list_buffer: JByteBuffer<'local>,
+    _timestamp: jlong,
+    _measurement: jboolean,
+    output_buffer: JByteBuffer<'local>,
+    output_length: jint,
+) -> jint {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let mut sum = 0;
+        for buffer in [
+            &task_id_buffer,
+            &leader_hpke_config_list_buffer,
+            &helper_hpke_config_list_buffer,
+        ] {
+            let bytes = direct_buffer_slice(env, buffer)?;
+            sum = checksum(bytes).wrapping_add(sum);
+        }
+        let length = checked_length(output_length)?;
+        let output = direct_buffer_slice(env, &output_buffer)?;
+        output[..length].fill(black_box(1));
+        Ok(sum)
+    })
+}
+
+/// Gets the memory of a direct `ByteBuffer` as a slice.
+fn direct_buffer_slice<'b>(
+    env: &mut Env<'_>,
+    buffer: &'b JByteBuffer<'_>,
+) -> Result<&'b mut [jbyte], Error> {
+    let address = env.get_direct_buffer_address(buffer)?;
+    let capacity = env.get_direct_buffer_capacity(buffer)?;
+    // Safety: The address and capacity describe memory owned by the buffer, which is kept alive by
+    // the local reference for the rest of the call. The benchmark does not access the buffers from
+    // Java during the call.
+    Ok(unsafe { std::slice::from_raw_parts_mut(address as *mut jbyte, capacity) })
+}
@@ -1,28 +1,51 @@
 #![deny(unsafe_op_in_unsafe_fn)]
 
+mod advisor;
+#[cfg(not(target_os = "android"))]
+mod aggregator;
+mod arena;
+#[cfg(feature = "jni-benchmarks")]
+mod benchmark;
+mod precompute;
+mod profile;
+
 use std::slice;
 
 use janus_core::hpke::{self, is_hpke_config_supported, HpkeApplicationInfo, Label};
 use janus_messages::{
-    HpkeCiphertext, HpkeConfig, HpkeConfigList, InputShareAad, PlaintextInputShare, Report,
-    ReportId, ReportMetadata, Role, TaskId, Time,
+    HpkeAeadId, HpkeCiphertext, HpkeConfig, HpkeConfigList, HpkeKemId, ReportId, ReportMetadata,
+    Role, TaskId, Time,
 };
 use jni::{
     errors::ThrowRuntimeExAndDefault,
-    objects::{JByteArray, JClass, JLongArray, ReleaseMode},
-    sys::{jboolean, jbyteArray, jlong, jobject},
+    objects::{JByteArray, JClass, JIntArray, JLongArray, ReleaseMode},
+    sys::{jboolean, jint, jlong},
     Env, EnvUnowned,
 };
 use prio::{
     codec::{Decode, Encode},
-    vdaf::{self, prio3::Prio3},
+    field::{Field128, Field64, FieldElement},
+    flp::{
+        gadgets::{Mul, ParallelSum},
+        types::{Count, Histogram, Sum, SumVec},
+        Type,
+    },
+    vdaf::{self, prio3::Prio3, VdafError},
 };
 use rand::random;
 
+use arena::ShareBuffers;
+use precompute::Bundle;
+use profile::{Phase, PhaseTimer};
+
 /// JNI entry point to prepare a Prio3Count report.
 ///
 /// Note that the timestamp argument should already be rounded down according to the DAP task's
 /// time_precision.
+///
+/// The report is written to the start of the output buffer, and its length is returned. If the
+/// output buffer is too small, nothing is written, and the negated length of the report is returned
+/// instead.
 #[no_mangle]
 pub extern "system" fn Java_org_divviup_android_Client_00024Prio3CountReportPreparer_prepareReportNative<
     'local,
@@ -34,17 +57,19 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3CountReportPrep
     helper_hpke_config_list_byte_array: JByteArray<'local>,
     timestamp: jlong,
     measurement: jboolean,
-) -> jbyteArray {
+    output_byte_array: JByteArray<'local>,
+) -> jint {
     jni_try(&mut env, |env: &mut Env<'_>| {
-        let report = prepare_report_prio3count_inner(
+        let result = prepare_report_prio3count_inner(
             &task_id_byte_array,
             &leader_hpke_config_list_byte_array,
             &helper_hpke_config_list_byte_array,
             timestamp,
             measurement,
+            &output_byte_array,
             env,
-        )?;
-        return_new_byte_array(&report, env)
+        );
+        report_length_to_jint(result)
     })
 }
 
@@ -52,6 +77,10 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3CountReportPrep
 ///
 /// Note that the timestamp argument should already be rounded down according to the DAP task's
 /// time_precision.
+///
+/// The report is written to the start of the output buffer, and its length is returned. If the
+/// output buffer is too small, nothing is written, and the negated length of the report is returned
+/// instead.
 #[no_mangle]
 pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumReportPreparer_prepareReportNative<
     'local,
@@ -64,18 +93,20 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumReportPrepar
     timestamp: jlong,
     bits: jlong,
     measurement: jlong,
-) -> jbyteArray {
+    output_byte_array: JByteArray<'local>,
+) -> jint {
     jni_try(&mut env, |env: &mut Env<'_>| {
-        let report = prepare_report_prio3sum_inner(
+        let result = prepare_report_prio3sum_inner(
             &task_id_byte_array,
             &leader_hpke_config_list_byte_array,
             &helper_hpke_config_list_byte_array,
             timestamp,
             bits,
             measurement,
+            &output_byte_array,
             env,
-        )?;
-        return_new_byte_array(&report, env)
+        );
+        report_length_to_jint(result)
     })
 }
 
@@ -83,6 +114,10 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumReportPrepar
 ///
 /// Note that the timestamp argument should already be rounded down according to the DAP task's
 /// time_precision.
+///
+/// The report is written to the start of the output buffer, and its length is returned. If the
+/// output buffer is too small, nothing is written, and the negated length of the report is returned
+/// instead.
 #[no_mangle]
 pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumVecReportPreparer_prepareReportNative<
     'local,
@@ -97,9 +132,10 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumVecReportPre
     bits: jlong,
     chunk_length: jlong,
     measurement: JLongArray<'local>,
-) -> jbyteArray {
+    output_byte_array: JByteArray<'local>,
+) -> jint {
     jni_try(&mut env, |env: &mut Env<'_>| {
-        let report = prepare_report_prio3sumvec_inner(
+        let result = prepare_report_prio3sumvec_inner(
             &task_id_byte_array,
             &leader_hpke_config_list_byte_array,
             &helper_hpke_config_list_byte_array,
@@ -108,9 +144,54 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumVecReportPre
             bits,
             chunk_length,
             &measurement,
+            &output_byte_array,
             env,
-        )?;
-        return_new_byte_array(&report, env)
+        );
+        report_length_to_jint(result)
+    })
+}
+
+/// JNI entry point to prepare a Prio3SumVec report from a sparse measurement, given as parallel
+/// arrays of indices and values. Elements that are not listed are zero.
+///
+/// Note that the timestamp argument should already be rounded down according to the DAP task's
+/// time_precision.
+///
+/// The report is written to the start of the output buffer, and its length is returned. If the
+/// output buffer is too small, nothing is written, and the negated length of the report is returned
+/// instead.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumVecSparseReportPreparer_prepareReportNative<
+    'local,
+>(
+    mut env: EnvUnowned<'local>,
+    _this: JClass<'local>,
+    task_id_byte_array: JByteArray<'local>,
+    leader_hpke_config_list_byte_array: JByteArray<'local>,
+    helper_hpke_config_list_byte_array: JByteArray<'local>,
+    timestamp: jlong,
+    length: jlong,
+    bits: jlong,
+    chunk_length: jlong,
+    indices: JIntArray<'local>,
+    values: JLongArray<'local>,
+    output_byte_array: JByteArray<'local>,
+) -> jint {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let result = prepare_report_prio3sumvec_sparse_inner(
+            &task_id_byte_array,
+            &leader_hpke_config_list_byte_array,
+            &helper_hpke_config_list_byte_array,
+            timestamp,
+            length,
+            bits,
+            chunk_length,
+            &indices,
+            &values,
+            &output_byte_array,
+            env,
+        );
+        report_length_to_jint(result)
     })
 }
 
@@ -118,6 +199,10 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3SumVecReportPre
 ///
 /// Note that the timestamp argument should already be rounded down according to the DAP task's
 /// time_precision.
+///
+/// The report is written to the start of the output buffer, and its length is returned. If the
+/// output buffer is too small, nothing is written, and the negated length of the report is returned
+/// instead.
 #[no_mangle]
 pub extern "system" fn Java_org_divviup_android_Client_00024Prio3HistogramReportPreparer_prepareReportNative<
     'local,
@@ -131,9 +216,10 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3HistogramReport
     length: jlong,
     chunk_length: jlong,
     measurement: jlong,
-) -> jbyteArray {
+    output_byte_array: JByteArray<'local>,
+) -> jint {
     jni_try(&mut env, |env: &mut Env<'_>| {
-        let report = prepare_report_prio3histogram_inner(
+        let result = prepare_report_prio3histogram_inner(
             &task_id_byte_array,
             &leader_hpke_config_list_byte_array,
             &helper_hpke_config_list_byte_array,
@@ -141,12 +227,139 @@ pub extern "system" fn Java_org_divviup_android_Client_00024Prio3HistogramReport
             length,
             chunk_length,
             measurement,
+            &output_byte_array,
             env,
-        )?;
-        return_new_byte_array(&report, env)
+        );
+        report_length_to_jint(result)
     })
 }
 
+/// JNI entry point to enable or disable profiling of report preparation.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_NativeProfiler_setEnabledNative<'local>(
+    _env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    enabled: jboolean,
+) {
+    profile::set_enabled(enabled);
+}
+
+/// JNI entry point to clear the profiling counters.
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_NativeProfiler_resetNative<'local>(
+    _env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+) {
+    profile::reset();
+}
+
+/// JNI entry point to read the profiling counters into a Java long[] array. The layout is
+/// described by [`profile::snapshot`].
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_NativeProfiler_readCountersNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    output_long_array: JLongArray<'local>,
+) {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        // Safety: The array is freshly allocated by the caller, and is not accessed from Java until
+        // this call returns. Only one `AutoElements` is constructed from it, in this call.
+        let mut elements = unsafe { output_long_array.get_elements(env, ReleaseMode::CopyBack) }?;
+        if elements.len() != profile::SNAPSHOT_LENGTH {
+            return Err(Error::InvalidParameter("profiling counter array has the wrong length"));
+        }
+        for (element, value) in elements.iter_mut().zip(profile::snapshot()) {
+            *element = jlong::try_from(value).unwrap_or(jlong::MAX);
+        }
+        elements.commit()?;
+        Ok(())
+    })
+}
+
+/// JNI entry point to measure the cost of sharding a Prio3SumVec measurement, or a Prio3Histogram
+/// measurement if `histogram` is set, in which case `bits` is ignored. The total time taken by
+/// `samples` iterations, in nanoseconds, and the combined size of the shares are written to the
+/// output array. See [`advisor`].
+#[no_mangle]
+#[allow(clippy::too_many_arguments)]
+pub extern "system" fn Java_org_divviup_android_ChunkLengthAdvisor_measureNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    histogram: jboolean,
+    length: jlong,
+    bits: jlong,
+    chunk_length: jlong,
+    samples: jint,
+    output_long_array: JLongArray<'local>,
+) {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let length = length
+            .try_into()
+            .map_err(|_| Error::InvalidParameter("length"))?;
+        let chunk_length = chunk_length
+            .try_into()
+            .map_err(|_| Error::InvalidParameter("chunk_length"))?;
+        let samples = samples
+            .try_into()
+            .map_err(|_| Error::InvalidParameter("samples"))?;
+        let cost = if histogram {
+            advisor::measure_histogram(length, chunk_length, samples)?
+        } else {
+            let bits = bits
+                .try_into()
+                .map_err(|_| Error::InvalidParameter("bits"))?;
+            advisor::measure_sum_vec(length, bits, chunk_length, samples)?
+        };
+        // Safety: The array is freshly allocated by the caller, and is not accessed from Java until
+        // this call returns. Only one `AutoElements` is constructed from it, in this call.
+        let mut elements = unsafe { output_long_array.get_elements(env, ReleaseMode::CopyBack) }?;
+        if elements.len() != 2 {
+            return Err(Error::InvalidParameter("cost array has the wrong length"));
+        }
+        elements[0] = jlong::try_from(cost.total_nanos).unwrap_or(jlong::MAX);
+        elements[1] = jlong::try_from(cost.share_bytes).unwrap_or(jlong::MAX);
+        elements.commit()?;
+        Ok(())
+    })
+}
+
+/// JNI entry point to precompute the measurement-independent parts of reports for a pair of
+/// aggregators, until `target` are available. Returns the number available, which is zero if the
+/// aggregators' HPKE configs use a ciphersuite that is not precomputed. See [`precompute`].
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_Client_precomputeNative<'local>(
+    mut env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    leader_hpke_config_list_byte_array: JByteArray<'local>,
+    helper_hpke_config_list_byte_array: JByteArray<'local>,
+    target: jint,
+) -> jint {
+    jni_try(&mut env, |env: &mut Env<'_>| {
+        let target = usize::try_from(target).map_err(|_| Error::InvalidParameter("target"))?;
+        // Safety: These byte arrays are not mutated again from the Java side once they are passed
+        // in. Only one `AutoElements` is constructed from each, in these calls.
+        let leader_hpke_config_list =
+            unsafe { decode_hpke_config_list(&leader_hpke_config_list_byte_array, false, env)? };
+        let helper_hpke_config_list =
+            unsafe { decode_hpke_config_list(&helper_hpke_config_list_byte_array, false, env)? };
+        let leader_hpke_config = select_hpke_config(&leader_hpke_config_list)?;
+        let helper_hpke_config = select_hpke_config(&helper_hpke_config_list)?;
+        let available = precompute::fill(&leader_hpke_config, &helper_hpke_config, target)?;
+        Ok(jint::try_from(available).unwrap_or(jint::MAX))
+    })
+}
+
+/// JNI entry point to make report preparation on the calling thread ignore precomputed material,
+/// or use it again. See [`precompute::set_bypassed`].
+#[no_mangle]
+pub extern "system" fn Java_org_divviup_android_Client_setPrecomputeBypassedNative<'local>(
+    _env: EnvUnowned<'local>,
+    _class: JClass<'local>,
+    bypassed: jboolean,
+) {
+    precompute::set_bypassed(bypassed);
+}
+
 #[derive(Debug, thiserror::Error)]
 enum Error {
     #[error("message encoding failed: {0}")]
@@ -161,19 +374,40 @@ enum Error {
     Message(#[from] janus_messages::Error),
     #[error("aggregator provided empty HPKE config list")]
     MissingHpkeConfigs,
+    #[error("output buffer is too small, {0} bytes are required")]
+    OutputBufferTooSmall(usize),
+    #[error("HPKE error in precomputation: {0}")]
+    PrecomputeHpke(::hpke::HpkeError),
+    #[error("encoded report is too large")]
+    ReportTooLarge,
     #[error("VDAF error: {0}")]
     Vdaf(#[from] prio::vdaf::VdafError),
 }
 
-/// Runs a fallible closure that returns a jobject, and transforms an error result into a thrown
-/// exception, with a message provided from the error.
-fn jni_try<'local, F>(env: &mut EnvUnowned<'local>, f: F) -> jobject
+/// Runs a fallible closure, and transforms an error result into a thrown exception, with a message
+/// provided from the error.
+fn jni_try<'local, F, T>(env: &mut EnvUnowned<'local>, f: F) -> T
 where
-    F: FnOnce(&mut Env<'local>) -> Result<jobject, Error>,
+    F: FnOnce(&mut Env<'local>) -> Result<T, Error>,
+    T: Default,
 {
     env.with_env(f).resolve::<ThrowRuntimeExAndDefault>()
 }
 
+/// Converts the result of writing a report to an output buffer into the value returned to Java.
+///
+/// This is the length of the report, or the negated length of the report if the output buffer was
+/// too small. Other errors are passed through, to be thrown as exceptions.
+fn report_length_to_jint(result: Result<usize, Error>) -> Result<jint, Error> {
+    match result {
+        Ok(length) => jint::try_from(length).map_err(|_| Error::ReportTooLarge),
+        Err(Error::OutputBufferTooSmall(required)) => jint::try_from(required)
+            .map(|required| -required)
+            .map_err(|_| Error::ReportTooLarge),
+        Err(e) => Err(e),
+    }
+}
+
 /// Shard a Prio3Count measurement, and construct a DAP report.
 ///
 /// This is separated from [`Java_org_divviup_android_Client_prepareReportPrio3Count`] to simplify
@@ -184,17 +418,24 @@ fn prepare_report_prio3count_inner<'local, 'a>(
     helper_hpke_config_list_byte_array: &'a JByteArray<'local>,
     timestamp: jlong,
     measurement: jboolean,
+    output_byte_array: &'a JByteArray<'local>,
     env: &'a mut Env<'local>,
-) -> Result<Vec<u8>, Error> {
+) -> Result<usize, Error> {
     let vdaf = Prio3::new_count(2)?;
-    prepare_report_generic(
+    let share_lengths = ShareLengths::count();
+    let context = read_report_context(
         task_id_byte_array,
         leader_hpke_config_list_byte_array,
         helper_hpke_config_list_byte_array,
         timestamp,
+        env,
+    )?;
+    prepare_report_generic(
+        &context,
         vdaf,
+        &share_lengths,
         &measurement,
-        env,
+        &mut JavaOutputBuffer::new(output_byte_array, env),
     )
 }
 
@@ -202,6 +443,7 @@ fn prepare_report_prio3count_inner<'local, 'a>(
 ///
 /// This is separated from [`Java_org_divviup_android_Client_prepareReportPrio3Sum`] to simplify
 /// error handling.
+#[allow(clippy::too_many_arguments)]
 fn prepare_report_prio3sum_inner<'local, 'a>(
     task_id_byte_array: &'a JByteArray<'local>,
     leader_hpke_config_list_byte_array: &'a JByteArray<'local>,
@@ -209,23 +451,30 @@ fn prepare_report_prio3sum_inner<'local, 'a>(
     timestamp: jlong,
     bits: jlong,
     measurement: jlong,
+    output_byte_array: &'a JByteArray<'local>,
     env: &'a mut Env<'local>,
-) -> Result<Vec<u8>, Error> {
+) -> Result<usize, Error> {
     let bits = bits
         .try_into()
         .map_err(|_| Error::InvalidParameter("bits"))?;
     let vdaf = Prio3::new_sum(2, bits)?;
+    let share_lengths = ShareLengths::sum(bits)?;
     let measurement = measurement
         .try_into()
         .map_err(|_| Error::InvalidParameter("measurement"))?;
-    prepare_report_generic(
+    let context = read_report_context(
         task_id_byte_array,
         leader_hpke_config_list_byte_array,
         helper_hpke_config_list_byte_array,
         timestamp,
+        env,
+    )?;
+    prepare_report_generic(
+        &context,
         vdaf,
+        &share_lengths,
         &measurement,
-        env,
+        &mut JavaOutputBuffer::new(output_byte_array, env),
     )
 }
 
@@ -243,8 +492,9 @@ fn prepare_report_prio3sumvec_inner<'local, 'a>(
     bits: jlong,
     chunk_length: jlong,
     measurement: &'a JLongArray<'local>,
+    output_byte_array: &'a JByteArray<'local>,
     env: &'a mut Env<'local>,
-) -> Result<Vec<u8>, Error> {
+) -> Result<usize, Error> {
     let bits = bits
         .try_into()
         .map_err(|_| Error::InvalidParameter("bits"))?;
@@ -255,20 +505,85 @@ fn prepare_report_prio3sumvec_inner<'local, 'a>(
         .try_into()
         .map_err(|_| Error::InvalidParameter("chunk_length"))?;
     let vdaf = Prio3::new_sum_vec(2, bits, length, chunk_length)?;
+    let share_lengths = ShareLengths::sum_vec(bits, length, chunk_length)?;
 
-    // Safety: The copy of the measurement array is not mutated again from the Java side once it is
-    // passed in. Only one `AutoElements` is constructed from it, in this call.
-    let measurement = unsafe { convert_sumvec_measurement(measurement, env)? };
+    arena::with_measurement(|buffer| {
+        // Safety: The copy of the measurement array is not mutated again from the Java side once it
+        // is passed in. Only one `AutoElements` is constructed from it, in this call.
+        unsafe { convert_sumvec_measurement(measurement, buffer.start(), env)? };
 
-    prepare_report_generic(
-        task_id_byte_array,
-        leader_hpke_config_list_byte_array,
-        helper_hpke_config_list_byte_array,
-        timestamp,
-        vdaf,
-        &measurement,
-        env,
-    )
+        let context = read_report_context(
+            task_id_byte_array,
+            leader_hpke_config_list_byte_array,
+            helper_hpke_config_list_byte_array,
+            timestamp,
+            env,
+        )?;
+        let measurement: &Vec<u128> = buffer;
+        prepare_report_generic(
+            &context,
+            vdaf,
+            &share_lengths,
+            measurement,
+            &mut JavaOutputBuffer::new(output_byte_array, env),
+        )
+    })
+}
+
+/// Shard a sparse Prio3SumVec measurement, and construct a DAP report.
+///
+/// This is separated from
+/// [`Java_org_divviup_android_Client_00024Prio3SumVecSparseReportPreparer_prepareReportNative`] to
+/// simplify error handling.
+#[allow(clippy::too_many_arguments)]
+fn prepare_report_prio3sumvec_sparse_inner<'local, 'a>(
+    task_id_byte_array: &'a JByteArray<'local>,
+    leader_hpke_config_list_byte_array: &'a JByteArray<'local>,
+    helper_hpke_config_list_byte_array: &'a JByteArray<'local>,
+    timestamp: jlong,
+    length: jlong,
+    bits: jlong,
+    chunk_length: jlong,
+    indices: &'a JIntArray<'local>,
+    values: &'a JLongArray<'local>,
+    output_byte_array: &'a JByteArray<'local>,
+    env: &'a mut Env<'local>,
+) -> Result<usize, Error> {
+    let bits = bits
+        .try_into()
+        .map_err(|_| Error::InvalidParameter("bits"))?;
+    let length = length
+        .try_into()
+        .map_err(|_| Error::InvalidParameter("length"))?;
+    let chunk_length = chunk_length
+        .try_into()
+        .map_err(|_| Error::InvalidParameter("chunk_length"))?;
+    let vdaf = Prio3::new_sum_vec(2, bits, length, chunk_length)?;
+    let share_lengths = ShareLengths::sum_vec(bits, length, chunk_length)?;
+
+    arena::with_measurement(|buffer| {
+        // Safety: The arrays belong to an immutable `SparseVector`, and are never mutated after it
+        // is constructed. Only one `AutoElements` is constructed from each of them, in this call.
+        unsafe {
+            convert_sparse_sumvec_measurement(length, indices, values, buffer.start(), env)?
+        };
+
+        let context = read_report_context(
+            task_id_byte_array,
+            leader_hpke_config_list_byte_array,
+            helper_hpke_config_list_byte_array,
+            timestamp,
+            env,
+        )?;
+        let measurement: &Vec<u128> = buffer;
+        prepare_report_generic(
+            &context,
+            vdaf,
+            &share_lengths,
+            measurement,
+            &mut JavaOutputBuffer::new(output_byte_array, env),
+        )
+    })
 }
 
 /// Shard a Prio3Histogram measurement, and construct a DAP report.
@@ -284,8 +599,9 @@ fn prepare_report_prio3histogram_inner<'local, 'a>(
     length: jlong,
     chunk_length: jlong,
     measurement: jlong,
+    output_byte_array: &'a JByteArray<'local>,
     env: &'a mut Env<'local>,
-) -> Result<Vec<u8>, Error> {
+) -> Result<usize, Error> {
     let length = length
         .try_into()
         .map_err(|_| Error::InvalidParameter("length"))?;
@@ -293,114 +609,462 @@ fn prepare_report_prio3histogram_inner<'local, 'a>(
         .try_into()
         .map_err(|_| Error::InvalidParameter("chunk_length"))?;
     let vdaf = Prio3::new_histogram(2, length, chunk_length)?;
+    let share_lengths = ShareLengths::histogram(length, chunk_length)?;
     let measurement = measurement
         .try_into()
         .map_err(|_| Error::InvalidParameter("measurement"))?;
-    prepare_report_generic(
+    let context = read_report_context(
         task_id_byte_array,
         leader_hpke_config_list_byte_array,
         helper_hpke_config_list_byte_array,
         timestamp,
+        env,
+    )?;
+    prepare_report_generic(
+        &context,
         vdaf,
+        &share_lengths,
         &measurement,
-        env,
+        &mut JavaOutputBuffer::new(output_byte_array, env),
     )
 }
 
-/// Shard a measurement for any VDAF, and construct a DAP report.
-///
-/// The body of this generic function is kept small to reduce the amount of monomorphized code. Once
-/// all work with generic types is complete, [`assemble_report`] completes the rest of it.
-fn prepare_report_generic<'local, 'a, V>(
-    task_id_byte_array: &'a JByteArray<'local>,
-    leader_hpke_config_list_byte_array: &'a JByteArray<'local>,
-    helper_hpke_config_list_byte_array: &'a JByteArray<'local>,
-    timestamp: jlong,
-    vdaf: V,
-    measurement: &V::Measurement,
-    env: &'a mut Env<'local>,
-) -> Result<Vec<u8>, Error>
-where
-    V: vdaf::Client<16>,
-{
-    let report_id_bytes: [u8; 16] = random();
-    let report_id = ReportId::try_from(report_id_bytes.as_slice())?;
-    let (public_share, input_shares) = vdaf.shard(measurement, report_id.as_ref())?;
-    let encoded_leader_input_share = input_shares[0].get_encoded()?;
-    let encoded_helper_input_share = input_shares[1].get_encoded()?;
-    let encoded_public_share = public_share.get_encoded()?;
-    assemble_report(
-        task_id_byte_array,
-        leader_hpke_config_list_byte_array,
-        helper_hpke_config_list_byte_array,
-        env,
-        timestamp,
-        report_id,
-        encoded_public_share,
-        encoded_leader_input_share,
-        encoded_helper_input_share,
+/// Task and aggregator parameters needed to construct a report, independent of the VDAF.
+struct ReportContext {
+    task_id: TaskId,
+    leader_hpke_config: HpkeConfig,
+    helper_hpke_config: HpkeConfig,
+    time: Time,
+}
+
+/// Encoded lengths of the public share and input shares of a Prio3 report, computed from the VDAF's
+/// parameters, so that the length of a report is known before a measurement is sharded.
+#[derive(Debug, Clone, Copy, PartialEq, Eq)]
+struct ShareLengths {
+    public_share: usize,
+    leader_input_share: usize,
+    helper_input_share: usize,
+}
+
+/// Length of the seeds used by Prio3 with `XofTurboShake128`.
+const PRIO3_SEED_SIZE: usize = 16;
+
+/// The gadget used by the circuits of Prio3SumVec and Prio3Histogram.
+type ParallelMul = ParallelSum<Field128, Mul<Field128>>;
+
+impl ShareLengths {
+    fn count() -> Self {
+        Self::from_flp(&Count::<Field64>::new())
+    }
+
+    fn sum(bits: usize) -> Result<Self, Error> {
+        let typ = Sum::<Field128>::new(bits).map_err(VdafError::from)?;
+        Ok(Self::from_flp(&typ))
+    }
+
+    fn sum_vec(bits: usize, length: usize, chunk_length: usize) -> Result<Self, Error> {
+        let typ = SumVec::<Field128, ParallelMul>::new(bits, length, chunk_length)
+            .map_err(VdafError::from)?;
+        Ok(Self::from_flp(&typ))
+    }
+
+    fn histogram(length: usize, chunk_length: usize) -> Result<Self, Error> {
+        let typ = Histogram::<Field128, ParallelMul>::new(length, chunk_length)
+            .map_err(VdafError::from)?;
+        Ok(Self::from_flp(&typ))
+    }
+
+    /// Computes the lengths of the shares of a two-aggregator Prio3 instance with one proof.
+    ///
+    /// If the circuit uses joint randomness, the public share holds a seed from each aggregator,
+    /// and each input share ends with a blinding seed. Otherwise, the public share is empty. The
+    /// leader's input share holds its measurement and proof shares as field elements, while the
+    /// helper's holds one seed for each, from which the helper expands them.
+    fn from_flp<T: Type>(typ: &T) -> Self {
+        let joint_rand_seed = if typ.joint_rand_len() > 0 {
+            PRIO3_SEED_SIZE
+        } else {
+            0
+        };
+        Self {
+            public_share: 2 * joint_rand_seed,
+            leader_input_share: (typ.input_len() + typ.proof_len()) * T::Field::ENCODED_SIZE
+                + joint_rand_seed,
+            helper_input_share: 2 * PRIO3_SEED_SIZE + joint_rand_seed,
+        }
+    }
+}
+
+/// Computes the encoded length of a report with shares of the given lengths, or returns `None` if
+/// the KEM or AEAD of either aggregator's HPKE config is not known here.
+fn predict_report_length(context: &ReportContext, share_lengths: &ShareLengths) -> Option<usize> {
+    let leader_ciphertext = predict_ciphertext_length(
+        &context.leader_hpke_config,
+        share_lengths.leader_input_share,
+    )?;
+    let helper_ciphertext = predict_ciphertext_length(
+        &context.helper_hpke_config,
+        share_lengths.helper_input_share,
+    )?;
+    // The report ID and time in the report metadata, then the length-prefixed public share.
+    Some(
+        ReportId::LEN
+            + 8
+            + U32_LENGTH_PREFIX_LENGTH
+            + share_lengths.public_share
+            + leader_ciphertext
+            + helper_ciphertext,
     )
 }
 
-/// Construct and encode a DAP report from a set of encoded VDAF shares and other inputs.
+/// Computes the encoded length of the [`HpkeCiphertext`] of an input share of the given length,
+/// once it is encoded as a `PlaintextInputShare` with no extensions and encrypted with `config`.
+fn predict_ciphertext_length(config: &HpkeConfig, input_share_length: usize) -> Option<usize> {
+    let encapsulated_key_length = match config.kem_id() {
+        HpkeKemId::P256HkdfSha256 => 65,
+        HpkeKemId::X25519HkdfSha256 => 32,
+        _ => return None,
+    };
+    let tag_length = match config.aead_id() {
+        HpkeAeadId::Aes128Gcm | HpkeAeadId::Aes256Gcm | HpkeAeadId::ChaCha20Poly1305 => 16,
+        _ => return None,
+    };
+    let plaintext_length = 2 + U32_LENGTH_PREFIX_LENGTH + input_share_length;
+    Some(1 + 2 + encapsulated_key_length + 4 + plaintext_length + tag_length)
+}
+
+/// Read the task ID and both aggregators' HPKE config lists from the arguments of a JNI call,
+/// select an HPKE config for each aggregator, and validate the timestamp.
 ///
-/// This is separated from code in `prepare_report_*` to eliminate common non-generic code from
-/// generic methods, reducing the amount of duplicated code appearing in multiple monomorphizations.
-#[allow(clippy::too_many_arguments)]
-fn assemble_report<'local, 'a>(
+/// This is shared by all `prepare_report_*` functions, and does not depend on the VDAF.
+fn read_report_context<'local, 'a>(
     task_id_byte_array: &'a JByteArray<'local>,
     leader_hpke_config_list_byte_array: &'a JByteArray<'local>,
     helper_hpke_config_list_byte_array: &'a JByteArray<'local>,
-    env: &mut Env<'local>,
-    timestamp: i64,
-    report_id: ReportId,
-    encoded_public_share: Vec<u8>,
-    encoded_leader_input_share: Vec<u8>,
-    encoded_helper_input_share: Vec<u8>,
-) -> Result<Vec<u8>, Error> {
+    timestamp: jlong,
+    env: &'a mut Env<'local>,
+) -> Result<ReportContext, Error> {
     // Safety: These byte arrays are not mutated again from the Java side once they are passed in.
     // Only one `AutoElements` is constructed from each, in these calls.
-    let task_id = unsafe { parse_task_id(task_id_byte_array, env)? };
+    let task_id = unsafe { parse_task_id(task_id_byte_array, true, env)? };
     let leader_hpke_config_list =
-        unsafe { decode_hpke_config_list(leader_hpke_config_list_byte_array, env)? };
+        unsafe { decode_hpke_config_list(leader_hpke_config_list_byte_array, true, env)? };
     let helper_hpke_config_list =
-        unsafe { decode_hpke_config_list(helper_hpke_config_list_byte_array, env)? };
+        unsafe { decode_hpke_config_list(helper_hpke_config_list_byte_array, true, env)? };
 
+    let timer = PhaseTimer::start(Phase::DecodeInputs);
     let leader_hpke_config = select_hpke_config(&leader_hpke_config_list)?;
     let helper_hpke_config = select_hpke_config(&helper_hpke_config_list)?;
+    timer.finish(0);
 
     let time = Time::from_seconds_since_epoch(
         u64::try_from(timestamp).map_err(|_| Error::InvalidParameter("timestamp"))?,
     );
-    let report_metadata = ReportMetadata::new(report_id, time);
 
-    let leader_encrypted_input_share = encrypt_input_share(
-        task_id,
-        &report_metadata,
-        &Role::Leader,
-        &leader_hpke_config,
-        encoded_leader_input_share,
-        encoded_public_share.clone(),
-    )?;
-    let helper_encrypted_input_share = encrypt_input_share(
+    Ok(ReportContext {
         task_id,
-        &report_metadata,
-        &Role::Helper,
-        &helper_hpke_config,
-        encoded_helper_input_share,
-        encoded_public_share.clone(),
-    )?;
+        leader_hpke_config,
+        helper_hpke_config,
+        time,
+    })
+}
+
+/// A destination for an encoded report. The size of the report is computed before it is written,
+/// so that it can be encoded directly into its final location.
+trait ReportOutput {
+    /// Returns [`Error::OutputBufferTooSmall`] if this output cannot hold `length` bytes.
+    fn check_capacity(&mut self, length: usize) -> Result<(), Error>;
+
+    /// Passes a buffer of exactly `length` bytes to `write`, which fills it with the encoded report.
+    ///
+    /// Returns [`Error::OutputBufferTooSmall`] without calling `write` if this output cannot hold
+    /// `length` bytes.
+    fn write_report(&mut self, length: usize, write: &mut dyn FnMut(&mut [u8]))
+        -> Result<(), Error>;
+}
+
+/// Reports can be written to a `Vec`, which is resized as needed.
+impl ReportOutput for Vec<u8> {
+    fn check_capacity(&mut self, _length: usize) -> Result<(), Error> {
+        Ok(())
+    }
 
-    let report = Report::new(
-        report_metadata,
-        encoded_public_share,
-        leader_encrypted_input_share,
-        helper_encrypted_input_share,
+    fn write_report(
+        &mut self,
+        length: usize,
+        write: &mut dyn FnMut(&mut [u8]),
+    ) -> Result<(), Error> {
+        self.clear();
+        self.resize(length, 0);
+        write(self);
+        Ok(())
+    }
+}
+
+/// A Java byte[] array, provided by the caller, that a report is written into.
+struct JavaOutputBuffer<'a, 'local> {
+    array: &'a JByteArray<'local>,
+    env: &'a mut Env<'local>,
+}
+
+impl<'a, 'local> JavaOutputBuffer<'a, 'local> {
+    fn new(array: &'a JByteArray<'local>, env: &'a mut Env<'local>) -> Self {
+        Self { array, env }
+    }
+}
+
+impl ReportOutput for JavaOutputBuffer<'_, '_> {
+    fn check_capacity(&mut self, length: usize) -> Result<(), Error> {
+        if self.array.len(self.env)? < length {
+            return Err(Error::OutputBufferTooSmall(length));
+        }
+        Ok(())
+    }
+
+    /// Assembles the report in this thread's reusable [`arena`] buffer, and copies exactly `length`
+    /// bytes of it into the array with one `SetByteArrayRegion` call. Pinning the array with
+    /// `GetByteArrayElements` instead may copy the whole array in, and back out again, even when
+    /// the report only fills part of it.
+    fn write_report(
+        &mut self,
+        length: usize,
+        write: &mut dyn FnMut(&mut [u8]),
+    ) -> Result<(), Error> {
+        self.check_capacity(length)?;
+        arena::with_output(|buffer| {
+            let buffer = buffer.start();
+            buffer.resize(length, 0);
+            write(buffer);
+            // Safety: The [i8] slice points to the same memory as the [u8] slice, and the two have
+            // the same memory layout. The [u8] slice is not used while the [i8] slice is in use.
+            let signed_slice: &[i8] =
+                unsafe { slice::from_raw_parts(buffer.as_ptr() as *const i8, length) };
+            self.array.set_region(self.env, 0, signed_slice)?;
+            Ok(())
+        })
+    }
+}
+
+/// Shard a measurement for any VDAF, and construct a DAP report, writing it to `output`. Returns
+/// the length of the report. Temporaries are written into this thread's reusable [`arena`] buffers.
+fn prepare_report_generic<V>(
+    context: &ReportContext,
+    vdaf: V,
+    share_lengths: &ShareLengths,
+    measurement: &V::Measurement,
+    output: &mut dyn ReportOutput,
+) -> Result<usize, Error>
+where
+    V: vdaf::Client<16>,
+{
+    arena::with_shares(|buffers| {
+        prepare_report_with_buffers(context, vdaf, share_lengths, measurement, buffers, output)
+    })
+}
+
+/// Shard a measurement for any VDAF, and construct a DAP report, writing it to `output`, using the
+/// given buffers for temporaries. Returns the length of the report. `share_lengths` must describe
+/// the shares of `vdaf`.
+///
+/// If `output` cannot hold the report, this returns [`Error::OutputBufferTooSmall`] before the
+/// measurement is sharded, so that no work is wasted and no precomputed material is used up.
+///
+/// The body of this generic function is kept small to reduce the amount of monomorphized code. Once
+/// all work with generic types is complete, [`assemble_report`] completes the rest of it.
+fn prepare_report_with_buffers<V>(
+    context: &ReportContext,
+    vdaf: V,
+    share_lengths: &ShareLengths,
+    measurement: &V::Measurement,
+    buffers: &mut ShareBuffers,
+    output: &mut dyn ReportOutput,
+) -> Result<usize, Error>
+where
+    V: vdaf::Client<16>,
+{
+    let predicted_length = predict_report_length(context, share_lengths);
+    if let Some(length) = predicted_length {
+        output.check_capacity(length)?;
+    }
+
+    // Use precomputed material for the report ID and encryption, if it is available.
+    let bundle = precompute::take(&context.leader_hpke_config, &context.helper_hpke_config);
+    let report_id = match &bundle {
+        Some(bundle) => bundle.report_id(),
+        None => {
+            let report_id_bytes: [u8; 16] = random();
+            ReportId::try_from(report_id_bytes.as_slice())?
+        }
+    };
+
+    let timer = PhaseTimer::start(Phase::Shard);
+    let (public_share, input_shares) = vdaf.shard(measurement, report_id.as_ref())?;
+    timer.finish(0);
+
+    let timer = PhaseTimer::start(Phase::Encode);
+    encode_plaintext_input_share(&input_shares[0], buffers.leader_plaintext.start())?;
+    encode_plaintext_input_share(&input_shares[1], buffers.helper_plaintext.start())?;
+    drop(input_shares);
+    let report_fields_start =
+        encode_input_share_aad(context, report_id, &public_share, buffers.aad.start())?;
+    drop(public_share);
+    timer.finish(
+        buffers.leader_plaintext.len() + buffers.helper_plaintext.len() + buffers.aad.len()
+            - report_fields_start,
     );
-    Ok(report.get_encoded()?)
+
+    let report_length = assemble_report(context, bundle, buffers, report_fields_start, output)?;
+    if let Some(length) = predicted_length {
+        debug_assert_eq!(length, report_length, "report length was mispredicted");
+    }
+    profile::record_report();
+    Ok(report_length)
+}
+
+/// Length of the prefix of an opaque byte string of up to 2^32 - 1 bytes.
+const U32_LENGTH_PREFIX_LENGTH: usize = 4;
+
+/// Append `value` to `buffer` as an opaque byte string with a four-byte length prefix, without
+/// first encoding it into a separate buffer.
+fn encode_u32_prefixed<E: Encode>(buffer: &mut Vec<u8>, value: &E) -> Result<(), Error> {
+    buffer.reserve(U32_LENGTH_PREFIX_LENGTH + value.encoded_len().unwrap_or_default());
+    let start = buffer.len();
+    // Placeholder for the length, which is filled in below.
+    0u32.encode(buffer)?;
+    value.encode(buffer)?;
+    let length = u32::try_from(buffer.len() - start - U32_LENGTH_PREFIX_LENGTH)
+        .map_err(|_| Error::ReportTooLarge)?;
+    buffer[start..start + U32_LENGTH_PREFIX_LENGTH].copy_from_slice(&length.to_be_bytes());
+    Ok(())
+}
+
+/// Encode a VDAF input share into `plaintext` as a DAP `PlaintextInputShare` with no extensions,
+/// without first encoding the input share into a separate buffer.
+fn encode_plaintext_input_share<E: Encode>(
+    input_share: &E,
+    plaintext: &mut Vec<u8>,
+) -> Result<(), Error> {
+    // Empty list of extensions.
+    0u16.encode(plaintext)?;
+    encode_u32_prefixed(plaintext, input_share)
+}
+
+/// Encode the `InputShareAad` of a report into `aad`, without first encoding the public share into
+/// a separate buffer. The AAD is the same for both aggregators, so it is only encoded once.
+///
+/// Returns the offset of the report metadata in the AAD. The AAD ends with the report metadata and
+/// the length-prefixed public share, which are also the first fields of the report, so the report
+/// copies them from there.
+fn encode_input_share_aad<P: Encode>(
+    context: &ReportContext,
+    report_id: ReportId,
+    public_share: &P,
+    aad: &mut Vec<u8>,
+) -> Result<usize, Error> {
+    context.task_id.encode(aad)?;
+    let report_fields_start = aad.len();
+    ReportMetadata::new(report_id, context.time).encode(aad)?;
+    encode_u32_prefixed(aad, public_share)?;
+    Ok(report_fields_start)
 }
 
-/// Read from a Java byte[] array, and interpret the bytes as a [`TaskId`].
+/// Encrypt the encoded input shares in `buffers`, and encode a DAP report, writing it to `output`.
+/// Returns the length of the report. `report_fields_start` is the offset of the report metadata in
+/// the encoded AAD, as returned by [`encode_input_share_aad`]. If a precomputed `bundle` is given,
+/// the AAD must have been encoded with its report ID, and it is used to encrypt the input shares.
+///
+/// This is separated from code in `prepare_report_*` to eliminate common non-generic code from
+/// generic methods, reducing the amount of duplicated code appearing in multiple monomorphizations.
+fn assemble_report(
+    context: &ReportContext,
+    bundle: Option<Bundle>,
+    buffers: &ShareBuffers,
+    report_fields_start: usize,
+    output: &mut dyn ReportOutput,
+) -> Result<usize, Error> {
+    let aad: &[u8] = &buffers.aad;
+    let leader_plaintext: &[u8] = &buffers.leader_plaintext;
+    let helper_plaintext: &[u8] = &buffers.helper_plaintext;
+
+    let timer = PhaseTimer::start(Phase::Seal);
+    let (leader_encrypted_input_share, helper_encrypted_input_share) = match bundle {
+        Some(bundle) => bundle.seal(leader_plaintext, helper_plaintext, aad)?,
+        None => (
+            encrypt_input_share(
+                &Role::Leader,
+                &context.leader_hpke_config,
+                leader_plaintext,
+                aad,
+            )?,
+            encrypt_input_share(
+                &Role::Helper,
+                &context.helper_hpke_config,
+                helper_plaintext,
+                aad,
+            )?,
+        ),
+    };
+    timer.finish(leader_plaintext.len() + helper_plaintext.len());
+
+    let report_fields = &aad[report_fields_start..];
+    let report_length = report_fields.len()
+        + hpke_ciphertext_length(&leader_encrypted_input_share)?
+        + hpke_ciphertext_length(&helper_encrypted_input_share)?;
+
+    let timer = PhaseTimer::start(Phase::WriteOutput);
+    output.write_report(report_length, &mut |buffer| {
+        let mut writer = SliceWriter::new(buffer);
+        writer.put(report_fields);
+        write_hpke_ciphertext(&mut writer, &leader_encrypted_input_share);
+        write_hpke_ciphertext(&mut writer, &helper_encrypted_input_share);
+        debug_assert_eq!(writer.position, report_length);
+    })?;
+    timer.finish(report_length);
+    Ok(report_length)
+}
+
+/// Copies a sequence of byte strings into a mutable slice.
+struct SliceWriter<'a> {
+    buffer: &'a mut [u8],
+    position: usize,
+}
+
+impl<'a> SliceWriter<'a> {
+    fn new(buffer: &'a mut [u8]) -> Self {
+        Self {
+            buffer,
+            position: 0,
+        }
+    }
+
+    /// Copies `bytes` after the previously written bytes. Panics if the buffer is too small, which
+    /// would indicate that the length of the report was computed incorrectly.
+    fn put(&mut self, bytes: &[u8]) {
+        self.buffer[self.position..self.position + bytes.len()].copy_from_slice(bytes);
+        self.position += bytes.len();
+    }
+}
+
+/// Computes the encoded length of an [`HpkeCiphertext`], and checks that its fields fit in their
+/// length prefixes.
+fn hpke_ciphertext_length(ciphertext: &HpkeCiphertext) -> Result<usize, Error> {
+    u16::try_from(ciphertext.encapsulated_key().len()).map_err(|_| Error::ReportTooLarge)?;
+    u32::try_from(ciphertext.payload().len()).map_err(|_| Error::ReportTooLarge)?;
+    Ok(1 + 2 + ciphertext.encapsulated_key().len() + 4 + ciphertext.payload().len())
+}
+
+/// Writes an [`HpkeCiphertext`] in its encoded form. The lengths of its fields must have been
+/// checked with [`hpke_ciphertext_length`].
+fn write_hpke_ciphertext(writer: &mut SliceWriter<'_>, ciphertext: &HpkeCiphertext) {
+    writer.put(&[u8::from(*ciphertext.config_id())]);
+    writer.put(&(ciphertext.encapsulated_key().len() as u16).to_be_bytes());
+    writer.put(ciphertext.encapsulated_key());
+    writer.put(&(ciphertext.payload().len() as u32).to_be_bytes());
+    writer.put(ciphertext.payload());
+}
+
+/// Read from a Java byte[] array, and interpret the bytes as a [`TaskId`]. If `counted` is true,
+/// the read is counted in the profiling counters for report preparation.
 ///
 /// This returns an error if the argument is null, or if the array is not 32 bytes long.
 ///
@@ -413,21 +1077,19 @@ fn assemble_report<'local, 'a>(
 /// [`AutoElementsCritical`][jni::objects::AutoElementsCritical] may alias the array.
 unsafe fn parse_task_id<'local, 'a>(
     array: &'a JByteArray<'local>,
+    counted: bool,
     env: &'a mut Env<'local>,
 ) -> Result<TaskId, Error> {
-    // Safety: All safety requirements of get_elements() are imposed on the caller.
-    let elements = unsafe { array.get_elements(env, ReleaseMode::NoCopyBack) }?;
-    let signed_slice: &[i8] = &elements[..];
-    // Safety: The [u8] slice aliases a [i8] slice, and the two have the same memory layout. The
-    // backing memory is managed by the JVM. The memory is valid for long enough because it is only
-    // released when the `AutoElements` struct is dropped, which happens after the last use of the
-    // slices.
-    let bytes: &[u8] =
-        unsafe { slice::from_raw_parts(signed_slice.as_ptr() as *const u8, signed_slice.len()) };
-    Ok(TaskId::try_from(bytes)?)
+    // Safety: All safety requirements are imposed on the caller.
+    unsafe {
+        with_byte_array_elements(array, counted, env, |bytes| {
+            Ok(TaskId::try_from(bytes)?)
+        })
+    }
 }
 
-/// Read from a Java byte[] array, and parse an [`HpkeConfigList`] from it. This returns an error if
+/// Read from a Java byte[] array, and parse an [`HpkeConfigList`] from it. If `counted` is true,
+/// the read is counted in the profiling counters for report preparation. This returns an error if
 /// the argument is null, or if the encoded data is invalid.
 ///
 /// # Safety
@@ -439,10 +1101,41 @@ unsafe fn parse_task_id<'local, 'a>(
 /// [`AutoElementsCritical`][jni::objects::AutoElementsCritical] may alias the array.
 unsafe fn decode_hpke_config_list<'local, 'a>(
     array: &'a JByteArray<'local>,
+    counted: bool,
     env: &'a mut Env<'local>,
 ) -> Result<HpkeConfigList, Error> {
+    // Safety: All safety requirements are imposed on the caller.
+    unsafe {
+        with_byte_array_elements(array, counted, env, |bytes| {
+            Ok(HpkeConfigList::get_decoded(bytes)?)
+        })
+    }
+}
+
+/// Pin or copy the contents of a Java byte[] array, and pass them to `f`. If `counted` is true,
+/// accessing and releasing the array is timed as [`Phase::ReadInputs`], and `f` is timed as
+/// [`Phase::DecodeInputs`], so that the cost of JNI is not mixed up with the cost of decoding.
+///
+/// # Safety
+///
+/// There must not be any data races on the `byte[]` array, from either Java or Rust.
+///
+/// This function creates an [`AutoElements`][jni::objects::AutoElements] with the [`JByteArray`],
+/// and no other [`AutoElements`][jni::objects::AutoElements] or
+/// [`AutoElementsCritical`][jni::objects::AutoElementsCritical] may alias the array.
+unsafe fn with_byte_array_elements<'local, 'a, T>(
+    array: &'a JByteArray<'local>,
+    counted: bool,
+    env: &'a mut Env<'local>,
+    f: impl FnOnce(&[u8]) -> Result<T, Error>,
+) -> Result<T, Error> {
+    let timer = PhaseTimer::start_if(Phase::ReadInputs, counted);
     // Safety: All safety requirements of get_elements() are imposed on the caller.
     let elements = unsafe { array.get_elements(env, ReleaseMode::NoCopyBack) }?;
+    let length = elements.len();
+    timer.finish(length);
+
+    let timer = PhaseTimer::start_if(Phase::DecodeInputs, counted);
     let signed_slice: &[i8] = &elements[..];
     // Safety: The [u8] slice aliases a [i8] slice, and the two have the same memory layout. The
     // backing memory is managed by the JVM. The memory is valid for long enough because it is only
@@ -450,11 +1143,17 @@ unsafe fn decode_hpke_config_list<'local, 'a>(
     // slices.
     let bytes: &[u8] =
         unsafe { slice::from_raw_parts(signed_slice.as_ptr() as *const u8, signed_slice.len()) };
-    Ok(HpkeConfigList::get_decoded(bytes)?)
+    let result = f(bytes);
+    timer.finish(length);
+
+    let timer = PhaseTimer::start_if(Phase::ReadInputs, counted);
+    drop(elements);
+    timer.finish(0);
+    result
 }
 
-/// Read from a Java long[] array, and convert each element to a `u128`. This returns an error if
-/// the argument is null, or if any element is negative.
+/// Read from a Java long[] array, and convert each element to a `u128`, appending them to
+/// `measurement`. This returns an error if the argument is null, or if any element is negative.
 ///
 /// # Safety
 ///
@@ -465,45 +1164,71 @@ unsafe fn decode_hpke_config_list<'local, 'a>(
 /// [`AutoElementsCritical`][jni::objects::AutoElementsCritical] may alias the array.
 unsafe fn convert_sumvec_measurement<'local, 'a>(
     array: &'a JLongArray<'local>,
+    measurement: &mut Vec<u128>,
     env: &'a mut Env<'local>,
-) -> Result<Vec<u128>, Error> {
+) -> Result<(), Error> {
     // Safety: All safety requirements of get_elements() are imposed on the caller.
     let elements = unsafe { array.get_elements(env, ReleaseMode::NoCopyBack) }?;
-    elements
-        .iter()
-        .map(|value| u128::try_from(*value))
-        .collect::<Result<Vec<_>, _>>()
-        .map_err(|_| Error::InvalidParameter("measurement: negative value not allowed in sumvec"))
+    measurement.reserve(elements.len());
+    for value in elements.iter() {
+        measurement.push(u128::try_from(*value).map_err(|_| {
+            Error::InvalidParameter("measurement: negative value not allowed in sumvec")
+        })?);
+    }
+    Ok(())
 }
 
-/// Creates a new byte[] array, copies the provided data into it, and returns a raw JNI pointer to
-/// the array. This pointer is intended to be returned from a JNI method.
+/// Read a sparse measurement from Java int[] and long[] arrays of indices and values, and expand it
+/// into `measurement`, which must be empty, as a vector of the given length. This returns an error
+/// if either argument is null.
+///
+/// # Safety
+///
+/// There must not be any data races on either array, from either Java or Rust.
 ///
-/// This returns an error if the JVM fails to create or update the array.
-fn return_new_byte_array(data: &[u8], env: &mut Env<'_>) -> Result<jbyteArray, Error> {
-    let byte_array = env.new_byte_array(data.len())?;
+/// This function creates an [`AutoElements`][jni::objects::AutoElements] with each array, and no
+/// other [`AutoElements`][jni::objects::AutoElements] or
+/// [`AutoElementsCritical`][jni::objects::AutoElementsCritical] may alias them.
+unsafe fn convert_sparse_sumvec_measurement<'local, 'a>(
+    length: usize,
+    indices: &'a JIntArray<'local>,
+    values: &'a JLongArray<'local>,
+    measurement: &mut Vec<u128>,
+    env: &'a mut Env<'local>,
+) -> Result<(), Error> {
+    // Safety: All safety requirements of get_elements() are imposed on the caller.
+    let indices = unsafe { indices.get_elements(env, ReleaseMode::NoCopyBack) }?;
+    // Safety: All safety requirements of get_elements() are imposed on the caller.
+    let values = unsafe { values.get_elements(env, ReleaseMode::NoCopyBack) }?;
+    expand_sparse_measurement(length, &indices, &values, measurement)
+}
 
-    // Start a new scope for the AutoElements. We need to drop it before calling into_raw() on the
-    // byte array, as it borrows the byte array.
-    {
-        // Safety: There are no races on this array, and it will not be aliased, because it is newly
-        // created. The `AutoElements` will release its reference before the array is returned to
-        // Java code.
-        let mut elements = unsafe { byte_array.get_elements(env, ReleaseMode::CopyBack) }?;
-        let signed_slice: &mut [i8] = &mut elements[..];
-        let len = signed_slice.len();
-        // Safety: The [u8] mutable slice points to the same memory as the [i8] slice, and the two
-        // have the same memory layout. The two mutable slices are not in use at the same time. The
-        // backing memory is managed by the JVM. The memory is valid for long enough because it is
-        // only released when the `AutoElements` struct is dropped, which happens after the last use
-        // of the slices.
-        let mut_slice: &mut [u8] =
-            unsafe { slice::from_raw_parts_mut(signed_slice.as_ptr() as *mut u8, len) };
-        mut_slice.copy_from_slice(data);
-        elements.commit()?;
+/// Expand a sparse measurement, given as parallel slices of indices and values, into `measurement`,
+/// which must be empty, as a vector of the given length. Elements that are not listed are zero, and
+/// a repeated index keeps its last value. This returns an error if the slices have different
+/// lengths, or if any index is out of range or any value is negative.
+fn expand_sparse_measurement(
+    length: usize,
+    indices: &[i32],
+    values: &[i64],
+    measurement: &mut Vec<u128>,
+) -> Result<(), Error> {
+    if indices.len() != values.len() {
+        return Err(Error::InvalidParameter(
+            "measurement: sparse indices and values differ in length",
+        ));
     }
-
-    Ok(byte_array.into_raw())
+    measurement.resize(length, 0);
+    for (index, value) in indices.iter().zip(values.iter()) {
+        let element = usize::try_from(*index)
+            .ok()
+            .and_then(|index| measurement.get_mut(index))
+            .ok_or(Error::InvalidParameter("measurement: sparse index out of range"))?;
+        *element = u128::try_from(*value).map_err(|_| {
+            Error::InvalidParameter("measurement: negative value not allowed in sumvec")
+        })?;
+    }
+    Ok(())
 }
 
 /// Select an [`HpkeConfig`] from an [`HpkeConfigList`] that uses a supported set of algorithms.
@@ -531,21 +1256,567 @@ fn select_hpke_config(list: &HpkeConfigList) -> Result<HpkeConfig, Error> {
     Err(first_error.unwrap().into())
 }
 
-/// Convenience method to construct a [`PlaintextInputShare`], encode it, and encrypt it.
+/// Convenience method to encrypt an encoded [`PlaintextInputShare`][janus_messages::PlaintextInputShare].
 fn encrypt_input_share(
-    task_id: TaskId,
-    report_metadata: &ReportMetadata,
     receiver_role: &Role,
     hpke_config: &HpkeConfig,
-    input_share: Vec<u8>,
-    encoded_public_share: Vec<u8>,
+    plaintext: &[u8],
+    encoded_aad: &[u8],
 ) -> Result<HpkeCiphertext, Error> {
-    let plaintext = PlaintextInputShare::new(Vec::new(), input_share).get_encoded()?;
     Ok(hpke::seal(
         hpke_config,
         &HpkeApplicationInfo::new(&Label::InputShare, &Role::Client, receiver_role),
-        &plaintext,
-        &InputShareAad::new(task_id, report_metadata.clone(), encoded_public_share)
-            .get_encoded()?,
+        plaintext,
+        encoded_aad,
     )?)
 }
+
+#[cfg(test)]
+mod tests {
+    use std::{
+        alloc::{GlobalAlloc, Layout, System},
+        cell::Cell,
+    };
+
+    use janus_messages::{
+        HpkeConfigList, InputShareAad, PlaintextInputShare, Report, ReportId, ReportMetadata,
+        TaskId, Time,
+    };
+    use prio::{
+        codec::{CodecError, Decode, Encode},
+        vdaf::{self, prio3::Prio3, Client},
+    };
+
+    use crate::{
+        arena::ShareBuffers, assemble_report, encode_input_share_aad, encode_plaintext_input_share,
+        expand_sparse_measurement, predict_report_length, prepare_report_generic,
+        prepare_report_with_buffers, profile, select_hpke_config, Error, ReportContext,
+        ReportOutput, ShareLengths,
+    };
+
+    /// The HPKE config list served by `MockAggregator` in the `commontest` module.
+    const HPKE_CONFIG_LIST: &[u8] =
+        include_bytes!("../../commontest/src/main/resources/hpke_config_list.bin");
+
+    /// Fixed allowance for native heap usage per report, independent of the report's size.
+    const BASE_HEAP_BUDGET: usize = 64 * 1024;
+
+    /// Allowance for peak heap usage while encrypting and encoding a report, as a multiple of the
+    /// report's size. Both ciphertexts are live at once, and the plaintexts, AAD, and output buffer
+    /// are reused.
+    const ASSEMBLY_HEAP_BUDGET_FACTOR: usize = 2;
+
+    thread_local! {
+        static LIVE_BYTES: Cell<usize> = const { Cell::new(0) };
+        static PEAK_BYTES: Cell<usize> = const { Cell::new(0) };
+        static TOTAL_BYTES: Cell<usize> = const { Cell::new(0) };
+    }
+
+    /// A global allocator that keeps per-thread counts of live, peak, and cumulative heap usage,
+    /// so that tests running in parallel do not observe each other's allocations.
+    struct CountingAllocator;
+
+    fn record_alloc(size: usize) {
+        let _ = LIVE_BYTES.try_with(|live| {
+            let new_live = live.get() + size;
+            live.set(new_live);
+            let _ = PEAK_BYTES.try_with(|peak| peak.set(peak.get().max(new_live)));
+        });
+        let _ = TOTAL_BYTES.try_with(|total| total.set(total.get() + size));
+    }
+
+    fn record_dealloc(size: usize) {
+        // Memory may be freed on a different thread than it was allocated on, so saturate instead
+        // of underflowing.
+        let _ = LIVE_BYTES.try_with(|live| live.set(live.get().saturating_sub(size)));
+    }
+
+    // Safety: All allocation is delegated to the system allocator, and only bookkeeping is added.
+    unsafe impl GlobalAlloc for CountingAllocator {
+        unsafe fn alloc(&self, layout: Layout) -> *mut u8 {
+            // Safety: The caller upholds the requirements of GlobalAlloc::alloc().
+            let ptr = unsafe { System.alloc(layout) };
+            if !ptr.is_null() {
+                record_alloc(layout.size());
+            }
+            ptr
+        }
+
+        unsafe fn alloc_zeroed(&self, layout: Layout) -> *mut u8 {
+            // Safety: The caller upholds the requirements of GlobalAlloc::alloc_zeroed().
+            let ptr = unsafe { System.alloc_zeroed(layout) };
+            if !ptr.is_null() {
+                record_alloc(layout.size());
+            }
+            ptr
+        }
+
+        unsafe fn dealloc(&self, ptr: *mut u8, layout: Layout) {
+            // Safety: The caller upholds the requirements of GlobalAlloc::dealloc().
+            unsafe { System.dealloc(ptr, layout) };
+            record_dealloc(layout.size());
+        }
+
+        unsafe fn realloc(&self, ptr: *mut u8, layout: Layout, new_size: usize) -> *mut u8 {
+            // Safety: The caller upholds the requirements of GlobalAlloc::realloc().
+            let new_ptr = unsafe { System.realloc(ptr, layout, new_size) };
+            if !new_ptr.is_null() {
+                record_dealloc(layout.size());
+                record_alloc(new_size);
+            }
+            new_ptr
+        }
+    }
+
+    #[global_allocator]
+    static ALLOCATOR: CountingAllocator = CountingAllocator;
+
+    /// Heap usage observed on the current thread while running a closure.
+    struct HeapUsage {
+        /// Maximum number of bytes live at once, above what was live before the closure ran.
+        peak_bytes: usize,
+        /// Sum of the sizes of all allocations made.
+        total_bytes: usize,
+    }
+
+    fn measure_heap<T>(f: impl FnOnce() -> T) -> (T, HeapUsage) {
+        let baseline = LIVE_BYTES.with(Cell::get);
+        PEAK_BYTES.with(|peak| peak.set(baseline));
+        let total_before = TOTAL_BYTES.with(Cell::get);
+        let result = f();
+        let usage = HeapUsage {
+            peak_bytes: PEAK_BYTES.with(Cell::get) - baseline,
+            total_bytes: TOTAL_BYTES.with(Cell::get) - total_before,
+        };
+        (result, usage)
+    }
+
+    fn test_report_context() -> ReportContext {
+        let hpke_config_list = HpkeConfigList::get_decoded(HPKE_CONFIG_LIST).unwrap();
+        let hpke_config = select_hpke_config(&hpke_config_list).unwrap();
+        ReportContext {
+            task_id: TaskId::from([0; 32]),
+            leader_hpke_config: hpke_config.clone(),
+            helper_hpke_config: hpke_config,
+            time: Time::from_seconds_since_epoch(1_700_000_000),
+        }
+    }
+
+    /// Prepares a report, and checks that the peak native heap usage stays within
+    /// `BASE_HEAP_BUDGET` plus `bytes_per_report_byte` times the encoded report size. Separately
+    /// checks the heap usage of [`assemble_report`] against `ASSEMBLY_HEAP_BUDGET_FACTOR`.
+    fn check_heap_budget<V>(
+        name: &str,
+        vdaf: V,
+        share_lengths: ShareLengths,
+        measurement: &V::Measurement,
+        bytes_per_report_byte: usize,
+    ) where
+        V: vdaf::Client<16> + Clone,
+    {
+        let context = test_report_context();
+        // Prepare one report first, so that one-time initialization, such as that of the thread's
+        // RNG, is not counted, and so that the output buffer is already allocated.
+        let mut output = Vec::new();
+        prepare_report_generic(
+            &context,
+            vdaf.clone(),
+            &share_lengths,
+            measurement,
+            &mut output,
+        )
+        .unwrap();
+
+        let (report_length, usage) = measure_heap(|| {
+            prepare_report_generic(
+                &context,
+                vdaf.clone(),
+                &share_lengths,
+                measurement,
+                &mut output,
+            )
+            .unwrap()
+        });
+        let budget = BASE_HEAP_BUDGET + bytes_per_report_byte * report_length;
+        println!(
+            "{name}: report {report_length} bytes, peak heap {} bytes, total allocated {} bytes, \
+             budget {budget} bytes",
+            usage.peak_bytes, usage.total_bytes,
+        );
+        assert!(
+            usage.peak_bytes <= budget,
+            "{name}: peak native heap usage of {} bytes exceeds budget of {budget} bytes",
+            usage.peak_bytes,
+        );
+
+        let report_id = ReportId::from([1; 16]);
+        let (public_share, input_shares) = vdaf.shard(measurement, report_id.as_ref()).unwrap();
+        let mut buffers = ShareBuffers::default();
+        encode_plaintext_input_share(&input_shares[0], buffers.leader_plaintext.start()).unwrap();
+        encode_plaintext_input_share(&input_shares[1], buffers.helper_plaintext.start()).unwrap();
+        let report_fields_start =
+            encode_input_share_aad(&context, report_id, &public_share, buffers.aad.start())
+                .unwrap();
+        drop(input_shares);
+        drop(public_share);
+        let (_, usage) = measure_heap(|| {
+            assemble_report(&context, None, &buffers, report_fields_start, &mut output).unwrap()
+        });
+        let budget = BASE_HEAP_BUDGET + ASSEMBLY_HEAP_BUDGET_FACTOR * report_length;
+        println!(
+            "{name}: assembly peak heap {} bytes, budget {budget} bytes",
+            usage.peak_bytes
+        );
+        assert!(
+            usage.peak_bytes <= budget,
+            "{name}: peak native heap usage of {} bytes while assembling the report exceeds \
+             budget of {budget} bytes",
+            usage.peak_bytes,
+        );
+    }
+
+    fn expand(length: usize, indices: &[i32], values: &[i64]) -> Result<Vec<u128>, Error> {
+        let mut measurement = Vec::new();
+        expand_sparse_measurement(length, indices, values, &mut measurement)?;
+        Ok(measurement)
+    }
+
+    /// Checks that sparse measurements expand to the equivalent dense measurement, and that invalid
+    /// indices and values are rejected.
+    #[test]
+    fn sparse_measurement() {
+        assert_eq!(
+            expand(6, &[4, 0, 4], &[9, 3, 5]).unwrap(),
+            vec![3, 0, 0, 0, 5, 0],
+        );
+        assert_eq!(expand(3, &[], &[]).unwrap(), vec![0, 0, 0]);
+        assert!(matches!(
+            expand(3, &[3], &[1]),
+            Err(Error::InvalidParameter(_))
+        ));
+        assert!(matches!(
+            expand(3, &[-1], &[1]),
+            Err(Error::InvalidParameter(_))
+        ));
+        assert!(matches!(
+            expand(3, &[1], &[-1]),
+            Err(Error::InvalidParameter(_))
+        ));
+        assert!(matches!(
+            expand(3, &[1, 2], &[1]),
+            Err(Error::InvalidParameter(_))
+        ));
+    }
+
+    /// Checks that reports written directly into an output buffer decode as DAP reports, with the
+    /// expected public share and plaintext input share encoding.
+    #[test]
+    fn report_encoding() {
+        let context = test_report_context();
+        let vdaf = Prio3::new_sum_vec(2, 8, 10, 4).unwrap();
+        let share_lengths = ShareLengths::sum_vec(8, 10, 4).unwrap();
+        let measurement = vec![252, 7, 80, 194, 190, 217, 141, 85, 222, 243];
+
+        let mut output = Vec::new();
+        let report_length = prepare_report_generic(
+            &context,
+            vdaf.clone(),
+            &share_lengths,
+            &measurement,
+            &mut output,
+        )
+        .unwrap();
+        assert_eq!(report_length, output.len());
+        let report = Report::get_decoded(&output).unwrap();
+        assert_eq!(report.metadata().time(), &context.time);
+        assert_eq!(report.get_encoded().unwrap(), output);
+
+        let aad = InputShareAad::new(
+            context.task_id,
+            ReportMetadata::new(*report.metadata().id(), context.time),
+            report.public_share().to_vec(),
+        )
+        .get_encoded()
+        .unwrap();
+        assert!(aad.ends_with(report.public_share()));
+
+        // The AAD that is encoded in place matches, and ends with the first fields of the report.
+        let mut encoded_aad = Vec::new();
+        let report_fields_start = encode_input_share_aad(
+            &context,
+            *report.metadata().id(),
+            &RawBytes(report.public_share()),
+            &mut encoded_aad,
+        )
+        .unwrap();
+        assert_eq!(encoded_aad, aad);
+        assert!(output.starts_with(&encoded_aad[report_fields_start..]));
+
+        let (_, input_shares) = vdaf
+            .shard(&measurement, report.metadata().id().as_ref())
+            .unwrap();
+        let mut plaintext = Vec::new();
+        encode_plaintext_input_share(&input_shares[1], &mut plaintext).unwrap();
+        let decoded = PlaintextInputShare::get_decoded(&plaintext).unwrap();
+        assert!(decoded.extensions().is_empty());
+        assert_eq!(decoded.payload(), input_shares[1].get_encoded().unwrap());
+    }
+
+    /// Bytes that are already encoded, such as a public share taken from a report.
+    struct RawBytes<'a>(&'a [u8]);
+
+    impl Encode for RawBytes<'_> {
+        fn encode(&self, bytes: &mut Vec<u8>) -> Result<(), CodecError> {
+            bytes.extend_from_slice(self.0);
+            Ok(())
+        }
+
+        fn encoded_len(&self) -> Option<usize> {
+            Some(self.0.len())
+        }
+    }
+
+    /// Reusing share buffers saves allocating the plaintexts and AAD for each report, which are
+    /// together about as large as the report.
+    #[test]
+    fn share_buffers_are_reused() {
+        let context = test_report_context();
+        let vdaf = Prio3::new_sum_vec(2, 8, 1000, 90).unwrap();
+        let share_lengths = ShareLengths::sum_vec(8, 1000, 90).unwrap();
+        let measurement = vec![127; 1000];
+        let mut output = Vec::new();
+        let mut buffers = ShareBuffers::default();
+        prepare_report_with_buffers(
+            &context,
+            vdaf.clone(),
+            &share_lengths,
+            &measurement,
+            &mut buffers,
+            &mut output,
+        )
+        .unwrap();
+
+        let (report_length, reused) = measure_heap(|| {
+            prepare_report_with_buffers(
+                &context,
+                vdaf.clone(),
+                &share_lengths,
+                &measurement,
+                &mut buffers,
+                &mut output,
+            )
+            .unwrap()
+        });
+        let (_, fresh) = measure_heap(|| {
+            prepare_report_with_buffers(
+                &context,
+                vdaf.clone(),
+                &share_lengths,
+                &measurement,
+                &mut ShareBuffers::default(),
+                &mut output,
+            )
+            .unwrap()
+        });
+        println!(
+            "report {report_length} bytes, allocated {} bytes with reused buffers, {} bytes with \
+             new buffers",
+            reused.total_bytes, fresh.total_bytes,
+        );
+        assert!(fresh.total_bytes >= reused.total_bytes + report_length / 2);
+    }
+
+    /// Profiling attributes time and bytes to each phase. Other tests may run concurrently, so the
+    /// counters are only checked for growth.
+    #[test]
+    fn profiling_counters() {
+        let context = test_report_context();
+        let vdaf = Prio3::new_histogram(2, 100, 10).unwrap();
+        let share_lengths = ShareLengths::histogram(100, 10).unwrap();
+
+        profile::set_enabled(true);
+        let before = profile::snapshot();
+        let mut output = Vec::new();
+        let report_length =
+            prepare_report_generic(&context, vdaf, &share_lengths, &42, &mut output).unwrap();
+        let after = profile::snapshot();
+
+        assert!(after[0] > before[0]);
+        for phase in [
+            profile::Phase::Shard,
+            profile::Phase::Encode,
+            profile::Phase::Seal,
+            profile::Phase::WriteOutput,
+        ] {
+            let nanos = 1 + phase as usize;
+            assert!(after[nanos] > before[nanos], "no time recorded for {phase:?}");
+        }
+        let write_bytes = 1 + profile::PHASE_COUNT + profile::Phase::WriteOutput as usize;
+        assert!(after[write_bytes] - before[write_bytes] >= report_length as u64);
+    }
+
+    /// An output that is too small reports the required length before the measurement is sharded,
+    /// and is left untouched.
+    #[test]
+    fn output_buffer_too_small() {
+        struct FixedOutput {
+            buffer: Vec<u8>,
+            writes: usize,
+        }
+
+        impl ReportOutput for FixedOutput {
+            fn check_capacity(&mut self, length: usize) -> Result<(), Error> {
+                if self.buffer.len() < length {
+                    return Err(Error::OutputBufferTooSmall(length));
+                }
+                Ok(())
+            }
+
+            fn write_report(
+                &mut self,
+                length: usize,
+                write: &mut dyn FnMut(&mut [u8]),
+            ) -> Result<(), Error> {
+                self.writes += 1;
+                self.check_capacity(length)?;
+                write(&mut self.buffer[..length]);
+                Ok(())
+            }
+        }
+
+        let context = test_report_context();
+        let vdaf = Prio3::new_count(2).unwrap();
+        let share_lengths = ShareLengths::count();
+        let mut output = FixedOutput {
+            buffer: vec![0; 16],
+            writes: 0,
+        };
+        let required = match prepare_report_generic(
+            &context,
+            vdaf.clone(),
+            &share_lengths,
+            &true,
+            &mut output,
+        ) {
+            Err(Error::OutputBufferTooSmall(required)) => required,
+            other => panic!("unexpected result: {other:?}"),
+        };
+        assert_eq!(output.writes, 0);
+        assert!(output.buffer.iter().all(|byte| *byte == 0));
+
+        let mut output = FixedOutput {
+            buffer: vec![0; required],
+            writes: 0,
+        };
+        let length =
+            prepare_report_generic(&context, vdaf, &share_lengths, &true, &mut output).unwrap();
+        assert_eq!(length, required);
+        Report::get_decoded(&output.buffer).unwrap();
+    }
+
+    /// The length of a report is predicted exactly from the VDAF's parameters and the HPKE configs.
+    #[test]
+    fn report_length_prediction() {
+        fn check<V: vdaf::Client<16>>(
+            vdaf: V,
+            share_lengths: ShareLengths,
+            measurement: &V::Measurement,
+        ) {
+            let context = test_report_context();
+            let mut output = Vec::new();
+            let length =
+                prepare_report_generic(&context, vdaf, &share_lengths, measurement, &mut output)
+                    .unwrap();
+            assert_eq!(predict_report_length(&context, &share_lengths), Some(length));
+        }
+
+        check(Prio3::new_count(2).unwrap(), ShareLengths::count(), &true);
+        check(
+            Prio3::new_sum(2, 32).unwrap(),
+            ShareLengths::sum(32).unwrap(),
+            &1_000_000,
+        );
+        check(
+            Prio3::new_sum_vec(2, 8, 1000, 90).unwrap(),
+            ShareLengths::sum_vec(8, 1000, 90).unwrap(),
+            &vec![127; 1000],
+        );
+        check(
+            Prio3::new_histogram(2, 100, 10).unwrap(),
+            ShareLengths::histogram(100, 10).unwrap(),
+            &42,
+        );
+    }
+
+    #[test]
+    fn heap_budget_prio3count() {
+        check_heap_budget(
+            "Prio3Count",
+            Prio3::new_count(2).unwrap(),
+            ShareLengths::count(),
+            &true,
+            16,
+        );
+    }
+
+    #[test]
+    fn heap_budget_prio3sum() {
+        check_heap_budget(
+            "Prio3Sum(8)",
+            Prio3::new_sum(2, 8).unwrap(),
+            ShareLengths::sum(8).unwrap(),
+            &200,
+            16,
+        );
+        check_heap_budget(
+            "Prio3Sum(64)",
+            Prio3::new_sum(2, 64).unwrap(),
+            ShareLengths::sum(64).unwrap(),
+            &1_000_000,
+            16,
+        );
+    }
+
+    #[test]
+    fn heap_budget_prio3sumvec() {
+        check_heap_budget(
+            "Prio3SumVec(10, 8, 12)",
+            Prio3::new_sum_vec(2, 8, 10, 12).unwrap(),
+            ShareLengths::sum_vec(8, 10, 12).unwrap(),
+            &vec![252, 7, 80, 194, 190, 217, 141, 85, 222, 243],
+            16,
+        );
+        check_heap_budget(
+            "Prio3SumVec(1000, 8, 90)",
+            Prio3::new_sum_vec(2, 8, 1000, 90).unwrap(),
+            ShareLengths::sum_vec(8, 1000, 90).unwrap(),
+            &vec![127; 1000],
+            16,
+        );
+        check_heap_budget(
+            "Prio3SumVec(4096, 16, 256)",
+            Prio3::new_sum_vec(2, 16, 4096, 256).unwrap(),
+            ShareLengths::sum_vec(16, 4096, 256).unwrap(),
+            &vec![1; 4096],
+            16,
+        );
+    }
+
+    #[test]
+    fn heap_budget_prio3histogram() {
+        check_heap_budget(
+            "Prio3Histogram(5, 2)",
+            Prio3::new_histogram(2, 5, 2).unwrap(),
+            ShareLengths::histogram(5, 2).unwrap(),
+            &2,
+            16,
+        );
+        check_heap_budget(
+            "Prio3Histogram(1000, 32)",
+            Prio3::new_histogram(2, 1000, 32).unwrap(),
+            ShareLengths::histogram(1000, 32).unwrap(),
+            &999,
+            16,
+        );
+    }
+}
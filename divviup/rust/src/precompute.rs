@@ -0,0 +1,308 @@
+//! Precomputation of the parts of a report that do not depend on the measurement.
+//!
+//! A [`Bundle`] holds a report ID and, for each aggregator, an HPKE sender context: the ephemeral
+//! key pair, the encapsulated key sent in the report, and the AEAD key derived from them. Bundles
+//! are generated ahead of time by `Client.precompute()`, and kept in process-wide pools keyed by
+//! the pair of HPKE configs they were derived from. Preparing a report takes one bundle from the
+//! matching pool, if there is one, and consumes it, so that each report ID and ephemeral key is
+//! used for exactly one report.
+//!
+//! Only the most common ciphersuite, X25519 with HKDF-SHA256 and AES-128-GCM, is precomputed.
+//! Reports for aggregators using other ciphersuites are always prepared from scratch.
+
+use std::{
+    cell::Cell,
+    sync::{
+        atomic::{AtomicUsize, Ordering},
+        Mutex, PoisonError,
+    },
+};
+
+use hpke::{
+    aead::{AeadCtxS, AesGcm128},
+    kdf::HkdfSha256,
+    kem::X25519HkdfSha256,
+    Deserializable, OpModeS, Serializable,
+};
+use janus_core::hpke::Label;
+use janus_messages::{
+    HpkeAeadId, HpkeCiphertext, HpkeConfig, HpkeConfigId, HpkeKdfId, HpkeKemId, ReportId, Role,
+};
+use rand::random;
+use rand_core::{OsRng, TryRngCore};
+
+use crate::Error;
+
+type Aead = AesGcm128;
+type Kdf = HkdfSha256;
+type Kem = X25519HkdfSha256;
+
+/// Maximum number of bundles kept for each pair of HPKE configs.
+pub(crate) const MAX_BUNDLES: usize = 1024;
+
+/// Maximum number of pairs of HPKE configs that bundles are kept for. When aggregators rotate their
+/// configs, the pool that was filled least recently is discarded.
+const MAX_POOLS: usize = 4;
+
+static POOLS: Mutex<Vec<Pool>> = Mutex::new(Vec::new());
+
+/// Number of bundles in all pools, which is only changed while the lock on [`POOLS`] is held. It
+/// lets [`take`] skip the lock when nothing has been precomputed, which is the common case, so that
+/// threads preparing reports concurrently do not contend for it.
+static BUNDLE_COUNT: AtomicUsize = AtomicUsize::new(0);
+
+thread_local! {
+    /// Whether [`take`] ignores the pools on this thread. Reports prepared to estimate their cost
+    /// set this, so that they neither use up bundles nor appear cheaper than they are.
+    static BYPASSED: Cell<bool> = const { Cell::new(false) };
+}
+
+/// Bundles for one pair of leader and helper HPKE configs.
+struct Pool {
+    leader_config: HpkeConfig,
+    helper_config: HpkeConfig,
+    bundles: Vec<Bundle>,
+}
+
+impl Pool {
+    fn matches(&self, leader_config: &HpkeConfig, helper_config: &HpkeConfig) -> bool {
+        self.leader_config == *leader_config && self.helper_config == *helper_config
+    }
+}
+
+/// Returns whether bundles can be precomputed for an HPKE config.
+pub(crate) fn is_supported(config: &HpkeConfig) -> bool {
+    *config.kem_id() == HpkeKemId::X25519HkdfSha256
+        && *config.kdf_id() == HpkeKdfId::HkdfSha256
+        && *config.aead_id() == HpkeAeadId::Aes128Gcm
+}
+
+/// Precomputes bundles for a pair of HPKE configs, until `target` bundles (at most
+/// [`MAX_BUNDLES`]) are available. Returns the number of bundles available, which is zero if either
+/// config uses an unsupported ciphersuite.
+///
+/// Bundles are generated without holding the lock, so reports can be prepared concurrently.
+pub(crate) fn fill(
+    leader_config: &HpkeConfig,
+    helper_config: &HpkeConfig,
+    target: usize,
+) -> Result<usize, Error> {
+    if !is_supported(leader_config) || !is_supported(helper_config) {
+        return Ok(0);
+    }
+    let target = target.min(MAX_BUNDLES);
+    let needed = target.saturating_sub(available(leader_config, helper_config));
+    let mut bundles = Vec::with_capacity(needed);
+    for _ in 0..needed {
+        bundles.push(Bundle::new(leader_config, helper_config)?);
+    }
+
+    let mut pools = POOLS.lock().unwrap_or_else(PoisonError::into_inner);
+    let mut pool = match pools
+        .iter()
+        .position(|pool| pool.matches(leader_config, helper_config))
+    {
+        Some(index) => pools.remove(index),
+        None => Pool {
+            leader_config: leader_config.clone(),
+            helper_config: helper_config.clone(),
+            bundles: Vec::new(),
+        },
+    };
+    // Another thread may have filled the same pool concurrently.
+    let room = MAX_BUNDLES.saturating_sub(pool.bundles.len());
+    bundles.truncate(room);
+    BUNDLE_COUNT.fetch_add(bundles.len(), Ordering::Relaxed);
+    pool.bundles.append(&mut bundles);
+    let available = pool.bundles.len();
+    // The most recently filled pool is kept at the end.
+    pools.push(pool);
+    if pools.len() > MAX_POOLS {
+        let evicted = pools.remove(0);
+        BUNDLE_COUNT.fetch_sub(evicted.bundles.len(), Ordering::Relaxed);
+    }
+    Ok(available)
+}
+
+/// Counts the bundles available for a pair of HPKE configs.
+pub(crate) fn available(leader_config: &HpkeConfig, helper_config: &HpkeConfig) -> usize {
+    let pools = POOLS.lock().unwrap_or_else(PoisonError::into_inner);
+    pools
+        .iter()
+        .find(|pool| pool.matches(leader_config, helper_config))
+        .map_or(0, |pool| pool.bundles.len())
+}
+
+/// Makes [`take`] ignore the pools on the calling thread, until this is called again with `false`.
+pub(crate) fn set_bypassed(bypassed: bool) {
+    BYPASSED.with(|cell| cell.set(bypassed));
+}
+
+/// Removes a bundle for a pair of HPKE configs from its pool, if one is available.
+///
+/// Bundles added by another thread may not be seen until that thread's call to [`fill`] is ordered
+/// before this call by other means, such as handing off work through a queue. Until then, reports
+/// are prepared from scratch.
+pub(crate) fn take(leader_config: &HpkeConfig, helper_config: &HpkeConfig) -> Option<Bundle> {
+    if BUNDLE_COUNT.load(Ordering::Relaxed) == 0 || BYPASSED.with(Cell::get) {
+        return None;
+    }
+    let mut pools = POOLS.lock().unwrap_or_else(PoisonError::into_inner);
+    let bundle = pools
+        .iter_mut()
+        .find(|pool| pool.matches(leader_config, helper_config))
+        .and_then(|pool| pool.bundles.pop());
+    if bundle.is_some() {
+        BUNDLE_COUNT.fetch_sub(1, Ordering::Relaxed);
+    }
+    bundle
+}
+
+/// Measurement-independent material for one report. Bundles cannot be cloned, and
+/// [`Bundle::seal`] consumes the bundle, so each is used for at most one report.
+pub(crate) struct Bundle {
+    report_id: ReportId,
+    leader: SenderContext,
+    helper: SenderContext,
+}
+
+impl Bundle {
+    fn new(leader_config: &HpkeConfig, helper_config: &HpkeConfig) -> Result<Self, Error> {
+        let report_id_bytes: [u8; 16] = random();
+        Ok(Self {
+            report_id: ReportId::from(report_id_bytes),
+            leader: SenderContext::new(leader_config, Role::Leader)?,
+            helper: SenderContext::new(helper_config, Role::Helper)?,
+        })
+    }
+
+    pub(crate) fn report_id(&self) -> ReportId {
+        self.report_id
+    }
+
+    /// Encrypts both input shares with the bundle's sender contexts, consuming the bundle.
+    pub(crate) fn seal(
+        self,
+        leader_plaintext: &[u8],
+        helper_plaintext: &[u8],
+        aad: &[u8],
+    ) -> Result<(HpkeCiphertext, HpkeCiphertext), Error> {
+        Ok((
+            self.leader.seal(leader_plaintext, aad)?,
+            self.helper.seal(helper_plaintext, aad)?,
+        ))
+    }
+}
+
+/// An HPKE sender context in base mode, set up for one recipient, and used for one message.
+struct SenderContext {
+    config_id: HpkeConfigId,
+    encapsulated_key: Vec<u8>,
+    context: AeadCtxS<Aead, Kdf, Kem>,
+}
+
+impl SenderContext {
+    /// Generates an ephemeral key pair and derives the AEAD key, as `hpke::seal` in `janus_core`
+    /// would, with the same application info.
+    fn new(config: &HpkeConfig, recipient_role: Role) -> Result<Self, Error> {
+        let public_key = <Kem as hpke::Kem>::PublicKey::from_bytes(config.public_key().as_ref())
+            .map_err(Error::PrecomputeHpke)?;
+        let info = [
+            Label::InputShare.as_bytes(),
+            &[Role::Client as u8],
+            &[recipient_role as u8],
+        ]
+        .concat();
+        let (encapsulated_key, context) = hpke::setup_sender::<Aead, Kdf, Kem, _>(
+            &OpModeS::Base,
+            &public_key,
+            &info,
+            &mut OsRng.unwrap_err(),
+        )
+        .map_err(Error::PrecomputeHpke)?;
+        Ok(Self {
+            config_id: *config.id(),
+            encapsulated_key: encapsulated_key.to_bytes().to_vec(),
+            context,
+        })
+    }
+
+    fn seal(mut self, plaintext: &[u8], aad: &[u8]) -> Result<HpkeCiphertext, Error> {
+        let payload = self
+            .context
+            .seal(plaintext, aad)
+            .map_err(Error::PrecomputeHpke)?;
+        Ok(HpkeCiphertext::new(self.config_id, self.encapsulated_key, payload))
+    }
+}
+
+#[cfg(test)]
+mod tests {
+    use hpke::{kem::X25519HkdfSha256, Kem as _, Serializable};
+    use janus_core::hpke::{open, HpkeApplicationInfo, HpkeKeypair, HpkePrivateKey, Label};
+    use janus_messages::{
+        HpkeAeadId, HpkeConfig, HpkeConfigId, HpkeKdfId, HpkeKemId, HpkePublicKey, Role,
+    };
+    use rand_core::{OsRng, TryRngCore};
+
+    use super::{available, fill, take};
+
+    fn generate_keypair(id: u8) -> HpkeKeypair {
+        let (private_key, public_key) = X25519HkdfSha256::gen_keypair(&mut OsRng.unwrap_err());
+        let config = HpkeConfig::new(
+            HpkeConfigId::from(id),
+            HpkeKemId::X25519HkdfSha256,
+            HpkeKdfId::HkdfSha256,
+            HpkeAeadId::Aes128Gcm,
+            HpkePublicKey::from(public_key.to_bytes().to_vec()),
+        );
+        HpkeKeypair::new(config, HpkePrivateKey::new(private_key.to_bytes().to_vec()))
+    }
+
+    /// Ciphertexts sealed with a bundle can be opened by aggregators, as if they had been sealed
+    /// by `janus_core`.
+    #[test]
+    fn bundles_open_with_janus() {
+        let leader = generate_keypair(1);
+        let helper = generate_keypair(2);
+        assert_eq!(fill(leader.config(), helper.config(), 2).unwrap(), 2);
+        assert_eq!(available(leader.config(), helper.config()), 2);
+
+        let bundle = take(leader.config(), helper.config()).unwrap();
+        let other = take(leader.config(), helper.config()).unwrap();
+        assert_ne!(bundle.report_id(), other.report_id());
+        assert!(take(leader.config(), helper.config()).is_none());
+
+        let aad = b"associated data";
+        let (leader_ciphertext, helper_ciphertext) =
+            bundle.seal(b"leader share", b"helper share", aad).unwrap();
+        let opened = open(
+            &leader,
+            &HpkeApplicationInfo::new(&Label::InputShare, &Role::Client, &Role::Leader),
+            &leader_ciphertext,
+            aad,
+        )
+        .unwrap();
+        assert_eq!(opened, b"leader share");
+        let opened = open(
+            &helper,
+            &HpkeApplicationInfo::new(&Label::InputShare, &Role::Client, &Role::Helper),
+            &helper_ciphertext,
+            aad,
+        )
+        .unwrap();
+        assert_eq!(opened, b"helper share");
+    }
+
+    /// Pools are bound to their configs, and are only filled up to the requested size.
+    #[test]
+    fn pools_are_keyed_by_configs() {
+        let leader = generate_keypair(3);
+        let helper = generate_keypair(4);
+        let rotated = generate_keypair(5);
+        assert_eq!(fill(leader.config(), helper.config(), 3).unwrap(), 3);
+        assert_eq!(fill(leader.config(), helper.config(), 1).unwrap(), 3);
+        assert!(take(leader.config(), rotated.config()).is_none());
+        assert_eq!(available(leader.config(), helper.config()), 3);
+    }
+}
@@ -0,0 +1,108 @@
+//! Opt-in profiling of the phases of report preparation.
+//!
+//! When enabled, each phase records its elapsed monotonic time and the number of bytes it
+//! processed into process-wide counters, which are read from Java by `NativeProfiler`. When
+//! disabled, timers do not read the clock, and the only cost is one relaxed atomic load per phase.
+
+use std::{
+    sync::atomic::{AtomicBool, AtomicU64, Ordering},
+    time::Instant,
+};
+
+/// A phase of report preparation. The order must match `NativeProfiler.Phase` in Java.
+#[derive(Clone, Copy, Debug, PartialEq, Eq)]
+pub(crate) enum Phase {
+    /// Pinning or copying the task ID and HPKE config list arrays through JNI, and releasing them.
+    /// Bytes are the sizes of the input arrays.
+    ReadInputs = 0,
+    /// Decoding the task ID and HPKE config lists, and choosing a config for each aggregator. Bytes
+    /// are the sizes of the input arrays.
+    DecodeInputs = 1,
+    /// Sharding the measurement with the VDAF.
+    Shard = 2,
+    /// Encoding the input shares, public share, report metadata, and AAD. Bytes are the sizes of
+    /// the encoded plaintext input shares, and of the report metadata and public share.
+    Encode = 3,
+    /// Encrypting both input shares with HPKE. Bytes are the sizes of the plaintexts.
+    Seal = 4,
+    /// Assembling the report in a per-thread buffer, and copying it into the output array. Bytes
+    /// are the size of the report.
+    WriteOutput = 5,
+}
+
+pub(crate) const PHASE_COUNT: usize = 6;
+
+static ENABLED: AtomicBool = AtomicBool::new(false);
+static REPORTS: AtomicU64 = AtomicU64::new(0);
+static NANOS: [AtomicU64; PHASE_COUNT] = [const { AtomicU64::new(0) }; PHASE_COUNT];
+static BYTES: [AtomicU64; PHASE_COUNT] = [const { AtomicU64::new(0) }; PHASE_COUNT];
+
+pub(crate) fn set_enabled(enabled: bool) {
+    ENABLED.store(enabled, Ordering::Relaxed);
+}
+
+pub(crate) fn is_enabled() -> bool {
+    ENABLED.load(Ordering::Relaxed)
+}
+
+/// Clears all counters. Reports being prepared concurrently may be partially counted.
+pub(crate) fn reset() {
+    REPORTS.store(0, Ordering::Relaxed);
+    for counter in NANOS.iter().chain(BYTES.iter()) {
+        counter.store(0, Ordering::Relaxed);
+    }
+}
+
+/// Counts a report that was prepared successfully, while profiling was enabled.
+pub(crate) fn record_report() {
+    if is_enabled() {
+        REPORTS.fetch_add(1, Ordering::Relaxed);
+    }
+}
+
+/// Number of values returned by [`snapshot`]: the report count, then the time spent in each phase,
+/// then the bytes processed by each phase.
+pub(crate) const SNAPSHOT_LENGTH: usize = 1 + 2 * PHASE_COUNT;
+
+/// Reads all counters. Counters are read individually, so a snapshot taken while reports are being
+/// prepared may be slightly inconsistent.
+pub(crate) fn snapshot() -> [u64; SNAPSHOT_LENGTH] {
+    let mut values = [0; SNAPSHOT_LENGTH];
+    values[0] = REPORTS.load(Ordering::Relaxed);
+    for phase in 0..PHASE_COUNT {
+        values[1 + phase] = NANOS[phase].load(Ordering::Relaxed);
+        values[1 + PHASE_COUNT + phase] = BYTES[phase].load(Ordering::Relaxed);
+    }
+    values
+}
+
+/// Measures one execution of a phase. Phases that run more than once per report accumulate into
+/// the same counters.
+pub(crate) struct PhaseTimer {
+    phase: Phase,
+    start: Option<Instant>,
+}
+
+impl PhaseTimer {
+    pub(crate) fn start(phase: Phase) -> Self {
+        Self::start_if(phase, true)
+    }
+
+    /// Starts a timer that only records anything if `counted` is true, for work that is shared
+    /// with callers other than report preparation.
+    pub(crate) fn start_if(phase: Phase, counted: bool) -> Self {
+        Self {
+            phase,
+            start: (counted && is_enabled()).then(Instant::now),
+        }
+    }
+
+    /// Stops the timer, and records the elapsed time and the given number of bytes.
+    pub(crate) fn finish(self, bytes: usize) {
+        if let Some(start) = self.start {
+            let nanos = u64::try_from(start.elapsed().as_nanos()).unwrap_or(u64::MAX);
+            NANOS[self.phase as usize].fetch_add(nanos, Ordering::Relaxed);
+            BYTES[self.phase as usize].fetch_add(bytes as u64, Ordering::Relaxed);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.divviup.android;
+
+/**
+ * Determines what a {@link SubmissionPipeline} does when a measurement is submitted, or a prepared
+ * report is handed to the upload stage, while that stage's queue is full.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Block the submitting thread until there is room in the queue.
+     */
+    BLOCK,
+    /**
+     * Drop the oldest queued item to make room. Its future fails with a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the new item. Its future fails with a
+     * {@link java.util.concurrent.RejectedExecutionException}, but no exception is thrown to the
+     * submitter.
+     */
+    DROP_NEWEST,
+    /**
+     * Throw a {@link java.util.concurrent.RejectedExecutionException} to the submitter.
+     */
+    REJECT,
+}
@@ -0,0 +1,178 @@
+package org.divviup.android;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A limit on the number of report bytes uploaded per period of time. A budget may be shared by
+ * several clients, via {@link Client#withBandwidthBudget(BandwidthBudget)}, to cap an app's total
+ * usage. Only report bodies are counted, since their size is known exactly before they are sent;
+ * HPKE config fetches, which are usually answered from the shared {@code HpkeConfigStore}, and
+ * HTTP and TLS overhead are not.
+ * <p>
+ * Once a client has prepared a report, later reports are expected to be the same size, and are
+ * checked against the budget before they are prepared, so that no work is spent on reports that
+ * would be deferred or sampled out. Objects of this class are thread-safe.
+ */
+public final class BandwidthBudget {
+    /**
+     * Determines what happens to a report once the budget for the current period is exhausted.
+     */
+    public enum Overflow {
+        /**
+         * Don't upload the report, and throw a {@link BandwidthBudgetExceededException}, so that
+         * the app can submit the measurement again in a later period.
+         */
+        DEFER,
+        /**
+         * Upload a random sample of reports, in the given proportion, and silently discard the
+         * rest. Sampled reports may exceed the budget.
+         */
+        SAMPLE,
+    }
+
+    private final long bytesPerPeriod;
+    private final long periodNanos;
+    private final Overflow overflow;
+    private final double sampleRate;
+
+    private long periodStartNanos;
+    private long bytesUsed;
+    private long reportsSampledOut;
+
+    private BandwidthBudget(long bytesPerPeriod, long periodNanos, Overflow overflow, double sampleRate) {
+        this.bytesPerPeriod = bytesPerPeriod;
+        this.periodNanos = periodNanos;
+        this.overflow = overflow;
+        this.sampleRate = sampleRate;
+        this.periodStartNanos = System.nanoTime();
+        this.bytesUsed = 0;
+        this.reportsSampledOut = 0;
+    }
+
+    /**
+     * Constructs a budget that defers reports once it is exhausted.
+     *
+     * @param bytesPerPeriod            the number of report bytes that may be uploaded per period
+     * @param period                    the length of each period
+     * @param unit                      the unit of the period
+     * @return                          the budget
+     * @throws IllegalArgumentException if bytesPerPeriod or period is not positive
+     */
+    public static BandwidthBudget deferring(long bytesPerPeriod, long period, TimeUnit unit) {
+        return create(bytesPerPeriod, period, unit, Overflow.DEFER, 0);
+    }
+
+    /**
+     * Constructs a budget that uploads only a random sample of reports once it is exhausted.
+     *
+     * @param bytesPerPeriod            the number of report bytes that may be uploaded per period
+     * @param period                    the length of each period
+     * @param unit                      the unit of the period
+     * @param sampleRate                the proportion of reports to upload once the budget is
+     *                                  exhausted, from 0 to 1
+     * @return                          the budget
+     * @throws IllegalArgumentException if bytesPerPeriod or period is not positive, or sampleRate
+     *                                  is not between 0 and 1
+     */
+    public static BandwidthBudget sampling(long bytesPerPeriod, long period, TimeUnit unit, double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+        }
+        return create(bytesPerPeriod, period, unit, Overflow.SAMPLE, sampleRate);
+    }
+
+    private static BandwidthBudget create(
+            long bytesPerPeriod,
+            long period,
+            TimeUnit unit,
+            Overflow overflow,
+            double sampleRate
+    ) {
+        if (bytesPerPeriod <= 0) {
+            throw new IllegalArgumentException("bytesPerPeriod must be positive");
+        }
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return new BandwidthBudget(bytesPerPeriod, unit.toNanos(period), overflow, sampleRate);
+    }
+
+    /**
+     * Gets the number of report bytes that may still be uploaded in the current period.
+     *
+     * @return  the remaining bytes, which is zero once the budget is exhausted
+     */
+    public synchronized long remainingBytes() {
+        this.renew(System.nanoTime());
+        return Math.max(0, this.bytesPerPeriod - this.bytesUsed);
+    }
+
+    /**
+     * Gets the number of reports discarded by sampling, since this budget was constructed.
+     *
+     * @return  the number of reports that were not uploaded
+     */
+    public synchronized long reportsSampledOut() {
+        return this.reportsSampledOut;
+    }
+
+    /**
+     * Accounts for a report that is about to be prepared or uploaded.
+     *
+     * @param reportBytes                           the size of the report
+     * @return                                      true if the report should be uploaded, or
+     *                                              false if it was sampled out
+     * @throws BandwidthBudgetExceededException     if the report must be deferred
+     * @throws IllegalArgumentException             if this budget defers reports, and the report
+     *                                              is larger than a whole period allows, so that
+     *                                              it could never be uploaded
+     */
+    synchronized boolean acquire(int reportBytes) throws BandwidthBudgetExceededException {
+        if (this.overflow == Overflow.DEFER && reportBytes > this.bytesPerPeriod) {
+            throw new IllegalArgumentException(
+                    "report of " + reportBytes + " bytes is larger than the bandwidth budget of "
+                            + this.bytesPerPeriod + " bytes per period"
+            );
+        }
+        long now = System.nanoTime();
+        this.renew(now);
+        if (this.bytesUsed + reportBytes <= this.bytesPerPeriod) {
+            this.bytesUsed += reportBytes;
+            return true;
+        }
+        switch (this.overflow) {
+            case SAMPLE:
+                if (ThreadLocalRandom.current().nextDouble() < this.sampleRate) {
+                    this.bytesUsed += reportBytes;
+                    return true;
+                }
+                this.reportsSampledOut++;
+                return false;
+            case DEFER:
+            default:
+                throw new BandwidthBudgetExceededException(this.periodStartNanos + this.periodNanos - now);
+        }
+    }
+
+    /**
+     * Corrects the bytes counted for a report that was accounted for with {@link #acquire(int)},
+     * once its exact size is known, or once it is known not to be uploaded.
+     *
+     * @param deltaBytes    the number of bytes to add, or to subtract if negative
+     */
+    synchronized void adjust(long deltaBytes) {
+        this.renew(System.nanoTime());
+        this.bytesUsed = Math.max(0, this.bytesUsed + deltaBytes);
+    }
+
+    private void renew(long now) {
+        long elapsed = now - this.periodStartNanos;
+        if (elapsed >= this.periodNanos) {
+            // Periods are aligned to when the budget was constructed, so that idle time does not
+            // shift them.
+            this.periodStartNanos += elapsed - (elapsed % this.periodNanos);
+            this.bytesUsed = 0;
+        }
+    }
+}
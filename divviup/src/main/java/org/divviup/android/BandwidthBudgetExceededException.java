@@ -0,0 +1,28 @@
+package org.divviup.android;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when a report is not uploaded because a {@link BandwidthBudget} with the
+ * {@link BandwidthBudget.Overflow#DEFER} policy is exhausted. The measurement may be submitted
+ * again once the budget's period renews.
+ */
+public class BandwidthBudgetExceededException extends IOException {
+    private final long retryAfterNanos;
+
+    BandwidthBudgetExceededException(long retryAfterNanos) {
+        super("bandwidth budget exhausted, retry in " + TimeUnit.NANOSECONDS.toMillis(retryAfterNanos) + " ms");
+        this.retryAfterNanos = retryAfterNanos;
+    }
+
+    /**
+     * Gets the time until the budget's next period starts.
+     *
+     * @param unit  the unit of the result
+     * @return      the time until more bytes are available
+     */
+    public long getRetryAfter(TimeUnit unit) {
+        return unit.convert(this.retryAfterNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,82 @@
+package org.divviup.android;
+
+import java.util.Arrays;
+
+/**
+ * Unpadded base64url encoding, as used for identifiers in DAP URLs. This is implemented here, rather
+ * than with {@code android.util.Base64} or {@code java.util.Base64}, so that it works both on every
+ * supported Android version and on a plain JVM.
+ */
+final class Base64Url {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int[] DECODE_TABLE = new int[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE_TABLE[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Url() {
+    }
+
+    static String encode(byte[] input) {
+        StringBuilder builder = new StringBuilder((input.length * 4 + 2) / 3);
+        int i = 0;
+        for (; i + 3 <= input.length; i += 3) {
+            int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8 | (input[i + 2] & 0xff);
+            builder.append(ALPHABET[bits >>> 18])
+                    .append(ALPHABET[(bits >>> 12) & 0x3f])
+                    .append(ALPHABET[(bits >>> 6) & 0x3f])
+                    .append(ALPHABET[bits & 0x3f]);
+        }
+        int remaining = input.length - i;
+        if (remaining == 1) {
+            int bits = (input[i] & 0xff) << 16;
+            builder.append(ALPHABET[bits >>> 18]).append(ALPHABET[(bits >>> 12) & 0x3f]);
+        } else if (remaining == 2) {
+            int bits = (input[i] & 0xff) << 16 | (input[i + 1] & 0xff) << 8;
+            builder.append(ALPHABET[bits >>> 18])
+                    .append(ALPHABET[(bits >>> 12) & 0x3f])
+                    .append(ALPHABET[(bits >>> 6) & 0x3f]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes base64url, with or without padding.
+     *
+     * @throws IllegalArgumentException if the input is not valid base64url
+     */
+    static byte[] decode(String input) {
+        int length = input.length();
+        while (length > 0 && input.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1 || input.length() - length > 2) {
+            throw new IllegalArgumentException("invalid base64url length");
+        }
+        byte[] output = new byte[length * 3 / 4];
+        int bits = 0, bitCount = 0, position = 0;
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            int value = c < DECODE_TABLE.length ? DECODE_TABLE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("invalid base64url character at index " + i);
+            }
+            bits = bits << 6 | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                output[position++] = (byte) (bits >>> bitCount);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+        if (bits != 0) {
+            throw new IllegalArgumentException("invalid base64url trailing bits");
+        }
+        return output;
+    }
+}
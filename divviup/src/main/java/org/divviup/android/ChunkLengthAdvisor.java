@@ -0,0 +1,281 @@
+package org.divviup.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helps choose the chunk length parameter of the Prio3SumVec and Prio3Histogram VDAFs, by
+ * measuring the cost of sharding measurements with a range of chunk lengths on the running device.
+ * This is intended for provisioning new tasks, and is not needed to send reports.
+ * <p>
+ * Both VDAFs validate measurements with a proof whose length, in field elements, is
+ * <code>2 * chunkLength + 2 * (P - 1) + 1</code>, where <code>P</code> is the smallest power of two
+ * greater than <code>ceil(n / chunkLength)</code>, and <code>n</code> is the number of field
+ * elements that encode a measurement: <code>length * bits</code> for Prio3SumVec, and
+ * <code>length</code> for Prio3Histogram. The proof makes up most of the leader's input share,
+ * beyond the encoded measurement itself, so the chunk length with the shortest proof gives the
+ * smallest reports. Sharding time follows a similar curve, but also depends on the device.
+ * <p>
+ * Candidates are the smallest chunk lengths for each power of two <code>P</code>, since larger
+ * chunk lengths with the same <code>P</code> only lengthen the proof.
+ */
+public final class ChunkLengthAdvisor {
+    /**
+     * The largest supported number of field elements per measurement. Proofs can be about four
+     * times as long as the measurement, and their lengths must fit in a long.
+     */
+    static final long MAX_MEASUREMENT_LENGTH = 1L << 60;
+
+    static {
+        System.loadLibrary("divviup_android");
+    }
+
+    private ChunkLengthAdvisor() {
+    }
+
+    /**
+     * Measures sharding Prio3SumVec measurements with each candidate chunk length. This takes time
+     * proportional to the measurement length and the number of samples, and must not be called
+     * from the UI thread.
+     *
+     * @param length                    the length of measurement vectors
+     * @param bits                      the bit width of each element of the measurement vector
+     * @param samples                   the number of measurements to shard per candidate
+     * @return                          the cost of each candidate, and recommended chunk lengths
+     * @throws IllegalArgumentException if any argument is not positive, or if
+     *                                  <code>length * bits</code> is greater than 2<sup>60</sup>
+     * @throws RuntimeException         if the VDAF parameters are not supported
+     */
+    public static Advice forPrio3SumVec(long length, long bits, int samples) {
+        if (length <= 0 || bits <= 0) {
+            throw new IllegalArgumentException("length and bits must be positive");
+        }
+        if (length > MAX_MEASUREMENT_LENGTH / bits) {
+            throw new IllegalArgumentException("length * bits is too large");
+        }
+        return advise(false, length, bits, length * bits, samples);
+    }
+
+    /**
+     * Measures sharding Prio3Histogram measurements with each candidate chunk length. This takes
+     * time proportional to the number of buckets and the number of samples, and must not be called
+     * from the UI thread.
+     *
+     * @param length                    the total number of histogram buckets
+     * @param samples                   the number of measurements to shard per candidate
+     * @return                          the cost of each candidate, and recommended chunk lengths
+     * @throws IllegalArgumentException if any argument is not positive, or if the length is
+     *                                  greater than 2<sup>60</sup>
+     * @throws RuntimeException         if the VDAF parameters are not supported
+     */
+    public static Advice forPrio3Histogram(long length, int samples) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("length must be positive");
+        }
+        if (length > MAX_MEASUREMENT_LENGTH) {
+            throw new IllegalArgumentException("length is too large");
+        }
+        return advise(true, length, 0, length, samples);
+    }
+
+    private static Advice advise(boolean histogram, long length, long bits, long measurementLength, int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("samples must be positive");
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        long[] output = new long[2];
+        for (long chunkLength : candidateChunkLengths(measurementLength)) {
+            measureNative(histogram, length, bits, chunkLength, samples, output);
+            candidates.add(new Candidate(
+                    chunkLength,
+                    proofLength(measurementLength, chunkLength),
+                    output[1],
+                    output[0] / samples
+            ));
+        }
+        return new Advice(candidates, optimalChunkLength(measurementLength));
+    }
+
+    /**
+     * Lists the candidate chunk lengths for a measurement of n field elements, in increasing order.
+     * For n of 2<sup>62</sup> or more, chunk lengths that would need more than
+     * 2<sup>62</sup> - 1 gadget calls are left out.
+     */
+    static List<Long> candidateChunkLengths(long n) {
+        List<Long> chunkLengths = new ArrayList<>();
+        // With 2^k - 1 gadget calls, each call must cover ceil(n / (2^k - 1)) elements. Ceilings
+        // are computed without adding to n, which may be close to Long.MAX_VALUE.
+        for (int k = Math.min(62, 64 - Long.numberOfLeadingZeros(n) + 1); k >= 1; k--) {
+            long calls = (1L << k) - 1;
+            long chunkLength = (n - 1) / calls + 1;
+            if (chunkLengths.isEmpty() || chunkLengths.get(chunkLengths.size() - 1) != chunkLength) {
+                chunkLengths.add(chunkLength);
+            }
+        }
+        return chunkLengths;
+    }
+
+    /**
+     * Computes the length of the proof, in field elements, for a measurement of n field elements.
+     */
+    static long proofLength(long n, long chunkLength) {
+        long calls = (n - 1) / chunkLength + 1;
+        long p = Long.highestOneBit(calls) << 1;
+        return 2 * chunkLength + 2 * (p - 1) + 1;
+    }
+
+    /**
+     * Finds the candidate chunk length with the shortest proof, preferring smaller chunk lengths.
+     */
+    static long optimalChunkLength(long n) {
+        long best = 0, bestProofLength = Long.MAX_VALUE;
+        for (long chunkLength : candidateChunkLengths(n)) {
+            long proofLength = proofLength(n, chunkLength);
+            if (proofLength < bestProofLength) {
+                best = chunkLength;
+                bestProofLength = proofLength;
+            }
+        }
+        return best;
+    }
+
+    private static native void measureNative(
+            boolean histogram,
+            long length,
+            long bits,
+            long chunkLength,
+            int samples,
+            long[] output
+    );
+
+    /**
+     * The measured cost of one chunk length. Objects of this class are immutable.
+     */
+    public static final class Candidate {
+        private final long chunkLength, proofLength, shareBytes, averageShardNanos;
+
+        private Candidate(long chunkLength, long proofLength, long shareBytes, long averageShardNanos) {
+            this.chunkLength = chunkLength;
+            this.proofLength = proofLength;
+            this.shareBytes = shareBytes;
+            this.averageShardNanos = averageShardNanos;
+        }
+
+        /**
+         * Gets the chunk length.
+         *
+         * @return  the chunk length
+         */
+        public long getChunkLength() {
+            return this.chunkLength;
+        }
+
+        /**
+         * Gets the length of the proof, as predicted by the model described in
+         * {@link ChunkLengthAdvisor}.
+         *
+         * @return  the number of field elements in the proof
+         */
+        public long getProofLength() {
+            return this.proofLength;
+        }
+
+        /**
+         * Gets the combined encoded size of the public share and both input shares. Reports are
+         * larger by a fixed amount, for HPKE encapsulation and report metadata.
+         *
+         * @return  the size of the shares, in bytes
+         */
+        public long getShareBytes() {
+            return this.shareBytes;
+        }
+
+        /**
+         * Gets the average time taken to shard one measurement.
+         *
+         * @param unit  the unit of the result
+         * @return      the average sharding time
+         */
+        public long getAverageShardTime(TimeUnit unit) {
+            return unit.convert(this.averageShardNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "Candidate{chunkLength=" + this.chunkLength
+                    + ", proofLength=" + this.proofLength
+                    + ", shareBytes=" + this.shareBytes
+                    + ", averageShardNanos=" + this.averageShardNanos + "}";
+        }
+    }
+
+    /**
+     * The measured trade-off between CPU time and size across chunk lengths, and recommendations.
+     * Objects of this class are immutable.
+     */
+    public static final class Advice {
+        private final List<Candidate> candidates;
+        private final long optimalChunkLength;
+        private final Candidate recommended;
+
+        private Advice(List<Candidate> candidates, long optimalChunkLength) {
+            this.candidates = Collections.unmodifiableList(candidates);
+            this.optimalChunkLength = optimalChunkLength;
+            long minBytes = Long.MAX_VALUE, minNanos = Long.MAX_VALUE;
+            for (Candidate candidate : candidates) {
+                minBytes = Math.min(minBytes, candidate.shareBytes);
+                minNanos = Math.min(minNanos, Math.max(candidate.averageShardNanos, 1));
+            }
+            Candidate recommended = null;
+            double bestScore = Double.POSITIVE_INFINITY;
+            for (Candidate candidate : candidates) {
+                double score = (double) candidate.shareBytes / minBytes
+                        * ((double) Math.max(candidate.averageShardNanos, 1) / minNanos);
+                if (score < bestScore) {
+                    recommended = candidate;
+                    bestScore = score;
+                }
+            }
+            this.recommended = recommended;
+        }
+
+        /**
+         * Gets the measured cost of every candidate chunk length, in increasing order of chunk
+         * length.
+         *
+         * @return  an unmodifiable list of candidates
+         */
+        public List<Candidate> getCandidates() {
+            return this.candidates;
+        }
+
+        /**
+         * Gets the recommended chunk length for this device: the candidate that minimizes the
+         * product of its share size and its sharding time, each relative to the best candidate.
+         *
+         * @return  the recommended chunk length
+         */
+        public long getRecommendedChunkLength() {
+            return this.recommended.chunkLength;
+        }
+
+        /**
+         * Gets the chunk length with the shortest proof, and so the smallest reports, regardless of
+         * measured sharding time.
+         *
+         * @return  the theoretically optimal chunk length
+         */
+        public long getOptimalChunkLength() {
+            return this.optimalChunkLength;
+        }
+
+        @Override
+        public String toString() {
+            return "Advice{recommendedChunkLength=" + this.getRecommendedChunkLength()
+                    + ", optimalChunkLength=" + this.optimalChunkLength
+                    + ", candidates=" + this.candidates + "}";
+        }
+    }
+}
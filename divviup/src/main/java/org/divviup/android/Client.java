@@ -4,11 +4,13 @@ import android.content.Context;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import okhttp3.Cache;
+import okhttp3.CacheControl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -25,7 +27,7 @@ import okhttp3.ResponseBody;
 public class Client<M> {
     private static final String HPKE_CONFIG_LIST_CONTENT_TYPE = "application/dap-hpke-config-list";
     private static final MediaType REPORT_CONTENT_TYPE = MediaType.get("application/dap-report");
-    private static final long DISK_CACHE_SIZE = 1024 * 100;
+    private static final int INITIAL_REPORT_BUFFER_SIZE = 1024;
     private static OkHttpClient HTTP_CLIENT = null;
 
     static {
@@ -37,9 +39,17 @@ public class Client<M> {
     private final long timePrecisionSeconds;
     private final ReportPreparer<M> reportPreparer;
     private final OkHttpClient client;
+    private final HpkeConfigStore configStore;
+    private final AtomicInteger reportSizeHint;
+    private final AtomicInteger lastReportLength;
+    private final ThreadLocal<ReportBuffer> reportBuffers;
+    private final BandwidthBudget bandwidthBudget;
+    private final UploadScheduler uploadScheduler;
+    private final HpkeConfigSeed hpkeConfigSeed;
+    private final CpuBudget cpuBudget;
 
     private Client(
-            Context context,
+            File cacheDir,
             URI leaderEndpoint,
             URI helperEndpoint,
             TaskId taskId,
@@ -64,17 +74,62 @@ public class Client<M> {
         this.timePrecisionSeconds = timePrecisionSeconds;
         this.reportPreparer = reportPreparer;
 
-        this.client = getHTTPClient(context);
+        this.client = getHTTPClient();
+        this.configStore = new HpkeConfigStore(cacheDir);
+
+        // Each thread gets its own buffer to encode reports into, which is reused across reports.
+        // New buffers start at the size of the last report seen by any thread, because all reports
+        // for a task have the same size, as long as the aggregators' HPKE configs don't change.
+        this.reportSizeHint = new AtomicInteger(INITIAL_REPORT_BUFFER_SIZE);
+        this.reportBuffers = new ThreadLocal<ReportBuffer>() {
+            @Override
+            protected ReportBuffer initialValue() {
+                return new ReportBuffer(reportSizeHint.get());
+            }
+        };
+        // The exact length of the last report prepared by any thread, or zero before the first.
+        // Reports are checked against the bandwidth budget at this length before they are prepared.
+        this.lastReportLength = new AtomicInteger(0);
+        this.bandwidthBudget = null;
+        this.uploadScheduler = null;
+        this.hpkeConfigSeed = null;
+        this.cpuBudget = null;
+    }
+
+    /**
+     * Constructs a copy of another client with different options. Report buffers are shared with
+     * the original client.
+     */
+    private Client(
+            Client<M> other,
+            OkHttpClient client,
+            BandwidthBudget bandwidthBudget,
+            UploadScheduler uploadScheduler,
+            HpkeConfigSeed hpkeConfigSeed,
+            CpuBudget cpuBudget
+    ) {
+        this.leaderEndpoint = other.leaderEndpoint;
+        this.helperEndpoint = other.helperEndpoint;
+        this.taskId = other.taskId;
+        this.timePrecisionSeconds = other.timePrecisionSeconds;
+        this.reportPreparer = other.reportPreparer;
+        this.client = client;
+        this.configStore = other.configStore;
+        this.reportSizeHint = other.reportSizeHint;
+        this.lastReportLength = other.lastReportLength;
+        this.reportBuffers = other.reportBuffers;
+        this.bandwidthBudget = bandwidthBudget;
+        this.uploadScheduler = uploadScheduler;
+        this.hpkeConfigSeed = hpkeConfigSeed;
+        this.cpuBudget = cpuBudget;
     }
 
-    private static synchronized OkHttpClient getHTTPClient(Context context) {
-        // The same cache directory may not be used with multiple Cache instances, and OkHttpClient
-        // has an internal connection pool, so we construct a singleton client object. It is not
-        // necessary to shut down the client, as threads and connections will be cleaned up when
-        // idle automatically.
+    static synchronized OkHttpClient getHTTPClient() {
+        // OkHttpClient has an internal connection pool, so we construct a singleton client object.
+        // It is not necessary to shut down the client, as threads and connections will be cleaned
+        // up when idle automatically. HPKE configs are cached by HpkeConfigStore rather than
+        // OkHttp's cache, because OkHttp's cache directory may not be shared between processes.
         if (HTTP_CLIENT == null) {
-            File cacheDir = new File(context.getCacheDir(), "divviup-http");
-            Cache cache = new Cache(cacheDir, DISK_CACHE_SIZE);
             HTTP_CLIENT = new OkHttpClient.Builder().addNetworkInterceptor(chain -> {
                 Request request = chain
                         .request()
@@ -82,7 +137,7 @@ public class Client<M> {
                         .header("User-Agent", getUserAgent())
                         .build();
                 return chain.proceed(request);
-            }).cache(cache).build();
+            }).eventListenerFactory(NetworkProfiler.LISTENER_FACTORY).build();
         }
         return HTTP_CLIENT;
     }
@@ -108,9 +163,41 @@ public class Client<M> {
             URI helperEndpoint,
             TaskId taskId,
             long timePrecisionSeconds
+    ) {
+        return createPrio3Count(
+                context.getCacheDir(),
+                leaderEndpoint,
+                helperEndpoint,
+                taskId,
+                timePrecisionSeconds
+        );
+    }
+
+    /**
+     * Constructs a client for a DAP task using the Prio3Count VDAF. Measurements are
+     * <code>Boolean</code>s. The aggregate result is the number of <code>true</code> measurements.
+     *
+     * @param cacheDir                  a directory to cache HPKE configs in, which may be shared by
+     *                                  several processes. This allows clients to be used on a plain
+     *                                  JVM, without a {@link Context}.
+     * @param leaderEndpoint            the URI of the leader aggregator's HTTPS endpoint
+     * @param helperEndpoint            the URI of the helper aggregator's HTTPS endpoint
+     * @param taskId                    the {@link TaskId} of the DAP task
+     * @param timePrecisionSeconds      the time precision of the DAP task, in seconds
+     * @return                          a client for the configured DAP task
+     * @throws IllegalArgumentException if the scheme of leaderEndpoint or helperEndpoint is not
+     *                                  http or https, or if timePrecisionSeconds is not a positive
+     *                                  number
+     */
+    public static Client<Boolean> createPrio3Count(
+            File cacheDir,
+            URI leaderEndpoint,
+            URI helperEndpoint,
+            TaskId taskId,
+            long timePrecisionSeconds
     ) {
         return new Client<>(
-                context,
+                cacheDir,
                 leaderEndpoint,
                 helperEndpoint,
                 taskId,
@@ -144,9 +231,46 @@ public class Client<M> {
             TaskId taskId,
             long timePrecisionSeconds,
             long bits
+    ) {
+        return createPrio3Sum(
+                context.getCacheDir(),
+                leaderEndpoint,
+                helperEndpoint,
+                taskId,
+                timePrecisionSeconds,
+                bits
+        );
+    }
+
+    /**
+     * Constructs a client for a DAP task using the Prio3Sum VDAF. Measurements are <code>Long</code>
+     * integers. Valid measurements must be greater than or equal to zero, and less than
+     * <code>2 ^ bits</code>. The aggregate result is the sum of all measurements.
+     *
+     * @param cacheDir                  a directory to cache HPKE configs in, which may be shared by
+     *                                  several processes. This allows clients to be used on a plain
+     *                                  JVM, without a {@link Context}.
+     * @param leaderEndpoint            the URI of the leader aggregator's HTTPS endpoint
+     * @param helperEndpoint            the URI of the helper aggregator's HTTPS endpoint
+     * @param taskId                    the {@link TaskId} of the DAP task
+     * @param timePrecisionSeconds      the time precision of the DAP task, in seconds
+     * @param bits                      the bit width of measurements. This is a parameter of the
+     *                                  Prio3Sum VDAF.
+     * @return                          a client for the configured DAP task
+     * @throws IllegalArgumentException if the scheme of leaderEndpoint or helperEndpoint is not
+     *                                  http or https, or if timePrecisionSeconds is not a positive
+     *                                  number
+     */
+    public static Client<Long> createPrio3Sum(
+            File cacheDir,
+            URI leaderEndpoint,
+            URI helperEndpoint,
+            TaskId taskId,
+            long timePrecisionSeconds,
+            long bits
     ) {
         return new Client<>(
-                context,
+                cacheDir,
                 leaderEndpoint,
                 helperEndpoint,
                 taskId,
@@ -186,9 +310,54 @@ public class Client<M> {
             long length,
             long bits,
             long chunkLength
+    ) {
+        return createPrio3SumVec(
+                context.getCacheDir(),
+                leaderEndpoint,
+                helperEndpoint,
+                taskId,
+                timePrecisionSeconds,
+                length,
+                bits,
+                chunkLength
+        );
+    }
+
+    /**
+     * Constructs a client for a DAP task using the Prio3SumVec VDAF. Measurements are vectors of
+     * integers, as a <code>long[]</code> array of the given length. Valid measurements must have
+     * every integer be greater than or equal to zero, and less than <code>2 ^ bits</code>. The
+     * aggregate result is the element-wise sum of all measurements.
+     *
+     * @param cacheDir                  a directory to cache HPKE configs in, which may be shared by
+     *                                  several processes. This allows clients to be used on a plain
+     *                                  JVM, without a {@link Context}.
+     * @param leaderEndpoint            the URI of the leader aggregator's HTTPS endpoint
+     * @param helperEndpoint            the URI of the helper aggregator's HTTPS endpoint
+     * @param taskId                    the {@link TaskId} of the DAP task
+     * @param timePrecisionSeconds      the time precision of the DAP task, in seconds
+     * @param length                    the length of measurement vectors. This is a parameter of
+     *                                  the Prio3SumVec VDAF.
+     * @param bits                      the bit width of each element of the measurement vector.
+     *                                  This is a parameter of the Prio3SumVec VDAF.
+     * @param chunkLength               the chunk length internally used by the Prio3SumVec VDAF
+     * @return                          a client for the configured DAP task
+     * @throws IllegalArgumentException if the scheme of leaderEndpoint or helperEndpoint is not
+     *                                  http or https, or if timePrecisionSeconds is not a positive
+     *                                  number
+     */
+    public static Client<long[]> createPrio3SumVec(
+            File cacheDir,
+            URI leaderEndpoint,
+            URI helperEndpoint,
+            TaskId taskId,
+            long timePrecisionSeconds,
+            long length,
+            long bits,
+            long chunkLength
     ) {
         return new Client<>(
-                context,
+                cacheDir,
                 leaderEndpoint,
                 helperEndpoint,
                 taskId,
@@ -197,6 +366,97 @@ public class Client<M> {
         );
     }
 
+    /**
+     * Constructs a client for a DAP task using the Prio3SumVec VDAF, taking sparse measurements.
+     * Measurements are {@link SparseVector}s, and elements that they do not list are zero. Valid
+     * measurements must have every index be less than <code>length</code>, and every value be
+     * greater than or equal to zero, and less than <code>2 ^ bits</code>. Reports are identical to
+     * those of {@link #createPrio3SumVec(Context, URI, URI, TaskId, long, long, long, long)}, but
+     * the full measurement vector is only constructed in native code.
+     *
+     * @param context                   the app's {@link Context}. This is used to access the cache
+     *                                  directory.
+     * @param leaderEndpoint            the URI of the leader aggregator's HTTPS endpoint
+     * @param helperEndpoint            the URI of the helper aggregator's HTTPS endpoint
+     * @param taskId                    the {@link TaskId} of the DAP task
+     * @param timePrecisionSeconds      the time precision of the DAP task, in seconds
+     * @param length                    the length of measurement vectors. This is a parameter of
+     *                                  the Prio3SumVec VDAF.
+     * @param bits                      the bit width of each element of the measurement vector.
+     *                                  This is a parameter of the Prio3SumVec VDAF.
+     * @param chunkLength               the chunk length internally used by the Prio3SumVec VDAF
+     * @return                          a client for the configured DAP task
+     * @throws IllegalArgumentException if the scheme of leaderEndpoint or helperEndpoint is not
+     *                                  http or https, or if timePrecisionSeconds is not a positive
+     *                                  number
+     */
+    public static Client<SparseVector> createPrio3SumVecSparse(
+            Context context,
+            URI leaderEndpoint,
+            URI helperEndpoint,
+            TaskId taskId,
+            long timePrecisionSeconds,
+            long length,
+            long bits,
+            long chunkLength
+    ) {
+        return createPrio3SumVecSparse(
+                context.getCacheDir(),
+                leaderEndpoint,
+                helperEndpoint,
+                taskId,
+                timePrecisionSeconds,
+                length,
+                bits,
+                chunkLength
+        );
+    }
+
+    /**
+     * Constructs a client for a DAP task using the Prio3SumVec VDAF, taking sparse measurements.
+     * Measurements are {@link SparseVector}s, and elements that they do not list are zero. Valid
+     * measurements must have every index be less than <code>length</code>, and every value be
+     * greater than or equal to zero, and less than <code>2 ^ bits</code>. Reports are identical to
+     * those of {@link #createPrio3SumVec(File, URI, URI, TaskId, long, long, long, long)}, but the
+     * full measurement vector is only constructed in native code.
+     *
+     * @param cacheDir                  a directory to cache HPKE configs in, which may be shared by
+     *                                  several processes. This allows clients to be used on a plain
+     *                                  JVM, without a {@link Context}.
+     * @param leaderEndpoint            the URI of the leader aggregator's HTTPS endpoint
+     * @param helperEndpoint            the URI of the helper aggregator's HTTPS endpoint
+     * @param taskId                    the {@link TaskId} of the DAP task
+     * @param timePrecisionSeconds      the time precision of the DAP task, in seconds
+     * @param length                    the length of measurement vectors. This is a parameter of
+     *                                  the Prio3SumVec VDAF.
+     * @param bits                      the bit width of each element of the measurement vector.
+     *                                  This is a parameter of the Prio3SumVec VDAF.
+     * @param chunkLength               the chunk length internally used by the Prio3SumVec VDAF
+     * @return                          a client for the configured DAP task
+     * @throws IllegalArgumentException if the scheme of leaderEndpoint or helperEndpoint is not
+     *                                  http or https, or if timePrecisionSeconds is not a positive
+     *                                  number
+     */
+    public static Client<SparseVector> createPrio3SumVecSparse(
+            File cacheDir,
+            URI leaderEndpoint,
+            URI helperEndpoint,
+            TaskId taskId,
+            long timePrecisionSeconds,
+            long length,
+            long bits,
+            long chunkLength
+    ) {
+        return new Client<>(
+                cacheDir,
+                leaderEndpoint,
+                helperEndpoint,
+                taskId,
+                timePrecisionSeconds,
+                new Prio3SumVecSparseReportPreparer(length, bits, chunkLength)
+        );
+    }
+
     /**
      * Constructs a client for a DAP task using the Prio3Histogram VDAF. Measurements are bucket
      * indexes, as <code>Long</code> integers. Valid measurements must be greater than or equal to
@@ -225,9 +485,50 @@ public class Client<M> {
             long timePrecisionSeconds,
             long length,
             long chunkLength
+    ) {
+        return createPrio3Histogram(
+                context.getCacheDir(),
+                leaderEndpoint,
+                helperEndpoint,
+                taskId,
+                timePrecisionSeconds,
+                length,
+                chunkLength
+        );
+    }
+
+    /**
+     * Constructs a client for a DAP task using the Prio3Histogram VDAF. Measurements are bucket
+     * indexes, as <code>Long</code> integers. Valid measurements must be greater than or equal to
+     * zero, and less than the <code>length</code> parameter. The aggregate result counts how many
+     * times each bucket index appeared in a measurement.
+     *
+     * @param cacheDir                  a directory to cache HPKE configs in, which may be shared by
+     *                                  several processes. This allows clients to be used on a plain
+     *                                  JVM, without a {@link Context}.
+     * @param leaderEndpoint            the URI of the leader aggregator's HTTPS endpoint
+     * @param helperEndpoint            the URI of the helper aggregator's HTTPS endpoint
+     * @param taskId                    the {@link TaskId} of the DAP task
+     * @param timePrecisionSeconds      the time precision of the DAP task, in seconds
+     * @param length                    the total number of histogram buckets. This is a parameter
+     *                                  of the Prio3Histogram VDAF.
+     * @param chunkLength               the chunk length internally used by the Prio3Histogram VDAF
+     * @return                          a client for the configured DAP task
+     * @throws IllegalArgumentException if the scheme of leaderEndpoint or helperEndpoint is not
+     *                                  http or https, or if timePrecisionSeconds is not a positive
+     *                                  number
+     */
+    public static Client<Long> createPrio3Histogram(
+            File cacheDir,
+            URI leaderEndpoint,
+            URI helperEndpoint,
+            TaskId taskId,
+            long timePrecisionSeconds,
+            long length,
+            long chunkLength
     ) {
         return new Client<>(
-                context,
+                cacheDir,
                 leaderEndpoint,
                 helperEndpoint,
                 taskId,
@@ -236,39 +537,453 @@ public class Client<M> {
         );
     }
 
+    /**
+     * Returns a copy of this client that counts uploaded reports against a bandwidth budget. The
+     * same budget may be shared by several clients.
+     *
+     * @param bandwidthBudget   the budget, or null to upload reports without limit
+     * @return                  a new client
+     */
+    public Client<M> withBandwidthBudget(BandwidthBudget bandwidthBudget) {
+        return new Client<>(this, this.client, bandwidthBudget, this.uploadScheduler, this.hpkeConfigSeed, this.cpuBudget);
+    }
+
+    /**
+     * Returns a copy of this client that stores TLS sessions with aggregators in the given store,
+     * so that processes started later can resume them. The same store may be shared by several
+     * clients and outboxes.
+     *
+     * @param tlsSessionStore   the store, or null to only cache sessions in memory
+     * @return                  a new client
+     */
+    public Client<M> withTlsSessionStore(TlsSessionStore tlsSessionStore) {
+        OkHttpClient client = tlsSessionStore != null ? tlsSessionStore.httpClient() : getHTTPClient();
+        return new Client<>(this, client, this.bandwidthBudget, this.uploadScheduler, this.hpkeConfigSeed, this.cpuBudget);
+    }
+
+    /**
+     * Returns a copy of this client that defers each upload by a random delay chosen by the given
+     * scheduler, within the current time-precision bucket. Reports queued in a
+     * {@link ReportOutbox} are not deferred. The same scheduler may be shared by several clients.
+     *
+     * @param uploadScheduler   the scheduler, or null to upload reports immediately
+     * @return                  a new client
+     */
+    public Client<M> withUploadScheduler(UploadScheduler uploadScheduler) {
+        return new Client<>(this, this.client, this.bandwidthBudget, uploadScheduler, this.hpkeConfigSeed, this.cpuBudget);
+    }
+
+    /**
+     * Returns a copy of this client that uses HPKE config lists shipped with the app, while no
+     * fresh config list fetched from the aggregators is cached, so that the first report on a new
+     * install does not wait for them to be fetched. See {@link HpkeConfigSeed}.
+     *
+     * @param hpkeConfigSeed    the config lists for this client's task, or null to always fetch
+     *                          them
+     * @return                  a new client
+     */
+    public Client<M> withHpkeConfigSeed(HpkeConfigSeed hpkeConfigSeed) {
+        return new Client<>(this, this.client, this.bandwidthBudget, this.uploadScheduler, hpkeConfigSeed, this.cpuBudget);
+    }
+
+    /**
+     * Returns a copy of this client that counts the CPU time spent preparing reports against a
+     * budget. The same budget may be shared by several clients.
+     *
+     * @param cpuBudget     the budget, or null to prepare reports without limit
+     * @return              a new client
+     */
+    public Client<M> withCpuBudget(CpuBudget cpuBudget) {
+        return new Client<>(this, this.client, this.bandwidthBudget, this.uploadScheduler, this.hpkeConfigSeed, cpuBudget);
+    }
+
+    /**
+     * Measures the cost of submitting a report with this client's task and VDAF parameters, by
+     * preparing sample reports from the given measurement. Nothing is uploaded, and the bandwidth
+     * budget is not used. This fetches HPKE configs if they are not cached, and must not be called
+     * from the UI thread.
+     * <p>
+     * Preparation is timed with the calling thread's CPU time, as a {@link CpuBudget} counts it.
+     * Where that is not supported, such as on a host JVM, elapsed time is used instead, which is an
+     * upper bound, since preparation does not block. Sample reports are prepared from scratch, so
+     * material from {@link #precompute(int, Deadline)} is neither used up nor counted.
+     *
+     * @param measurement               a representative measurement
+     * @param samples                   the number of reports to prepare and time
+     * @return                          the exact size of a report, and the average CPU time
+     *                                  taken to prepare one
+     * @throws IOException              if requests to either aggregator fail
+     * @throws IllegalArgumentException if the measurement is of the wrong type, or samples is not
+     *                                  positive
+     * @throws RuntimeException         if there is an internal error while preparing a report
+     */
+    public ReportCost estimateCost(M measurement, int samples) throws IOException {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("samples must be positive");
+        }
+        ReportSubmission submission = new ReportSubmission(Deadline.none());
+        ReportBuffer reportBuffer = this.reportBuffers.get();
+        HpkeConfigList leaderConfigList = this.fetchHPKEConfigList(this.leaderEndpoint, this.taskId, true, submission);
+        HpkeConfigList helperConfigList = this.fetchHPKEConfigList(this.helperEndpoint, this.taskId, false, submission);
+        long elapsed;
+        setPrecomputeBypassedNative(true);
+        try {
+            // The first report is not timed, since it may grow the buffer.
+            this.prepareReport(leaderConfigList, helperConfigList, measurement, reportBuffer);
+            long start = CpuBudget.threadCpuTimeNanos();
+            for (int i = 0; i < samples; i++) {
+                this.prepareReport(leaderConfigList, helperConfigList, measurement, reportBuffer);
+            }
+            elapsed = CpuBudget.threadCpuTimeNanos() - start;
+        } finally {
+            setPrecomputeBypassedNative(false);
+        }
+        return new ReportCost(reportBuffer.length(), elapsed / samples);
+    }
+
+    /**
+     * Precomputes the parts of reports that do not depend on measurements, so that later reports to
+     * the same aggregators only need measurement-dependent work. This generates report IDs, and the
+     * ephemeral HPKE keys used to encrypt each report's input shares, until {@code target} reports'
+     * worth are available. This is intended to be called while the device is idle, and must not be
+     * called from the UI thread. HPKE configs are fetched if they are not cached.
+     * <p>
+     * Precomputed material is kept in memory, shared by all clients in the process that send
+     * reports to aggregators with the same HPKE configs, and is discarded if the configs change.
+     * Each piece of material is used for exactly one report. At most 1024 reports' worth is kept
+     * for each pair of aggregators. Material is only precomputed for aggregators using the X25519,
+     * HKDF-SHA256, and AES-128-GCM HPKE ciphersuite.
+     *
+     * @param target                    the number of reports to have material available for
+     * @param deadline                  the deadline for fetching HPKE configs
+     * @return                          the number of reports that material is available for, which
+     *                                  is zero if the aggregators use a ciphersuite that is not
+     *                                  precomputed
+     * @throws IOException              if requests to either aggregator fail
+     * @throws IllegalArgumentException if target is negative
+     * @throws RuntimeException         if there is an internal error while precomputing
+     */
+    public int precompute(int target, Deadline deadline) throws IOException {
+        if (target < 0) {
+            throw new IllegalArgumentException("target must not be negative");
+        }
+        ReportSubmission submission = new ReportSubmission(deadline);
+        HpkeConfigList leaderConfigList = this.fetchHPKEConfigList(this.leaderEndpoint, this.taskId, true, submission);
+        HpkeConfigList helperConfigList = this.fetchHPKEConfigList(this.helperEndpoint, this.taskId, false, submission);
+        return precomputeNative(leaderConfigList.bytes, helperConfigList.bytes, target);
+    }
+
     /**
      * Encodes a measurement into a DAP report, and submits it. This must not be called from the UI
      * thread.
      *
      * @param measurement               the measurement to be aggregated
-     * @throws IOException              if requests to either aggregator fail
+     * @return                          a receipt describing the report and the submission
+     * @throws BandwidthBudgetExceededException   if the client's bandwidth budget is exhausted,
+     *                                              and defers reports
+     * @throws CpuBudgetExceededException         if the client's CPU budget is exhausted, and
+     *                                              defers reports
+     * @throws IOException                          if requests to either aggregator fail
+     * @throws IllegalArgumentException             if the measurement is of the wrong type, or
+     *                                              reports are larger than the client's bandwidth
+     *                                              budget allows per period, and it defers reports
+     * @throws RuntimeException                     if there is an internal error while preparing
+     *                                              the report
+     */
+    public SubmissionReceipt sendMeasurement(M measurement) throws IOException {
+        return this.sendMeasurement(measurement, Deadline.none());
+    }
+
+    /**
+     * Encodes a measurement into a DAP report, and submits it, giving up once the deadline passes.
+     * The time remaining is applied as a timeout to each HTTP request, and the report is not
+     * prepared if no time remains after fetching HPKE configs. This must not be called from the UI
+     * thread.
+     *
+     * @param measurement               the measurement to be aggregated
+     * @param deadline                  the deadline for the whole submission
+     * @return                          a receipt describing the report and the submission
+     * @throws InterruptedIOException               if the deadline passes before the report is
+     *                                              uploaded
+     * @throws BandwidthBudgetExceededException     if the client's bandwidth budget is exhausted,
+     *                                              and defers reports
+     * @throws CpuBudgetExceededException           if the client's CPU budget is exhausted, and
+     *                                              defers reports
+     * @throws IOException                          if requests to either aggregator fail
+     * @throws IllegalArgumentException             if the measurement is of the wrong type, or
+     *                                              reports are larger than the client's bandwidth
+     *                                              budget allows per period, and it defers reports
+     * @throws RuntimeException                     if there is an internal error while preparing
+     *                                              the report
+     */
+    public SubmissionReceipt sendMeasurement(M measurement, Deadline deadline) throws IOException {
+        return this.newSubmission(measurement, deadline).execute();
+    }
+
+    /**
+     * Creates a submission of a measurement that can be executed on one thread, and canceled from
+     * another. See {@link ReportSubmission}.
+     *
+     * @param measurement   the measurement to be aggregated
+     * @param deadline      the deadline for the whole submission
+     * @return              a submission, which has not been started yet
+     */
+    public ReportSubmission newSubmission(M measurement, Deadline deadline) {
+        return new ReportSubmission(deadline, submission -> this.submit(measurement, submission));
+    }
+
+    /**
+     * Encodes a measurement into a DAP report, and adds it to an outbox, to be uploaded later by
+     * {@link ReportOutbox#flush(Deadline)}. HPKE configs are fetched if they are not cached. This
+     * must not be called from the UI thread.
+     *
+     * @param measurement               the measurement to be aggregated
+     * @param outbox                    the outbox to add the report to
+     * @return                          a receipt describing the report, which is not uploaded yet
+     * @throws CpuBudgetExceededException   if the client's CPU budget is exhausted, and defers
+     *                                      reports
+     * @throws IOException              if requests to either aggregator fail, or the report could
+     *                                  not be written
      * @throws IllegalArgumentException if the measurement is of the wrong type
      * @throws RuntimeException         if there is an internal error while preparing the report
      */
-    public void sendMeasurement(M measurement) throws IOException {
-        HpkeConfigList leaderConfigList = this.fetchHPKEConfigList(this.leaderEndpoint, this.taskId);
-        HpkeConfigList helperConfigList = this.fetchHPKEConfigList(this.helperEndpoint, this.taskId);
-        byte[] report = reportPreparer.prepareReport(this, leaderConfigList, helperConfigList, measurement);
+    public SubmissionReceipt queueMeasurement(M measurement, ReportOutbox outbox) throws IOException {
+        ReportBuffer reportBuffer = this.reportBuffers.get();
+        ReportSubmission submission = new ReportSubmission(Deadline.none());
+        if (this.fetchConfigsAndPrepareReport(measurement, submission, reportBuffer, false)) {
+            outbox.add(this.reportUploadUrl(), reportBuffer.array(), reportBuffer.length());
+        }
+        return submission.recorder().build();
+    }
 
-        String path = "tasks/" + this.taskId.encodeToString() + "/reports";
-        URL url = leaderEndpoint.resolve(path).toURL();
-        RequestBody body = RequestBody.create(report, REPORT_CONTENT_TYPE);
+    private void submit(M measurement, ReportSubmission submission) throws IOException {
+        ReportBuffer reportBuffer = this.reportBuffers.get();
+        if (!this.fetchConfigsAndPrepareReport(measurement, submission, reportBuffer, true)) {
+            return;
+        }
+        this.uploadReport(reportBuffer.array(), reportBuffer.length(), submission);
+    }
+
+    /**
+     * Gets the calling thread's reusable report buffer.
+     */
+    ReportBuffer reportBuffer() {
+        return this.reportBuffers.get();
+    }
+
+    /**
+     * Fetches both aggregators' HPKE configs, and prepares a report into the given buffer, unless
+     * the bandwidth budget or the CPU budget samples the measurement out. If the report is to be
+     * uploaded, and this client has prepared a report before, the bandwidth budget is checked
+     * before any work is done, and the bytes it is charged are recorded in the submission, to be
+     * corrected by {@link #uploadReport(byte[], int, ReportSubmission)}.
+     *
+     * @param upload    whether the report will be uploaded, and so counts against the bandwidth
+     *                  budget
+     * @return          true if a report was prepared, or false if the measurement was sampled out
+     */
+    boolean fetchConfigsAndPrepareReport(
+            M measurement,
+            ReportSubmission submission,
+            ReportBuffer reportBuffer,
+            boolean upload
+    ) throws IOException {
+        int expectedLength = this.lastReportLength.get();
+        if (upload && this.bandwidthBudget != null && expectedLength > 0) {
+            if (!this.bandwidthBudget.acquire(expectedLength)) {
+                return false;
+            }
+            submission.setReservedBandwidthBytes(expectedLength);
+        }
+        try {
+            if (this.cpuBudget != null && !this.cpuBudget.acquire()) {
+                this.releaseBandwidth(submission);
+                return false;
+            }
+            this.fetchConfigsAndPrepareReportNow(measurement, submission, reportBuffer);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            this.releaseBandwidth(submission);
+            throw e;
+        }
+    }
+
+    /**
+     * Fetches both aggregators' HPKE configs, and prepares a report into the given buffer, once the
+     * budgets have admitted it.
+     */
+    private void fetchConfigsAndPrepareReportNow(
+            M measurement,
+            ReportSubmission submission,
+            ReportBuffer reportBuffer
+    ) throws IOException {
+        SubmissionReceipt.Recorder recorder = submission.recorder();
+        long start = System.nanoTime();
+        HpkeConfigList leaderConfigList = this.fetchHPKEConfigList(this.leaderEndpoint, this.taskId, true, submission);
+        HpkeConfigList helperConfigList = this.fetchHPKEConfigList(this.helperEndpoint, this.taskId, false, submission);
+        recorder.stage(SubmissionReceipt.Stage.FETCH_CONFIGS, start);
+        submission.checkActive("preparing report");
+        start = System.nanoTime();
+        if (this.cpuBudget == null) {
+            this.prepareReport(leaderConfigList, helperConfigList, measurement, reportBuffer);
+        } else {
+            long token = this.cpuBudget.startTiming();
+            try {
+                this.prepareReport(leaderConfigList, helperConfigList, measurement, reportBuffer);
+            } finally {
+                this.cpuBudget.release(token);
+            }
+        }
+        recorder.stage(SubmissionReceipt.Stage.PREPARE, start);
+        recorder.report(reportBuffer.array(), reportBuffer.length());
+    }
+
+    /**
+     * Gives back the bytes charged to the bandwidth budget for a report that will not be uploaded.
+     * This must be called on every path that ends without uploading a prepared report, and does
+     * nothing if the bytes were already given back or spent on the upload.
+     */
+    void releaseBandwidth(ReportSubmission submission) {
+        int reserved = submission.takeReservedBandwidthBytes();
+        if (reserved > 0) {
+            this.bandwidthBudget.adjust(-reserved);
+        }
+    }
+
+    /**
+     * Uploads the first {@code length} bytes of the given array as a report to the leader, unless
+     * the bandwidth budget is exhausted, after any delay chosen by the upload scheduler. If the
+     * budget was already charged before the report was prepared, the charge is corrected to the
+     * report's exact size instead.
+     */
+    void uploadReport(byte[] report, int length, ReportSubmission submission) throws IOException {
+        SubmissionReceipt.Recorder recorder = submission.recorder();
+        URL url;
+        try {
+            if (this.uploadScheduler != null) {
+                long start = System.nanoTime();
+                this.uploadScheduler.await(
+                        this.timePrecisionSeconds, recorder.reportTimeSeconds(), submission);
+                recorder.stage(SubmissionReceipt.Stage.SCHEDULE, start);
+            }
+            url = this.reportUploadUrl();
+        } catch (IOException | RuntimeException e) {
+            this.releaseBandwidth(submission);
+            throw e;
+        }
+        if (this.bandwidthBudget != null) {
+            int reserved = submission.takeReservedBandwidthBytes();
+            if (reserved == 0) {
+                if (!this.bandwidthBudget.acquire(length)) {
+                    return;
+                }
+            } else if (reserved != length) {
+                this.bandwidthBudget.adjust(length - reserved);
+            }
+        }
+        long start = System.nanoTime();
+        int code = putReport(this.client, url, report, 0, length, submission);
+        recorder.stage(SubmissionReceipt.Stage.UPLOAD, start);
+        if (code >= 400) {
+            throw new IOException(
+                    "aggregator returned HTTP response code " + code + " when uploading report"
+            );
+        }
+        recorder.uploaded();
+    }
+
+    /**
+     * Uploads {@code length} bytes of the given array, starting at {@code offset}, as a report.
+     *
+     * @return  the HTTP response code
+     */
+    static int putReport(
+            OkHttpClient client,
+            URL url,
+            byte[] report,
+            int offset,
+            int length,
+            ReportSubmission submission
+    ) throws IOException {
+        // The request body is fully written before execute() returns, so the array can be reused
+        // afterwards.
+        RequestBody body = RequestBody.create(report, REPORT_CONTENT_TYPE, offset, length);
         Request request = new Request.Builder().url(url).put(body).build();
-        try (Response response = client.newCall(request).execute()) {
-            int code = response.code();
-            if (code >= 400) {
-                throw new IOException(
-                        "aggregator returned HTTP response code " + code + " when uploading report"
-                );
+        try (Response response = submission.executeCall(client, request, "uploading report")) {
+            return response.code();
+        }
+    }
+
+    /**
+     * Prepares a report, and encodes it into the given buffer. The native code computes the size
+     * of the report from the VDAF's parameters and the HPKE configs before it shards the
+     * measurement. If the report would not fit, it returns without doing any work, the buffer is
+     * grown to the exact size of the report, and the report is prepared. This happens at most once
+     * per thread, unless the aggregators' HPKE configs change.
+     */
+    private void prepareReport(
+            HpkeConfigList leaderConfigList,
+            HpkeConfigList helperConfigList,
+            M measurement,
+            ReportBuffer reportBuffer
+    ) {
+        int result = reportPreparer.prepareReport(this, leaderConfigList, helperConfigList, measurement, reportBuffer.array());
+        if (result < 0) {
+            int requiredSize = -result;
+            reportBuffer.ensureCapacity(requiredSize);
+            this.reportSizeHint.set(requiredSize);
+            result = reportPreparer.prepareReport(this, leaderConfigList, helperConfigList, measurement, reportBuffer.array());
+            if (result < 0) {
+                throw new RuntimeException("report size changed between attempts to prepare it");
             }
         }
+        reportBuffer.setLength(result);
+        if (this.lastReportLength.get() != result) {
+            this.lastReportLength.set(result);
+        }
     }
 
-    private HpkeConfigList fetchHPKEConfigList(URI aggregatorEndpoint, TaskId taskId) throws IOException {
+    /**
+     * Gets an aggregator's HPKE config list from the shared store, or from the seed if one is
+     * attached and usable, or else fetches it if it is missing or stale.
+     */
+    private HpkeConfigList fetchHPKEConfigList(
+            URI aggregatorEndpoint,
+            TaskId taskId,
+            boolean leader,
+            ReportSubmission submission
+    ) throws IOException {
         String path = "hpke_config?task_id=" + taskId.encodeToString();
         URL url = aggregatorEndpoint.resolve(path).toURL();
+        if (this.hpkeConfigSeed != null) {
+            byte[] seeded = this.configStore.getOrSeed(
+                    url.toString(),
+                    this.hpkeConfigSeed.configList(leader),
+                    this.hpkeConfigSeed.getExpiresAtMillis(),
+                    this.client.dispatcher().executorService(),
+                    background -> this.fetchHPKEConfigListFromNetwork(url, background)
+            );
+            if (seeded != null) {
+                boolean fromSeed = seeded == this.hpkeConfigSeed.configList(leader);
+                submission.recorder().configSource(leader, fromSeed ? SubmissionReceipt.ConfigSource.SEED : SubmissionReceipt.ConfigSource.STORE);
+                return new HpkeConfigList(seeded);
+            }
+        }
+        HpkeConfigStore.Lookup lookup = this.configStore.lookup(
+                url.toString(),
+                submission,
+                () -> this.fetchHPKEConfigListFromNetwork(url, submission)
+        );
+        submission.recorder().configSource(leader, lookup.fetched ? SubmissionReceipt.ConfigSource.NETWORK : SubmissionReceipt.ConfigSource.STORE);
+        return new HpkeConfigList(lookup.bytes);
+    }
+
+    private HpkeConfigStore.FetchedConfigList fetchHPKEConfigListFromNetwork(
+            URL url,
+            ReportSubmission submission
+    ) throws IOException {
         Request request = new Request.Builder().url(url).build();
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = submission.executeCall(client, request, "fetching HPKE configs")) {
             int code = response.code();
             if (code >= 400) {
                 throw new IOException(
@@ -287,10 +1002,20 @@ public class Client<M> {
             // retrieve the body once.
             assert body != null;
             byte[] data = body.bytes();
-            return new HpkeConfigList(data);
+            CacheControl cacheControl = response.cacheControl();
+            long expiresAtMillis = 0;
+            if (!cacheControl.noStore() && cacheControl.maxAgeSeconds() > 0) {
+                expiresAtMillis = System.currentTimeMillis() + cacheControl.maxAgeSeconds() * 1000L;
+            }
+            return new HpkeConfigStore.FetchedConfigList(data, expiresAtMillis);
         }
     }
 
+    private URL reportUploadUrl() throws IOException {
+        String path = "tasks/" + this.taskId.encodeToString() + "/reports";
+        return this.leaderEndpoint.resolve(path).toURL();
+    }
+
     private static String getUserAgent() {
         return "divviup-android/" + BuildConfig.VERSION;
     }
@@ -300,6 +1025,17 @@ public class Client<M> {
         return seconds - (seconds % timePrecisionSeconds);
     }
 
+    private static native int precomputeNative(
+            byte[] leaderHPKEConfigList,
+            byte[] helperHPKEConfigList,
+            int target
+    );
+
+    /**
+     * Makes report preparation on the calling thread ignore precomputed material, or use it again.
+     */
+    private static native void setPrecomputeBypassedNative(boolean bypassed);
+
     private static class HpkeConfigList {
         private final byte[] bytes;
 
@@ -309,36 +1045,45 @@ public class Client<M> {
     }
 
     private interface ReportPreparer<M> {
-        byte[] prepareReport(
+        /**
+         * Prepares a report, and writes it to the start of the output buffer.
+         *
+         * @return  the length of the report, or if the output buffer is too small, the negated
+         *          length of the report
+         */
+        int prepareReport(
                 Client<M> client,
                 HpkeConfigList leaderConfigList,
                 HpkeConfigList helperConfigList,
-                M measurement
+                M measurement,
+                byte[] output
         );
     }
 
     private static class Prio3CountReportPreparer implements ReportPreparer<Boolean> {
         @Override
-        public byte[] prepareReport(Client<Boolean> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, Boolean measurement) {
+        public int prepareReport(Client<Boolean> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, Boolean measurement, byte[] output) {
             if (measurement != null) {
                 return this.prepareReportNative(
                         client.taskId.toBytes(),
                         leaderConfigList.bytes,
                         helperConfigList.bytes,
                         client.reportTimestamp(),
-                        measurement
+                        measurement,
+                        output
                 );
             } else {
                 throw new IllegalArgumentException("measurement for Prio3Count must be a Boolean");
             }
         }
 
-        private native byte[] prepareReportNative(
+        private native int prepareReportNative(
                 byte[] taskId,
                 byte[] leaderHPKEConfigList,
                 byte[] helperHPKEConfigList,
                 long timestamp,
-                boolean measurement
+                boolean measurement,
+                byte[] output
         );
     }
 
@@ -350,7 +1095,7 @@ public class Client<M> {
         }
 
         @Override
-        public byte[] prepareReport(Client<Long> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, Long measurement) {
+        public int prepareReport(Client<Long> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, Long measurement, byte[] output) {
             if (measurement != null) {
                 return this.prepareReportNative(
                         client.taskId.toBytes(),
@@ -358,20 +1103,22 @@ public class Client<M> {
                         helperConfigList.bytes,
                         client.reportTimestamp(),
                         bits,
-                        measurement
+                        measurement,
+                        output
                 );
             } else {
                 throw new IllegalArgumentException("measurement for Prio3Sum must be a Long");
             }
         }
 
-        private native byte[] prepareReportNative(
+        private native int prepareReportNative(
                 byte[] taskId,
                 byte[] leaderHPKEConfigList,
                 byte[] helperHPKEConfigList,
                 long timestamp,
                 long bits,
-                long measurement
+                long measurement,
+                byte[] output
         );
     }
 
@@ -385,7 +1132,7 @@ public class Client<M> {
         }
 
         @Override
-        public byte[] prepareReport(Client<long[]> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, long[] measurement) {
+        public int prepareReport(Client<long[]> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, long[] measurement, byte[] output) {
             if (measurement != null) {
                 // Copy the measurement array, so we can prevent data races while the Rust code
                 // reads it.
@@ -398,14 +1145,58 @@ public class Client<M> {
                         length,
                         bits,
                         chunkLength,
-                        measurementCopy
+                        measurementCopy,
+                        output
                 );
             } else {
                 throw new IllegalArgumentException("measurement for Prio3SumVec must be a long[]");
             }
         }
 
-        private native byte[] prepareReportNative(
+        private native int prepareReportNative(
+                byte[] taskId,
+                byte[] leaderHPKEConfigList,
+                byte[] helperHPKEConfigList,
+                long timestamp,
+                long length,
+                long bits,
+                long chunkLength,
+                long[] measurement,
+                byte[] output
+        );
+    }
+
+    private static class Prio3SumVecSparseReportPreparer implements ReportPreparer<SparseVector> {
+        private final long length, bits, chunkLength;
+
+        public Prio3SumVecSparseReportPreparer(long length, long bits, long chunkLength) {
+            this.length = length;
+            this.bits = bits;
+            this.chunkLength = chunkLength;
+        }
+
+        @Override
+        public int prepareReport(Client<SparseVector> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, SparseVector measurement, byte[] output) {
+            if (measurement != null) {
+                // SparseVector is immutable, so its arrays can be passed without copying them.
+                return this.prepareReportNative(
+                        client.taskId.toBytes(),
+                        leaderConfigList.bytes,
+                        helperConfigList.bytes,
+                        client.reportTimestamp(),
+                        length,
+                        bits,
+                        chunkLength,
+                        measurement.indices(),
+                        measurement.values(),
+                        output
+                );
+            } else {
+                throw new IllegalArgumentException("measurement for Prio3SumVec must be a SparseVector");
+            }
+        }
+
+        private native int prepareReportNative(
                 byte[] taskId,
                 byte[] leaderHPKEConfigList,
                 byte[] helperHPKEConfigList,
@@ -413,7 +1204,9 @@ public class Client<M> {
                 long length,
                 long bits,
                 long chunkLength,
-                long[] measurement
+                int[] indices,
+                long[] values,
+                byte[] output
         );
     }
 
@@ -426,7 +1219,7 @@ public class Client<M> {
         }
 
         @Override
-        public byte[] prepareReport(Client<Long> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, Long measurement) {
+        public int prepareReport(Client<Long> client, HpkeConfigList leaderConfigList, HpkeConfigList helperConfigList, Long measurement, byte[] output) {
             if (measurement != null) {
                 return this.prepareReportNative(
                         client.taskId.toBytes(),
@@ -435,21 +1228,23 @@ public class Client<M> {
                         client.reportTimestamp(),
                         length,
                         chunkLength,
-                        measurement
+                        measurement,
+                        output
                 );
             } else {
                 throw new IllegalArgumentException("measurement for Prio3Histogram must be a Long");
             }
         }
 
-        private native byte[] prepareReportNative(
+        private native int prepareReportNative(
                 byte[] taskId,
                 byte[] leaderHPKEConfigList,
                 byte[] helperHPKEConfigList,
                 long timestamp,
                 long length,
                 long chunkLength,
-                long measurement
+                long measurement,
+                byte[] output
         );
     }
 }
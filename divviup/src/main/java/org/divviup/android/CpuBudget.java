@@ -0,0 +1,284 @@
+package org.divviup.android;
+
+import android.os.Debug;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A limit on the CPU time spent preparing reports over a sliding window of time. A budget may be
+ * shared by several clients, via {@link Client#withCpuBudget(CpuBudget)}, to cap an app's total
+ * usage. Only report preparation is counted, since it dominates the cost of large VDAFs; fetching
+ * HPKE configs, uploading reports, and {@link Client#precompute(int, Deadline)} are not. Objects of
+ * this class are thread-safe.
+ * <p>
+ * CPU time is measured per thread with {@link Debug#threadCpuTimeNanos()}. Where that is not
+ * supported, such as on a host JVM, the elapsed time of preparation is counted instead, which is
+ * an upper bound, since preparation does not block.
+ */
+public final class CpuBudget {
+    /**
+     * Determines what happens to a measurement once the budget for the current window is
+     * exhausted.
+     */
+    public enum Overflow {
+        /**
+         * Don't prepare a report, and throw a {@link CpuBudgetExceededException}, so that the app
+         * can submit the measurement again once CPU time has left the window.
+         */
+        DEFER,
+        /**
+         * Prepare reports for a random sample of measurements, and silently discard the rest. The
+         * sampling rate adapts to the rate at which measurements are submitted, so that the
+         * expected CPU time stays within the budget. See {@link CpuBudget#samplingRate()}.
+         */
+        SAMPLE,
+    }
+
+    /**
+     * Sources of time, which tests replace with virtual clocks.
+     */
+    interface Clock {
+        long nanoTime();
+
+        long threadCpuTimeNanos();
+    }
+
+    private static final boolean THREAD_CPU_TIME_SUPPORTED = isThreadCpuTimeSupported();
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long threadCpuTimeNanos() {
+            return THREAD_CPU_TIME_SUPPORTED ? Debug.threadCpuTimeNanos() : System.nanoTime();
+        }
+    };
+
+    /**
+     * Reads the calling thread's CPU time, or where that is not supported, the elapsed time, in
+     * nanoseconds. Only differences between readings on the same thread are meaningful.
+     */
+    static long threadCpuTimeNanos() {
+        return SYSTEM_CLOCK.threadCpuTimeNanos();
+    }
+
+    /** The window is divided into this many buckets, which leave the window one at a time. */
+    private static final int BUCKETS = 16;
+    /** The weight of each new preparation in the moving average of its cost. */
+    private static final double COST_SMOOTHING = 0.1;
+
+    private final long budgetNanos;
+    private final long bucketNanos;
+    private final Overflow overflow;
+    private final Clock clock;
+
+    private final long[] cpuNanos;
+    private final long[] offered;
+    private final long startNanos;
+    private long currentBucket;
+    private double averageCostNanos;
+    private long reportsSampledOut;
+
+    private CpuBudget(long budgetNanos, long windowNanos, Overflow overflow, Clock clock) {
+        this.budgetNanos = budgetNanos;
+        this.bucketNanos = Math.max(1, windowNanos / BUCKETS);
+        this.overflow = overflow;
+        this.clock = clock;
+        this.cpuNanos = new long[BUCKETS];
+        this.offered = new long[BUCKETS];
+        this.startNanos = clock.nanoTime();
+        this.currentBucket = 0;
+        this.averageCostNanos = 0;
+        this.reportsSampledOut = 0;
+    }
+
+    /**
+     * Constructs a budget that defers measurements once it is exhausted.
+     *
+     * @param budget                    the CPU time that may be spent preparing reports per window
+     * @param window                    the length of the sliding window
+     * @param unit                      the unit of both the budget and the window
+     * @return                          the budget
+     * @throws IllegalArgumentException if budget or window is not positive
+     */
+    public static CpuBudget deferring(long budget, long window, TimeUnit unit) {
+        return create(budget, window, unit, Overflow.DEFER, SYSTEM_CLOCK);
+    }
+
+    /**
+     * Constructs a budget that prepares reports for only a random sample of measurements, once
+     * measurements are submitted faster than the budget allows.
+     *
+     * @param budget                    the CPU time that may be spent preparing reports per window
+     * @param window                    the length of the sliding window
+     * @param unit                      the unit of both the budget and the window
+     * @return                          the budget
+     * @throws IllegalArgumentException if budget or window is not positive
+     */
+    public static CpuBudget sampling(long budget, long window, TimeUnit unit) {
+        return create(budget, window, unit, Overflow.SAMPLE, SYSTEM_CLOCK);
+    }
+
+    static CpuBudget create(long budget, long window, TimeUnit unit, Overflow overflow, Clock clock) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        return new CpuBudget(unit.toNanos(budget), unit.toNanos(window), overflow, clock);
+    }
+
+    /**
+     * Gets the CPU time spent preparing reports within the current window.
+     *
+     * @param unit  the unit of the result
+     * @return      the CPU time used, which may exceed the budget
+     */
+    public synchronized long usedCpuTime(TimeUnit unit) {
+        this.advance();
+        return unit.convert(sum(this.cpuNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the proportion of measurements that are currently being reported. This is 1 unless the
+     * budget samples measurements, and they are being submitted faster than it allows. Counts
+     * derived from the aggregate can be divided by the rate in effect when the measurements were
+     * submitted, to estimate the totals without sampling.
+     *
+     * @return  the sampling rate, from 0 to 1
+     */
+    public synchronized double samplingRate() {
+        this.advance();
+        return this.computeSamplingRate();
+    }
+
+    /**
+     * Gets the number of measurements discarded by sampling, since this budget was constructed.
+     *
+     * @return  the number of measurements that were not reported
+     */
+    public synchronized long reportsSampledOut() {
+        return this.reportsSampledOut;
+    }
+
+    /**
+     * Accounts for a measurement that is about to be prepared.
+     *
+     * @return                              true if a report should be prepared, or false if the
+     *                                      measurement was sampled out
+     * @throws CpuBudgetExceededException   if the measurement must be deferred
+     */
+    synchronized boolean acquire() throws CpuBudgetExceededException {
+        this.advance();
+        switch (this.overflow) {
+            case SAMPLE:
+                this.offered[this.index(this.currentBucket)]++;
+                double rate = this.computeSamplingRate();
+                if (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate) {
+                    return true;
+                }
+                this.reportsSampledOut++;
+                return false;
+            case DEFER:
+            default:
+                if (sum(this.cpuNanos) < this.budgetNanos) {
+                    return true;
+                }
+                throw new CpuBudgetExceededException(this.retryAfterNanos());
+        }
+    }
+
+    /**
+     * Starts timing the preparation of a report on the calling thread.
+     *
+     * @return  a token to pass to {@link #release(long)}
+     */
+    long startTiming() {
+        return this.clock.threadCpuTimeNanos();
+    }
+
+    /**
+     * Accounts for the CPU time spent preparing a report, since {@link #startTiming()} was called
+     * on the same thread.
+     */
+    void release(long startToken) {
+        long cost = Math.max(0, this.clock.threadCpuTimeNanos() - startToken);
+        synchronized (this) {
+            this.advance();
+            this.cpuNanos[this.index(this.currentBucket)] += cost;
+            if (this.averageCostNanos == 0) {
+                this.averageCostNanos = cost;
+            } else {
+                this.averageCostNanos += COST_SMOOTHING * (cost - this.averageCostNanos);
+            }
+        }
+    }
+
+    /**
+     * Computes the rate at which measurements submitted during the window would have used the
+     * budget exactly, given the average cost of a report.
+     */
+    private double computeSamplingRate() {
+        if (this.overflow != Overflow.SAMPLE) {
+            return 1;
+        }
+        double demandNanos = sum(this.offered) * this.averageCostNanos;
+        if (demandNanos <= this.budgetNanos) {
+            return 1;
+        }
+        return this.budgetNanos / demandNanos;
+    }
+
+    /**
+     * Gets the time until the oldest bucket with any CPU time leaves the window.
+     */
+    private long retryAfterNanos() {
+        for (long bucket = this.currentBucket - BUCKETS + 1; bucket <= this.currentBucket; bucket++) {
+            if (bucket >= 0 && this.cpuNanos[this.index(bucket)] > 0) {
+                return this.startNanos + (bucket + BUCKETS) * this.bucketNanos - this.clock.nanoTime();
+            }
+        }
+        return this.bucketNanos;
+    }
+
+    /**
+     * Clears the buckets that have left the window since it was last advanced.
+     */
+    private void advance() {
+        long bucket = (this.clock.nanoTime() - this.startNanos) / this.bucketNanos;
+        long stale = Math.min(BUCKETS, bucket - this.currentBucket);
+        for (long i = 1; i <= stale; i++) {
+            int index = this.index(this.currentBucket + i);
+            this.cpuNanos[index] = 0;
+            this.offered[index] = 0;
+        }
+        this.currentBucket = Math.max(this.currentBucket, bucket);
+    }
+
+    private int index(long bucket) {
+        return (int) (bucket % BUCKETS);
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    private static boolean isThreadCpuTimeSupported() {
+        try {
+            return Debug.threadCpuTimeNanos() >= 0;
+        } catch (RuntimeException | LinkageError e) {
+            // The Android framework is not available in host unit tests, where calling it either
+            // throws from a stub or fails to link.
+            return false;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package org.divviup.android;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrown when a report is not prepared because a {@link CpuBudget} with the
+ * {@link CpuBudget.Overflow#DEFER} policy is exhausted. The measurement may be submitted again
+ * once enough CPU time has left the budget's window.
+ */
+public class CpuBudgetExceededException extends IOException {
+    private final long retryAfterNanos;
+
+    CpuBudgetExceededException(long retryAfterNanos) {
+        super("CPU budget exhausted, retry in " + TimeUnit.NANOSECONDS.toMillis(retryAfterNanos) + " ms");
+        this.retryAfterNanos = retryAfterNanos;
+    }
+
+    /**
+     * Gets the time until the oldest CPU time counted against the budget leaves its window.
+     *
+     * @param unit  the unit of the result
+     * @return      the time until more CPU time may be available
+     */
+    public long getRetryAfter(TimeUnit unit) {
+        return unit.convert(this.retryAfterNanos, TimeUnit.NANOSECONDS);
+    }
+}
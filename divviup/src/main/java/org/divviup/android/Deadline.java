@@ -0,0 +1,92 @@
+package org.divviup.android;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which a report submission must complete. Deadlines are measured with
+ * {@link System#nanoTime()}, so they are not affected by changes to the wall clock. Objects of this
+ * class are immutable.
+ */
+public final class Deadline {
+    private static final Deadline NONE = new Deadline(0, 0, false);
+
+    /**
+     * The value of {@link System#nanoTime()} when this deadline was constructed. The start and
+     * duration are kept separately, rather than as their sum, so that long durations cannot
+     * overflow.
+     */
+    private final long startNanoTime;
+    private final long durationNanos;
+    private final boolean limited;
+
+    private Deadline(long startNanoTime, long durationNanos, boolean limited) {
+        this.startNanoTime = startNanoTime;
+        this.durationNanos = durationNanos;
+        this.limited = limited;
+    }
+
+    /**
+     * Constructs a deadline that expires after the given duration, measured from now.
+     *
+     * @param duration                  the amount of time until the deadline, which is capped at
+     *                                  {@link Long#MAX_VALUE} nanoseconds
+     * @param unit                      the unit of the duration
+     * @return                          the deadline
+     * @throws IllegalArgumentException if duration is negative
+     */
+    public static Deadline after(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration must not be negative");
+        }
+        // toNanos() saturates at Long.MAX_VALUE, rather than overflowing.
+        return new Deadline(System.nanoTime(), unit.toNanos(duration), true);
+    }
+
+    /**
+     * Gets a deadline that never expires. Requests are then only bounded by the HTTP client's
+     * default timeouts.
+     *
+     * @return  the deadline
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * Checks whether this deadline has a time limit.
+     *
+     * @return  false if this deadline never expires
+     */
+    public boolean isLimited() {
+        return this.limited;
+    }
+
+    /**
+     * Checks whether this deadline has passed.
+     *
+     * @return  true if no time remains
+     */
+    public boolean isExpired() {
+        return this.limited && this.remainingNanos() <= 0;
+    }
+
+    /**
+     * Gets the time remaining until this deadline, which is negative if the deadline has passed.
+     *
+     * @param unit  the unit of the result
+     * @return      the time remaining, or {@link Long#MAX_VALUE} if this deadline never expires
+     */
+    public long timeRemaining(TimeUnit unit) {
+        if (!this.limited) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(this.remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    long remainingNanos() {
+        if (!this.limited) {
+            return Long.MAX_VALUE;
+        }
+        return this.durationNanos - (System.nanoTime() - this.startNanoTime);
+    }
+}
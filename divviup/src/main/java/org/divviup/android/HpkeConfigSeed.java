@@ -0,0 +1,123 @@
+package org.divviup.android;
+
+import android.content.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * HPKE config lists for a task's aggregators that are shipped with the app, so that the first
+ * report on a new install can be prepared without fetching them. Attach a seed to a client with
+ * {@link Client#withHpkeConfigSeed(HpkeConfigSeed)}. Objects of this class are immutable.
+ * <p>
+ * A seed is only used while no fresh config list fetched from the aggregator is cached, and until
+ * its expiry time. When a seed is first used, the aggregator's config list is fetched in the
+ * background, and cached as usual. If it differs from the seed, because the aggregator has rotated
+ * its keys, the seed is not used again by this process, and later reports use the fetched config
+ * list. Reports encrypted with outdated configs are rejected by the aggregator, so the expiry time
+ * should be no later than the aggregators' next planned key rotation.
+ */
+public final class HpkeConfigSeed {
+    private final byte[] leaderConfigList;
+    private final byte[] helperConfigList;
+    private final long expiresAtMillis;
+
+    private HpkeConfigSeed(byte[] leaderConfigList, byte[] helperConfigList, long expiresAtMillis) {
+        this.leaderConfigList = leaderConfigList;
+        this.helperConfigList = helperConfigList;
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    /**
+     * Constructs a seed from encoded HPKE config lists, as served by each aggregator's
+     * {@code hpke_config} endpoint. The arrays are copied.
+     *
+     * @param leaderConfigList          the leader's encoded config list
+     * @param helperConfigList          the helper's encoded config list
+     * @param expiresAtMillis           the wall-clock time, in milliseconds since the epoch, after
+     *                                  which the seed is not used
+     * @return                          the seed
+     * @throws IllegalArgumentException if either config list is not a well-formed, non-empty list
+     */
+    public static HpkeConfigSeed of(byte[] leaderConfigList, byte[] helperConfigList, long expiresAtMillis) {
+        return new HpkeConfigSeed(
+                checkConfigList(leaderConfigList.clone(), "leader"),
+                checkConfigList(helperConfigList.clone(), "helper"),
+                expiresAtMillis
+        );
+    }
+
+    /**
+     * Constructs a seed from encoded HPKE config lists stored in the app's assets.
+     *
+     * @param context                   the app's {@link Context}. This is used to open the assets.
+     * @param leaderAsset               the name of the asset holding the leader's config list
+     * @param helperAsset               the name of the asset holding the helper's config list
+     * @param expiresAtMillis           the wall-clock time, in milliseconds since the epoch, after
+     *                                  which the seed is not used
+     * @return                          the seed
+     * @throws IOException              if either asset could not be read
+     * @throws IllegalArgumentException if either config list is not a well-formed, non-empty list
+     */
+    public static HpkeConfigSeed fromAssets(
+            Context context,
+            String leaderAsset,
+            String helperAsset,
+            long expiresAtMillis
+    ) throws IOException {
+        byte[] leaderConfigList, helperConfigList;
+        try (InputStream in = context.getAssets().open(leaderAsset)) {
+            leaderConfigList = readAll(in);
+        }
+        try (InputStream in = context.getAssets().open(helperAsset)) {
+            helperConfigList = readAll(in);
+        }
+        return new HpkeConfigSeed(
+                checkConfigList(leaderConfigList, "leader"),
+                checkConfigList(helperConfigList, "helper"),
+                expiresAtMillis
+        );
+    }
+
+    /**
+     * Gets the time after which this seed is not used.
+     *
+     * @return  the wall-clock time, in milliseconds since the epoch
+     */
+    public long getExpiresAtMillis() {
+        return this.expiresAtMillis;
+    }
+
+    /**
+     * Gets the config list for one aggregator. The array must not be modified.
+     */
+    byte[] configList(boolean leader) {
+        return leader ? this.leaderConfigList : this.helperConfigList;
+    }
+
+    /**
+     * Checks the outer structure of an encoded config list: a two-byte length prefix, followed by
+     * that many bytes of configs. The configs themselves are checked when reports are prepared.
+     */
+    private static byte[] checkConfigList(byte[] configList, String aggregator) {
+        if (configList.length <= 2) {
+            throw new IllegalArgumentException(aggregator + " HPKE config list is empty");
+        }
+        int length = ((configList[0] & 0xff) << 8) | (configList[1] & 0xff);
+        if (length != configList.length - 2) {
+            throw new IllegalArgumentException(aggregator + " HPKE config list has the wrong length");
+        }
+        return configList;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,331 @@
+package org.divviup.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of aggregators' HPKE config lists, stored in files in the app's cache directory, so that
+ * it is shared by all of the app's processes. Config lists are kept for as long as the aggregator's
+ * {@code Cache-Control: max-age} allows.
+ * <p>
+ * When a config list is missing or stale, concurrent requests for it in one process are combined
+ * into a single fetch, whose result or failure is shared by every thread waiting for it. Waiting
+ * threads do not hold any lock while the fetch is in progress. The fetching thread also holds a
+ * file lock for that aggregator and task, so other processes wait for its result, rather than
+ * fetching the same config list again.
+ * <p>
+ * Unlike the in-process wait, the file lock is held for the whole fetch, since nothing else tells
+ * other processes that a fetch is in progress. So that a slow aggregator does not hold up every
+ * process for as long as the fetching one's deadline allows, other processes only wait for the
+ * lock for {@value #LOCK_WAIT_MILLIS} milliseconds, and then fetch the config list themselves
+ * without it. Entries are replaced atomically, so concurrent fetches from several processes are
+ * safe, and at worst request the same config list more than once.
+ * <p>
+ * Config lists shipped with the app, in an {@link HpkeConfigSeed}, can be used while no fresh
+ * config list is stored. Using a seed starts a fetch in the background, which stores the
+ * aggregator's current config list. If that differs from the seed, the seed is not used again by
+ * this process.
+ */
+final class HpkeConfigStore {
+    private static final String DIRECTORY_NAME = "divviup-hpke-configs";
+    private static final int HEADER_LENGTH = 8;
+    private static final long POLL_INTERVAL_MILLIS = 10;
+    private static final long REVALIDATION_TIMEOUT_SECONDS = 60;
+    /** How long to wait for another process that is fetching the same config list. */
+    static final long LOCK_WAIT_MILLIS = 2000;
+    /** Fetches in progress in this process, keyed by the path of the entry they will store. */
+    private static final ConcurrentHashMap<String, Flight> FLIGHTS = new ConcurrentHashMap<>();
+    /** Seeded config lists that have been, or are being, revalidated, keyed by entry path. */
+    private static final ConcurrentHashMap<String, Revalidation> REVALIDATIONS = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final long lockWaitMillis;
+
+    HpkeConfigStore(File cacheDir) {
+        this(cacheDir, LOCK_WAIT_MILLIS);
+    }
+
+    HpkeConfigStore(File cacheDir, long lockWaitMillis) {
+        this.directory = new File(cacheDir, DIRECTORY_NAME);
+        this.lockWaitMillis = lockWaitMillis;
+    }
+
+    /**
+     * Fetches a config list from the network, when it is not in the store.
+     */
+    interface Fetcher {
+        FetchedConfigList fetch() throws IOException;
+    }
+
+    /**
+     * Fetches a config list from the network in the background, within the given submission.
+     */
+    interface Revalidator {
+        FetchedConfigList fetch(ReportSubmission submission) throws IOException;
+    }
+
+    /**
+     * A config list returned by {@link #lookup(String, ReportSubmission, Fetcher)}.
+     */
+    static final class Lookup {
+        final byte[] bytes;
+        /** Whether the caller waited for the config list to be fetched, rather than reading it. */
+        final boolean fetched;
+
+        Lookup(byte[] bytes, boolean fetched) {
+            this.bytes = bytes;
+            this.fetched = fetched;
+        }
+    }
+
+    /**
+     * A config list fetched from an aggregator, and how long it may be stored.
+     */
+    static final class FetchedConfigList {
+        final byte[] bytes;
+        final long expiresAtMillis;
+
+        /**
+         * @param expiresAtMillis   the wall-clock time after which the config list is stale, or 0
+         *                          if it must not be stored
+         */
+        FetchedConfigList(byte[] bytes, long expiresAtMillis) {
+            this.bytes = bytes;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /**
+     * Gets a config list from the store, or fetches and stores it if it is missing or stale. If
+     * another thread is already fetching the same config list, this waits for its result instead.
+     * The returned array may be shared with other threads, and must not be modified.
+     *
+     * @param key   identifies the aggregator and task
+     */
+    byte[] getOrFetch(String key, ReportSubmission submission, Fetcher fetcher) throws IOException {
+        return this.lookup(key, submission, fetcher).bytes;
+    }
+
+    /**
+     * Gets a config list like {@link #getOrFetch(String, ReportSubmission, Fetcher)}, and also
+     * whether it came from the store, or the calling thread waited for it to be fetched.
+     */
+    Lookup lookup(String key, ReportSubmission submission, Fetcher fetcher) throws IOException {
+        String name = SharedFiles.hashedName(key);
+        File entryFile = new File(this.directory, name + ".bin");
+        String path = entryFile.getAbsolutePath();
+        while (true) {
+            byte[] cached = readFresh(entryFile);
+            if (cached != null) {
+                return new Lookup(cached, false);
+            }
+            Flight flight = new Flight();
+            Flight existing = FLIGHTS.putIfAbsent(path, flight);
+            if (existing == null) {
+                try {
+                    return new Lookup(flight.succeed(this.fetchAndStore(name, entryFile, submission, fetcher)), true);
+                } catch (IOException | RuntimeException e) {
+                    flight.fail(e, submission);
+                    throw e;
+                } finally {
+                    FLIGHTS.remove(path, flight);
+                }
+            }
+            byte[] shared = existing.await(submission);
+            if (shared != null) {
+                return new Lookup(shared, true);
+            }
+            // The fetching thread gave up because its own submission ended, so try again.
+        }
+    }
+
+    /**
+     * Gets a config list from the store if it is fresh, or else a seeded config list, if it has not
+     * expired or been superseded. When the seed is returned, its entry is revalidated on the given
+     * executor, unless that has already happened in this process.
+     *
+     * @param key           identifies the aggregator and task
+     * @param revalidator   fetches the config list in the background, within a submission that is
+     *                      not tied to any report
+     * @return              the config list, or null if it must be fetched
+     */
+    byte[] getOrSeed(
+            String key,
+            byte[] seed,
+            long seedExpiresAtMillis,
+            Executor executor,
+            Revalidator revalidator
+    ) throws IOException {
+        String name = SharedFiles.hashedName(key);
+        File entryFile = new File(this.directory, name + ".bin");
+        byte[] cached = readFresh(entryFile);
+        if (cached != null) {
+            return cached;
+        }
+        if (seedExpiresAtMillis <= System.currentTimeMillis()) {
+            return null;
+        }
+        String path = entryFile.getAbsolutePath();
+        Revalidation revalidation = new Revalidation();
+        Revalidation existing = REVALIDATIONS.putIfAbsent(path, revalidation);
+        if (existing == null) {
+            try {
+                executor.execute(() -> this.revalidate(key, path, revalidation, revalidator));
+            } catch (RejectedExecutionException e) {
+                REVALIDATIONS.remove(path, revalidation);
+            }
+        } else if (existing.superseded(seed)) {
+            return null;
+        }
+        return seed;
+    }
+
+    /**
+     * Fetches and stores the current config list for a seeded entry, and records whether it
+     * supersedes the seed. If the fetch fails, the next use of the seed tries again.
+     */
+    private void revalidate(String key, String path, Revalidation revalidation, Revalidator revalidator) {
+        try {
+            ReportSubmission submission = new ReportSubmission(Deadline.after(REVALIDATION_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            byte[] current = this.getOrFetch(key, submission, () -> revalidator.fetch(submission));
+            revalidation.finish(current);
+        } catch (IOException | RuntimeException e) {
+            REVALIDATIONS.remove(path, revalidation);
+        }
+    }
+
+    /**
+     * Fetches and stores a config list, unless another process stores it first. If another process
+     * holds the lock for longer than the store's lock wait, this fetches without it.
+     */
+    private byte[] fetchAndStore(
+            String name,
+            File entryFile,
+            ReportSubmission submission,
+            Fetcher fetcher
+    ) throws IOException {
+        File lockFile = new File(this.directory, name + ".lock");
+        SharedFiles.Held lock = SharedFiles.acquire(
+                lockFile,
+                submission,
+                "waiting for HPKE configs",
+                this.lockWaitMillis,
+                TimeUnit.MILLISECONDS
+        );
+        try {
+            // Another process may have fetched the config list while this one waited.
+            byte[] cached = readFresh(entryFile);
+            if (cached != null) {
+                return cached;
+            }
+            FetchedConfigList fetched = fetcher.fetch();
+            if (fetched.expiresAtMillis > System.currentTimeMillis()) {
+                byte[] header = ByteBuffer.allocate(HEADER_LENGTH).putLong(fetched.expiresAtMillis).array();
+                SharedFiles.writeAtomically(entryFile, header, fetched.bytes, fetched.bytes.length);
+            } else if (lock != null) {
+                // Without the lock, the entry may have just been stored by the process holding it,
+                // so it is only deleted while holding the lock.
+                if (entryFile.exists() && !entryFile.delete()) {
+                    throw new IOException("could not delete stale HPKE config list " + entryFile);
+                }
+            }
+            return fetched.bytes;
+        } finally {
+            if (lock != null) {
+                lock.close();
+            }
+        }
+    }
+
+    /**
+     * The revalidation of a seeded config list against the aggregator's current one.
+     */
+    private static final class Revalidation {
+        private volatile byte[] current;
+
+        void finish(byte[] current) {
+            this.current = current;
+        }
+
+        /**
+         * Checks whether the aggregator's current config list is known to differ from a seed.
+         */
+        boolean superseded(byte[] seed) {
+            byte[] current = this.current;
+            return current != null && !Arrays.equals(current, seed);
+        }
+    }
+
+    /**
+     * A fetch in progress, which other threads wait for.
+     */
+    private static final class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        // These are published to waiting threads by the latch.
+        private byte[] bytes;
+        private Exception failure;
+
+        byte[] succeed(byte[] bytes) {
+            this.bytes = bytes;
+            this.done.countDown();
+            return bytes;
+        }
+
+        /**
+         * Records that the fetch failed. If it failed because the fetching thread's submission was
+         * canceled or its deadline passed, the failure is not shared, and waiting threads fetch the
+         * config list again.
+         */
+        void fail(Exception failure, ReportSubmission submission) {
+            if (!submission.isCanceled() && !submission.deadline().isExpired()) {
+                this.failure = failure;
+            }
+            this.done.countDown();
+        }
+
+        /**
+         * Waits for the fetch to finish, or for the waiting thread's submission to end.
+         *
+         * @return  the config list, or null if the fetching thread gave up
+         */
+        byte[] await(ReportSubmission submission) throws IOException {
+            try {
+                while (!this.done.await(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    submission.checkActive("waiting for HPKE configs");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for HPKE configs");
+            }
+            if (this.failure != null) {
+                throw new IOException("fetching HPKE configs failed: " + this.failure.getMessage(), this.failure);
+            }
+            return this.bytes;
+        }
+    }
+
+    /**
+     * Reads a stored config list.
+     *
+     * @return  the config list, or null if it is missing or stale
+     */
+    private static byte[] readFresh(File entryFile) throws IOException {
+        byte[] contents = SharedFiles.readIfExists(entryFile);
+        if (contents == null || contents.length < HEADER_LENGTH) {
+            return null;
+        }
+        long expiresAtMillis = ByteBuffer.wrap(contents).getLong();
+        if (expiresAtMillis <= System.currentTimeMillis()) {
+            return null;
+        }
+        return Arrays.copyOfRange(contents, HEADER_LENGTH, contents.length);
+    }
+}
@@ -0,0 +1,144 @@
+package org.divviup.android;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in profiling of the native code that prepares reports. While enabled, the time spent in,
+ * and the number of bytes processed by, each {@link Phase} of report preparation are added to
+ * process-wide counters, shared by all clients. This is intended for finding where time goes for a
+ * particular VDAF and set of parameters, and is disabled by default.
+ */
+public final class NativeProfiler {
+    static {
+        System.loadLibrary("divviup_android");
+    }
+
+    /**
+     * A phase of native report preparation.
+     */
+    public enum Phase {
+        /**
+         * Accessing the task ID and HPKE config list arrays through JNI, and releasing them. Bytes
+         * are the sizes of the arrays.
+         */
+        READ_INPUTS,
+        /**
+         * Decoding the task ID and HPKE config lists, and choosing a config for each aggregator.
+         * Bytes are the sizes of the arrays.
+         */
+        DECODE_INPUTS,
+        /**
+         * Sharding the measurement with the VDAF.
+         */
+        SHARD,
+        /**
+         * Encoding input shares, the public share, report metadata, and the associated data for
+         * encryption. Bytes are the sizes of the encoded input shares and public share.
+         */
+        ENCODE,
+        /**
+         * Encrypting both input shares with HPKE. Bytes are the sizes of the plaintexts.
+         */
+        SEAL,
+        /**
+         * Assembling the report, and copying it into the output array through JNI. Bytes are the
+         * size of the report.
+         */
+        WRITE_OUTPUT,
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private NativeProfiler() {
+    }
+
+    /**
+     * Starts or stops recording timings. Counters are kept when profiling is disabled.
+     *
+     * @param enabled   whether to record timings
+     */
+    public static void setEnabled(boolean enabled) {
+        setEnabledNative(enabled);
+    }
+
+    /**
+     * Clears all counters. Reports being prepared concurrently may be partially counted.
+     */
+    public static void reset() {
+        resetNative();
+    }
+
+    /**
+     * Reads the counters. Counters are read individually, so a snapshot taken while reports are
+     * being prepared may be slightly inconsistent.
+     *
+     * @return  the counters accumulated since profiling was first enabled, or last reset
+     */
+    public static Snapshot snapshot() {
+        long[] counters = new long[1 + 2 * PHASES.length];
+        readCountersNative(counters);
+        return new Snapshot(counters);
+    }
+
+    private static native void setEnabledNative(boolean enabled);
+
+    private static native void resetNative();
+
+    private static native void readCountersNative(long[] output);
+
+    /**
+     * Counters read by {@link #snapshot()}. Objects of this class are immutable.
+     */
+    public static final class Snapshot {
+        private final long[] counters;
+
+        private Snapshot(long[] counters) {
+            this.counters = counters;
+        }
+
+        /**
+         * Gets the number of reports prepared successfully while profiling was enabled.
+         *
+         * @return  the number of reports
+         */
+        public long getReports() {
+            return this.counters[0];
+        }
+
+        /**
+         * Gets the total time spent in a phase.
+         *
+         * @param phase the phase
+         * @param unit  the unit of the result
+         * @return      the total time
+         */
+        public long getTime(Phase phase, TimeUnit unit) {
+            return unit.convert(this.counters[1 + phase.ordinal()], TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets the total number of bytes processed by a phase.
+         *
+         * @param phase the phase
+         * @return      the number of bytes
+         */
+        public long getBytes(Phase phase) {
+            return this.counters[1 + PHASES.length + phase.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("NativeProfiler.Snapshot{reports=").append(this.getReports());
+            for (Phase phase : PHASES) {
+                builder.append(", ")
+                        .append(phase)
+                        .append("=")
+                        .append(this.getTime(phase, TimeUnit.MICROSECONDS))
+                        .append("us/")
+                        .append(this.getBytes(phase))
+                        .append("B");
+            }
+            return builder.append("}").toString();
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package org.divviup.android;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * Opt-in profiling of the HTTP requests made by the library. While enabled, the time spent in each
+ * {@link Phase} of every call, and whether it reused a pooled connection, are added to
+ * process-wide counters, kept separately for each aggregator and {@link CallType}. This shows
+ * whether slow submissions are due to the network, such as DNS and connection setup, or to the
+ * aggregators, which appears as time to first byte. It is disabled by default.
+ * <p>
+ * Aggregators are identified by the endpoint configured for them in the client, so a leader and
+ * helper served from different paths on the same host are kept apart. Endpoints are keyed as the
+ * client resolves request paths against them: {@code https://example.com/leader/} stays as it is,
+ * but {@code https://example.com/leader} becomes {@code https://example.com/}. Calls are recorded
+ * by an OkHttp {@code EventListener} attached to the library's HTTP client, so calls made while
+ * profiling is disabled cost nothing extra.
+ */
+public final class NetworkProfiler {
+    /**
+     * The purpose of an HTTP call.
+     */
+    public enum CallType {
+        /**
+         * Fetching an aggregator's HPKE config list.
+         */
+        HPKE_CONFIG,
+        /**
+         * Uploading one or more reports to the leader.
+         */
+        UPLOAD,
+    }
+
+    /**
+     * A phase of an HTTP call.
+     */
+    public enum Phase {
+        /**
+         * Resolving the aggregator's host name. Only calls that open a new connection resolve it.
+         */
+        DNS,
+        /**
+         * Opening a TCP connection, excluding the TLS handshake.
+         */
+        CONNECT,
+        /**
+         * The TLS handshake.
+         */
+        TLS,
+        /**
+         * Writing the request headers and body.
+         */
+        REQUEST,
+        /**
+         * Waiting for the response, from the end of the request to the start of the response
+         * headers. This is dominated by the aggregator's processing time.
+         */
+        TIME_TO_FIRST_BYTE,
+        /**
+         * Reading the response headers and body.
+         */
+        RESPONSE,
+        /**
+         * The whole call, from start to end or failure.
+         */
+        CALL,
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final CallType[] CALL_TYPES = CallType.values();
+
+    private static final int CALLS = 0;
+    private static final int FAILED_CALLS = 1;
+    private static final int NEW_CONNECTIONS = 2;
+    private static final int REUSED_CONNECTIONS = 3;
+    /** Each phase has a total time counter, followed by a count of times it was recorded. */
+    private static final int PHASE_COUNTERS = 4;
+    private static final int COUNTERS = PHASE_COUNTERS + 2 * PHASES.length;
+
+    private static volatile boolean enabled;
+    /** Counters for each aggregator endpoint, with one array per call type. */
+    private static final ConcurrentHashMap<String, AtomicLongArray[]> COUNTERS_BY_ENDPOINT = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a listener for each call while profiling is enabled.
+     */
+    static final EventListener.Factory LISTENER_FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            if (!enabled) {
+                return EventListener.NONE;
+            }
+            HttpUrl url = call.request().url();
+            CallType type = call.request().method().equals("GET") ? CallType.HPKE_CONFIG : CallType.UPLOAD;
+            return new PhaseListener(counters(endpointKey(url, type), type));
+        }
+    };
+
+    private NetworkProfiler() {
+    }
+
+    /**
+     * Starts or stops recording calls. Counters are kept when profiling is disabled. Calls that
+     * start while profiling is disabled are not recorded.
+     *
+     * @param enabled   whether to record calls
+     */
+    public static void setEnabled(boolean enabled) {
+        NetworkProfiler.enabled = enabled;
+    }
+
+    /**
+     * Clears all counters. Calls in progress may be partially counted.
+     */
+    public static void reset() {
+        COUNTERS_BY_ENDPOINT.clear();
+    }
+
+    /**
+     * Reads the counters. Counters are read individually, so a snapshot taken while calls are in
+     * progress may be slightly inconsistent.
+     *
+     * @return  the counters accumulated since profiling was first enabled, or last reset
+     */
+    public static Snapshot snapshot() {
+        Map<String, long[][]> counters = new TreeMap<>();
+        for (Map.Entry<String, AtomicLongArray[]> entry : COUNTERS_BY_ENDPOINT.entrySet()) {
+            long[][] values = new long[CALL_TYPES.length][COUNTERS];
+            for (int type = 0; type < CALL_TYPES.length; type++) {
+                for (int i = 0; i < COUNTERS; i++) {
+                    values[type][i] = entry.getValue()[type].get(i);
+                }
+            }
+            counters.put(entry.getKey(), values);
+        }
+        return new Snapshot(counters);
+    }
+
+    /**
+     * Gets the endpoint of the aggregator that a call was made to, from the path that the client
+     * requests relative to it: {@code hpke_config} for config lists, and
+     * {@code tasks/{task-id}/reports} for uploads.
+     */
+    private static String endpointKey(HttpUrl url, CallType type) {
+        HttpUrl endpoint = url.resolve(type == CallType.HPKE_CONFIG ? "./" : "../../");
+        return endpoint != null ? endpoint.toString() : url.toString();
+    }
+
+    /**
+     * Normalizes a configured aggregator endpoint to the form used as a key.
+     */
+    private static String endpointKey(URI endpoint) {
+        HttpUrl url = HttpUrl.get(endpoint.toString());
+        HttpUrl resolved = url.resolve("./");
+        return resolved != null ? resolved.toString() : url.toString();
+    }
+
+    private static AtomicLongArray counters(String endpoint, CallType type) {
+        AtomicLongArray[] counters = COUNTERS_BY_ENDPOINT.get(endpoint);
+        if (counters == null) {
+            AtomicLongArray[] created = new AtomicLongArray[CALL_TYPES.length];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new AtomicLongArray(COUNTERS);
+            }
+            counters = COUNTERS_BY_ENDPOINT.putIfAbsent(endpoint, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters[type.ordinal()];
+    }
+
+    /**
+     * Records the phases of one call. OkHttp delivers a call's events sequentially, so no
+     * synchronization is needed for the timestamps.
+     */
+    private static final class PhaseListener extends EventListener {
+        private final AtomicLongArray counters;
+        private long callStart, dnsStart, connectStart, secureConnectStart;
+        private long requestStart, requestEnd, responseStart;
+        private boolean connecting;
+
+        PhaseListener(AtomicLongArray counters) {
+            this.counters = counters;
+        }
+
+        private void record(Phase phase, long start) {
+            this.record(phase, start, System.nanoTime());
+        }
+
+        private void record(Phase phase, long start, long end) {
+            this.counters.addAndGet(PHASE_COUNTERS + phase.ordinal(), end - start);
+            this.counters.incrementAndGet(PHASE_COUNTERS + PHASES.length + phase.ordinal());
+        }
+
+        @Override
+        public void callStart(Call call) {
+            this.counters.incrementAndGet(CALLS);
+            this.callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            this.dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            this.record(Phase.DNS, this.dnsStart);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            this.connecting = true;
+            this.secureConnectStart = 0;
+            this.connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            this.record(Phase.CONNECT, this.connectStart);
+            this.secureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            this.record(Phase.TLS, this.secureConnectStart);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            if (this.secureConnectStart == 0) {
+                this.record(Phase.CONNECT, this.connectStart);
+            }
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            this.counters.incrementAndGet(this.connecting ? NEW_CONNECTIONS : REUSED_CONNECTIONS);
+            this.connecting = false;
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            this.requestStart = System.nanoTime();
+            this.requestEnd = 0;
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            this.requestEnd = System.nanoTime();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            this.requestEnd = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            this.responseStart = System.nanoTime();
+            if (this.requestEnd != 0) {
+                this.record(Phase.REQUEST, this.requestStart, this.requestEnd);
+                this.record(Phase.TIME_TO_FIRST_BYTE, this.requestEnd, this.responseStart);
+                this.requestEnd = 0;
+            }
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            this.record(Phase.RESPONSE, this.responseStart);
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            this.record(Phase.CALL, this.callStart);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            this.counters.incrementAndGet(FAILED_CALLS);
+            this.record(Phase.CALL, this.callStart);
+        }
+    }
+
+    /**
+     * Counters read by {@link #snapshot()}. Objects of this class are immutable.
+     */
+    public static final class Snapshot {
+        private final Map<String, long[][]> counters;
+
+        private Snapshot(Map<String, long[][]> counters) {
+            this.counters = counters;
+        }
+
+        /**
+         * Gets the endpoints of the aggregators that calls were recorded for.
+         *
+         * @return  the endpoints, such as {@code https://example.com/leader/}
+         */
+        public Set<String> getAggregatorEndpoints() {
+            return Collections.unmodifiableSet(this.counters.keySet());
+        }
+
+        /**
+         * Gets the counters for one type of call to one aggregator.
+         *
+         * @param aggregatorEndpoint        the aggregator's endpoint, as given to the client
+         * @param type                      the type of call
+         * @return                          the counters, which are all zero if no calls were
+         *                                  recorded
+         * @throws IllegalArgumentException if the endpoint is not an HTTP or HTTPS URI
+         */
+        public Stats getStats(URI aggregatorEndpoint, CallType type) {
+            return this.getStats(endpointKey(aggregatorEndpoint), type);
+        }
+
+        /**
+         * Gets the counters for one type of call to the aggregator with the given endpoint, as
+         * returned by {@link #getAggregatorEndpoints()}.
+         *
+         * @param aggregatorEndpoint    the aggregator's endpoint
+         * @param type                  the type of call
+         * @return                      the counters, which are all zero if no calls were recorded
+         */
+        public Stats getStats(String aggregatorEndpoint, CallType type) {
+            long[][] values = this.counters.get(aggregatorEndpoint);
+            return new Stats(values != null ? values[type.ordinal()] : new long[COUNTERS]);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("NetworkProfiler.Snapshot{");
+            String separator = "";
+            for (String endpoint : this.counters.keySet()) {
+                for (CallType type : CALL_TYPES) {
+                    Stats stats = this.getStats(endpoint, type);
+                    if (stats.getCalls() > 0) {
+                        builder.append(separator).append(endpoint).append(" ").append(type).append("=").append(stats);
+                        separator = ", ";
+                    }
+                }
+            }
+            return builder.append("}").toString();
+        }
+    }
+
+    /**
+     * Counters for one type of call to one aggregator. Objects of this class are immutable.
+     */
+    public static final class Stats {
+        private final long[] counters;
+
+        private Stats(long[] counters) {
+            this.counters = counters;
+        }
+
+        /**
+         * Gets the number of calls started.
+         *
+         * @return  the number of calls
+         */
+        public long getCalls() {
+            return this.counters[CALLS];
+        }
+
+        /**
+         * Gets the number of calls that failed, or were canceled or timed out.
+         *
+         * @return  the number of calls
+         */
+        public long getFailedCalls() {
+            return this.counters[FAILED_CALLS];
+        }
+
+        /**
+         * Gets the number of connections that were opened for calls.
+         *
+         * @return  the number of connections
+         */
+        public long getNewConnections() {
+            return this.counters[NEW_CONNECTIONS];
+        }
+
+        /**
+         * Gets the number of times calls reused a pooled connection.
+         *
+         * @return  the number of connections
+         */
+        public long getReusedConnections() {
+            return this.counters[REUSED_CONNECTIONS];
+        }
+
+        /**
+         * Gets the proportion of connections acquired by calls that were reused.
+         *
+         * @return  the reuse rate, from 0 to 1, or 0 if no connections were acquired
+         */
+        public double getConnectionReuseRate() {
+            long total = this.getNewConnections() + this.getReusedConnections();
+            return total == 0 ? 0 : (double) this.getReusedConnections() / total;
+        }
+
+        /**
+         * Gets the total time spent in a phase.
+         *
+         * @param phase the phase
+         * @param unit  the unit of the result
+         * @return      the total time
+         */
+        public long getTime(Phase phase, TimeUnit unit) {
+            return unit.convert(this.counters[PHASE_COUNTERS + phase.ordinal()], TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets the number of times a phase was recorded. Calls that reuse a connection do not
+         * record the DNS, CONNECT or TLS phases.
+         *
+         * @param phase the phase
+         * @return      the number of times
+         */
+        public long getCount(Phase phase) {
+            return this.counters[PHASE_COUNTERS + PHASES.length + phase.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("{calls=")
+                    .append(this.getCalls())
+                    .append(", failed=")
+                    .append(this.getFailedCalls())
+                    .append(", reused=")
+                    .append(this.getReusedConnections())
+                    .append("/")
+                    .append(this.getNewConnections() + this.getReusedConnections());
+            for (Phase phase : PHASES) {
+                builder.append(", ")
+                        .append(phase)
+                        .append("=")
+                        .append(this.getTime(phase, TimeUnit.MICROSECONDS))
+                        .append("us/")
+                        .append(this.getCount(phase));
+            }
+            return builder.append("}").toString();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.divviup.android;
+
+/**
+ * A reusable output buffer that native code encodes reports into. Reports are written to the start
+ * of the array, and the array is only replaced when a larger report is encountered. Objects of this
+ * class are not thread-safe, and each one must only be used by one thread at a time.
+ */
+class ReportBuffer {
+    private byte[] bytes;
+    private int length;
+
+    ReportBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+        this.length = 0;
+    }
+
+    /**
+     * Gets the backing array. The most recently prepared report is in the first
+     * {@link #length()} bytes.
+     */
+    byte[] array() {
+        return this.bytes;
+    }
+
+    /**
+     * Gets the length of the most recently prepared report.
+     */
+    int length() {
+        return this.length;
+    }
+
+    void setLength(int length) {
+        if (length < 0 || length > this.bytes.length) {
+            throw new IllegalArgumentException("report length out of bounds");
+        }
+        this.length = length;
+    }
+
+    /**
+     * Replaces the backing array, if necessary, so that it can hold at least the given number of
+     * bytes. The contents of the buffer are not preserved.
+     */
+    void ensureCapacity(int capacity) {
+        if (this.bytes.length < capacity) {
+            this.bytes = new byte[capacity];
+        }
+        this.length = 0;
+    }
+}
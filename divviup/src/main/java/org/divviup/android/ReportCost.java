@@ -0,0 +1,43 @@
+package org.divviup.android;
+
+/**
+ * The cost of submitting one report with a particular {@link Client}, as measured by
+ * {@link Client#estimateCost(Object, int)}. Objects of this class are immutable.
+ */
+public final class ReportCost {
+    private final int encodedBytes;
+    private final long averagePreparationNanos;
+
+    ReportCost(int encodedBytes, long averagePreparationNanos) {
+        this.encodedBytes = encodedBytes;
+        this.averagePreparationNanos = averagePreparationNanos;
+    }
+
+    /**
+     * Gets the exact size of an encoded report, which is the body of each upload request. All
+     * reports for a task have this size, as long as the aggregators' HPKE configs don't change.
+     * HTTP headers, TLS overhead, and HPKE config fetches are not included.
+     *
+     * @return  the size of a report, in bytes
+     */
+    public int getEncodedBytes() {
+        return this.encodedBytes;
+    }
+
+    /**
+     * Gets the average CPU time taken to prepare a report on the calling thread. Where thread CPU
+     * time is not supported, this is the elapsed time instead, which is an upper bound, since
+     * preparation does not block.
+     *
+     * @return  the average preparation time, in nanoseconds
+     */
+    public long getAveragePreparationNanos() {
+        return this.averagePreparationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ReportCost{encodedBytes=" + this.encodedBytes
+                + ", averagePreparationNanos=" + this.averagePreparationNanos + "}";
+    }
+}
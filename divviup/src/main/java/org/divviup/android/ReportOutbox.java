@@ -0,0 +1,396 @@
+package org.divviup.android;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Prepared reports waiting to be uploaded, stored in files, so that they survive process restarts
+ * and are shared by all of the app's processes. Reports are added with
+ * {@link Client#queueMeasurement(Object, ReportOutbox)}, from any process, and uploaded by
+ * {@link #flush(Deadline)}. Only one process flushes the outbox at a time, so each report is
+ * uploaded once per device, rather than once per process. Objects of this class are immutable,
+ * and thread-safe.
+ */
+public final class ReportOutbox {
+    private static final String DIRECTORY_NAME = "divviup-outbox";
+    private static final String LOCK_FILE_NAME = "flush.lock";
+    private static final String REPORT_SUFFIX = ".report";
+    private static final int FORMAT_VERSION = 1;
+    /** Temporary files older than this were left behind by a process that died while writing. */
+    private static final long STALE_TEMPORARY_FILE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final MediaType MULTI_REPORT_CONTENT_TYPE = MediaType.get("application/dap-report-list");
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+    private static final int REPORT_ID_LENGTH = 16;
+    private static final int REPORT_STATUS_LENGTH = REPORT_ID_LENGTH + 1;
+    private static final byte STATUS_RETRY = 2;
+    /** Upload URLs whose aggregators rejected a multi-report upload, in this process. */
+    private static final Set<String> SINGLE_REPORT_URLS =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final File directory;
+    private final OkHttpClient httpClient;
+    private final int maxReportsPerUpload;
+
+    private ReportOutbox(File directory, OkHttpClient httpClient, int maxReportsPerUpload) {
+        this.directory = directory;
+        this.httpClient = httpClient;
+        this.maxReportsPerUpload = maxReportsPerUpload;
+    }
+
+    /**
+     * Opens the app's outbox, which is stored in its no-backup files directory. Every process that
+     * opens the outbox sees the same reports.
+     *
+     * @param context   the app's {@link Context}
+     * @return          the outbox
+     */
+    public static ReportOutbox open(Context context) {
+        return open(new File(context.getNoBackupFilesDir(), DIRECTORY_NAME));
+    }
+
+    /**
+     * Opens an outbox stored in the given directory, which is created if necessary. Every process
+     * that opens the same directory sees the same reports. This allows outboxes to be used on a
+     * plain JVM, without a {@link Context}.
+     *
+     * @param directory the directory that stores the outbox's reports
+     * @return          the outbox
+     */
+    public static ReportOutbox open(File directory) {
+        return new ReportOutbox(directory, Client.getHTTPClient(), 1);
+    }
+
+    /**
+     * Returns a copy of this outbox that uploads up to {@code maxReportsPerUpload} reports for the
+     * same task in each request, for aggregators that support it. This cuts the per-report
+     * overhead of flushing many reports.
+     * <p>
+     * A multi-report upload is a PUT to the usual report upload URL, with the content type
+     * {@code application/dap-report-list}, and a body that is the concatenation of the encoded
+     * reports. An aggregator that accepts it responds with a 2xx response code, and a body listing
+     * the reports it did not accept, each as its 16-byte report ID followed by a one-byte status: 1
+     * if the report was rejected, and will never be accepted, or 2 if it should be uploaded again
+     * later. An empty body means that every report was accepted. Reports with status 2 stay in the
+     * outbox.
+     * <p>
+     * If an aggregator responds to a multi-report upload with 415 Unsupported Media Type, its
+     * reports are uploaded one per request instead, for the rest of the process's lifetime.
+     *
+     * @param maxReportsPerUpload       the largest number of reports to send in one request, or 1
+     *                                  to upload each report separately
+     * @return                          a new outbox, which shares its reports with this one
+     * @throws IllegalArgumentException if maxReportsPerUpload is not positive
+     */
+    public ReportOutbox withMultiReportUploads(int maxReportsPerUpload) {
+        if (maxReportsPerUpload <= 0) {
+            throw new IllegalArgumentException("maxReportsPerUpload must be positive");
+        }
+        return new ReportOutbox(this.directory, this.httpClient, maxReportsPerUpload);
+    }
+
+    /**
+     * Returns a copy of this outbox that stores TLS sessions with aggregators in the given store,
+     * so that uploads from processes started later can resume them.
+     *
+     * @param tlsSessionStore   the store, or null to only cache sessions in memory
+     * @return                  a new outbox, which shares its reports with this one
+     */
+    public ReportOutbox withTlsSessionStore(TlsSessionStore tlsSessionStore) {
+        OkHttpClient httpClient = tlsSessionStore != null ? tlsSessionStore.httpClient() : Client.getHTTPClient();
+        return new ReportOutbox(this.directory, httpClient, this.maxReportsPerUpload);
+    }
+
+    /**
+     * Counts the reports waiting to be uploaded, by all processes.
+     *
+     * @return  the number of reports in the outbox
+     */
+    public int size() {
+        return this.pendingFiles().length;
+    }
+
+    /**
+     * Uploads all reports in the outbox, oldest first, and removes them. If another thread or
+     * process is already flushing the outbox, this returns immediately. Reports that an aggregator
+     * rejects with a 4xx response code are removed, since they will never be accepted. See
+     * {@link #withMultiReportUploads(int)} for uploading several reports per request. This must
+     * not be called from the UI thread.
+     *
+     * @param deadline                  the deadline for uploading all reports
+     * @return                          the number of reports uploaded, which is zero if another
+     *                                  thread or process is flushing the outbox
+     * @throws InterruptedIOException   if the deadline passes before all reports are uploaded
+     * @throws IOException              if an upload fails, or the aggregator returns a 5xx response
+     *                                  code. Reports that were not uploaded stay in the outbox.
+     */
+    public int flush(Deadline deadline) throws IOException {
+        ReportSubmission submission = new ReportSubmission(deadline);
+        try (SharedFiles.Held lock = SharedFiles.tryAcquire(new File(this.directory, LOCK_FILE_NAME))) {
+            if (lock == null) {
+                return 0;
+            }
+            this.deleteStaleTemporaryFiles();
+            int uploaded = 0;
+            List<PendingReport> batch = new ArrayList<>();
+            for (File file : this.pendingFiles()) {
+                submission.checkActive("uploading report");
+                byte[] contents = SharedFiles.readIfExists(file);
+                if (contents == null) {
+                    continue;
+                }
+                QueuedReport report = QueuedReport.decode(contents);
+                if (report == null) {
+                    delete(file);
+                    continue;
+                }
+                PendingReport pending = new PendingReport(file, report, contents);
+                if (!batch.isEmpty() && (!batch.get(0).url().equals(pending.url())
+                        || batch.size() >= this.maxReportsPerUpload)) {
+                    uploaded += this.upload(batch, submission);
+                    batch.clear();
+                }
+                batch.add(pending);
+            }
+            if (!batch.isEmpty()) {
+                uploaded += this.upload(batch, submission);
+            }
+            return uploaded;
+        }
+    }
+
+    /**
+     * Uploads reports for the same URL, in one request if the aggregator supports it, and removes
+     * those that were uploaded or rejected.
+     *
+     * @return  the number of reports uploaded
+     */
+    private int upload(List<PendingReport> batch, ReportSubmission submission) throws IOException {
+        String url = batch.get(0).url();
+        if (batch.size() > 1 && !SINGLE_REPORT_URLS.contains(url)) {
+            int uploaded = this.uploadMultiple(batch, submission);
+            if (uploaded >= 0) {
+                return uploaded;
+            }
+            // The aggregator does not accept multi-report uploads, so fall back to one per report.
+            SINGLE_REPORT_URLS.add(url);
+        }
+        int uploaded = 0;
+        for (PendingReport pending : batch) {
+            submission.checkActive("uploading report");
+            int code = Client.putReport(
+                    this.httpClient,
+                    pending.report.url,
+                    pending.contents,
+                    pending.report.offset,
+                    pending.contents.length - pending.report.offset,
+                    submission
+            );
+            if (code >= 500) {
+                throw new IOException(
+                        "aggregator returned HTTP response code " + code + " when uploading report"
+                );
+            }
+            if (code < 400) {
+                uploaded++;
+            }
+            delete(pending.file);
+        }
+        return uploaded;
+    }
+
+    /**
+     * Uploads several reports in one request.
+     *
+     * @return  the number of reports uploaded, or -1 if the aggregator does not support
+     *          multi-report uploads
+     */
+    private int uploadMultiple(List<PendingReport> batch, ReportSubmission submission) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (PendingReport pending : batch) {
+            body.write(pending.contents, pending.report.offset, pending.contents.length - pending.report.offset);
+        }
+        Request request = new Request.Builder()
+                .url(batch.get(0).report.url)
+                .put(RequestBody.create(body.toByteArray(), MULTI_REPORT_CONTENT_TYPE))
+                .build();
+        byte[] statuses;
+        try (Response response = submission.executeCall(this.httpClient, request, "uploading reports")) {
+            int code = response.code();
+            if (code == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                return -1;
+            }
+            if (code >= 500) {
+                throw new IOException(
+                        "aggregator returned HTTP response code " + code + " when uploading reports"
+                );
+            }
+            if (code >= 400) {
+                // The whole request was rejected, so none of the reports will ever be accepted.
+                for (PendingReport pending : batch) {
+                    delete(pending.file);
+                }
+                return 0;
+            }
+            ResponseBody responseBody = response.body();
+            statuses = responseBody != null ? responseBody.bytes() : new byte[0];
+        }
+        if (statuses.length % REPORT_STATUS_LENGTH != 0) {
+            throw new IOException("malformed report statuses in multi-report upload response");
+        }
+        Map<String, Byte> failures = new HashMap<>();
+        for (int i = 0; i < statuses.length; i += REPORT_STATUS_LENGTH) {
+            String reportId = Base64Url.encode(Arrays.copyOfRange(statuses, i, i + REPORT_ID_LENGTH));
+            failures.put(reportId, statuses[i + REPORT_ID_LENGTH]);
+        }
+        int uploaded = 0;
+        for (PendingReport pending : batch) {
+            Byte status = failures.get(pending.reportId());
+            if (status == null) {
+                uploaded++;
+            } else if (status == STATUS_RETRY) {
+                // Kept, to be uploaded again by a later flush.
+                continue;
+            }
+            delete(pending.file);
+        }
+        return uploaded;
+    }
+
+    /**
+     * Adds a report, which will be uploaded to the given URL.
+     */
+    void add(URL url, byte[] report, int length) throws IOException {
+        String name = String.format(Locale.ROOT, "%013d-%s%s", System.currentTimeMillis(), UUID.randomUUID(), REPORT_SUFFIX);
+        SharedFiles.writeAtomically(new File(this.directory, name), QueuedReport.encodeHeader(url), report, length);
+    }
+
+    /**
+     * Lists reports waiting to be uploaded. Their names start with the time they were added, so
+     * sorting them puts the oldest first.
+     */
+    private File[] pendingFiles() {
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(REPORT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void delete(File file) throws IOException {
+        if (!file.delete() && file.exists()) {
+            throw new IOException("could not delete uploaded report " + file);
+        }
+    }
+
+    private void deleteStaleTemporaryFiles() {
+        File[] files = this.directory.listFiles((dir, name) -> name.endsWith(SharedFiles.TEMPORARY_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - STALE_TEMPORARY_FILE_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                // If this fails, it will be tried again on the next flush.
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * A report read from the outbox, and the file it was read from.
+     */
+    private static final class PendingReport {
+        private final File file;
+        private final QueuedReport report;
+        private final byte[] contents;
+
+        private PendingReport(File file, QueuedReport report, byte[] contents) {
+            this.file = file;
+            this.report = report;
+            this.contents = contents;
+        }
+
+        /**
+         * Gets the URL as a string, since {@link URL#equals(Object)} may resolve host names.
+         */
+        String url() {
+            return this.report.url.toString();
+        }
+
+        /**
+         * Gets the report's ID, which is the first field of an encoded report.
+         */
+        String reportId() {
+            int offset = this.report.offset;
+            return Base64Url.encode(Arrays.copyOfRange(this.contents, offset, offset + REPORT_ID_LENGTH));
+        }
+    }
+
+    /**
+     * A report stored in a file. The file starts with a format version, and the URL to upload to,
+     * followed by the encoded report.
+     */
+    private static final class QueuedReport {
+        private final URL url;
+        private final int offset;
+
+        private QueuedReport(URL url, int offset) {
+            this.url = url;
+            this.offset = offset;
+        }
+
+        static byte[] encodeHeader(URL url) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream stream = new DataOutputStream(bytes)) {
+                stream.writeInt(FORMAT_VERSION);
+                stream.writeUTF(url.toString());
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @return  the report's URL and offset, or null if the file is from an unknown version of
+         *          this library, or is corrupt
+         */
+        static QueuedReport decode(byte[] contents) {
+            try {
+                DataInputStream stream = new DataInputStream(new ByteArrayInputStream(contents));
+                if (stream.readInt() != FORMAT_VERSION) {
+                    return null;
+                }
+                URL url = new URL(stream.readUTF());
+                return new QueuedReport(url, contents.length - stream.available());
+            } catch (RuntimeException | IOException e) {
+                return null;
+            }
+        }
+    }
+}
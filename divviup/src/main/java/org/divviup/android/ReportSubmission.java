@@ -0,0 +1,166 @@
+package org.divviup.android;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * A single submission of a measurement, bounded by a {@link Deadline}, that can be canceled from
+ * another thread. Submissions are created by {@link Client#newSubmission(Object, Deadline)}, and
+ * may only be executed once.
+ * <p>
+ * The time remaining until the deadline is applied as a timeout to every HTTP request. If the
+ * deadline passes, or the submission is canceled, before the report is prepared, sharding is
+ * skipped.
+ */
+public final class ReportSubmission {
+    private final Deadline deadline;
+    private final Action action;
+    private final AtomicBoolean executed;
+    private final AtomicReference<Call> currentCall;
+    private final SubmissionReceipt.Recorder recorder;
+    private volatile boolean canceled;
+    private final AtomicInteger reservedBandwidthBytes;
+
+    /**
+     * Constructs a submission whose steps are driven by the caller, rather than by
+     * {@link #execute()}, such as those run in stages by {@link SubmissionPipeline}.
+     */
+    ReportSubmission(Deadline deadline) {
+        this(deadline, null);
+    }
+
+    ReportSubmission(Deadline deadline, Action action) {
+        this.deadline = deadline;
+        this.action = action;
+        this.executed = new AtomicBoolean(false);
+        this.currentCall = new AtomicReference<>(null);
+        this.recorder = new SubmissionReceipt.Recorder();
+        this.canceled = false;
+        this.reservedBandwidthBytes = new AtomicInteger(0);
+    }
+
+    /**
+     * Fetches HPKE configs, prepares the report, and uploads it, blocking until done. This must not
+     * be called from the UI thread.
+     *
+     * @return                          a receipt describing the report and the submission
+     * @throws InterruptedIOException   if the deadline passes before the submission completes
+     * @throws IOException              if requests to either aggregator fail, or if the submission
+     *                                  is canceled
+     * @throws IllegalArgumentException if the measurement is of the wrong type
+     * @throws IllegalStateException    if this submission was already executed
+     * @throws RuntimeException         if there is an internal error while preparing the report
+     */
+    public SubmissionReceipt execute() throws IOException {
+        if (this.action == null) {
+            throw new IllegalStateException("submission is run in stages, and cannot be executed");
+        }
+        if (!this.executed.compareAndSet(false, true)) {
+            throw new IllegalStateException("submission was already executed");
+        }
+        this.action.run(this);
+        return this.recorder.build();
+    }
+
+    /**
+     * Cancels this submission. Any in-flight HTTP request is canceled, and no further steps are
+     * started. A report that was already uploaded cannot be recalled.
+     */
+    public void cancel() {
+        this.canceled = true;
+        Call call = this.currentCall.get();
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    /**
+     * Checks whether {@link #cancel()} has been called.
+     *
+     * @return  true if this submission was canceled
+     */
+    public boolean isCanceled() {
+        return this.canceled;
+    }
+
+    /**
+     * Gets the deadline of this submission.
+     *
+     * @return  the deadline
+     */
+    public Deadline deadline() {
+        return this.deadline;
+    }
+
+    /**
+     * Gets the recorder for this submission's receipt.
+     */
+    SubmissionReceipt.Recorder recorder() {
+        return this.recorder;
+    }
+
+    /**
+     * Takes the number of bytes charged to the client's bandwidth budget before the report was
+     * prepared, or zero if none were, or they were already taken. Each reservation is taken once,
+     * either to be spent on the upload or to be given back, even if threads race to do both.
+     */
+    int takeReservedBandwidthBytes() {
+        return this.reservedBandwidthBytes.getAndSet(0);
+    }
+
+    void setReservedBandwidthBytes(int reservedBandwidthBytes) {
+        this.reservedBandwidthBytes.set(reservedBandwidthBytes);
+    }
+
+    /**
+     * Throws if this submission was canceled, or its deadline has passed. This is checked before
+     * each step of the submission.
+     *
+     * @param step  a description of the next step, for the exception message
+     */
+    void checkActive(String step) throws IOException {
+        if (this.canceled) {
+            throw new IOException("submission was canceled before " + step);
+        }
+        if (this.deadline.isExpired()) {
+            throw new InterruptedIOException("deadline passed before " + step);
+        }
+    }
+
+    /**
+     * Executes an HTTP request as part of this submission, with a timeout set to the time remaining
+     * until the deadline. The call is canceled if this submission is canceled.
+     */
+    Response executeCall(OkHttpClient client, Request request, String step) throws IOException {
+        this.checkActive(step);
+        Call call = client.newCall(request);
+        if (this.deadline.isLimited()) {
+            // The deadline may have passed since it was checked. A timeout of zero would mean no
+            // timeout at all, so check the same remaining time that is used for the timeout.
+            long remainingNanos = this.deadline.remainingNanos();
+            if (remainingNanos <= 0) {
+                throw new InterruptedIOException("deadline passed before " + step);
+            }
+            call.timeout().timeout(Math.max(1, remainingNanos), TimeUnit.NANOSECONDS);
+        }
+        this.currentCall.set(call);
+        // cancel() may have run between the check above and publishing the call.
+        if (this.canceled) {
+            call.cancel();
+        }
+        return call.execute();
+    }
+
+    interface Action {
+        void run(ReportSubmission submission) throws IOException;
+    }
+}
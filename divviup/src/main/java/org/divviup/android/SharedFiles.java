@@ -0,0 +1,240 @@
+package org.divviup.android;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Helpers for files shared by all of an app's processes.
+ * <p>
+ * Locks exclude both other processes and other threads in this process. File locks are held on
+ * behalf of the whole process, and attempting to take the same lock twice in one process fails, so
+ * each lock file is also guarded by a lock shared by all threads.
+ * <p>
+ * Files are replaced atomically, by renaming a complete temporary file, so they can be read without
+ * holding a lock.
+ */
+final class SharedFiles {
+    static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final long POLL_INTERVAL_MILLIS = 10;
+    private static final ConcurrentHashMap<String, ReentrantLock> THREAD_LOCKS = new ConcurrentHashMap<>();
+
+    private SharedFiles() {
+    }
+
+    /**
+     * Writes a file by writing a temporary file in the same directory, and renaming it over the
+     * target.
+     */
+    static void writeAtomically(File target, byte[] header, byte[] contents, int length) throws IOException {
+        File directory = target.getParentFile();
+        createDirectory(directory);
+        File temporary = File.createTempFile(target.getName(), TEMPORARY_SUFFIX, directory);
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temporary)) {
+                stream.write(header);
+                stream.write(contents, 0, length);
+                stream.getFD().sync();
+            }
+            if (!temporary.renameTo(target)) {
+                throw new IOException("could not rename " + temporary + " to " + target);
+            }
+        } finally {
+            if (temporary.exists() && !temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Reads a whole file.
+     *
+     * @return  the contents of the file, or null if it does not exist
+     */
+    static byte[] readIfExists(File file) throws IOException {
+        try (RandomAccessFile stream = new RandomAccessFile(file, "r")) {
+            long length = stream.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            byte[] contents = new byte[(int) length];
+            stream.readFully(contents);
+            return contents;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Derives a file name from a key, which may contain characters that are not allowed in file
+     * names.
+     */
+    static String hashedName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    static void createDirectory(File directory) throws IOException {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("could not create directory " + directory);
+        }
+    }
+
+    /**
+     * Takes a lock, waiting until it is available, or the submission's deadline passes or it is
+     * canceled.
+     *
+     * @param step  a description of what the lock is needed for, for exception messages
+     */
+    static Held acquire(File lockFile, ReportSubmission submission, String step) throws IOException {
+        return acquire(lockFile, submission, step, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes a lock like {@link #acquire(File, ReportSubmission, String)}, but stops waiting after
+     * the given time.
+     *
+     * @return  the lock, or null if it was still held by another thread or process after the given
+     *          time
+     */
+    static Held acquire(
+            File lockFile,
+            ReportSubmission submission,
+            String step,
+            long maxWait,
+            TimeUnit unit
+    ) throws IOException {
+        long start = System.nanoTime();
+        long maxWaitNanos = unit.toNanos(maxWait);
+        ReentrantLock threadLock = threadLock(lockFile);
+        try {
+            while (!threadLock.tryLock(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                submission.checkActive(step);
+                if (System.nanoTime() - start >= maxWaitNanos) {
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while " + step);
+        }
+        Held held = null;
+        try {
+            while ((held = tryLockFile(lockFile, threadLock)) == null) {
+                submission.checkActive(step);
+                if (System.nanoTime() - start >= maxWaitNanos) {
+                    return null;
+                }
+                try {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while " + step);
+                }
+            }
+            return held;
+        } finally {
+            if (held == null) {
+                threadLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes a lock if it is available immediately.
+     *
+     * @return  the lock, or null if it is held by another thread or process
+     */
+    static Held tryAcquire(File lockFile) throws IOException {
+        ReentrantLock threadLock = threadLock(lockFile);
+        if (!threadLock.tryLock()) {
+            return null;
+        }
+        Held held = null;
+        try {
+            held = tryLockFile(lockFile, threadLock);
+            return held;
+        } finally {
+            if (held == null) {
+                threadLock.unlock();
+            }
+        }
+    }
+
+    private static ReentrantLock threadLock(File lockFile) {
+        String path = lockFile.getAbsolutePath();
+        ReentrantLock lock = THREAD_LOCKS.get(path);
+        if (lock == null) {
+            ReentrantLock newLock = new ReentrantLock();
+            lock = THREAD_LOCKS.putIfAbsent(path, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private static Held tryLockFile(File lockFile, ReentrantLock threadLock) throws IOException {
+        createDirectory(lockFile.getParentFile());
+        RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                file.close();
+                return null;
+            }
+            return new Held(threadLock, file, lock);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A lock that is held until it is closed.
+     */
+    static final class Held implements Closeable {
+        private final ReentrantLock threadLock;
+        private final RandomAccessFile file;
+        private final FileLock lock;
+
+        private Held(ReentrantLock threadLock, RandomAccessFile file, FileLock lock) {
+            this.threadLock = threadLock;
+            this.file = file;
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.lock.release();
+                this.file.close();
+            } finally {
+                this.threadLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.divviup.android;
+
+import java.util.Arrays;
+
+/**
+ * A vector of integers in which most elements are zero, stored as a list of (index, value) pairs
+ * in increasing order of index. This is the measurement type of clients constructed by
+ * {@link Client#createPrio3SumVecSparse}, and avoids allocating a full-length <code>long[]</code>
+ * when a measurement only touches a few elements. Objects of this class are immutable.
+ */
+public final class SparseVector {
+    private static final SparseVector EMPTY = new SparseVector(new int[0], new long[0]);
+
+    private final int[] indices;
+    private final long[] values;
+
+    private SparseVector(int[] indices, long[] values) {
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Constructs a sparse vector from parallel arrays of indices and values. The arrays are
+     * copied, and may be in any order.
+     *
+     * @param indices                   the indices of elements that may be nonzero
+     * @param values                    the value of each element, at the same position as its
+     *                                  index
+     * @return                          the sparse vector
+     * @throws IllegalArgumentException if the arrays have different lengths, or if any index is
+     *                                  negative or appears more than once
+     */
+    public static SparseVector of(int[] indices, long[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("indices and values must have the same length");
+        }
+        return sorted(indices, values, indices.length, false);
+    }
+
+    /**
+     * Gets a sparse vector with every element equal to zero.
+     *
+     * @return  the empty sparse vector
+     */
+    public static SparseVector empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Constructs a builder, which accumulates elements one at a time.
+     *
+     * @return  a new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets the number of elements stored in this vector, which are the only ones that may be
+     * nonzero.
+     *
+     * @return  the number of (index, value) pairs
+     */
+    public int size() {
+        return this.indices.length;
+    }
+
+    /**
+     * Gets the index of a stored element. Indices increase with position.
+     *
+     * @param position  a position between zero and {@link #size()}, exclusive
+     * @return          the element's index in the full vector
+     */
+    public int getIndex(int position) {
+        return this.indices[position];
+    }
+
+    /**
+     * Gets the value of a stored element.
+     *
+     * @param position  a position between zero and {@link #size()}, exclusive
+     * @return          the element's value
+     */
+    public long getValue(int position) {
+        return this.values[position];
+    }
+
+    int[] indices() {
+        return this.indices;
+    }
+
+    long[] values() {
+        return this.values;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SparseVector)) {
+            return false;
+        }
+        SparseVector other = (SparseVector) o;
+        return Arrays.equals(this.indices, other.indices) && Arrays.equals(this.values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(this.indices) + Arrays.hashCode(this.values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("SparseVector{");
+        for (int i = 0; i < this.indices.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(this.indices[i]).append('=').append(this.values[i]);
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Copies the first count pairs into new arrays sorted by index. If lastWins is set, a repeated
+     * index keeps the value that was given last, otherwise it is rejected.
+     */
+    private static SparseVector sorted(int[] indices, long[] values, int count, boolean lastWins) {
+        // Sort the positions of the pairs by index, breaking ties by position, using one primitive
+        // sort of packed keys.
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (indices[i] < 0) {
+                throw new IllegalArgumentException("indices must not be negative");
+            }
+            keys[i] = ((long) indices[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] sortedIndices = new int[count];
+        long[] sortedValues = new long[count];
+        int size = 0;
+        for (long key : keys) {
+            int index = (int) (key >>> 32);
+            long value = values[(int) key];
+            if (size > 0 && sortedIndices[size - 1] == index) {
+                if (!lastWins) {
+                    throw new IllegalArgumentException("index " + index + " appears more than once");
+                }
+                sortedValues[size - 1] = value;
+            } else {
+                sortedIndices[size] = index;
+                sortedValues[size] = value;
+                size++;
+            }
+        }
+        if (size < count) {
+            sortedIndices = Arrays.copyOf(sortedIndices, size);
+            sortedValues = Arrays.copyOf(sortedValues, size);
+        }
+        return new SparseVector(sortedIndices, sortedValues);
+    }
+
+    /**
+     * Accumulates the elements of a {@link SparseVector}. Setting the same index more than once
+     * keeps the last value. Objects of this class are not thread-safe.
+     */
+    public static final class Builder {
+        private int[] indices = new int[8];
+        private long[] values = new long[8];
+        private int count;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the value of one element.
+         *
+         * @param index                     the element's index in the full vector
+         * @param value                     the element's value
+         * @return                          this builder
+         * @throws IllegalArgumentException if index is negative
+         */
+        public Builder set(int index, long value) {
+            if (index < 0) {
+                throw new IllegalArgumentException("indices must not be negative");
+            }
+            if (this.count == this.indices.length) {
+                this.indices = Arrays.copyOf(this.indices, 2 * this.count);
+                this.values = Arrays.copyOf(this.values, 2 * this.count);
+            }
+            this.indices[this.count] = index;
+            this.values[this.count] = value;
+            this.count++;
+            return this;
+        }
+
+        /**
+         * Constructs a sparse vector from the elements set so far. The builder may continue to be
+         * used afterwards.
+         *
+         * @return  the sparse vector
+         */
+        public SparseVector build() {
+            return sorted(this.indices, this.values, this.count, true);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package org.divviup.android;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Submits measurements through two stages with bounded queues: a preparation stage, with one
+ * thread per processor, which fetches HPKE configs and prepares reports, and an upload stage, with a
+ * separate set of threads, which uploads them. When a stage's queue is full, its
+ * {@link BackpressurePolicy} decides whether to block, drop, or reject work. This keeps thread and
+ * memory usage bounded when measurements arrive in bursts. Objects of this class are thread-safe.
+ *
+ * @param <M>   the type of measurements (determined by the VDAF)
+ */
+public final class SubmissionPipeline<M> {
+    private static final int DEFAULT_UPLOAD_THREADS = 4;
+
+    private final Client<M> client;
+    private final Stage preparationStage, uploadStage;
+
+    /**
+     * Constructs a pipeline with one preparation thread per available processor, and a default
+     * number of upload threads.
+     *
+     * @param client                    the client used to prepare and upload reports
+     * @param queueCapacity             the capacity of each stage's queue
+     * @param policy                    what to do when a stage's queue is full
+     * @throws IllegalArgumentException if queueCapacity is not positive
+     */
+    public SubmissionPipeline(Client<M> client, int queueCapacity, BackpressurePolicy policy) {
+        this(
+                client,
+                Runtime.getRuntime().availableProcessors(),
+                DEFAULT_UPLOAD_THREADS,
+                queueCapacity,
+                policy
+        );
+    }
+
+    /**
+     * Constructs a pipeline.
+     *
+     * @param client                    the client used to prepare and upload reports
+     * @param preparationThreads        the number of threads preparing reports
+     * @param uploadThreads             the number of threads uploading reports
+     * @param queueCapacity             the capacity of each stage's queue
+     * @param policy                    what to do when a stage's queue is full
+     * @throws IllegalArgumentException if the number of threads or queueCapacity is not positive
+     */
+    public SubmissionPipeline(
+            Client<M> client,
+            int preparationThreads,
+            int uploadThreads,
+            int queueCapacity,
+            BackpressurePolicy policy
+    ) {
+        if (preparationThreads <= 0 || uploadThreads <= 0) {
+            throw new IllegalArgumentException("number of threads must be positive");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.client = client;
+        this.uploadStage = new Stage("divviup-upload", uploadThreads, queueCapacity, policy, null);
+        // Once the preparation stage has drained, nothing more can be handed to the upload stage.
+        this.preparationStage = new Stage("divviup-prepare", preparationThreads, queueCapacity, policy, this.uploadStage);
+    }
+
+    /**
+     * Queues a measurement for submission.
+     *
+     * @param measurement                   the measurement to be aggregated
+     * @return                              a future that completes with a receipt when the report
+     *                                      is uploaded, or fails with the cause of an unsuccessful
+     *                                      submission
+     * @throws RejectedExecutionException   if the pipeline is shut down, or the policy is
+     *                                      {@link BackpressurePolicy#REJECT} and the queue is full
+     */
+    public Future<SubmissionReceipt> submit(M measurement) {
+        return this.submit(measurement, Deadline.none());
+    }
+
+    /**
+     * Queues a measurement for submission, which must complete before the given deadline. Time
+     * spent waiting in queues counts towards the deadline.
+     *
+     * @param measurement                   the measurement to be aggregated
+     * @param deadline                      the deadline for the whole submission
+     * @return                              a future that completes with a receipt when the report
+     *                                      is uploaded, or fails with the cause of an unsuccessful
+     *                                      submission. Canceling the future cancels the submission.
+     * @throws RejectedExecutionException   if the pipeline is shut down, or the policy is
+     *                                      {@link BackpressurePolicy#REJECT} and the queue is full
+     */
+    public Future<SubmissionReceipt> submit(M measurement, Deadline deadline) {
+        PipelineTask<M> task = new PipelineTask<>(this.client, measurement, new ReportSubmission(deadline));
+        this.preparationStage.enqueue(new PrepareStep(task));
+        return task;
+    }
+
+    /**
+     * Gets statistics for the stage that fetches HPKE configs and prepares reports.
+     *
+     * @return  a snapshot of the stage's statistics
+     */
+    public StageStats preparationStats() {
+        return this.preparationStage.stats();
+    }
+
+    /**
+     * Gets statistics for the stage that uploads reports.
+     *
+     * @return  a snapshot of the stage's statistics
+     */
+    public StageStats uploadStats() {
+        return this.uploadStage.stats();
+    }
+
+    /**
+     * Stops accepting new measurements. Queued measurements are still prepared and uploaded.
+     */
+    public void shutdown() {
+        this.preparationStage.executor.shutdown();
+    }
+
+    /**
+     * Blocks until all queued measurements have been processed after {@link #shutdown()}, or the
+     * timeout elapses.
+     *
+     * @param timeout   the maximum time to wait
+     * @param unit      the unit of the timeout
+     * @return          true if the pipeline terminated, or false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        return this.preparationStage.executor.awaitTermination(timeout, unit)
+                && this.uploadStage.executor.awaitTermination(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A snapshot of one stage's statistics. Objects of this class are immutable.
+     */
+    public static final class StageStats {
+        private final int queueDepth, activeThreads;
+        private final long started, dropped, rejected, totalWaitNanos, maxWaitNanos;
+
+        StageStats(
+                int queueDepth,
+                int activeThreads,
+                long started,
+                long dropped,
+                long rejected,
+                long totalWaitNanos,
+                long maxWaitNanos
+        ) {
+            this.queueDepth = queueDepth;
+            this.activeThreads = activeThreads;
+            this.started = started;
+            this.dropped = dropped;
+            this.rejected = rejected;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /** @return the number of items currently waiting in the queue */
+        public int getQueueDepth() {
+            return this.queueDepth;
+        }
+
+        /** @return the number of threads currently processing an item */
+        public int getActiveThreads() {
+            return this.activeThreads;
+        }
+
+        /** @return the number of items that have left the queue and started processing */
+        public long getStarted() {
+            return this.started;
+        }
+
+        /** @return the number of items dropped by {@link BackpressurePolicy#DROP_OLDEST} or {@link BackpressurePolicy#DROP_NEWEST} */
+        public long getDropped() {
+            return this.dropped;
+        }
+
+        /** @return the number of items rejected by {@link BackpressurePolicy#REJECT}, or after shutdown */
+        public long getRejected() {
+            return this.rejected;
+        }
+
+        /** @return the mean time items waited in the queue before starting, in nanoseconds */
+        public long getAverageWaitNanos() {
+            return this.started == 0 ? 0 : this.totalWaitNanos / this.started;
+        }
+
+        /** @return the longest time an item waited in the queue before starting, in nanoseconds */
+        public long getMaxWaitNanos() {
+            return this.maxWaitNanos;
+        }
+    }
+
+    /**
+     * One bounded queue and its pool of threads.
+     */
+    private static final class Stage {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong started, dropped, rejected, totalWaitNanos, maxWaitNanos;
+
+        Stage(String name, int threads, int queueCapacity, BackpressurePolicy policy, Stage next) {
+            this.started = new AtomicLong();
+            this.dropped = new AtomicLong();
+            this.rejected = new AtomicLong();
+            this.totalWaitNanos = new AtomicLong();
+            this.maxWaitNanos = new AtomicLong();
+            this.executor = new ThreadPoolExecutor(
+                    threads,
+                    threads,
+                    0,
+                    TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    new NamedThreadFactory(name),
+                    new BackpressureHandler(policy, this)
+            ) {
+                @Override
+                protected void terminated() {
+                    super.terminated();
+                    if (next != null) {
+                        next.executor.shutdown();
+                    }
+                }
+            };
+        }
+
+        void enqueue(StageItem item) {
+            item.stage = this;
+            item.enqueuedNanos = System.nanoTime();
+            this.executor.execute(item);
+        }
+
+        void recordWait(long waitNanos) {
+            this.started.incrementAndGet();
+            this.totalWaitNanos.addAndGet(waitNanos);
+            long max = this.maxWaitNanos.get();
+            while (waitNanos > max && !this.maxWaitNanos.compareAndSet(max, waitNanos)) {
+                max = this.maxWaitNanos.get();
+            }
+        }
+
+        StageStats stats() {
+            return new StageStats(
+                    this.executor.getQueue().size(),
+                    this.executor.getActiveCount(),
+                    this.started.get(),
+                    this.dropped.get(),
+                    this.rejected.get(),
+                    this.totalWaitNanos.get(),
+                    this.maxWaitNanos.get()
+            );
+        }
+    }
+
+    /**
+     * Work queued in a stage. Items that are dropped fail their task's future instead of running.
+     */
+    private abstract static class StageItem implements Runnable {
+        final PipelineTask<?> task;
+        volatile Stage stage;
+        volatile long enqueuedNanos;
+
+        StageItem(PipelineTask<?> task) {
+            this.task = task;
+        }
+
+        @Override
+        public final void run() {
+            this.stage.recordWait(System.nanoTime() - this.enqueuedNanos);
+            if (!this.task.isDone()) {
+                this.runStep();
+            } else {
+                this.task.releaseBandwidth();
+            }
+        }
+
+        abstract void runStep();
+    }
+
+    private final class PrepareStep extends StageItem {
+        PrepareStep(PipelineTask<M> task) {
+            super(task);
+        }
+
+        @Override
+        void runStep() {
+            @SuppressWarnings("unchecked")
+            PipelineTask<M> task = (PipelineTask<M>) this.task;
+            try {
+                ReportBuffer reportBuffer = client.reportBuffer();
+                if (!client.fetchConfigsAndPrepareReport(task.measurement, task.submission, reportBuffer, true)) {
+                    // A budget sampled the measurement out, so there is nothing to upload.
+                    task.succeed();
+                    return;
+                }
+                // The buffer belongs to this thread, so the report is copied out before it is
+                // handed to the upload stage.
+                task.report = Arrays.copyOf(reportBuffer.array(), reportBuffer.length());
+                if (task.isDone()) {
+                    // The task was canceled while the report was prepared, perhaps before its
+                    // bandwidth was reserved, so the reservation could not be given back then.
+                    task.releaseBandwidth();
+                    return;
+                }
+                uploadStage.enqueue(new UploadStep(task));
+            } catch (IOException | RuntimeException e) {
+                task.fail(e);
+            }
+        }
+    }
+
+    private final class UploadStep extends StageItem {
+        UploadStep(PipelineTask<M> task) {
+            super(task);
+        }
+
+        @Override
+        void runStep() {
+            // The report is cleared when the task completes, which a cancellation may have done
+            // since the stage checked it.
+            byte[] report = this.task.report;
+            if (report == null) {
+                this.task.releaseBandwidth();
+                return;
+            }
+            try {
+                client.uploadReport(report, report.length, this.task.submission);
+                this.task.succeed();
+            } catch (IOException | RuntimeException e) {
+                this.task.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Applies a {@link BackpressurePolicy} when a stage's queue is full.
+     */
+    private static final class BackpressureHandler implements RejectedExecutionHandler {
+        private final BackpressurePolicy policy;
+        private final Stage stage;
+
+        BackpressureHandler(BackpressurePolicy policy, Stage stage) {
+            this.policy = policy;
+            this.stage = stage;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                this.stage.rejected.incrementAndGet();
+                throw new RejectedExecutionException("submission pipeline is shut down");
+            }
+            switch (this.policy) {
+                case BLOCK:
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        this.stage.rejected.incrementAndGet();
+                        throw new RejectedExecutionException("interrupted while waiting for queue space", e);
+                    }
+                    // If the stage shut down while this waited, its threads may already have
+                    // exited, and nothing would take the item off the queue.
+                    if (executor.isShutdown() && executor.getQueue().remove(runnable)) {
+                        this.stage.rejected.incrementAndGet();
+                        throw new RejectedExecutionException("submission pipeline is shut down");
+                    }
+                    break;
+                case DROP_OLDEST:
+                    Runnable oldest = executor.getQueue().poll();
+                    if (oldest != null) {
+                        this.stage.dropped.incrementAndGet();
+                        failDropped(oldest);
+                    }
+                    executor.execute(runnable);
+                    break;
+                case DROP_NEWEST:
+                    this.stage.dropped.incrementAndGet();
+                    failDropped(runnable);
+                    break;
+                case REJECT:
+                default:
+                    this.stage.rejected.incrementAndGet();
+                    throw new RejectedExecutionException("submission pipeline queue is full");
+            }
+        }
+    }
+
+    private static void failDropped(Runnable runnable) {
+        ((StageItem) runnable).task.fail(new RejectedExecutionException("dropped by backpressure policy"));
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter;
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+            this.counter = new AtomicInteger(0);
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, this.prefix + "-" + this.counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * The state of one measurement as it moves through the pipeline, and the future returned to
+     * the submitter. A task that completes without uploading its report, because it failed, was
+     * dropped, or was canceled, gives back any bandwidth reserved for the report.
+     */
+    private static final class PipelineTask<M> implements Future<SubmissionReceipt> {
+        private static final int PENDING = 0, SUCCEEDED = 1, FAILED = 2, CANCELED = 3;
+
+        private final Client<M> client;
+        final M measurement;
+        final ReportSubmission submission;
+        volatile byte[] report;
+        private final AtomicInteger state;
+        private final CountDownLatch done;
+        private volatile Throwable failure;
+
+        PipelineTask(Client<M> client, M measurement, ReportSubmission submission) {
+            this.client = client;
+            this.measurement = measurement;
+            this.submission = submission;
+            this.state = new AtomicInteger(PENDING);
+            this.done = new CountDownLatch(1);
+        }
+
+        void succeed() {
+            this.complete(SUCCEEDED, null);
+        }
+
+        void fail(Throwable failure) {
+            this.complete(FAILED, failure);
+        }
+
+        void releaseBandwidth() {
+            this.client.releaseBandwidth(this.submission);
+        }
+
+        private boolean complete(int newState, Throwable failure) {
+            if (!this.state.compareAndSet(PENDING, newState)) {
+                return false;
+            }
+            this.failure = failure;
+            // Release the report as soon as it is no longer needed.
+            this.report = null;
+            if (newState != SUCCEEDED) {
+                this.releaseBandwidth();
+            }
+            this.done.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (this.complete(CANCELED, null)) {
+                this.submission.cancel();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.state.get() == CANCELED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.state.get() != PENDING;
+        }
+
+        @Override
+        public SubmissionReceipt get() throws InterruptedException, ExecutionException {
+            this.done.await();
+            return this.result();
+        }
+
+        @Override
+        public SubmissionReceipt get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!this.done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return this.result();
+        }
+
+        private SubmissionReceipt result() throws ExecutionException {
+            switch (this.state.get()) {
+                case CANCELED:
+                    throw new CancellationException();
+                case FAILED:
+                    throw new ExecutionException(this.failure);
+                default:
+                    return this.submission.recorder().build();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.divviup.android;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A record of one submission of a measurement: the report's DAP report ID and timestamp, which
+ * identify it in aggregator logs, its encoded size, where each aggregator's HPKE config list came
+ * from, and how long each {@link Stage} took. Receipts are returned by
+ * {@link Client#sendMeasurement(Object, Deadline)}, {@link ReportSubmission#execute()},
+ * {@link SubmissionPipeline#submit(Object, Deadline)}, and
+ * {@link Client#queueMeasurement(Object, ReportOutbox)}. Objects of this class are immutable.
+ */
+public final class SubmissionReceipt {
+    /**
+     * Where an aggregator's HPKE config list came from.
+     */
+    public enum ConfigSource {
+        /**
+         * A fresh config list stored by an earlier submission, in this or another process.
+         */
+        STORE,
+        /**
+         * A config list shipped with the app, in an {@link HpkeConfigSeed}.
+         */
+        SEED,
+        /**
+         * The aggregator, which was contacted while the submission waited, either by this
+         * submission or by a concurrent one fetching the same config list.
+         */
+        NETWORK,
+    }
+
+    /**
+     * A stage of a submission.
+     */
+    public enum Stage {
+        /**
+         * Getting both aggregators' HPKE config lists.
+         */
+        FETCH_CONFIGS,
+        /**
+         * Preparing and encoding the report.
+         */
+        PREPARE,
+        /**
+         * Waiting for the delay chosen by an {@link UploadScheduler}, if any.
+         */
+        SCHEDULE,
+        /**
+         * Uploading the report to the leader.
+         */
+        UPLOAD,
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final byte[] reportId;
+    private final long reportTimeSeconds;
+    private final int encodedBytes;
+    private final ConfigSource leaderConfigSource, helperConfigSource;
+    private final long[] stageNanos;
+    private final boolean uploaded;
+
+    private SubmissionReceipt(Recorder recorder) {
+        this.reportId = recorder.reportId;
+        this.reportTimeSeconds = recorder.reportTimeSeconds;
+        this.encodedBytes = recorder.encodedBytes;
+        this.leaderConfigSource = recorder.leaderConfigSource;
+        this.helperConfigSource = recorder.helperConfigSource;
+        this.stageNanos = recorder.stageNanos.clone();
+        this.uploaded = recorder.uploaded;
+    }
+
+    /**
+     * Gets the report's DAP report ID, in unpadded base64url, as aggregators log it.
+     *
+     * @return  the report ID, or null if no report was prepared, because a {@link CpuBudget} or
+     *          {@link BandwidthBudget} sampled the measurement out
+     */
+    public String getReportId() {
+        return this.reportId != null ? Base64Url.encode(this.reportId) : null;
+    }
+
+    /**
+     * Gets the report's timestamp, which is rounded down to the task's time precision.
+     *
+     * @return  the timestamp, in seconds since the epoch, or 0 if no report was prepared
+     */
+    public long getReportTimeSeconds() {
+        return this.reportTimeSeconds;
+    }
+
+    /**
+     * Gets the size of the encoded report.
+     *
+     * @return  the size in bytes, or 0 if no report was prepared
+     */
+    public int getEncodedBytes() {
+        return this.encodedBytes;
+    }
+
+    /**
+     * Gets where the leader's HPKE config list came from.
+     *
+     * @return  the source, or null if it was not needed
+     */
+    public ConfigSource getLeaderConfigSource() {
+        return this.leaderConfigSource;
+    }
+
+    /**
+     * Gets where the helper's HPKE config list came from.
+     *
+     * @return  the source, or null if it was not needed
+     */
+    public ConfigSource getHelperConfigSource() {
+        return this.helperConfigSource;
+    }
+
+    /**
+     * Gets the time spent in a stage. Time spent waiting in a {@link SubmissionPipeline}'s queues
+     * is not included in any stage.
+     *
+     * @param stage the stage
+     * @param unit  the unit of the result
+     * @return      the time, which is zero if the stage did not run
+     */
+    public long getDuration(Stage stage, TimeUnit unit) {
+        return unit.convert(this.stageNanos[stage.ordinal()], TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Checks whether the report was uploaded. It is not if the measurement was sampled out by a
+     * {@link CpuBudget} or {@link BandwidthBudget}, or if the report was queued in a
+     * {@link ReportOutbox}.
+     *
+     * @return  true if the leader accepted the report
+     */
+    public boolean isUploaded() {
+        return this.uploaded;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("SubmissionReceipt{reportId=")
+                .append(this.getReportId())
+                .append(", time=")
+                .append(this.reportTimeSeconds)
+                .append(", bytes=")
+                .append(this.encodedBytes)
+                .append(", leaderConfig=")
+                .append(this.leaderConfigSource)
+                .append(", helperConfig=")
+                .append(this.helperConfigSource)
+                .append(", uploaded=")
+                .append(this.uploaded);
+        for (Stage stage : STAGES) {
+            builder.append(", ")
+                    .append(stage)
+                    .append("=")
+                    .append(this.getDuration(stage, TimeUnit.MICROSECONDS))
+                    .append("us");
+        }
+        return builder.append("}").toString();
+    }
+
+    /**
+     * Collects the details of a submission as its stages run. Stages may run on different threads,
+     * as long as each hands off to the next through a happens-before edge, such as a queue.
+     */
+    static final class Recorder {
+        private byte[] reportId;
+        private long reportTimeSeconds;
+        private int encodedBytes;
+        private ConfigSource leaderConfigSource, helperConfigSource;
+        private final long[] stageNanos = new long[STAGES.length];
+        private boolean uploaded;
+
+        void configSource(boolean leader, ConfigSource source) {
+            if (leader) {
+                this.leaderConfigSource = source;
+            } else {
+                this.helperConfigSource = source;
+            }
+        }
+
+        void stage(Stage stage, long startNanos) {
+            this.stageNanos[stage.ordinal()] += System.nanoTime() - startNanos;
+        }
+
+        /**
+         * Records the report ID and timestamp from the start of an encoded report, which begins
+         * with its metadata: a 16-byte report ID, and a 64-bit timestamp in seconds.
+         */
+        void report(byte[] report, int length) {
+            this.reportId = Arrays.copyOf(report, 16);
+            long time = 0;
+            for (int i = 16; i < 24; i++) {
+                time = (time << 8) | (report[i] & 0xff);
+            }
+            this.reportTimeSeconds = time;
+            this.encodedBytes = length;
+        }
+
+        void uploaded() {
+            this.uploaded = true;
+        }
+
+        /**
+         * Gets the timestamp recorded by {@link #report(byte[], int)}.
+         */
+        long reportTimeSeconds() {
+            return this.reportTimeSeconds;
+        }
+
+        SubmissionReceipt build() {
+            return new SubmissionReceipt(this);
+        }
+    }
+}
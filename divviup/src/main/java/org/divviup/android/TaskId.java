@@ -1,7 +1,5 @@
 package org.divviup.android;
 
-import android.util.Base64;
-
 /**
  * A DAP task identifier. This is the unique identifier that clients, aggregators, and collectors
  * use to distinguish between different kinds of measurements, and associate reports with a task.
@@ -23,10 +21,7 @@ public class TaskId {
      * @return  the task ID in un-padded base64url form
      */
     public String encodeToString() {
-        return Base64.encodeToString(
-                this.bytes,
-                Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE
-        );
+        return Base64Url.encode(this.bytes);
     }
 
     /**
@@ -38,11 +33,7 @@ public class TaskId {
      *                                  it does not decode to 32 bytes
      */
     public static TaskId parse(String input) {
-        byte[] bytes = Base64.decode(
-                input,
-                Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE
-        );
-        return new TaskId(bytes);
+        return new TaskId(Base64Url.decode(input));
     }
 
     /**
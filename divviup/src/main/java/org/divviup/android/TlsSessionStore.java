@@ -0,0 +1,308 @@
+package org.divviup.android;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * A store of TLS sessions in the app's cache directory, so that new processes can resume sessions
+ * with aggregators instead of performing full handshakes. Resumption saves at least one round trip
+ * and the cost of verifying the aggregator's certificate chain before the first report of each
+ * process is uploaded. Attach a store to clients and outboxes with
+ * {@link Client#withTlsSessionStore(TlsSessionStore)} and
+ * {@link ReportOutbox#withTlsSessionStore(TlsSessionStore)}. Objects of this class are thread-safe,
+ * and one store may be shared by many clients.
+ * <p>
+ * Sessions are kept for at most the given maximum age, and the least recently stored sessions are
+ * removed once more than the given number are stored. Servers may refuse to resume a session
+ * earlier, in which case a full handshake is performed as usual. Stored sessions contain secrets
+ * that allow resumption, so the store must only be placed in a directory that is private to the
+ * app.
+ * <p>
+ * Persisting sessions requires the <a href="https://conscrypt.org/">Conscrypt</a> TLS provider,
+ * {@code org.conscrypt:conscrypt-android}, which the app must depend on. Without it, stores can
+ * still be attached, but sessions are only cached in memory, as they are by default.
+ */
+public final class TlsSessionStore {
+    private static final String DIRECTORY_NAME = "divviup-tls-sessions";
+    private static final String SESSION_SUFFIX = ".session";
+    private static final int HEADER_LENGTH = 8;
+    private static final boolean CONSCRYPT_AVAILABLE = isConscryptAvailable();
+
+    private final File directory;
+    private final int maxSessions;
+    private final long maxAgeMillis;
+    private final X509TrustManager trustManager;
+    private OkHttpClient httpClient;
+
+    private TlsSessionStore(File directory, int maxSessions, long maxAgeMillis, X509TrustManager trustManager) {
+        this.directory = directory;
+        this.maxSessions = maxSessions;
+        this.maxAgeMillis = maxAgeMillis;
+        this.trustManager = trustManager;
+    }
+
+    /**
+     * Opens a store in the app's cache directory. Every process that opens the store shares its
+     * sessions.
+     *
+     * @param context                   the app's {@link Context}. This is used to access the cache
+     *                                  directory.
+     * @param maxSessions               the largest number of sessions to store
+     * @param maxAge                    how long a session may be stored, after it was established
+     * @param unit                      the unit of maxAge
+     * @return                          the store
+     * @throws IllegalArgumentException if maxSessions or maxAge is not positive
+     */
+    public static TlsSessionStore open(Context context, int maxSessions, long maxAge, TimeUnit unit) {
+        return open(context.getCacheDir(), maxSessions, maxAge, unit);
+    }
+
+    /**
+     * Opens a store in the given cache directory. Every process that opens a store in the same
+     * directory shares its sessions. This allows stores to be used on a plain JVM, without a
+     * {@link Context}.
+     *
+     * @param cacheDir                  a directory to store sessions in, which may be shared by
+     *                                  several processes
+     * @param maxSessions               the largest number of sessions to store
+     * @param maxAge                    how long a session may be stored, after it was established
+     * @param unit                      the unit of maxAge
+     * @return                          the store
+     * @throws IllegalArgumentException if maxSessions or maxAge is not positive
+     */
+    public static TlsSessionStore open(File cacheDir, int maxSessions, long maxAge, TimeUnit unit) {
+        return open(cacheDir, maxSessions, maxAge, unit, null);
+    }
+
+    /**
+     * Opens a store whose connections trust the given certificates, instead of the system's
+     * trusted certificate authorities. This is used by tests.
+     */
+    static TlsSessionStore open(
+            File cacheDir,
+            int maxSessions,
+            long maxAge,
+            TimeUnit unit,
+            X509TrustManager trustManager
+    ) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException("maxSessions must be positive");
+        }
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("maxAge must be positive");
+        }
+        return new TlsSessionStore(new File(cacheDir, DIRECTORY_NAME), maxSessions, unit.toMillis(maxAge), trustManager);
+    }
+
+    /**
+     * Checks whether sessions are persisted, which requires the Conscrypt TLS provider.
+     *
+     * @return  false if sessions are only cached in memory
+     */
+    public boolean isPersistent() {
+        return CONSCRYPT_AVAILABLE;
+    }
+
+    /**
+     * Gets an HTTP client whose TLS connections use this store. It shares its connection pool and
+     * threads with {@link Client#getHTTPClient()}.
+     */
+    synchronized OkHttpClient httpClient() {
+        // Every connection made through the client shares one SSLContext, which also keeps an
+        // in-memory cache of sessions, so it is constructed once per store.
+        if (this.httpClient == null) {
+            OkHttpClient base = Client.getHTTPClient();
+            if (!CONSCRYPT_AVAILABLE) {
+                this.httpClient = this.trustManager == null ? base : withTrustManager(base.newBuilder(), this.trustManager);
+            } else {
+                try {
+                    X509TrustManager trustManager = this.trustManager != null ? this.trustManager : systemTrustManager();
+                    SSLContext sslContext = ConscryptSessions.newSslContext(this, trustManager);
+                    this.httpClient = base.newBuilder()
+                            .sslSocketFactory(sslContext.getSocketFactory(), trustManager)
+                            .build();
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeException("could not set up TLS session store", e);
+                }
+            }
+        }
+        return this.httpClient;
+    }
+
+    /**
+     * Reads a stored session for a server.
+     *
+     * @return  the session's encoding, or null if there is no fresh session
+     */
+    byte[] read(String host, int port) throws IOException {
+        File file = this.sessionFile(host, port);
+        byte[] contents = SharedFiles.readIfExists(file);
+        if (contents == null) {
+            return null;
+        }
+        if (contents.length < HEADER_LENGTH || ByteBuffer.wrap(contents).getLong() <= System.currentTimeMillis()) {
+            delete(file);
+            return null;
+        }
+        return Arrays.copyOfRange(contents, HEADER_LENGTH, contents.length);
+    }
+
+    /**
+     * Stores a session for a server, replacing any previous one.
+     *
+     * @param createdAtMillis   the wall-clock time at which the session was established
+     */
+    void write(String host, int port, long createdAtMillis, byte[] session) throws IOException {
+        long expiresAtMillis = Math.min(createdAtMillis, System.currentTimeMillis()) + this.maxAgeMillis;
+        byte[] header = ByteBuffer.allocate(HEADER_LENGTH).putLong(expiresAtMillis).array();
+        File file = this.sessionFile(host, port);
+        SharedFiles.writeAtomically(file, header, session, session.length);
+        this.trim(file);
+    }
+
+    /**
+     * Removes expired sessions, and then the least recently written sessions beyond the limit,
+     * other than the one that was just written.
+     */
+    private void trim(File written) throws IOException {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> sessions = new ArrayList<>(files.length);
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (!file.getName().endsWith(SESSION_SUFFIX) || file.equals(written)) {
+                continue;
+            }
+            if (file.lastModified() + this.maxAgeMillis <= now) {
+                delete(file);
+            } else {
+                sessions.add(file);
+            }
+        }
+        int excess = sessions.size() + 1 - this.maxSessions;
+        if (excess <= 0) {
+            return;
+        }
+        Collections.sort(sessions, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < excess; i++) {
+            delete(sessions.get(i));
+        }
+    }
+
+    private File sessionFile(String host, int port) {
+        String key = host.toLowerCase(Locale.ROOT) + ":" + port;
+        return new File(this.directory, SharedFiles.hashedName(key) + SESSION_SUFFIX);
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete() && file.exists()) {
+            throw new IOException("could not delete " + file);
+        }
+    }
+
+    private static X509TrustManager systemTrustManager() throws GeneralSecurityException {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init((KeyStore) null);
+        for (TrustManager trustManager : factory.getTrustManagers()) {
+            if (trustManager instanceof X509TrustManager) {
+                return (X509TrustManager) trustManager;
+            }
+        }
+        throw new GeneralSecurityException("no X509TrustManager is available");
+    }
+
+    private static OkHttpClient withTrustManager(OkHttpClient.Builder builder, X509TrustManager trustManager) {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[] {trustManager}, null);
+            return builder.sslSocketFactory(sslContext.getSocketFactory(), trustManager).build();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("could not set up TLS", e);
+        }
+    }
+
+    private static boolean isConscryptAvailable() {
+        try {
+            Class.forName("org.conscrypt.Conscrypt");
+            return ConscryptSessions.isAvailable();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Connects a store to Conscrypt. This is a separate class, so that it is only loaded when
+     * Conscrypt is on the class path.
+     */
+    private static final class ConscryptSessions implements org.conscrypt.SSLClientSessionCache {
+        private final TlsSessionStore store;
+
+        private ConscryptSessions(TlsSessionStore store) {
+            this.store = store;
+        }
+
+        static boolean isAvailable() {
+            return org.conscrypt.Conscrypt.isAvailable();
+        }
+
+        static SSLContext newSslContext(TlsSessionStore store, X509TrustManager trustManager)
+                throws GeneralSecurityException {
+            SSLContext sslContext = SSLContext.getInstance("TLS", org.conscrypt.Conscrypt.newProvider());
+            sslContext.init(null, new TrustManager[] {trustManager}, null);
+            org.conscrypt.Conscrypt.setClientSessionCache(sslContext, new ConscryptSessions(store));
+            return sslContext;
+        }
+
+        @Override
+        public byte[] getSessionData(String host, int port) {
+            if (host == null) {
+                return null;
+            }
+            try {
+                return this.store.read(host, port);
+            } catch (IOException e) {
+                // A session that can't be read only costs a full handshake.
+                return null;
+            }
+        }
+
+        @Override
+        public void putSessionData(SSLSession session, byte[] sessionData) {
+            if (session.getPeerHost() == null) {
+                return;
+            }
+            try {
+                this.store.write(session.getPeerHost(), session.getPeerPort(), session.getCreationTime(), sessionData);
+            } catch (IOException e) {
+                // Storing sessions is best-effort.
+            }
+        }
+    }
+}
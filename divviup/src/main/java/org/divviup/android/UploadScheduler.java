@@ -0,0 +1,194 @@
+package org.divviup.android;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defers report uploads by a random delay, to spread out the requests that many devices make
+ * when apps record measurements in response to synchronized events, such as the start of a
+ * session. Attach a scheduler to clients with {@link Client#withUploadScheduler(UploadScheduler)}.
+ * Objects of this class are thread-safe, and one scheduler may be shared by many clients.
+ * <p>
+ * Report timestamps are rounded down to a multiple of the task's time precision, so a delay
+ * within the same time-precision bucket reveals nothing further about when the measurement was
+ * recorded. Delays never extend past the end of the bucket that the report's timestamp falls in,
+ * less a guard interval of one second, or a tenth of the time precision if that is shorter, to
+ * allow for the upload itself. Reports whose bucket has already ended are uploaded without delay.
+ * Delays are also shortened to half of the time remaining until a submission's deadline.
+ * <p>
+ * Delays are spent blocking the uploading thread, and are cut short if the submission is
+ * canceled. When clients are used with a {@link SubmissionPipeline}, its upload stage should have
+ * enough threads for the reports that will be waiting at once.
+ */
+public final class UploadScheduler {
+    private static final long MAX_GUARD_MILLIS = 1000;
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    // The rate of the truncated exponential distribution, relative to the length of the window.
+    private static final double EXPONENTIAL_RATE = 4.0;
+
+    /**
+     * The distribution of delays within the window available for an upload.
+     */
+    public enum Distribution {
+        /**
+         * Every delay up to the end of the window is equally likely. This spreads uploads most
+         * evenly.
+         */
+        UNIFORM,
+        /**
+         * Shorter delays are more likely, following an exponential distribution truncated at the
+         * end of the window, with a mean of about a quarter of the window. This flattens spikes
+         * less than {@link #UNIFORM}, but most reports arrive sooner.
+         */
+        EXPONENTIAL,
+    }
+
+    /**
+     * A source of wall-clock time, which tests replace with a virtual clock.
+     */
+    interface Clock {
+        long currentTimeMillis();
+
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    private final long maxDelayMillis;
+    private final Distribution distribution;
+    private final Clock clock;
+    private final Random random;
+
+    private UploadScheduler(long maxDelayMillis, Distribution distribution, Clock clock, Random random) {
+        this.maxDelayMillis = maxDelayMillis;
+        this.distribution = distribution;
+        this.clock = clock;
+        this.random = random;
+    }
+
+    /**
+     * Constructs a scheduler.
+     *
+     * @param maxDelay                  the longest time to defer an upload by. Delays are also
+     *                                  limited by the task's time precision.
+     * @param unit                      the unit of maxDelay
+     * @param distribution              the distribution of delays
+     * @return                          the scheduler
+     * @throws IllegalArgumentException if maxDelay is not positive
+     */
+    public static UploadScheduler create(long maxDelay, TimeUnit unit, Distribution distribution) {
+        return create(maxDelay, unit, distribution, SYSTEM_CLOCK, new Random());
+    }
+
+    /**
+     * Constructs a scheduler with the given clock and source of randomness. This is used by tests.
+     */
+    static UploadScheduler create(
+            long maxDelay,
+            TimeUnit unit,
+            Distribution distribution,
+            Clock clock,
+            Random random
+    ) {
+        if (maxDelay <= 0) {
+            throw new IllegalArgumentException("maxDelay must be positive");
+        }
+        if (distribution == null) {
+            throw new IllegalArgumentException("distribution must not be null");
+        }
+        return new UploadScheduler(unit.toMillis(maxDelay), distribution, clock, random);
+    }
+
+    /**
+     * Gets the longest time that uploads are deferred by.
+     *
+     * @param unit  the unit of the result
+     * @return      the maximum delay
+     */
+    public long getMaxDelay(TimeUnit unit) {
+        return unit.convert(this.maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the distribution of delays.
+     *
+     * @return  the distribution
+     */
+    public Distribution getDistribution() {
+        return this.distribution;
+    }
+
+    /**
+     * Chooses how long to defer an upload that would be made at the given time, for a report with
+     * the given timestamp, which is the start of its time-precision bucket.
+     *
+     * @return  the delay in milliseconds, which may be zero
+     */
+    long chooseDelayMillis(long timePrecisionSeconds, long reportTimeSeconds, long nowMillis) {
+        long precisionMillis = timePrecisionSeconds > Long.MAX_VALUE / 1000L
+                ? Long.MAX_VALUE
+                : timePrecisionSeconds * 1000L;
+        long guardMillis = Math.min(MAX_GUARD_MILLIS, precisionMillis / 10);
+        long reportTimeMillis = reportTimeSeconds > Long.MAX_VALUE / 1000L
+                ? Long.MAX_VALUE
+                : reportTimeSeconds * 1000L;
+        long bucketEndMillis = reportTimeMillis > Long.MAX_VALUE - precisionMillis
+                ? Long.MAX_VALUE
+                : reportTimeMillis + precisionMillis;
+        long untilBoundary = bucketEndMillis - nowMillis;
+        long window = Math.min(this.maxDelayMillis, untilBoundary - guardMillis);
+        if (window <= 0) {
+            return 0;
+        }
+        double fraction = this.sample(this.random.nextDouble());
+        return Math.min((long) (fraction * window), window - 1);
+    }
+
+    /**
+     * Maps a uniform sample from [0, 1) to a fraction of the window, in [0, 1).
+     */
+    private double sample(double uniform) {
+        switch (this.distribution) {
+            case EXPONENTIAL:
+                double scale = 1 - Math.exp(-EXPONENTIAL_RATE);
+                return -Math.log(1 - uniform * scale) / EXPONENTIAL_RATE;
+            case UNIFORM:
+            default:
+                return uniform;
+        }
+    }
+
+    /**
+     * Blocks until a randomly chosen upload time for a report with the given timestamp, unless the
+     * submission is canceled or its deadline passes first.
+     */
+    void await(long timePrecisionSeconds, long reportTimeSeconds, ReportSubmission submission) throws IOException {
+        long delayMillis = this.chooseDelayMillis(timePrecisionSeconds, reportTimeSeconds, this.clock.currentTimeMillis());
+        Deadline deadline = submission.deadline();
+        if (deadline.isLimited()) {
+            delayMillis = Math.min(delayMillis, deadline.timeRemaining(TimeUnit.MILLISECONDS) / 2);
+        }
+        try {
+            // Sleep in short steps, so that cancellation is noticed promptly.
+            for (long remaining = delayMillis; remaining > 0; remaining -= POLL_INTERVAL_MILLIS) {
+                submission.checkActive("uploading report");
+                this.clock.sleep(Math.min(remaining, POLL_INTERVAL_MILLIS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to upload report");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+
+/**
+ * Checks that the number of bytes allocated on the Java heap per call to
+ * {@link Client#sendMeasurement(Object)} stays within a budget, for each VDAF and several parameter
+ * sizes. The budget is a fixed allowance for HTTP exchanges, plus a multiple of the encoded report
+ * size, so that extra copies of large reports are caught.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AllocationBudgetTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 20;
+    /** Allowance for two HPKE config fetches and one upload through OkHttp. */
+    private static final long HTTP_BYTES_BUDGET = 384 * 1024;
+    /** Allowance for copies of the encoded report, between native code and the socket. */
+    private static final long REPORT_COPIES_BUDGET = 4;
+
+    @ClassRule
+    public static final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private static Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void allocationBudgetPrio3Count() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            checkAllocationBudget("Prio3Count", server, client, true);
+        }
+    }
+
+    @Test
+    public void allocationBudgetPrio3Sum() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Sum(mockContext, uri, uri, ZERO_TASK_ID, 300, 32);
+            checkAllocationBudget("Prio3Sum(32)", server, client, 1000000L);
+        }
+    }
+
+    @Test
+    public void allocationBudgetPrio3SumVec() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<long[]> small = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, 10, 8, 12);
+            checkAllocationBudget("Prio3SumVec(10, 8, 12)", server, small, new long[] {252L, 7L, 80L, 194L, 190L, 217L, 141L, 85L, 222L, 243L});
+
+            long[] measurement = new long[4096];
+            Arrays.fill(measurement, 1L);
+            Client<long[]> large = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, 4096, 16, 256);
+            checkAllocationBudget("Prio3SumVec(4096, 16, 256)", server, large, measurement);
+        }
+    }
+
+    @Test
+    public void allocationBudgetPrio3SumVecSparse() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            SparseVector.Builder builder = SparseVector.builder();
+            for (int i = 0; i < 20; i++) {
+                builder.set(i * 200, 1L);
+            }
+            Client<SparseVector> client = Client.createPrio3SumVecSparse(mockContext, uri, uri, ZERO_TASK_ID, 300, 4096, 16, 256);
+            checkAllocationBudget("Prio3SumVecSparse(4096, 16, 256)", server, client, builder.build());
+        }
+    }
+
+    @Test
+    public void allocationBudgetPrio3Histogram() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Long> small = Client.createPrio3Histogram(mockContext, uri, uri, ZERO_TASK_ID, 300, 5, 2);
+            checkAllocationBudget("Prio3Histogram(5, 2)", server, small, 2L);
+
+            Client<Long> large = Client.createPrio3Histogram(mockContext, uri, uri, ZERO_TASK_ID, 300, 1000, 32);
+            checkAllocationBudget("Prio3Histogram(1000, 32)", server, large, 999L);
+        }
+    }
+
+    private static <M> void checkAllocationBudget(
+            String name,
+            MockWebServer server,
+            Client<M> client,
+            M measurement
+    ) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            client.sendMeasurement(measurement);
+        }
+        long reportSize = drainRequests(server);
+
+        long before = AllocationCounter.currentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            client.sendMeasurement(measurement);
+        }
+        long perReport = (AllocationCounter.currentThreadAllocatedBytes() - before) / MEASURED_ITERATIONS;
+        drainRequests(server);
+
+        long budget = HTTP_BYTES_BUDGET + REPORT_COPIES_BUDGET * reportSize;
+        System.out.println(name + ": report " + reportSize + " bytes, allocated " + perReport + " bytes per report, budget " + budget + " bytes");
+        assertTrue(
+                name + ": allocated " + perReport + " bytes per report, budget is " + budget + " bytes",
+                perReport <= budget
+        );
+    }
+
+    /**
+     * Takes all recorded requests from the server, so that they are not retained, and returns the
+     * size of the last uploaded report.
+     */
+    private static long drainRequests(MockWebServer server) throws InterruptedException {
+        long reportSize = 0;
+        // getRequestCount() includes requests that were already taken, so poll until the queue is
+        // empty instead. Each request is recorded before sendMeasurement() returns.
+        RecordedRequest request;
+        while ((request = server.takeRequest(100, TimeUnit.MILLISECONDS)) != null) {
+            if (request.getMethod().equals("PUT")) {
+                assertNotNull(request.getBody());
+                reportSize = request.getBody().size();
+            }
+        }
+        return reportSize;
+    }
+
+    /**
+     * Reads the JVM's per-thread allocation counter. Host tests are compiled against android.jar,
+     * which does not include {@code java.lang.management}, so the platform MXBean is reached
+     * reflectively.
+     */
+    private static class AllocationCounter {
+        private static final Object THREAD_MX_BEAN;
+        private static final Method GET_THREAD_ALLOCATED_BYTES;
+
+        static {
+            try {
+                Class<?> managementFactory = Class.forName("java.lang.management.ManagementFactory");
+                THREAD_MX_BEAN = managementFactory.getMethod("getThreadMXBean").invoke(null);
+                Class<?> threadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+                GET_THREAD_ALLOCATED_BYTES = threadMXBean.getMethod("getThreadAllocatedBytes", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        static long currentThreadAllocatedBytes() throws ReflectiveOperationException {
+            return (long) GET_THREAD_ALLOCATED_BYTES.invoke(THREAD_MX_BEAN, Thread.currentThread().getId());
+        }
+    }
+}
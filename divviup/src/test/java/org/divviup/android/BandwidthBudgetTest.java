@@ -0,0 +1,136 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BandwidthBudgetTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @ClassRule
+    public static final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private static Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void estimateCostMatchesUploadedReport() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<long[]> client = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, 100, 8, 30);
+
+            ReportCost cost = client.estimateCost(new long[100], 3);
+            assertTrue(cost.getAveragePreparationNanos() > 0);
+            assertEquals(0, countUploads(server, 0));
+
+            client.sendMeasurement(new long[100]);
+            assertEquals(1, countUploads(server, cost.getEncodedBytes()));
+        }
+    }
+
+    @Test
+    public void deferringBudget() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> unlimited = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            int reportBytes = unlimited.estimateCost(true, 1).getEncodedBytes();
+            BandwidthBudget budget = BandwidthBudget.deferring(2L * reportBytes, 1, TimeUnit.HOURS);
+            Client<Boolean> client = unlimited.withBandwidthBudget(budget);
+
+            client.sendMeasurement(true);
+            client.sendMeasurement(false);
+            assertEquals(0, budget.remainingBytes());
+            BandwidthBudgetExceededException e = assertThrows(
+                    BandwidthBudgetExceededException.class,
+                    () -> client.sendMeasurement(true)
+            );
+            assertTrue(e.getRetryAfter(TimeUnit.MINUTES) > 0);
+            assertEquals(2, countUploads(server, reportBytes));
+
+            // The original client is not limited.
+            unlimited.sendMeasurement(true);
+            assertEquals(1, countUploads(server, reportBytes));
+        }
+    }
+
+    @Test
+    public void samplingBudget() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> unlimited = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            int reportBytes = unlimited.estimateCost(true, 1).getEncodedBytes();
+            BandwidthBudget budget = BandwidthBudget.sampling(reportBytes, 1, TimeUnit.HOURS, 0);
+            Client<Boolean> client = unlimited.withBandwidthBudget(budget);
+
+            assertNotNull(client.sendMeasurement(true).getReportId());
+            // The size of reports is already known, so sampled out reports are not prepared.
+            for (int i = 0; i < 4; i++) {
+                assertNull(client.sendMeasurement(true).getReportId());
+            }
+            assertEquals(4, budget.reportsSampledOut());
+            assertEquals(1, countUploads(server, reportBytes));
+        }
+    }
+
+    @Test
+    public void reportLargerThanDeferringBudgetIsRejected() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> unlimited = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            int reportBytes = unlimited.estimateCost(true, 1).getEncodedBytes();
+            BandwidthBudget budget = BandwidthBudget.deferring(reportBytes - 1, 1, TimeUnit.HOURS);
+            Client<Boolean> client = unlimited.withBandwidthBudget(budget);
+
+            // Such reports could never be uploaded, so they are not deferred.
+            assertThrows(IllegalArgumentException.class, () -> client.sendMeasurement(true));
+            assertEquals(reportBytes - 1, budget.remainingBytes());
+            assertEquals(0, countUploads(server, reportBytes));
+        }
+    }
+
+    @Test
+    public void invalidBudgets() {
+        assertThrows(IllegalArgumentException.class, () -> BandwidthBudget.deferring(0, 1, TimeUnit.HOURS));
+        assertThrows(IllegalArgumentException.class, () -> BandwidthBudget.deferring(1, 0, TimeUnit.HOURS));
+        assertThrows(IllegalArgumentException.class, () -> BandwidthBudget.sampling(1, 1, TimeUnit.HOURS, 1.5));
+    }
+
+    /**
+     * Takes all requests recorded so far, and counts uploads, checking that each has the expected
+     * size.
+     */
+    private static int countUploads(MockWebServer server, int expectedBytes) throws InterruptedException {
+        int uploads = 0;
+        RecordedRequest request;
+        while ((request = server.takeRequest(100, TimeUnit.MILLISECONDS)) != null) {
+            if (request.getMethod().equals("PUT")) {
+                assertNotNull(request.getBody());
+                assertEquals(expectedBytes, request.getBody().size());
+                uploads++;
+            }
+        }
+        return uploads;
+    }
+}
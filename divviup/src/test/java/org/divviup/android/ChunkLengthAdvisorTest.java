@@ -0,0 +1,82 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ChunkLengthAdvisorTest {
+    @Test
+    public void proofLengthModel() {
+        assertEquals(Arrays.asList(1L, 2L, 3L, 8L), ChunkLengthAdvisor.candidateChunkLengths(8));
+        // 8 elements in chunks of 3 take 3 gadget calls, so P is 4.
+        assertEquals(2 * 3 + 2 * 3 + 1, ChunkLengthAdvisor.proofLength(8, 3));
+        assertEquals(2 * 8 + 2 + 1, ChunkLengthAdvisor.proofLength(8, 8));
+
+        // Prio3SumVec with length 1000 and 8 bits has proofs of 381 field elements with chunk
+        // lengths of either 63 or 127.
+        assertEquals(381, ChunkLengthAdvisor.proofLength(8000, 63));
+        assertEquals(381, ChunkLengthAdvisor.proofLength(8000, 127));
+        assertEquals(63, ChunkLengthAdvisor.optimalChunkLength(8000));
+        assertEquals(1, ChunkLengthAdvisor.optimalChunkLength(1));
+    }
+
+    @Test
+    public void prio3SumVecAdvice() {
+        ChunkLengthAdvisor.Advice advice = ChunkLengthAdvisor.forPrio3SumVec(100, 8, 2);
+        List<ChunkLengthAdvisor.Candidate> candidates = advice.getCandidates();
+        assertEquals(ChunkLengthAdvisor.candidateChunkLengths(800).size(), candidates.size());
+
+        // Share sizes follow the proof length, so the optimal chunk length has the smallest shares.
+        ChunkLengthAdvisor.Candidate optimal = null;
+        boolean recommendedIsCandidate = false;
+        for (ChunkLengthAdvisor.Candidate candidate : candidates) {
+            assertTrue(candidate.getAverageShardTime(TimeUnit.NANOSECONDS) > 0);
+            if (candidate.getChunkLength() == advice.getOptimalChunkLength()) {
+                optimal = candidate;
+            }
+            if (candidate.getChunkLength() == advice.getRecommendedChunkLength()) {
+                recommendedIsCandidate = true;
+            }
+        }
+        assertNotNull(optimal);
+        assertTrue(recommendedIsCandidate);
+        for (ChunkLengthAdvisor.Candidate candidate : candidates) {
+            assertTrue(optimal.getShareBytes() <= candidate.getShareBytes());
+        }
+    }
+
+    @Test
+    public void prio3HistogramAdvice() {
+        ChunkLengthAdvisor.Advice advice = ChunkLengthAdvisor.forPrio3Histogram(50, 1);
+        assertEquals(ChunkLengthAdvisor.optimalChunkLength(50), advice.getOptimalChunkLength());
+        assertFalse(advice.getCandidates().isEmpty());
+    }
+
+    @Test
+    public void invalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> ChunkLengthAdvisor.forPrio3SumVec(0, 8, 1));
+        assertThrows(IllegalArgumentException.class, () -> ChunkLengthAdvisor.forPrio3SumVec(10, 8, 0));
+        assertThrows(IllegalArgumentException.class, () -> ChunkLengthAdvisor.forPrio3Histogram(-1, 1));
+        assertThrows(IllegalArgumentException.class, () -> ChunkLengthAdvisor.forPrio3SumVec(1L << 58, 8, 1));
+        assertThrows(IllegalArgumentException.class, () -> ChunkLengthAdvisor.forPrio3Histogram(Long.MAX_VALUE, 1));
+    }
+
+    @Test
+    public void veryLongMeasurementsDoNotOverflow() {
+        for (long n : new long[] {(1L << 61) + 1, 1L << 62, Long.MAX_VALUE}) {
+            List<Long> chunkLengths = ChunkLengthAdvisor.candidateChunkLengths(n);
+            assertTrue(chunkLengths.get(0) > 0);
+            assertEquals(Long.valueOf(n), chunkLengths.get(chunkLengths.size() - 1));
+            for (int i = 1; i < chunkLengths.size(); i++) {
+                assertTrue(chunkLengths.get(i) > chunkLengths.get(i - 1));
+            }
+        }
+        // At most 2^62 - 1 gadget calls are considered, so each must cover two elements.
+        assertEquals(Long.valueOf(2), ChunkLengthAdvisor.candidateChunkLengths(1L << 62).get(0));
+        assertTrue(ChunkLengthAdvisor.proofLength(ChunkLengthAdvisor.MAX_MEASUREMENT_LENGTH, 1) > 0);
+    }
+}
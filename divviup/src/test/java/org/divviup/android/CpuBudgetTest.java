@@ -0,0 +1,127 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+
+public class CpuBudgetTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+    private static final long COST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void deferringBudgetThrowsOnceExhausted() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        CpuBudget budget = CpuBudget.create(1600, 16_000, TimeUnit.MILLISECONDS, CpuBudget.Overflow.DEFER, clock);
+        for (int i = 0; i < 160; i++) {
+            assertTrue(budget.acquire());
+            prepare(budget, clock);
+        }
+        assertEquals(1600, budget.usedCpuTime(TimeUnit.MILLISECONDS));
+        CpuBudgetExceededException e = assertThrows(CpuBudgetExceededException.class, budget::acquire);
+        assertEquals(16_000, e.getRetryAfter(TimeUnit.MILLISECONDS));
+
+        // The whole window's CPU time was spent in its first bucket, which has now left it.
+        clock.now += TimeUnit.MILLISECONDS.toNanos(16_000);
+        assertEquals(0, budget.usedCpuTime(TimeUnit.MILLISECONDS));
+        assertTrue(budget.acquire());
+    }
+
+    @Test
+    public void windowSlides() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        CpuBudget budget = CpuBudget.create(1600, 16_000, TimeUnit.MILLISECONDS, CpuBudget.Overflow.DEFER, clock);
+        for (int second = 0; second < 32; second++) {
+            for (int i = 0; i < 5; i++) {
+                assertTrue(budget.acquire());
+                prepare(budget, clock);
+            }
+            clock.now += TimeUnit.SECONDS.toNanos(1);
+        }
+        // Only the last 15 seconds, and the current, empty, second are counted.
+        assertEquals(15 * 50, budget.usedCpuTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void samplingRateAdaptsToDemand() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        CpuBudget budget = CpuBudget.create(1600, 16_000, TimeUnit.MILLISECONDS, CpuBudget.Overflow.SAMPLE, clock);
+        assertEquals(1.0, budget.samplingRate(), 0);
+
+        // Measurements arrive at ten times the rate that the budget allows.
+        long offered = 0, prepared = 0;
+        for (int second = 0; second < 64; second++) {
+            for (int i = 0; i < 100; i++) {
+                offered++;
+                if (budget.acquire()) {
+                    prepared++;
+                    prepare(budget, clock);
+                }
+            }
+            clock.now += TimeUnit.SECONDS.toNanos(1);
+        }
+        assertEquals(0.1, budget.samplingRate(), 0.02);
+        assertEquals(offered - prepared, budget.reportsSampledOut());
+        long used = budget.usedCpuTime(TimeUnit.MILLISECONDS);
+        assertTrue("used " + used + " ms", used > 1200 && used < 2000);
+
+        // Once demand falls, every measurement is reported again.
+        clock.now += TimeUnit.SECONDS.toNanos(16);
+        assertEquals(1.0, budget.samplingRate(), 0);
+        assertTrue(budget.acquire());
+    }
+
+    @Test
+    public void clientDefersReportsOnceExhausted() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            // Preparing one report uses up the budget.
+            CpuBudget budget = CpuBudget.deferring(1, TimeUnit.HOURS.toNanos(1), TimeUnit.NANOSECONDS);
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300)
+                    .withCpuBudget(budget);
+            client.sendMeasurement(true);
+            assertTrue(budget.usedCpuTime(TimeUnit.NANOSECONDS) > 0);
+            assertThrows(CpuBudgetExceededException.class, () -> client.sendMeasurement(true));
+        }
+    }
+
+    @Test
+    public void invalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> CpuBudget.sampling(0, 1, TimeUnit.HOURS));
+        assertThrows(IllegalArgumentException.class, () -> CpuBudget.deferring(1, 0, TimeUnit.HOURS));
+    }
+
+    private static void prepare(CpuBudget budget, VirtualClock clock) {
+        long token = budget.startTiming();
+        clock.cpu += COST_NANOS;
+        budget.release(token);
+    }
+
+    /**
+     * A clock that only advances when told to. Preparation takes no wall-clock time.
+     */
+    private static final class VirtualClock implements CpuBudget.Clock {
+        long now = 1_000_000_000L;
+        long cpu;
+
+        @Override
+        public long nanoTime() {
+            return this.now;
+        }
+
+        @Override
+        public long threadCpuTimeNanos() {
+            return this.cpu;
+        }
+    }
+}
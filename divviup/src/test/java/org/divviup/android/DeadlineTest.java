@@ -0,0 +1,121 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockResponse;
+import mockwebserver3.MockWebServer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeadlineTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @ClassRule
+    public static final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private static Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void expiredDeadlineSkipsAllRequests() throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.start();
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            try {
+                client.sendMeasurement(true, Deadline.after(0, TimeUnit.SECONDS));
+                fail("expected deadline to be exceeded");
+            } catch (InterruptedIOException e) {
+                // expected
+            }
+            assertEquals(0, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void veryLongDeadlineDoesNotOverflow() {
+        Deadline deadline = Deadline.after(Long.MAX_VALUE, TimeUnit.DAYS);
+        assertTrue(deadline.isLimited());
+        assertFalse(deadline.isExpired());
+        assertTrue(deadline.timeRemaining(TimeUnit.DAYS) > 100 * 365);
+    }
+
+    @Test
+    public void deadlineBoundsSlowConfigFetch() throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(slowResponse());
+            server.start();
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            long start = System.nanoTime();
+            try {
+                client.sendMeasurement(true, Deadline.after(500, TimeUnit.MILLISECONDS));
+                fail("expected deadline to be exceeded");
+            } catch (InterruptedIOException e) {
+                // expected
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 5000);
+            assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void cancelInterruptsSubmission() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(slowResponse());
+            server.start();
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            ReportSubmission submission = client.newSubmission(true, Deadline.none());
+
+            Thread canceler = new Thread(() -> {
+                try {
+                    server.takeRequest();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                submission.cancel();
+            });
+            canceler.start();
+            try {
+                submission.execute();
+                fail("expected submission to be canceled");
+            } catch (IOException e) {
+                // expected
+            }
+            canceler.join();
+            assertTrue(submission.isCanceled());
+            assertEquals(1, server.getRequestCount());
+            assertThrows(IllegalStateException.class, submission::execute);
+        }
+    }
+
+    private static MockResponse slowResponse() {
+        return new MockResponse.Builder()
+                .code(200)
+                .addHeader("Content-Type", "application/dap-hpke-config-list")
+                .headersDelay(10, TimeUnit.SECONDS)
+                .build();
+    }
+}
@@ -0,0 +1,120 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mockwebserver3.MockWebServer;
+
+/**
+ * Simulates a fleet of devices, each with its own client and cache directory, sending reports
+ * concurrently. Clients are constructed from plain directories, without an Android
+ * {@code Context}, and run on virtual threads when the JVM supports them (JDK 21 and later), so
+ * that very large fleets fit on one machine. Otherwise, a fixed pool of platform threads is used.
+ * <p>
+ * By default, a small fleet sends reports to a mock aggregator. To load-test real aggregators,
+ * set {@code divviup.fleet.leader}, {@code divviup.fleet.helper}, {@code divviup.fleet.taskId}, and
+ * {@code divviup.fleet.timePrecision} (for a Prio3Count task), and size the fleet with
+ * {@code divviup.fleet.clients} and {@code divviup.fleet.reportsPerClient}.
+ */
+public class FleetSimulatorTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+    private static final int PLATFORM_THREADS = 64;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void fleetSendsReports() throws Exception {
+        int clients = Integer.getInteger("divviup.fleet.clients", 200);
+        int reportsPerClient = Integer.getInteger("divviup.fleet.reportsPerClient", 2);
+        String leader = System.getProperty("divviup.fleet.leader");
+        if (leader != null) {
+            URI leaderUri = URI.create(leader);
+            URI helperUri = URI.create(System.getProperty("divviup.fleet.helper"));
+            TaskId taskId = TaskId.parse(System.getProperty("divviup.fleet.taskId"));
+            long timePrecision = Long.getLong("divviup.fleet.timePrecision", 300);
+            runFleet(clients, reportsPerClient, leaderUri, helperUri, taskId, timePrecision);
+        } else {
+            try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+                URI uri = server.url("/").uri();
+                runFleet(clients, reportsPerClient, uri, uri, ZERO_TASK_ID, 300);
+            }
+        }
+    }
+
+    private void runFleet(
+            int clients,
+            int reportsPerClient,
+            URI leaderEndpoint,
+            URI helperEndpoint,
+            TaskId taskId,
+            long timePrecisionSeconds
+    ) throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        ExecutorService executor = newFleetExecutor();
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> devices = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                File cacheDir = temporaryFolder.newFolder("device-" + i);
+                boolean measurement = i % 2 == 0;
+                devices.add(executor.submit(() -> {
+                    Client<Boolean> client = Client.createPrio3Count(
+                            cacheDir,
+                            leaderEndpoint,
+                            helperEndpoint,
+                            taskId,
+                            timePrecisionSeconds
+                    );
+                    for (int j = 0; j < reportsPerClient; j++) {
+                        client.sendMeasurement(measurement);
+                        sent.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> device : devices) {
+                device.get(5, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(clients * reportsPerClient, sent.get());
+        System.out.println(clients + " clients sent " + sent.get() + " reports in " + elapsedMillis + " ms");
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task, if {@code Thread.ofVirtual()} is
+     * available, or a fixed pool of platform threads otherwise. Virtual threads are looked up by
+     * reflection, since the library and its tests target Java 8.
+     */
+    private static ExecutorService newFleetExecutor() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Method factory = ofVirtual.getReturnType().getMethod("factory");
+            ThreadFactory threadFactory = (ThreadFactory) factory.invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(PLATFORM_THREADS);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import org.divviup.commontest.InProcessAggregator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.Dispatcher;
+import mockwebserver3.MockResponse;
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+import okhttp3.Headers;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HpkeConfigSeedTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private Context mockContext;
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private AssetManager mockAssets;
+
+    private byte[] configList;
+
+    @Before
+    public void initMock() throws IOException {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+        when(mockContext.getAssets()).thenReturn(mockAssets);
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("hpke_config_list.bin")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            configList = out.toByteArray();
+        }
+    }
+
+    @Test
+    public void firstReportUploadsBeforeFetchingConfigs() throws Exception {
+        // Config list requests are only answered, with an error, once a report has been uploaded.
+        CountDownLatch uploaded = new CountDownLatch(1);
+        CountDownLatch fetched = new CountDownLatch(1);
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    if (request.getMethod().equals("PUT")) {
+                        uploaded.countDown();
+                        return new MockResponse(200, Headers.EMPTY, "");
+                    }
+                    try {
+                        uploaded.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    fetched.countDown();
+                    return new MockResponse(503, Headers.EMPTY, "");
+                }
+            });
+            server.start();
+            URI uri = server.url("/").uri();
+            HpkeConfigSeed seed = HpkeConfigSeed.of(configList, configList, System.currentTimeMillis() + 60_000);
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300)
+                    .withHpkeConfigSeed(seed);
+            client.sendMeasurement(true);
+
+            // The seed is revalidated in the background.
+            assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void expiredSeedIsFetched() throws Exception {
+        try (InProcessAggregator aggregator = InProcessAggregator.startPrio3Count()) {
+            URI uri = aggregator.uri();
+            HpkeConfigSeed seed = HpkeConfigSeed.of(configList, configList, System.currentTimeMillis() - 1);
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300)
+                    .withHpkeConfigSeed(seed);
+            client.sendMeasurement(true);
+
+            assertEquals("GET", aggregator.getServer().takeRequest(10, TimeUnit.SECONDS).getMethod());
+            assertEquals("PUT", aggregator.getServer().takeRequest(10, TimeUnit.SECONDS).getMethod());
+            assertArrayEquals(new long[] {1}, aggregator.getAggregate());
+        }
+    }
+
+    @Test
+    public void seedIsReadFromAssets() throws IOException {
+        when(mockAssets.open("leader.bin")).thenReturn(new ByteArrayInputStream(configList));
+        when(mockAssets.open("helper.bin")).thenReturn(new ByteArrayInputStream(configList));
+        HpkeConfigSeed seed = HpkeConfigSeed.fromAssets(mockContext, "leader.bin", "helper.bin", 1234);
+        assertArrayEquals(configList, seed.configList(true));
+        assertArrayEquals(configList, seed.configList(false));
+        assertEquals(1234, seed.getExpiresAtMillis());
+    }
+
+    @Test
+    public void malformedSeedsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> HpkeConfigSeed.of(new byte[] {0, 0}, configList, 0));
+        assertThrows(IllegalArgumentException.class, () -> HpkeConfigSeed.of(configList, new byte[] {0, 5, 1}, 0));
+    }
+}
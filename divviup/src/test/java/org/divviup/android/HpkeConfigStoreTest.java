@@ -0,0 +1,266 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class HpkeConfigStoreTest {
+    private static final String KEY = "https://leader.example.com/hpke_config?task_id=AAAA";
+    private static final byte[] CONFIG_LIST = {0, 1, 2, 3};
+    private static final int THREADS = 8;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HpkeConfigStore store;
+
+    @Before
+    public void createStore() throws IOException {
+        store = new HpkeConfigStore(temporaryFolder.newFolder("cache"));
+    }
+
+    @Test
+    public void concurrentFetchesShareOneRequest() throws Exception {
+        // The config list is not cacheable, so only coalescing prevents each thread from fetching.
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> results = runConcurrently(() -> {
+            fetches.incrementAndGet();
+            await(release);
+            return new HpkeConfigStore.FetchedConfigList(CONFIG_LIST, 0);
+        }, release);
+
+        assertEquals(1, fetches.get());
+        for (Object result : results) {
+            assertArrayEquals(CONFIG_LIST, (byte[]) result);
+        }
+    }
+
+    @Test
+    public void failuresAreSharedWithWaiters() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> results = runConcurrently(() -> {
+            fetches.incrementAndGet();
+            await(release);
+            throw new IOException("aggregator unavailable");
+        }, release);
+
+        assertEquals(1, fetches.get());
+        for (Object result : results) {
+            assertTrue(result instanceof IOException);
+            assertTrue(((IOException) result).getMessage().contains("aggregator unavailable"));
+        }
+    }
+
+    @Test
+    public void waitersRetryWhenFetchingThreadGivesUp() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch firstFetchStarted = new CountDownLatch(1);
+        HpkeConfigStore.Fetcher fetcher = () -> {
+            if (fetches.incrementAndGet() == 1) {
+                firstFetchStarted.countDown();
+                sleep(300);
+                throw new InterruptedIOException("timeout");
+            }
+            return new HpkeConfigStore.FetchedConfigList(CONFIG_LIST, 0);
+        };
+        AtomicReference<Exception> impatientFailure = new AtomicReference<>();
+        Thread impatient = new Thread(() -> {
+            ReportSubmission submission = new ReportSubmission(Deadline.after(100, TimeUnit.MILLISECONDS));
+            try {
+                store.getOrFetch(KEY, submission, fetcher);
+            } catch (IOException e) {
+                impatientFailure.set(e);
+            }
+        });
+        impatient.start();
+        firstFetchStarted.await();
+
+        byte[] result = store.getOrFetch(KEY, new ReportSubmission(Deadline.none()), fetcher);
+        impatient.join();
+        assertTrue(impatientFailure.get() instanceof InterruptedIOException);
+        assertArrayEquals(CONFIG_LIST, result);
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void waitersRespectTheirOwnDeadline() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fetchStarted = new CountDownLatch(1);
+        Thread slow = new Thread(() -> {
+            try {
+                store.getOrFetch(KEY, new ReportSubmission(Deadline.none()), () -> {
+                    fetchStarted.countDown();
+                    await(release);
+                    return new HpkeConfigStore.FetchedConfigList(CONFIG_LIST, 0);
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        slow.start();
+        fetchStarted.await();
+
+        ReportSubmission submission = new ReportSubmission(Deadline.after(50, TimeUnit.MILLISECONDS));
+        assertThrows(InterruptedIOException.class, () -> store.getOrFetch(KEY, submission, () -> {
+            throw new AssertionError("waiting thread should not fetch");
+        }));
+        release.countDown();
+        slow.join();
+    }
+
+    @Test
+    public void seedIsUsedAndRevalidatedInBackground() throws Exception {
+        byte[] seed = {0, 1, 9, 9};
+        List<Runnable> background = new ArrayList<>();
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        HpkeConfigStore.Revalidator revalidator =
+                submission -> new HpkeConfigStore.FetchedConfigList(CONFIG_LIST, expiresAt);
+
+        // The seed is returned at once, and the aggregator's config list is fetched later.
+        assertArrayEquals(seed, store.getOrSeed(KEY, seed, expiresAt, background::add, revalidator));
+        assertArrayEquals(seed, store.getOrSeed(KEY, seed, expiresAt, background::add, revalidator));
+        assertEquals(1, background.size());
+        background.get(0).run();
+
+        // The aggregator rotated its keys, so the stored config list replaces the seed.
+        assertArrayEquals(CONFIG_LIST, store.getOrSeed(KEY, seed, expiresAt, background::add, revalidator));
+        assertEquals(1, background.size());
+    }
+
+    @Test
+    public void uncacheableRotationSupersedesSeed() throws Exception {
+        byte[] seed = {0, 1, 9, 9};
+        List<Runnable> background = new ArrayList<>();
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        HpkeConfigStore.Revalidator revalidator =
+                submission -> new HpkeConfigStore.FetchedConfigList(CONFIG_LIST, 0);
+
+        store.getOrSeed(KEY, seed, expiresAt, background::add, revalidator);
+        background.get(0).run();
+        assertNull(store.getOrSeed(KEY, seed, expiresAt, background::add, revalidator));
+    }
+
+    @Test
+    public void failedRevalidationIsRetried() throws Exception {
+        byte[] seed = {0, 1, 9, 9};
+        List<Runnable> background = new ArrayList<>();
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        HpkeConfigStore.Revalidator revalidator = submission -> {
+            throw new IOException("aggregator unavailable");
+        };
+
+        store.getOrSeed(KEY, seed, expiresAt, background::add, revalidator);
+        background.get(0).run();
+        assertArrayEquals(seed, store.getOrSeed(KEY, seed, expiresAt, background::add, revalidator));
+        assertEquals(2, background.size());
+    }
+
+    @Test
+    public void expiredSeedIsNotUsed() throws Exception {
+        byte[] seed = {0, 1, 9, 9};
+        List<Runnable> background = new ArrayList<>();
+        long expiredAt = System.currentTimeMillis() - 1;
+        assertNull(store.getOrSeed(KEY, seed, expiredAt, background::add, submission -> {
+            throw new AssertionError("expired seed should not be revalidated");
+        }));
+        assertTrue(background.isEmpty());
+    }
+
+    @Test
+    public void lockHeldByAnotherFetchIsOnlyWaitedForBriefly() throws Exception {
+        File cacheDir = temporaryFolder.newFolder("shared-cache");
+        HpkeConfigStore impatientStore = new HpkeConfigStore(cacheDir, 100);
+        File lockFile = new File(new File(cacheDir, "divviup-hpke-configs"), SharedFiles.hashedName(KEY) + ".lock");
+
+        // Stands in for another process, whose fetch is stuck while it holds the lock.
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try (SharedFiles.Held ignored = SharedFiles.acquire(lockFile, new ReportSubmission(Deadline.none()), "test")) {
+                locked.countDown();
+                await(release);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        holder.start();
+        locked.await();
+
+        long start = System.nanoTime();
+        byte[] result = impatientStore.getOrFetch(KEY, new ReportSubmission(Deadline.none()),
+                () -> new HpkeConfigStore.FetchedConfigList(CONFIG_LIST, System.currentTimeMillis() + 60_000));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        release.countDown();
+        holder.join();
+
+        assertArrayEquals(CONFIG_LIST, result);
+        assertTrue(elapsedMillis >= 100);
+        assertTrue(elapsedMillis < HpkeConfigStore.LOCK_WAIT_MILLIS);
+    }
+
+    /**
+     * Calls getOrFetch from several threads at once, and releases the fetch once every thread has
+     * had time to start waiting for it. Returns each thread's result, or the exception it threw.
+     */
+    private List<Object> runConcurrently(HpkeConfigStore.Fetcher fetcher, CountDownLatch release)
+            throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(THREADS);
+        List<Object> results = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                started.countDown();
+                Object result;
+                try {
+                    result = store.getOrFetch(KEY, new ReportSubmission(Deadline.none()), fetcher);
+                } catch (IOException e) {
+                    result = e;
+                }
+                synchronized (results) {
+                    results.add(result);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        started.await();
+        Thread.sleep(200);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(THREADS, results.size());
+        return results;
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedIOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
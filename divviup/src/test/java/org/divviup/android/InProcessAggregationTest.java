@@ -0,0 +1,175 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.InProcessAggregator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Sends reports to an {@link InProcessAggregator}, which checks that each one is valid, and that
+ * the aggregate matches the measurements sent.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InProcessAggregationTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void concurrentReportsAreCountedOnce() throws Exception {
+        try (InProcessAggregator aggregator = InProcessAggregator.startPrio3Count()) {
+            URI uri = aggregator.uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            AtomicLong expected = new AtomicLong();
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    boolean measurement = i % 3 == 0;
+                    futures.add(executor.submit(() -> {
+                        client.sendMeasurement(measurement);
+                        if (measurement) {
+                            expected.incrementAndGet();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get(60, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdown();
+            }
+            assertEquals(aggregator.getErrors().toString(), 0, aggregator.getRejectedCount());
+            assertEquals(200, aggregator.getReportCount());
+            assertEquals(0, aggregator.getDuplicateCount());
+            assertArrayEquals(new long[] {expected.get()}, aggregator.getAggregate());
+        }
+    }
+
+    @Test
+    public void pipelinedReportsAreAggregated() throws Exception {
+        int length = 16;
+        try (InProcessAggregator aggregator = InProcessAggregator.startPrio3SumVec(length, 4, 4)) {
+            URI uri = aggregator.uri();
+            Client<long[]> client = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, length, 4, 4);
+            SubmissionPipeline<long[]> pipeline = new SubmissionPipeline<>(client, 2, 4, 16, BackpressurePolicy.BLOCK);
+            Random random = new Random(7);
+            long[] expected = new long[length];
+            List<Future<SubmissionReceipt>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                long[] measurement = new long[length];
+                for (int j = 0; j < length; j++) {
+                    measurement[j] = random.nextInt(16);
+                    expected[j] += measurement[j];
+                }
+                futures.add(pipeline.submit(measurement));
+            }
+            for (Future<SubmissionReceipt> future : futures) {
+                assertTrue(future.get(60, TimeUnit.SECONDS).isUploaded());
+            }
+            pipeline.shutdown();
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertEquals(aggregator.getErrors().toString(), 0, aggregator.getRejectedCount());
+            assertEquals(50, aggregator.getReportCount());
+            assertArrayEquals(expected, aggregator.getAggregate());
+        }
+    }
+
+    @Test
+    public void queuedReportsAreAggregated() throws Exception {
+        int length = 10;
+        try (InProcessAggregator aggregator = InProcessAggregator.startPrio3Histogram(length, 3)) {
+            URI uri = aggregator.uri();
+            Client<Long> client = Client.createPrio3Histogram(mockContext, uri, uri, ZERO_TASK_ID, 300, length, 3);
+            ReportOutbox outbox = ReportOutbox.open(temporaryFolder.newFolder("outbox")).withMultiReportUploads(8);
+            long[] expected = new long[length];
+            for (int i = 0; i < 20; i++) {
+                long bucket = (i * 7) % length;
+                client.queueMeasurement(bucket, outbox);
+                expected[(int) bucket]++;
+            }
+            assertEquals(20, outbox.flush(Deadline.after(60, TimeUnit.SECONDS)));
+
+            assertEquals(aggregator.getErrors().toString(), 0, aggregator.getRejectedCount());
+            assertEquals(20, aggregator.getReportCount());
+            assertArrayEquals(expected, aggregator.getAggregate());
+        }
+    }
+
+    @Test
+    public void sparseReportsMatchDenseReports() throws Exception {
+        try (InProcessAggregator aggregator = InProcessAggregator.startPrio3SumVec(1000, 8, 32)) {
+            URI uri = aggregator.uri();
+            Client<SparseVector> sparse = Client.createPrio3SumVecSparse(mockContext, uri, uri, ZERO_TASK_ID, 300, 1000, 8, 32);
+            Client<long[]> dense = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, 1000, 8, 32);
+            sparse.sendMeasurement(SparseVector.builder().set(3, 200).set(999, 1).build());
+            long[] measurement = new long[1000];
+            measurement[3] = 5;
+            dense.sendMeasurement(measurement);
+
+            long[] expected = new long[1000];
+            expected[3] = 205;
+            expected[999] = 1;
+            assertEquals(aggregator.getErrors().toString(), 0, aggregator.getRejectedCount());
+            assertArrayEquals(expected, aggregator.getAggregate());
+        }
+    }
+
+    @Test
+    public void invalidReportsAreRejected() throws Exception {
+        try (InProcessAggregator aggregator = InProcessAggregator.startPrio3Count()) {
+            URI uri = aggregator.uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            client.sendMeasurement(true);
+
+            // A report for the task, whose encrypted input shares are empty.
+            byte[] report = new byte[16 + 8 + 4 + 2 * (1 + 2 + 4)];
+            Request request = new Request.Builder()
+                    .url(aggregator.getServer().url("/tasks/" + ZERO_TASK_ID.encodeToString() + "/reports"))
+                    .put(RequestBody.create(report, MediaType.get("application/dap-report")))
+                    .build();
+            try (Response response = Client.getHTTPClient().newCall(request).execute()) {
+                assertEquals(400, response.code());
+            }
+
+            assertEquals(1, aggregator.getRejectedCount());
+            assertEquals(1, aggregator.getReportCount());
+            assertArrayEquals(new long[] {1}, aggregator.getAggregate());
+        }
+    }
+}
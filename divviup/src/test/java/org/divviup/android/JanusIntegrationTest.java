@@ -4,7 +4,6 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
-import android.util.Base64;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -58,7 +57,6 @@ public class JanusIntegrationTest {
     private static final DockerImageName JANUS_INTEROP_COLLECTOR = DockerImageName.parse(
             "us-west2-docker.pkg.dev/divviup-artifacts-public/janus/janus_interop_collector:0.7.2@sha256:3004724d6f2f3c40763022a27202ff88e0a08fcde0176d6b8343bb9948231ce5"
     );
-    private static final int BASE64_FLAGS = Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE;
     private static final int TIME_PRECISION_SECONDS = 3600;
     private static final String LEADER_ALIAS = "leader", HELPER_ALIAS = "helper";
 
@@ -296,18 +294,18 @@ public class JanusIntegrationTest {
 
     private static TaskId randomTaskId() throws NoSuchAlgorithmException {
         byte[] bytes = SecureRandom.getInstanceStrong().generateSeed(32);
-        String encoded = Base64.encodeToString(bytes, BASE64_FLAGS);
+        String encoded = Base64Url.encode(bytes);
         return TaskId.parse(encoded);
     }
 
     private static String randomAuthToken(String prefix) throws NoSuchAlgorithmException {
         byte[] bytes = SecureRandom.getInstanceStrong().generateSeed(16);
-        return prefix + Base64.encodeToString(bytes, BASE64_FLAGS);
+        return prefix + Base64Url.encode(bytes);
     }
 
     private static String randomEncodedVdafVerifyKey() throws NoSuchAlgorithmException {
         byte[] bytes = SecureRandom.getInstanceStrong().generateSeed(16);
-        return Base64.encodeToString(bytes, BASE64_FLAGS);
+        return Base64Url.encode(bytes);
     }
 
     private static void propagateLogs(GenericContainer<?> container, String label) throws IOException {
@@ -447,7 +445,7 @@ public class JanusIntegrationTest {
         ) throws IOException, InteropApiException {
             ObjectNode body = JsonNodeFactory.instance.objectNode();
             body.set("task_id", JsonNodeFactory.instance.textNode(taskId.encodeToString()));
-            body.set("agg_param", JsonNodeFactory.instance.textNode(Base64.encodeToString(aggregationParam, BASE64_FLAGS)));
+            body.set("agg_param", JsonNodeFactory.instance.textNode(Base64Url.encode(aggregationParam)));
             body.set("query", query);
             JsonNode response = makeRequest("internal/test/collection_start", body);
             return response.get("handle").asText();
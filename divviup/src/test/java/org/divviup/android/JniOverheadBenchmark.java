@@ -0,0 +1,219 @@
+package org.divviup.android;
+
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import mockwebserver3.MockWebServer;
+
+/**
+ * Measures the cost of crossing into native code and accessing array arguments, using no-op entry
+ * points with the same arguments as the real ones, and compares it with the cost of preparing a
+ * full report. Each strategy for accessing arrays is measured: pinning or copying elements (as the
+ * real entry points do for their inputs), copying regions (as they do for the report), critical
+ * sections, and direct buffers. Full preparation is also timed with and without the reuse of native
+ * buffers for each report's temporaries.
+ * <p>
+ * The no-op entry points are only compiled into the native library when Gradle is run with
+ * {@code -PjniBenchmarks}, for example {@code ./gradlew :divviup:testDebugUnitTest
+ * -PjniBenchmarks --tests '*JniOverheadBenchmark'}. Otherwise, these tests are skipped.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class JniOverheadBenchmark {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+    private static final int WARMUP_ITERATIONS = 20_000;
+    private static final int MEASURED_ITERATIONS = 200_000;
+    /** Throwing is much slower than returning, so fewer iterations are needed. */
+    private static final int EXCEPTION_ITERATIONS = 20_000;
+    private static final int FULL_PREPARATION_SAMPLES = 200;
+
+    @ClassRule
+    public static final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private static Context mockContext;
+
+    private static byte[] taskId, hpkeConfigList;
+    private static volatile int blackhole;
+
+    @BeforeClass
+    public static void loadNativeBenchmarks() throws IOException {
+        System.loadLibrary("divviup_android");
+        taskId = ZERO_TASK_ID.toBytes();
+        hpkeConfigList = loadHpkeConfigList();
+        try {
+            emptyNative(taskId, hpkeConfigList, hpkeConfigList, 0, true, new byte[0], 0);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("native library was built without -PjniBenchmarks", e);
+        }
+    }
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void prio3CountOverhead() throws Exception {
+        ReportCost cost;
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            cost = client.estimateCost(true, FULL_PREPARATION_SAMPLES);
+        }
+        int length = cost.getEncodedBytes();
+        byte[] output = new byte[length];
+        ByteBuffer directTaskId = directCopy(taskId);
+        ByteBuffer directConfigList = directCopy(hpkeConfigList);
+        ByteBuffer directOutput = ByteBuffer.allocateDirect(length);
+
+        System.out.println("Prio3Count, " + length + " byte report, full preparation "
+                + cost.getAveragePreparationNanos() + " ns");
+        report(cost, "empty", time(MEASURED_ITERATIONS, () ->
+                emptyNative(taskId, hpkeConfigList, hpkeConfigList, 0, true, output, length)));
+        report(cost, "jni_try", time(MEASURED_ITERATIONS, () ->
+                jniTryNative(taskId, hpkeConfigList, hpkeConfigList, 0, true, output, length)));
+        report(cost, "jni_try throwing", time(EXCEPTION_ITERATIONS, () -> {
+            try {
+                return throwingNative(taskId, hpkeConfigList, hpkeConfigList, 0, true, output, length);
+            } catch (RuntimeException e) {
+                return e.getMessage().length();
+            }
+        }));
+        report(cost, "elements", time(MEASURED_ITERATIONS, () ->
+                elementsNative(taskId, hpkeConfigList, hpkeConfigList, 0, true, output, length)));
+        report(cost, "region", time(MEASURED_ITERATIONS, () ->
+                regionNative(taskId, hpkeConfigList, hpkeConfigList, 0, true, output, length)));
+        report(cost, "critical", time(MEASURED_ITERATIONS, () ->
+                criticalNative(taskId, hpkeConfigList, hpkeConfigList, 0, true, output, length)));
+        report(cost, "direct", time(MEASURED_ITERATIONS, () ->
+                directNative(directTaskId, directConfigList, directConfigList, 0, true, directOutput, length)));
+    }
+
+    @Test
+    public void prio3SumVecOverhead() throws Exception {
+        long[] measurement = new long[4096];
+        ReportCost cost;
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<long[]> client = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, 4096, 16, 256);
+            cost = client.estimateCost(measurement, FULL_PREPARATION_SAMPLES / 20);
+        }
+        int length = cost.getEncodedBytes();
+        byte[] output = new byte[length];
+
+        System.out.println("Prio3SumVec(4096, 16, 256), " + length + " byte report, full preparation "
+                + cost.getAveragePreparationNanos() + " ns");
+        report(cost, "elements", time(MEASURED_ITERATIONS / 10, () ->
+                elementsSumVecNative(taskId, hpkeConfigList, hpkeConfigList, 0, measurement, output, length)));
+    }
+
+    @Test
+    public void bufferReuse() throws Exception {
+        long[] measurement = new long[4096];
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> count = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            Client<long[]> sumVec = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, 4096, 16, 256);
+            try {
+                compareBufferReuse("Prio3Count", count, true, FULL_PREPARATION_SAMPLES);
+                compareBufferReuse("Prio3SumVec(4096, 16, 256)", sumVec, measurement, FULL_PREPARATION_SAMPLES / 20);
+            } finally {
+                setArenaEnabledNative(true);
+            }
+        }
+    }
+
+    private static <M> void compareBufferReuse(String name, Client<M> client, M measurement, int samples) throws IOException {
+        setArenaEnabledNative(false);
+        ReportCost fresh = client.estimateCost(measurement, samples);
+        setArenaEnabledNative(true);
+        ReportCost reused = client.estimateCost(measurement, samples);
+        double percent = 100.0 * reused.getAveragePreparationNanos() / fresh.getAveragePreparationNanos();
+        System.out.printf("%s, %d byte report: %d ns with new buffers, %d ns with reused buffers, %.2f%%%n",
+                name, reused.getEncodedBytes(), fresh.getAveragePreparationNanos(),
+                reused.getAveragePreparationNanos(), percent);
+    }
+
+    private interface NativeCall {
+        int call();
+    }
+
+    /**
+     * Times a call after warming it up, and returns the average time per call, in nanoseconds.
+     */
+    private static long time(int iterations, NativeCall call) {
+        int sink = 0;
+        for (int i = 0; i < Math.min(iterations, WARMUP_ITERATIONS); i++) {
+            sink += call.call();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += call.call();
+        }
+        long elapsed = System.nanoTime() - start;
+        // Publish the results, so that calls cannot be eliminated.
+        blackhole = sink;
+        return elapsed / iterations;
+    }
+
+    private static void report(ReportCost cost, String strategy, long nanosPerCall) {
+        double percent = 100.0 * nanosPerCall / cost.getAveragePreparationNanos();
+        System.out.printf("  %-18s %8d ns per call, %6.2f%% of full preparation%n", strategy, nanosPerCall, percent);
+    }
+
+    private static ByteBuffer directCopy(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    private static byte[] loadHpkeConfigList() throws IOException {
+        ClassLoader classLoader = Objects.requireNonNull(JniOverheadBenchmark.class.getClassLoader());
+        try (InputStream is = classLoader.getResourceAsStream("hpke_config_list.bin")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                bytes.write(chunk, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static native void setArenaEnabledNative(boolean enabled);
+
+    private static native int emptyNative(byte[] taskId, byte[] leaderHpkeConfigList, byte[] helperHpkeConfigList, long timestamp, boolean measurement, byte[] output, int outputLength);
+
+    private static native int jniTryNative(byte[] taskId, byte[] leaderHpkeConfigList, byte[] helperHpkeConfigList, long timestamp, boolean measurement, byte[] output, int outputLength);
+
+    private static native int throwingNative(byte[] taskId, byte[] leaderHpkeConfigList, byte[] helperHpkeConfigList, long timestamp, boolean measurement, byte[] output, int outputLength);
+
+    private static native int elementsNative(byte[] taskId, byte[] leaderHpkeConfigList, byte[] helperHpkeConfigList, long timestamp, boolean measurement, byte[] output, int outputLength);
+
+    private static native int elementsSumVecNative(byte[] taskId, byte[] leaderHpkeConfigList, byte[] helperHpkeConfigList, long timestamp, long[] measurement, byte[] output, int outputLength);
+
+    private static native int regionNative(byte[] taskId, byte[] leaderHpkeConfigList, byte[] helperHpkeConfigList, long timestamp, boolean measurement, byte[] output, int outputLength);
+
+    private static native int criticalNative(byte[] taskId, byte[] leaderHpkeConfigList, byte[] helperHpkeConfigList, long timestamp, boolean measurement, byte[] output, int outputLength);
+
+    private static native int directNative(ByteBuffer taskId, ByteBuffer leaderHpkeConfigList, ByteBuffer helperHpkeConfigList, long timestamp, boolean measurement, ByteBuffer output, int outputLength);
+}
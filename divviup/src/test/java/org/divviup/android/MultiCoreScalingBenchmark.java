@@ -0,0 +1,177 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+
+/**
+ * Measures how the throughput of report preparation scales as more threads prepare reports
+ * concurrently with one shared client, for each VDAF. Thread counts are swept from one to the
+ * number of available processors, in powers of two, and each count's throughput and parallel
+ * efficiency (throughput divided by the thread count times the single-threaded throughput) are
+ * printed. Each thread calls {@link Client#estimateCost(Object, int)} repeatedly, which looks up
+ * HPKE configs once per call, and then prepares reports through the same native entry points as
+ * {@link Client#sendMeasurement(Object)}, without uploading them.
+ * <p>
+ * Locks shared by all threads on the preparation path show up as efficiency that falls as threads
+ * are added. To catch them as regressions, the efficiency at {@code divviup.scaling.checkThreads}
+ * threads (by default, half the available processors, up to four, so that hyperthreads do not
+ * count) must be at least {@code divviup.scaling.minEfficiency}. Each thread count runs for
+ * {@code divviup.scaling.stepMillis} milliseconds (default 500).
+ * <p>
+ * Efficiency depends on the machine and on what else it is running, so these tests are skipped
+ * unless {@code divviup.scaling.minEfficiency} is set, for example to 0.5. Set it to 0 to print the
+ * measurements without checking them.
+ */
+public class MultiCoreScalingBenchmark {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+    /** Reports timed by each call to estimateCost(). One more, which is not timed, is prepared. */
+    private static final int SAMPLES_PER_CALL = 8;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void checkEnabled() {
+        assumeTrue("divviup.scaling.minEfficiency is not set", System.getProperty("divviup.scaling.minEfficiency") != null);
+    }
+
+    @Test
+    public void prio3CountScaling() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300);
+            checkScaling("Prio3Count", client, true);
+        }
+    }
+
+    @Test
+    public void prio3SumScaling() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Sum(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300, 32);
+            checkScaling("Prio3Sum(32)", client, 1000000L);
+        }
+    }
+
+    @Test
+    public void prio3SumVecScaling() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            long[] measurement = new long[1000];
+            for (int i = 0; i < measurement.length; i++) {
+                measurement[i] = i % 256;
+            }
+            Client<long[]> client = Client.createPrio3SumVec(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300, 1000, 8, 90);
+            checkScaling("Prio3SumVec(1000, 8, 90)", client, measurement);
+        }
+    }
+
+    @Test
+    public void prio3SumVecSparseScaling() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            SparseVector.Builder builder = SparseVector.builder();
+            for (int i = 0; i < 20; i++) {
+                builder.set(i * 50, 1L);
+            }
+            Client<SparseVector> client = Client.createPrio3SumVecSparse(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300, 1000, 8, 90);
+            checkScaling("Prio3SumVecSparse(1000, 8, 90)", client, builder.build());
+        }
+    }
+
+    @Test
+    public void prio3HistogramScaling() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Histogram(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300, 100, 10);
+            checkScaling("Prio3Histogram(100, 10)", client, 42L);
+        }
+    }
+
+    private static <M> void checkScaling(String name, Client<M> client, M measurement) throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int checkThreads = Integer.getInteger("divviup.scaling.checkThreads", Math.min(4, Math.max(1, processors / 2)));
+        double minEfficiency = Double.parseDouble(System.getProperty("divviup.scaling.minEfficiency"));
+        long stepNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("divviup.scaling.stepMillis", 500));
+
+        // Fetch and store the HPKE configs, and warm up the JIT, before anything is timed.
+        client.estimateCost(measurement, SAMPLES_PER_CALL);
+
+        TreeSet<Integer> threadCounts = new TreeSet<>();
+        for (int threads = 1; threads < processors; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(processors);
+        threadCounts.add(checkThreads);
+
+        System.out.println(name + ", " + processors + " processors");
+        double singleThreaded = 0, checkedEfficiency = 1;
+        for (int threads : threadCounts) {
+            double throughput = measureThroughput(client, measurement, threads, stepNanos);
+            if (threads == 1) {
+                singleThreaded = throughput;
+            }
+            double efficiency = throughput / (threads * singleThreaded);
+            if (threads == checkThreads) {
+                checkedEfficiency = efficiency;
+            }
+            System.out.printf("  %3d threads: %10.1f reports/s, efficiency %.2f%n", threads, throughput, efficiency);
+        }
+        assertTrue(
+                name + ": efficiency at " + checkThreads + " threads is " + checkedEfficiency + ", below " + minEfficiency,
+                checkedEfficiency >= minEfficiency
+        );
+    }
+
+    /**
+     * Prepares reports on the given number of threads for about {@code stepNanos}, once each
+     * thread has warmed up, and returns the total number of reports prepared per second.
+     */
+    private static <M> double measureThroughput(Client<M> client, M measurement, int threads, long stepNanos) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CyclicBarrier barrier = new CyclicBarrier(threads);
+            List<Future<Double>> rates = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                rates.add(executor.submit(() -> {
+                    // Sizes this thread's report buffer before anything is timed.
+                    client.estimateCost(measurement, 1);
+                    barrier.await();
+                    long start = System.nanoTime();
+                    long reports = 0, elapsed;
+                    do {
+                        client.estimateCost(measurement, SAMPLES_PER_CALL);
+                        reports += SAMPLES_PER_CALL + 1;
+                        elapsed = System.nanoTime() - start;
+                    } while (elapsed < stepNanos);
+                    return reports * 1e9 / elapsed;
+                }));
+            }
+            double total = 0;
+            for (Future<Double> rate : rates) {
+                total += rate.get(5, TimeUnit.MINUTES);
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class NativeProfilerTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @ClassRule
+    public static final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private static Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @After
+    public void disableProfiling() {
+        NativeProfiler.setEnabled(false);
+        NativeProfiler.reset();
+    }
+
+    @Test
+    public void recordsEachPhase() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Histogram(mockContext, uri, uri, ZERO_TASK_ID, 300, 100, 10);
+            int reportBytes = client.estimateCost(42L, 1).getEncodedBytes();
+
+            NativeProfiler.reset();
+            NativeProfiler.setEnabled(true);
+            for (int i = 0; i < 5; i++) {
+                client.sendMeasurement(42L);
+            }
+            NativeProfiler.Snapshot snapshot = NativeProfiler.snapshot();
+
+            assertEquals(5, snapshot.getReports());
+            for (NativeProfiler.Phase phase : NativeProfiler.Phase.values()) {
+                assertTrue(phase + " has no time", snapshot.getTime(phase, TimeUnit.NANOSECONDS) > 0);
+            }
+            assertEquals(5L * reportBytes, snapshot.getBytes(NativeProfiler.Phase.WRITE_OUTPUT));
+            assertTrue(snapshot.getBytes(NativeProfiler.Phase.READ_INPUTS) > 5 * 32);
+            assertEquals(
+                    snapshot.getBytes(NativeProfiler.Phase.READ_INPUTS),
+                    snapshot.getBytes(NativeProfiler.Phase.DECODE_INPUTS)
+            );
+        }
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            NativeProfiler.reset();
+            client.sendMeasurement(true);
+            assertEquals(0, NativeProfiler.snapshot().getReports());
+        }
+    }
+}
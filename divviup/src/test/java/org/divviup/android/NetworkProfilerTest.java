@@ -0,0 +1,123 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+
+public class NetworkProfilerTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void enableProfiler() {
+        NetworkProfiler.reset();
+        NetworkProfiler.setEnabled(true);
+    }
+
+    @After
+    public void disableProfiler() {
+        NetworkProfiler.setEnabled(false);
+        NetworkProfiler.reset();
+    }
+
+    @Test
+    public void phasesAreRecordedPerCallType() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300);
+            client.sendMeasurement(true);
+            client.sendMeasurement(false);
+
+            NetworkProfiler.Snapshot snapshot = NetworkProfiler.snapshot();
+            assertEquals(Collections.singleton(server.url("/").toString()), snapshot.getAggregatorEndpoints());
+
+            // Both aggregators share one config list URL, which is fetched once and then stored.
+            NetworkProfiler.Stats configs = snapshot.getStats(uri, NetworkProfiler.CallType.HPKE_CONFIG);
+            assertEquals(1, configs.getCalls());
+            assertEquals(1, configs.getNewConnections());
+            assertEquals(0, configs.getReusedConnections());
+            assertEquals(1, configs.getCount(NetworkProfiler.Phase.CONNECT));
+            assertEquals(0, configs.getCount(NetworkProfiler.Phase.TLS));
+
+            NetworkProfiler.Stats uploads = snapshot.getStats(uri, NetworkProfiler.CallType.UPLOAD);
+            assertEquals(2, uploads.getCalls());
+            assertEquals(0, uploads.getFailedCalls());
+            assertEquals(2, uploads.getReusedConnections());
+            assertEquals(1.0, uploads.getConnectionReuseRate(), 0);
+            assertEquals(0, uploads.getCount(NetworkProfiler.Phase.CONNECT));
+            for (NetworkProfiler.Phase phase : new NetworkProfiler.Phase[] {
+                    NetworkProfiler.Phase.REQUEST,
+                    NetworkProfiler.Phase.TIME_TO_FIRST_BYTE,
+                    NetworkProfiler.Phase.RESPONSE,
+                    NetworkProfiler.Phase.CALL,
+            }) {
+                assertEquals(phase.toString(), 2, uploads.getCount(phase));
+            }
+            long phases = uploads.getTime(NetworkProfiler.Phase.REQUEST, TimeUnit.NANOSECONDS)
+                    + uploads.getTime(NetworkProfiler.Phase.TIME_TO_FIRST_BYTE, TimeUnit.NANOSECONDS)
+                    + uploads.getTime(NetworkProfiler.Phase.RESPONSE, TimeUnit.NANOSECONDS);
+            assertTrue(phases <= uploads.getTime(NetworkProfiler.Phase.CALL, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Test
+    public void aggregatorsOnOneHostAreKeptApart() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI leader = server.url("/leader/").uri();
+            URI helper = server.url("/helper/").uri();
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), leader, helper, ZERO_TASK_ID, 300);
+            client.sendMeasurement(true);
+
+            NetworkProfiler.Snapshot snapshot = NetworkProfiler.snapshot();
+            assertEquals(2, snapshot.getAggregatorEndpoints().size());
+            assertEquals(1, snapshot.getStats(leader, NetworkProfiler.CallType.HPKE_CONFIG).getCalls());
+            assertEquals(1, snapshot.getStats(helper, NetworkProfiler.CallType.HPKE_CONFIG).getCalls());
+            assertEquals(1, snapshot.getStats(leader, NetworkProfiler.CallType.UPLOAD).getCalls());
+            assertEquals(0, snapshot.getStats(helper, NetworkProfiler.CallType.UPLOAD).getCalls());
+            assertEquals(1, snapshot.getStats(leader.toString(), NetworkProfiler.CallType.UPLOAD).getCalls());
+        }
+    }
+
+    @Test
+    public void failedCallsAreCounted() throws Exception {
+        URI uri;
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            uri = server.url("/").uri();
+        }
+        Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300);
+        assertThrows(IOException.class, () -> client.sendMeasurement(true));
+
+        NetworkProfiler.Stats configs = NetworkProfiler.snapshot().getStats(uri, NetworkProfiler.CallType.HPKE_CONFIG);
+        assertEquals(1, configs.getCalls());
+        assertEquals(1, configs.getFailedCalls());
+        assertEquals(1, configs.getCount(NetworkProfiler.Phase.CALL));
+    }
+
+    @Test
+    public void nothingIsRecordedWhileDisabled() throws Exception {
+        NetworkProfiler.setEnabled(false);
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300);
+            client.sendMeasurement(true);
+
+            NetworkProfiler.Snapshot snapshot = NetworkProfiler.snapshot();
+            assertTrue(snapshot.getAggregatorEndpoints().isEmpty());
+            assertEquals(0, snapshot.getStats(uri, NetworkProfiler.CallType.UPLOAD).getCalls());
+        }
+    }
+}
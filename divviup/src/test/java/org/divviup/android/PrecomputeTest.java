@@ -0,0 +1,106 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PrecomputeTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void eachReportUsesOneBundle() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Sum(mockContext, uri, uri, ZERO_TASK_ID, 300, 32);
+            // Material is shared by the whole process, so other tests may have left some behind.
+            int available = client.precompute(4, Deadline.none());
+            assertTrue(available >= 4);
+            assertEquals(available, client.precompute(0, Deadline.none()));
+
+            client.sendMeasurement(1000000L);
+            client.sendMeasurement(7L);
+            assertEquals(available - 2, client.precompute(0, Deadline.none()));
+
+            // Clients of other VDAFs share material for the same aggregators.
+            Client<Boolean> other = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            other.sendMeasurement(true);
+            assertEquals(available - 3, client.precompute(0, Deadline.none()));
+
+            int puts = 0;
+            RecordedRequest request;
+            while ((request = server.takeRequest(100, TimeUnit.MILLISECONDS)) != null) {
+                if (request.getMethod().equals("PUT")) {
+                    assertTrue(request.getBody().size() > 0);
+                    puts++;
+                }
+            }
+            assertEquals(3, puts);
+        }
+    }
+
+    @Test
+    public void estimatingCostLeavesMaterial() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Sum(mockContext, uri, uri, ZERO_TASK_ID, 300, 32);
+            int available = client.precompute(4, Deadline.none());
+            assertTrue(available >= 4);
+
+            client.estimateCost(7L, 3);
+            assertEquals(available, client.precompute(0, Deadline.none()));
+
+            // Later reports on the same thread use material again.
+            client.sendMeasurement(7L);
+            assertEquals(available - 1, client.precompute(0, Deadline.none()));
+        }
+    }
+
+    @Test
+    public void reportsAreSentWithoutMaterial() throws IOException {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            int available = client.precompute(0, Deadline.none());
+            for (int i = 0; i <= available; i++) {
+                client.sendMeasurement(true);
+            }
+            assertEquals(0, client.precompute(0, Deadline.none()));
+            client.sendMeasurement(false);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeTarget() throws IOException {
+        URI uri = URI.create("https://example.com/");
+        Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300).precompute(-1, Deadline.none());
+    }
+}
@@ -0,0 +1,219 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SharedStorageTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    // Each test gets empty directories, so that configs and reports are not shared between tests.
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private Context mockContext;
+
+    @Before
+    public void initMock() throws IOException {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.newFolder("cache"));
+        when(mockContext.getNoBackupFilesDir()).thenReturn(temporaryFolder.newFolder("no_backup"));
+    }
+
+    @Test
+    public void configsSharedBetweenClients() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300).sendMeasurement(true);
+            Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300).sendMeasurement(false);
+
+            // Both aggregators have the same URL here, so one fetch serves every request.
+            RequestCounts counts = countRequests(server);
+            assertEquals(1, counts.gets);
+            assertEquals(2, counts.puts);
+        }
+    }
+
+    @Test
+    public void concurrentFetchesAreCombined() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        client.sendMeasurement(true);
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(new ArrayList<Throwable>(), failures);
+
+            RequestCounts counts = countRequests(server);
+            assertEquals(1, counts.gets);
+            assertEquals(8, counts.puts);
+        }
+    }
+
+    @Test
+    public void uncacheableConfigsAreFetchedEachTime() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("no-store")) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            client.sendMeasurement(true);
+            client.sendMeasurement(true);
+
+            assertEquals(4, countRequests(server).gets);
+        }
+    }
+
+    @Test
+    public void outboxUploadsQueuedReports() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            ReportOutbox outbox = ReportOutbox.open(mockContext);
+            for (int i = 0; i < 3; i++) {
+                client.queueMeasurement(true, outbox);
+            }
+            assertEquals(3, outbox.size());
+            assertEquals(0, countRequests(server).puts);
+
+            // Another process opening the outbox sees the same reports.
+            assertEquals(3, ReportOutbox.open(mockContext).flush(Deadline.after(30, TimeUnit.SECONDS)));
+            assertEquals(0, outbox.size());
+            assertEquals(3, countRequests(server).puts);
+            assertEquals(0, outbox.flush(Deadline.none()));
+        }
+    }
+
+    @Test
+    public void outboxKeepsReportsAfterFailedUpload() throws Exception {
+        ReportOutbox outbox = ReportOutbox.open(mockContext);
+        MockWebServer server = MockAggregator.setupDispatchingMockServer();
+        URI uri = server.url("/").uri();
+        Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+        client.queueMeasurement(true, outbox);
+        server.close();
+
+        assertThrows(IOException.class, () -> outbox.flush(Deadline.after(30, TimeUnit.SECONDS)));
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void outboxPacksReportsIntoMultiReportUploads() throws Exception {
+        try (MockWebServer server = MockAggregator.setupMultiReportMockServer(0)) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            ReportOutbox outbox = ReportOutbox.open(mockContext).withMultiReportUploads(4);
+            for (int i = 0; i < 10; i++) {
+                client.queueMeasurement(i % 2 == 0, outbox);
+            }
+            assertEquals(10, outbox.flush(Deadline.after(30, TimeUnit.SECONDS)));
+            assertEquals(0, outbox.size());
+
+            List<Integer> reportsPerUpload = new ArrayList<>();
+            RecordedRequest request;
+            while ((request = server.takeRequest(100, TimeUnit.MILLISECONDS)) != null) {
+                if (request.getMethod().equals("PUT")) {
+                    assertEquals("application/dap-report-list", request.getHeaders().get("Content-Type"));
+                    reportsPerUpload.add(MockAggregator.countReports(request.getBody()));
+                }
+            }
+            assertEquals(Arrays.asList(4, 4, 2), reportsPerUpload);
+        }
+    }
+
+    @Test
+    public void multiReportUploadsRejectIndividualReports() throws Exception {
+        try (MockWebServer server = MockAggregator.setupMultiReportMockServer(2)) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            ReportOutbox outbox = ReportOutbox.open(mockContext).withMultiReportUploads(8);
+            for (int i = 0; i < 5; i++) {
+                client.queueMeasurement(true, outbox);
+            }
+            // The second and fourth reports are rejected, and removed from the outbox.
+            assertEquals(3, outbox.flush(Deadline.after(30, TimeUnit.SECONDS)));
+            assertEquals(0, outbox.size());
+            assertEquals(1, countRequests(server).puts);
+        }
+    }
+
+    @Test
+    public void multiReportUploadsFallBackToSingleReports() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            ReportOutbox outbox = ReportOutbox.open(mockContext).withMultiReportUploads(8);
+            for (int i = 0; i < 3; i++) {
+                client.queueMeasurement(true, outbox);
+            }
+            assertEquals(3, outbox.flush(Deadline.after(30, TimeUnit.SECONDS)));
+            // One rejected multi-report upload, then one upload per report.
+            assertEquals(4, countRequests(server).puts);
+
+            // Later flushes remember that the aggregator only accepts single reports.
+            for (int i = 0; i < 2; i++) {
+                client.queueMeasurement(true, outbox);
+            }
+            assertEquals(2, outbox.flush(Deadline.after(30, TimeUnit.SECONDS)));
+            assertEquals(2, countRequests(server).puts);
+        }
+    }
+
+    private static final class RequestCounts {
+        int gets, puts;
+    }
+
+    /**
+     * Takes all requests recorded so far, and counts them by method.
+     */
+    private static RequestCounts countRequests(MockWebServer server) throws InterruptedException {
+        RequestCounts counts = new RequestCounts();
+        RecordedRequest request;
+        while ((request = server.takeRequest(100, TimeUnit.MILLISECONDS)) != null) {
+            if (request.getMethod().equals("GET")) {
+                counts.gets++;
+            } else if (request.getMethod().equals("PUT")) {
+                counts.puts++;
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,251 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mockwebserver3.MockWebServer;
+
+/**
+ * Sends reports continuously to a mock aggregator, and checks that the process's resource usage
+ * stays flat: Java heap after a full GC, native resident set size, open file descriptors, and live
+ * threads. Leaked JNI references or pinned arrays show up as native memory growth, and leaked
+ * response bodies, files or connections as descriptor or thread growth.
+ * <p>
+ * Resources are sampled at a fixed interval. The first quarter of the run is a warm-up, and is not
+ * checked. Of the remaining samples, the median of the last third is compared with the median of
+ * the first third, and the test fails if any resource grew by more than its allowance. The test is
+ * skipped unless {@code divviup.soak.durationSeconds} is set, for example to 60 for a quick check,
+ * or 86400 for a soak run. {@code divviup.soak.threads} and {@code divviup.soak.sampleSeconds} may
+ * also be set. Native memory and descriptors are read from {@code /proc}, so
+ * they are only checked on Linux.
+ */
+public class SoakTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+    private static final int SUM_VEC_LENGTH = 100;
+    /** Each worker replaces its clients after this many reports, so that client setup is soaked too. */
+    private static final int REPORTS_PER_CLIENT = 500;
+    /** Each worker flushes its outbox after queueing this many reports. */
+    private static final int OUTBOX_BATCH = 20;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void resourceUsageStaysFlat() throws Exception {
+        Long configuredDuration = Long.getLong("divviup.soak.durationSeconds");
+        assumeTrue("divviup.soak.durationSeconds is not set", configuredDuration != null);
+        long durationSeconds = configuredDuration;
+        int threads = Integer.getInteger("divviup.soak.threads", 4);
+        long sampleSeconds = Long.getLong("divviup.soak.sampleSeconds", Math.max(1, durationSeconds / 40));
+
+        List<long[]> samples = new ArrayList<>();
+        AtomicLong sent = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                File directory = temporaryFolder.newFolder("worker-" + i);
+                long seed = i;
+                workers.add(executor.submit(() -> {
+                    runWorker(directory, uri, new Random(seed), stop, sent);
+                    return null;
+                }));
+            }
+
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+            while (System.nanoTime() < end) {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(sampleSeconds));
+                // The server records every request, which would otherwise look like a leak.
+                while (server.takeRequest(0, TimeUnit.SECONDS) != null) {
+                    continue;
+                }
+                for (Future<?> worker : workers) {
+                    if (worker.isDone()) {
+                        worker.get();
+                    }
+                }
+                samples.add(sample());
+            }
+            stop.set(true);
+            for (Future<?> worker : workers) {
+                worker.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.println("soak sent " + sent.get() + " reports in " + durationSeconds + " s");
+        assertTrue("too few samples for a trend", samples.size() >= 4);
+        List<long[]> measured = samples.subList(samples.size() / 4, samples.size());
+        List<String> failures = new ArrayList<>();
+        for (Resource resource : Resource.values()) {
+            long[] values = new long[measured.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = measured.get(i)[resource.ordinal()];
+            }
+            if (values[0] < 0) {
+                System.out.println("soak " + resource + " is not available on this platform");
+                continue;
+            }
+            int third = Math.max(1, values.length / 3);
+            long before = median(Arrays.copyOfRange(values, 0, third));
+            long after = median(Arrays.copyOfRange(values, values.length - third, values.length));
+            long allowance = resource.allowance(before);
+            System.out.println("soak " + resource + ": " + before + " -> " + after + " (allowance " + allowance + ")");
+            if (after - before > allowance) {
+                failures.add(resource + " grew from " + before + " to " + after);
+            }
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    /**
+     * Sends and queues reports for every kind of client until stopped, replacing the clients
+     * periodically.
+     */
+    private static void runWorker(
+            File directory,
+            URI uri,
+            Random random,
+            AtomicBoolean stop,
+            AtomicLong sent
+    ) throws IOException {
+        ReportOutbox outbox = ReportOutbox.open(new File(directory, "outbox"));
+        File cacheDir = new File(directory, "cache");
+        while (!stop.get()) {
+            Client<Boolean> count = Client.createPrio3Count(cacheDir, uri, uri, ZERO_TASK_ID, 300);
+            Client<long[]> sumVec = Client.createPrio3SumVec(cacheDir, uri, uri, ZERO_TASK_ID, 300, SUM_VEC_LENGTH, 8, 10);
+            Client<Long> histogram = Client.createPrio3Histogram(cacheDir, uri, uri, ZERO_TASK_ID, 300, 10, 3);
+            for (int i = 0; i < REPORTS_PER_CLIENT && !stop.get(); i++) {
+                switch (i % 3) {
+                    case 0:
+                        count.sendMeasurement(random.nextBoolean());
+                        break;
+                    case 1:
+                        long[] measurement = new long[SUM_VEC_LENGTH];
+                        for (int j = 0; j < measurement.length; j++) {
+                            measurement[j] = random.nextInt(256);
+                        }
+                        sumVec.sendMeasurement(measurement);
+                        break;
+                    default:
+                        histogram.queueMeasurement((long) random.nextInt(10), outbox);
+                        if (outbox.size() >= OUTBOX_BATCH) {
+                            outbox.flush(Deadline.after(1, TimeUnit.MINUTES));
+                        }
+                        break;
+                }
+                sent.incrementAndGet();
+            }
+        }
+        outbox.flush(Deadline.after(1, TimeUnit.MINUTES));
+    }
+
+    private enum Resource {
+        /** Bytes of Java heap in use after a full GC. */
+        HEAP_BYTES(4 << 20, 5),
+        /** Bytes of resident memory, including native allocations. */
+        RSS_BYTES(32 << 20, 10),
+        /** Open file descriptors, including sockets. */
+        FILE_DESCRIPTORS(16, 0),
+        /** Live threads, including idle connection and server threads. */
+        THREADS(8, 0);
+
+        private final long absoluteAllowance;
+        private final long percentAllowance;
+
+        Resource(long absoluteAllowance, long percentAllowance) {
+            this.absoluteAllowance = absoluteAllowance;
+            this.percentAllowance = percentAllowance;
+        }
+
+        long allowance(long baseline) {
+            return this.absoluteAllowance + baseline / 100 * this.percentAllowance;
+        }
+    }
+
+    /**
+     * Reads each resource's current usage, indexed by ordinal, or -1 if it is not available.
+     */
+    private static long[] sample() throws IOException {
+        long[] values = new long[Resource.values().length];
+        values[Resource.HEAP_BYTES.ordinal()] = heapAfterGc();
+        values[Resource.RSS_BYTES.ordinal()] = residentSetSize();
+        values[Resource.FILE_DESCRIPTORS.ordinal()] = openFileDescriptors();
+        values[Resource.THREADS.ordinal()] = ManagementFactory.getThreadMXBean().getThreadCount();
+        return values;
+    }
+
+    private static long heapAfterGc() {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long residentSetSize() throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("VmRSS:")) {
+                // For example, "VmRSS:    123456 kB".
+                String[] fields = line.trim().split("\\s+");
+                return Long.parseLong(fields[1]) * 1024;
+            }
+        }
+        return -1;
+    }
+
+    private static long openFileDescriptors() {
+        String[] descriptors = new File("/proc/self/fd").list();
+        if (descriptors != null) {
+            return descriptors.length;
+        }
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
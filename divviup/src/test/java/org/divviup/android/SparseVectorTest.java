@@ -0,0 +1,93 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.net.URI;
+
+import mockwebserver3.MockWebServer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SparseVectorTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void pairsAreSortedByIndex() {
+        SparseVector vector = SparseVector.of(new int[] {40, 3, 17}, new long[] {1, 2, 3});
+        assertEquals(3, vector.size());
+        assertEquals(3, vector.getIndex(0));
+        assertEquals(2, vector.getValue(0));
+        assertEquals(17, vector.getIndex(1));
+        assertEquals(40, vector.getIndex(2));
+        assertEquals(1, vector.getValue(2));
+    }
+
+    @Test
+    public void builderKeepsLastValue() {
+        SparseVector.Builder builder = SparseVector.builder();
+        for (int i = 0; i < 20; i++) {
+            builder.set(i % 5, i);
+        }
+        SparseVector vector = builder.build();
+        assertEquals(SparseVector.of(new int[] {0, 1, 2, 3, 4}, new long[] {15, 16, 17, 18, 19}), vector);
+        assertEquals(0, SparseVector.builder().build().size());
+    }
+
+    @Test
+    public void invalidPairs() {
+        assertThrows(IllegalArgumentException.class, () -> SparseVector.of(new int[] {1, 1}, new long[] {1, 2}));
+        assertThrows(IllegalArgumentException.class, () -> SparseVector.of(new int[] {-1}, new long[] {1}));
+        assertThrows(IllegalArgumentException.class, () -> SparseVector.of(new int[] {1}, new long[0]));
+        assertThrows(IllegalArgumentException.class, () -> SparseVector.builder().set(-1, 1));
+    }
+
+    @Test
+    public void sparseReportsMatchDenseReports() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<SparseVector> sparse = Client.createPrio3SumVecSparse(mockContext, uri, uri, ZERO_TASK_ID, 300, 4096, 16, 256);
+            Client<long[]> dense = Client.createPrio3SumVec(mockContext, uri, uri, ZERO_TASK_ID, 300, 4096, 16, 256);
+            SparseVector measurement = SparseVector.of(new int[] {0, 100, 4095}, new long[] {65535, 7, 1});
+
+            assertEquals(
+                    dense.estimateCost(new long[4096], 1).getEncodedBytes(),
+                    sparse.estimateCost(measurement, 1).getEncodedBytes()
+            );
+            sparse.sendMeasurement(measurement);
+            sparse.sendMeasurement(SparseVector.empty());
+        }
+    }
+
+    @Test
+    public void indexOutOfRange() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<SparseVector> client = Client.createPrio3SumVecSparse(mockContext, uri, uri, ZERO_TASK_ID, 300, 10, 8, 4);
+            SparseVector measurement = SparseVector.of(new int[] {10}, new long[] {1});
+            RuntimeException e = assertThrows(RuntimeException.class, () -> client.sendMeasurement(measurement));
+            assertTrue(e.getMessage().contains("sparse index out of range"));
+        }
+    }
+}
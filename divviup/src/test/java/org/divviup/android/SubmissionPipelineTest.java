@@ -0,0 +1,345 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.Dispatcher;
+import mockwebserver3.MockResponse;
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+import okhttp3.Headers;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SubmissionPipelineTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @ClassRule
+    public static final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock(strictness = Mock.Strictness.LENIENT)
+    private static Context mockContext;
+
+    @Before
+    public void initMock() {
+        when(mockContext.getCacheDir()).thenReturn(temporaryFolder.getRoot());
+    }
+
+    @Test
+    public void submitsAllMeasurements() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Sum(mockContext, uri, uri, ZERO_TASK_ID, 300, 8);
+            SubmissionPipeline<Long> pipeline = new SubmissionPipeline<>(client, 2, 2, 64, BackpressurePolicy.BLOCK);
+
+            List<Future<SubmissionReceipt>> futures = new ArrayList<>();
+            for (long i = 0; i < 32; i++) {
+                futures.add(pipeline.submit(i));
+            }
+            for (Future<SubmissionReceipt> future : futures) {
+                assertTrue(future.get(30, TimeUnit.SECONDS).isUploaded());
+            }
+            pipeline.shutdown();
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertEquals(32, pipeline.preparationStats().getStarted());
+            assertEquals(32, pipeline.uploadStats().getStarted());
+            assertEquals(0, pipeline.preparationStats().getDropped());
+            assertEquals(0, pipeline.uploadStats().getQueueDepth());
+        }
+    }
+
+    @Test
+    public void failedSubmissionFailsFuture() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Long> client = Client.createPrio3Sum(mockContext, uri, uri, ZERO_TASK_ID, 300, 8);
+            SubmissionPipeline<Long> pipeline = new SubmissionPipeline<>(client, 4, BackpressurePolicy.REJECT);
+
+            Future<SubmissionReceipt> future = pipeline.submit(null);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(30, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsAfterShutdown() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(mockContext, uri, uri, ZERO_TASK_ID, 300);
+            SubmissionPipeline<Boolean> pipeline = new SubmissionPipeline<>(client, 4, BackpressurePolicy.BLOCK);
+            pipeline.shutdown();
+
+            assertThrows(RejectedExecutionException.class, () -> pipeline.submit(true));
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+            assertEquals(1, pipeline.preparationStats().getRejected());
+        }
+    }
+
+    @Test
+    public void droppedAndCanceledUploadsGiveBackBandwidth() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            BandwidthBudget budget = BandwidthBudget.deferring(1_000_000, 1, TimeUnit.HOURS);
+            Client<Long> client = Client.createPrio3Sum(mockContext, uri, uri, ZERO_TASK_ID, 300, 8)
+                    .withBandwidthBudget(budget);
+            // Send one report first, so that later reports reserve bandwidth before preparation.
+            client.sendMeasurement(0L);
+            long initial = budget.remainingBytes();
+            long reportLength = 1_000_000 - initial;
+
+            GatedDispatcher dispatcher = new GatedDispatcher(server.getDispatcher());
+            server.setDispatcher(dispatcher);
+            SubmissionPipeline<Long> pipeline = new SubmissionPipeline<>(client, 1, 1, 1, BackpressurePolicy.DROP_NEWEST);
+            try {
+                List<Future<SubmissionReceipt>> full = fillUploadStage(pipeline, dispatcher);
+                Future<SubmissionReceipt> uploaded = full.get(0);
+                Future<SubmissionReceipt> canceled = full.get(1);
+                assertFailsWith(RejectedExecutionException.class, pipeline.submit(3L));
+                // The held upload and the queued one are charged, and the dropped one is not.
+                assertEquals(initial - 2 * reportLength, budget.remainingBytes());
+                assertTrue(canceled.cancel(false));
+                assertEquals(initial - reportLength, budget.remainingBytes());
+
+                dispatcher.open();
+                assertTrue(uploaded.get(30, TimeUnit.SECONDS).isUploaded());
+                assertThrows(CancellationException.class, () -> canceled.get(30, TimeUnit.SECONDS));
+            } finally {
+                dispatcher.open();
+                pipeline.shutdown();
+            }
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertEquals(1, pipeline.uploadStats().getDropped());
+            assertEquals(initial - reportLength, budget.remainingBytes());
+        }
+    }
+
+    @Test
+    public void dropNewestFailsIncomingUpload() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            GatedDispatcher dispatcher = new GatedDispatcher(server.getDispatcher());
+            server.setDispatcher(dispatcher);
+            SubmissionPipeline<Long> pipeline = gatedPipeline(server, BackpressurePolicy.DROP_NEWEST);
+            List<Future<SubmissionReceipt>> full;
+            try {
+                full = fillUploadStage(pipeline, dispatcher);
+                assertFailsWith(RejectedExecutionException.class, pipeline.submit(3L));
+                assertEquals(1, pipeline.uploadStats().getQueueDepth());
+            } finally {
+                dispatcher.open();
+                pipeline.shutdown();
+            }
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertTrue(full.get(0).get().isUploaded());
+            assertTrue(full.get(1).get().isUploaded());
+            assertEquals(3, pipeline.preparationStats().getStarted());
+            assertEquals(2, pipeline.uploadStats().getStarted());
+            assertEquals(1, pipeline.uploadStats().getDropped());
+            assertEquals(0, pipeline.uploadStats().getRejected());
+            assertEquals(0, pipeline.preparationStats().getDropped());
+        }
+    }
+
+    @Test
+    public void dropOldestFailsQueuedUpload() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            GatedDispatcher dispatcher = new GatedDispatcher(server.getDispatcher());
+            server.setDispatcher(dispatcher);
+            SubmissionPipeline<Long> pipeline = gatedPipeline(server, BackpressurePolicy.DROP_OLDEST);
+            List<Future<SubmissionReceipt>> full;
+            Future<SubmissionReceipt> newest;
+            try {
+                full = fillUploadStage(pipeline, dispatcher);
+                newest = pipeline.submit(3L);
+                assertFailsWith(RejectedExecutionException.class, full.get(1));
+                // The newest upload takes the dropped one's place in the queue.
+                awaitQueueDepth(pipeline::uploadStats, 1);
+            } finally {
+                dispatcher.open();
+                pipeline.shutdown();
+            }
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertTrue(full.get(0).get().isUploaded());
+            assertTrue(newest.get().isUploaded());
+            assertEquals(3, pipeline.preparationStats().getStarted());
+            assertEquals(2, pipeline.uploadStats().getStarted());
+            assertEquals(1, pipeline.uploadStats().getDropped());
+            assertEquals(0, pipeline.uploadStats().getRejected());
+        }
+    }
+
+    @Test
+    public void rejectFailsUploadWhenQueueIsFull() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            GatedDispatcher dispatcher = new GatedDispatcher(server.getDispatcher());
+            server.setDispatcher(dispatcher);
+            SubmissionPipeline<Long> pipeline = gatedPipeline(server, BackpressurePolicy.REJECT);
+            List<Future<SubmissionReceipt>> full;
+            try {
+                full = fillUploadStage(pipeline, dispatcher);
+                ExecutionException e = assertFailsWith(RejectedExecutionException.class, pipeline.submit(3L));
+                assertEquals("submission pipeline queue is full", e.getCause().getMessage());
+            } finally {
+                dispatcher.open();
+                pipeline.shutdown();
+            }
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+
+            assertTrue(full.get(0).get().isUploaded());
+            assertTrue(full.get(1).get().isUploaded());
+            assertEquals(2, pipeline.uploadStats().getStarted());
+            assertEquals(1, pipeline.uploadStats().getRejected());
+            assertEquals(0, pipeline.uploadStats().getDropped());
+            assertEquals(0, pipeline.preparationStats().getRejected());
+        }
+    }
+
+    @Test
+    public void blockReportsQueueDepthAndWaitTimes() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            GatedDispatcher dispatcher = new GatedDispatcher(server.getDispatcher());
+            server.setDispatcher(dispatcher);
+            SubmissionPipeline<Long> pipeline = gatedPipeline(server, BackpressurePolicy.BLOCK);
+            List<Future<SubmissionReceipt>> futures;
+            long heldNanos = TimeUnit.MILLISECONDS.toNanos(200);
+            try {
+                futures = fillUploadStage(pipeline, dispatcher);
+                // The third report is prepared, and blocks the preparation thread until there is
+                // room in the upload queue, so the fourth waits in the preparation queue.
+                futures.add(pipeline.submit(3L));
+                futures.add(pipeline.submit(4L));
+                awaitQueueDepth(pipeline::preparationStats, 1);
+                assertEquals(1, pipeline.preparationStats().getActiveThreads());
+                assertEquals(1, pipeline.uploadStats().getQueueDepth());
+                assertEquals(1, pipeline.uploadStats().getActiveThreads());
+                assertEquals(1, pipeline.uploadStats().getStarted());
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(heldNanos));
+            } finally {
+                dispatcher.open();
+                pipeline.shutdown();
+            }
+            assertTrue(pipeline.awaitTermination(30, TimeUnit.SECONDS));
+
+            for (Future<SubmissionReceipt> future : futures) {
+                assertTrue(future.get().isUploaded());
+            }
+            for (SubmissionPipeline.StageStats stats : new SubmissionPipeline.StageStats[] {
+                    pipeline.preparationStats(), pipeline.uploadStats()
+            }) {
+                assertEquals(4, stats.getStarted());
+                assertEquals(0, stats.getQueueDepth());
+                assertEquals(0, stats.getDropped());
+                assertEquals(0, stats.getRejected());
+                // The second upload and the fourth preparation waited while uploads were held.
+                assertTrue(stats.getMaxWaitNanos() >= heldNanos);
+                assertTrue(stats.getAverageWaitNanos() <= stats.getMaxWaitNanos());
+                assertTrue(stats.getAverageWaitNanos() >= heldNanos / 4);
+            }
+        }
+    }
+
+    /**
+     * Constructs a pipeline with one thread and a queue of one item in each stage, so that holding
+     * uploads quickly fills it.
+     */
+    private static SubmissionPipeline<Long> gatedPipeline(MockWebServer server, BackpressurePolicy policy) throws Exception {
+        URI uri = server.url("/").uri();
+        Client<Long> client = Client.createPrio3Sum(mockContext, uri, uri, ZERO_TASK_ID, 300, 8);
+        return new SubmissionPipeline<>(client, 1, 1, 1, policy);
+    }
+
+    /**
+     * Submits two measurements, and waits until the first is being uploaded and the second is
+     * queued for upload, so that the upload stage is full.
+     */
+    private static List<Future<SubmissionReceipt>> fillUploadStage(
+            SubmissionPipeline<Long> pipeline,
+            GatedDispatcher dispatcher
+    ) throws Exception {
+        List<Future<SubmissionReceipt>> futures = new ArrayList<>();
+        futures.add(pipeline.submit(1L));
+        dispatcher.awaitHeldUploads(1);
+        futures.add(pipeline.submit(2L));
+        awaitQueueDepth(pipeline::uploadStats, 1);
+        return futures;
+    }
+
+    private static void awaitQueueDepth(Callable<SubmissionPipeline.StageStats> stats, int depth) throws Exception {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (stats.call().getQueueDepth() != depth) {
+            assertTrue("queue never reached depth " + depth, System.nanoTime() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static ExecutionException assertFailsWith(Class<? extends Throwable> cause, Future<SubmissionReceipt> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(30, TimeUnit.SECONDS));
+        assertTrue(cause.isInstance(e.getCause()));
+        return e;
+    }
+
+    /**
+     * Holds report uploads until opened, so that the pipeline's upload stage fills up, and passes
+     * every other request, and uploads once opened, to another dispatcher.
+     */
+    private static final class GatedDispatcher extends Dispatcher {
+        private final Dispatcher delegate;
+        private final CountDownLatch gate;
+        private final Semaphore heldUploads;
+
+        GatedDispatcher(Dispatcher delegate) {
+            this.delegate = delegate;
+            this.gate = new CountDownLatch(1);
+            this.heldUploads = new Semaphore(0);
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if (request.getMethod().equals("PUT")) {
+                this.heldUploads.release();
+                try {
+                    this.gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new MockResponse(503, Headers.EMPTY, "");
+                }
+            }
+            return this.delegate.dispatch(request);
+        }
+
+        /** Waits until the given number of uploads are being held. */
+        void awaitHeldUploads(int count) throws InterruptedException {
+            assertTrue("uploads never arrived", this.heldUploads.tryAcquire(count, 30, TimeUnit.SECONDS));
+        }
+
+        void open() {
+            this.gate.countDown();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+
+import org.divviup.commontest.MockAggregator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+import okio.ByteString;
+
+public class SubmissionReceiptTest {
+    private static final TaskId ZERO_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void receiptDescribesUploadedReport() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer("max-age=3600")) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300);
+            long before = System.currentTimeMillis() / 1000;
+            SubmissionReceipt first = client.sendMeasurement(true);
+            SubmissionReceipt second = client.sendMeasurement(false);
+
+            // Both aggregators share one config list URL, which is fetched once and then stored.
+            assertEquals(SubmissionReceipt.ConfigSource.NETWORK, first.getLeaderConfigSource());
+            assertEquals(SubmissionReceipt.ConfigSource.STORE, first.getHelperConfigSource());
+            assertEquals(SubmissionReceipt.ConfigSource.STORE, second.getLeaderConfigSource());
+            assertEquals(SubmissionReceipt.ConfigSource.STORE, second.getHelperConfigSource());
+
+            assertTrue(first.isUploaded());
+            assertNotEquals(first.getReportId(), second.getReportId());
+            assertEquals(0, first.getReportTimeSeconds() % 300);
+            assertTrue(first.getReportTimeSeconds() > before - 300);
+            assertTrue(first.getDuration(SubmissionReceipt.Stage.PREPARE, TimeUnit.NANOSECONDS) > 0);
+            assertTrue(first.getDuration(SubmissionReceipt.Stage.UPLOAD, TimeUnit.NANOSECONDS) > 0);
+            assertEquals(0, first.getDuration(SubmissionReceipt.Stage.SCHEDULE, TimeUnit.NANOSECONDS));
+
+            // The receipt identifies the report that the leader received.
+            RecordedRequest request;
+            SubmissionReceipt[] receipts = {first, second};
+            int uploads = 0;
+            while ((request = server.takeRequest(100, TimeUnit.MILLISECONDS)) != null) {
+                if (request.getMethod().equals("PUT")) {
+                    ByteString body = request.getBody();
+                    assertNotNull(body);
+                    SubmissionReceipt receipt = receipts[uploads++];
+                    assertEquals(body.size(), receipt.getEncodedBytes());
+                    assertEquals(Base64Url.encode(body.substring(0, 16).toByteArray()), receipt.getReportId());
+                }
+            }
+            assertEquals(2, uploads);
+        }
+    }
+
+    @Test
+    public void queuedReportIsNotUploaded() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300);
+            ReportOutbox outbox = ReportOutbox.open(temporaryFolder.newFolder("outbox"));
+            SubmissionReceipt receipt = client.queueMeasurement(true, outbox);
+            assertFalse(receipt.isUploaded());
+            assertNotNull(receipt.getReportId());
+            assertTrue(receipt.getEncodedBytes() > 0);
+            assertEquals(0, receipt.getDuration(SubmissionReceipt.Stage.UPLOAD, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Test
+    public void reportSampledOutByBandwidthBudgetIsNotUploaded() throws Exception {
+        try (MockWebServer server = MockAggregator.setupDispatchingMockServer()) {
+            URI uri = server.url("/").uri();
+            BandwidthBudget budget = BandwidthBudget.sampling(1, 1, TimeUnit.HOURS, 0);
+            Client<Boolean> client = Client.createPrio3Count(temporaryFolder.getRoot(), uri, uri, ZERO_TASK_ID, 300)
+                    .withBandwidthBudget(budget);
+            SubmissionReceipt receipt = client.sendMeasurement(true);
+            assertFalse(receipt.isUploaded());
+            // The report was prepared, but discarded before it was uploaded.
+            assertNotNull(receipt.getReportId());
+            assertEquals(0, receipt.getDuration(SubmissionReceipt.Stage.UPLOAD, TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import mockwebserver3.MockResponse;
+import mockwebserver3.MockWebServer;
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+public class TlsSessionStoreTest {
+    private static final byte[] SESSION = {1, 2, 3, 4};
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private HandshakeCertificates clientCertificates;
+
+    @Before
+    public void startServer() throws IOException {
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .addSubjectAlternativeName(InetAddress.getByName("localhost").getCanonicalHostName())
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory());
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void sessionsArePersistedAcrossStores() throws IOException {
+        TlsSessionStore first = openStore(8, 1, TimeUnit.HOURS);
+        assumeTrue("Conscrypt is not available", first.isPersistent());
+        get(first);
+        File[] stored = sessionDirectory().listFiles();
+        assertNotNull(stored);
+        assertEquals(1, stored.length);
+
+        // A new store has an empty in-memory cache, like a new process, so it can only resume the
+        // session from the stored copy. Pooled connections are closed, so that a new handshake is
+        // needed.
+        Client.getHTTPClient().connectionPool().evictAll();
+        TlsSessionStore second = openStore(8, 1, TimeUnit.HOURS);
+        assertNotNull(second.read(server.getHostName(), server.getPort()));
+        get(second);
+    }
+
+    @Test
+    public void oldestSessionsAreRemoved() throws IOException {
+        TlsSessionStore store = openStore(3, 1, TimeUnit.HOURS);
+        long now = System.currentTimeMillis();
+        for (int port = 1; port <= 10; port++) {
+            store.write("aggregator.example.com", port, now, SESSION);
+        }
+        File[] stored = sessionDirectory().listFiles();
+        assertNotNull(stored);
+        assertEquals(3, stored.length);
+        assertArrayEquals(SESSION, store.read("aggregator.example.com", 10));
+        assertArrayEquals(SESSION, store.read("AGGREGATOR.example.com", 10));
+    }
+
+    @Test
+    public void expiredSessionsAreNotRead() throws IOException {
+        TlsSessionStore store = openStore(3, 1, TimeUnit.HOURS);
+        store.write("aggregator.example.com", 443, System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2), SESSION);
+        assertNull(store.read("aggregator.example.com", 443));
+        assertNull(store.read("other.example.com", 443));
+    }
+
+    @Test
+    public void invalidLimits() {
+        File cacheDir = temporaryFolder.getRoot();
+        assertThrows(IllegalArgumentException.class, () -> TlsSessionStore.open(cacheDir, 0, 1, TimeUnit.HOURS));
+        assertThrows(IllegalArgumentException.class, () -> TlsSessionStore.open(cacheDir, 1, 0, TimeUnit.HOURS));
+    }
+
+    private TlsSessionStore openStore(int maxSessions, long maxAge, TimeUnit unit) {
+        return TlsSessionStore.open(temporaryFolder.getRoot(), maxSessions, maxAge, unit, clientCertificates.trustManager());
+    }
+
+    private File sessionDirectory() {
+        return new File(temporaryFolder.getRoot(), "divviup-tls-sessions");
+    }
+
+    private void get(TlsSessionStore store) throws IOException {
+        server.enqueue(new MockResponse(200, Headers.EMPTY, ""));
+        Request request = new Request.Builder().url(server.url("/")).build();
+        try (Response response = store.httpClient().newCall(request).execute()) {
+            assertEquals(200, response.code());
+            assertNotNull(response.handshake());
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.divviup.android;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class UploadSchedulerTest {
+    private static final long TIME_PRECISION_SECONDS = 300;
+    private static final long BUCKET_MILLIS = TIME_PRECISION_SECONDS * 1000;
+    private static final long BUCKET_START_MILLIS = 1_700_000_100_000L;
+    private static final long BUCKET_START_SECONDS = BUCKET_START_MILLIS / 1000;
+
+    @Test
+    public void delaysStayWithinBucket() {
+        for (UploadScheduler.Distribution distribution : UploadScheduler.Distribution.values()) {
+            UploadScheduler scheduler = newScheduler(1, TimeUnit.HOURS, distribution, new VirtualClock(0));
+            Random random = new Random(1);
+            for (int i = 0; i < 10_000; i++) {
+                long now = BUCKET_START_MILLIS + (long) (random.nextDouble() * BUCKET_MILLIS);
+                long delay = scheduler.chooseDelayMillis(TIME_PRECISION_SECONDS, reportTime(now), now);
+                assertTrue(delay >= 0);
+                assertEquals(bucket(now), bucket(now + delay + 1000));
+            }
+        }
+    }
+
+    @Test
+    public void delaysRespectMaximum() {
+        UploadScheduler scheduler = newScheduler(30, TimeUnit.SECONDS, UploadScheduler.Distribution.UNIFORM, new VirtualClock(0));
+        long longest = 0;
+        for (int i = 0; i < 10_000; i++) {
+            long delay = scheduler.chooseDelayMillis(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, BUCKET_START_MILLIS);
+            assertTrue(delay < 30_000);
+            longest = Math.max(longest, delay);
+        }
+        assertTrue(longest > 29_000);
+    }
+
+    @Test
+    public void noDelayAtEndOfBucket() {
+        UploadScheduler scheduler = newScheduler(1, TimeUnit.HOURS, UploadScheduler.Distribution.UNIFORM, new VirtualClock(0));
+        assertEquals(0, scheduler.chooseDelayMillis(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, BUCKET_START_MILLIS + BUCKET_MILLIS - 500));
+        assertEquals(0, scheduler.chooseDelayMillis(1, BUCKET_START_SECONDS, BUCKET_START_MILLIS + 950));
+    }
+
+    @Test
+    public void delayEndsWithReportsBucket() {
+        UploadScheduler scheduler = newScheduler(1, TimeUnit.HOURS, UploadScheduler.Distribution.UNIFORM, new VirtualClock(0));
+        // A report prepared at the end of one bucket, and uploaded in the next, is not delayed.
+        assertEquals(0, scheduler.chooseDelayMillis(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, BUCKET_START_MILLIS + BUCKET_MILLIS + 10_000));
+        // A report uploaded later in its own bucket may only be delayed until that bucket ends.
+        long now = BUCKET_START_MILLIS + BUCKET_MILLIS - 20_000;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(scheduler.chooseDelayMillis(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, now) < 19_000);
+        }
+    }
+
+    @Test
+    public void synchronizedEventIsSpreadOut() throws IOException {
+        // Every device records a measurement at the same instant, at the start of a bucket.
+        int devices = 20_000;
+        int average = devices / (int) TIME_PRECISION_SECONDS;
+        for (UploadScheduler.Distribution distribution : UploadScheduler.Distribution.values()) {
+            VirtualClock clock = new VirtualClock(BUCKET_START_MILLIS);
+            UploadScheduler scheduler = newScheduler(1, TimeUnit.HOURS, distribution, clock);
+            int[] perSecond = new int[(int) TIME_PRECISION_SECONDS];
+            for (int i = 0; i < devices; i++) {
+                clock.now = BUCKET_START_MILLIS;
+                scheduler.await(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, new ReportSubmission(Deadline.none()));
+                long uploadAt = clock.now;
+                assertEquals(bucket(BUCKET_START_MILLIS), bucket(uploadAt));
+                perSecond[(int) ((uploadAt - BUCKET_START_MILLIS) / 1000)]++;
+            }
+            int peak = 0;
+            for (int count : perSecond) {
+                peak = Math.max(peak, count);
+            }
+            // Without a scheduler, every upload would arrive in the same second. The exponential
+            // distribution's density near zero is about four times the uniform distribution's.
+            int limit = distribution == UploadScheduler.Distribution.UNIFORM ? 2 * average : 5 * average;
+            assertTrue(distribution + " peak was " + peak, peak < limit);
+        }
+    }
+
+    @Test
+    public void awaitStopsWhenCanceled() {
+        VirtualClock clock = new VirtualClock(BUCKET_START_MILLIS);
+        ReportSubmission submission = new ReportSubmission(Deadline.none());
+        clock.onSleep = submission::cancel;
+        UploadScheduler scheduler = newScheduler(1, TimeUnit.HOURS, UploadScheduler.Distribution.UNIFORM, clock);
+        assertThrows(IOException.class, () -> scheduler.await(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, submission));
+        assertEquals(1, clock.sleeps);
+    }
+
+    @Test
+    public void awaitLeavesTimeBeforeDeadline() throws IOException {
+        VirtualClock clock = new VirtualClock(BUCKET_START_MILLIS);
+        UploadScheduler scheduler = newScheduler(1, TimeUnit.HOURS, UploadScheduler.Distribution.UNIFORM, clock);
+        for (int i = 0; i < 100; i++) {
+            clock.now = BUCKET_START_MILLIS;
+            scheduler.await(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, new ReportSubmission(Deadline.after(10, TimeUnit.SECONDS)));
+            assertTrue(clock.now - BUCKET_START_MILLIS <= 5_000);
+        }
+    }
+
+    @Test
+    public void awaitIsInterruptible() {
+        VirtualClock clock = new VirtualClock(BUCKET_START_MILLIS);
+        clock.interrupt = true;
+        UploadScheduler scheduler = newScheduler(1, TimeUnit.HOURS, UploadScheduler.Distribution.UNIFORM, clock);
+        try {
+            assertThrows(InterruptedIOException.class,
+                    () -> scheduler.await(TIME_PRECISION_SECONDS, BUCKET_START_SECONDS, new ReportSubmission(Deadline.none())));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void invalidArguments() {
+        assertThrows(IllegalArgumentException.class,
+                () -> UploadScheduler.create(0, TimeUnit.SECONDS, UploadScheduler.Distribution.UNIFORM));
+        assertThrows(IllegalArgumentException.class,
+                () -> UploadScheduler.create(1, TimeUnit.SECONDS, null));
+    }
+
+    private static UploadScheduler newScheduler(
+            long maxDelay,
+            TimeUnit unit,
+            UploadScheduler.Distribution distribution,
+            VirtualClock clock
+    ) {
+        return UploadScheduler.create(maxDelay, unit, distribution, clock, new Random(42));
+    }
+
+    private static long bucket(long millis) {
+        return millis / BUCKET_MILLIS;
+    }
+
+    /**
+     * Computes the timestamp of a report prepared at the given time.
+     */
+    private static long reportTime(long millis) {
+        return bucket(millis) * TIME_PRECISION_SECONDS;
+    }
+
+    /**
+     * A clock that only advances when sleeping.
+     */
+    private static final class VirtualClock implements UploadScheduler.Clock {
+        long now;
+        Runnable onSleep;
+        boolean interrupt;
+        int sleeps;
+
+        VirtualClock(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return this.now;
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            if (this.interrupt) {
+                throw new InterruptedException();
+            }
+            this.sleeps++;
+            this.now += millis;
+            if (this.onSleep != null) {
+                this.onSleep.run();
+            }
+        }
+    }
+}
@@ -35,6 +35,9 @@ android {
 
 dependencies {
     implementation(project(":divviup"))
+    // Used by the stress screen's loopback mode, which is left out of release builds.
+    debugImplementation(project(":divviup:commontest"))
+    debugImplementation("com.squareup.okhttp3:mockwebserver3:5.3.2")
 
     implementation("androidx.appcompat:appcompat:1.7.1")
     implementation("com.google.android.material:material:1.13.0")
@@ -0,0 +1,39 @@
+package org.divviup.sampleapp;
+
+import org.divviup.commontest.MockAggregator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+
+import mockwebserver3.MockWebServer;
+
+/**
+ * A mock aggregator running in the app, for the stress screen's loopback mode. Only debug builds
+ * include it, along with the test dependencies it needs.
+ */
+final class LoopbackAggregator implements Closeable {
+    static final boolean AVAILABLE = true;
+
+    private final MockWebServer server;
+
+    private LoopbackAggregator(MockWebServer server) {
+        this.server = server;
+    }
+
+    static LoopbackAggregator start() throws IOException {
+        return new LoopbackAggregator(MockAggregator.setupDispatchingMockServer("max-age=3600"));
+    }
+
+    /**
+     * Returns the endpoint for both the leader and the helper.
+     */
+    URI endpoint() {
+        return this.server.url("/").uri();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.server.close();
+    }
+}
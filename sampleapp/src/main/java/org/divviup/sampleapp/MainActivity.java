@@ -1,6 +1,7 @@
 package org.divviup.sampleapp;
 
 import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
 
 import com.google.android.material.snackbar.Snackbar;
@@ -116,6 +117,15 @@ public class MainActivity extends AppCompatActivity {
                     new ReportSubmissionJob(this, view, leaderUri, helperUri, taskId, timePrecision, measurement)
             );
         });
+
+        binding.stressButton.setOnClickListener(view -> {
+            Intent intent = new Intent(this, StressActivity.class);
+            intent.putExtra(StressActivity.EXTRA_LEADER_ENDPOINT, String.valueOf(binding.leaderEndpoint.getText()));
+            intent.putExtra(StressActivity.EXTRA_HELPER_ENDPOINT, String.valueOf(binding.helperEndpoint.getText()));
+            intent.putExtra(StressActivity.EXTRA_TASK_ID, String.valueOf(binding.taskId.getText()));
+            intent.putExtra(StressActivity.EXTRA_TIME_PRECISION, binding.timePrecision.getText().toString());
+            startActivity(intent);
+        });
     }
 
     @Override
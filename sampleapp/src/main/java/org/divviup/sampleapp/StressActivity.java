@@ -0,0 +1,301 @@
+package org.divviup.sampleapp;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.widget.ArrayAdapter;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.google.android.material.snackbar.Snackbar;
+
+import org.divviup.android.Client;
+import org.divviup.android.TaskId;
+import org.divviup.sampleapp.databinding.ActivityStressBinding;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends many reports with a chosen VDAF and concurrency, and shows live throughput, latency
+ * percentiles, bytes sent, and failures. In loopback mode, reports are sent to a mock aggregator
+ * running in the app, so that runs only measure the device. Loopback mode is only available in
+ * debug builds.
+ */
+public class StressActivity extends AppCompatActivity {
+    static final String EXTRA_LEADER_ENDPOINT = "org.divviup.sampleapp.LEADER_ENDPOINT";
+    static final String EXTRA_HELPER_ENDPOINT = "org.divviup.sampleapp.HELPER_ENDPOINT";
+    static final String EXTRA_TASK_ID = "org.divviup.sampleapp.TASK_ID";
+    static final String EXTRA_TIME_PRECISION = "org.divviup.sampleapp.TIME_PRECISION";
+
+    private static final String TAG = "StressActivity";
+    private static final String[] VDAFS = {"Prio3Count", "Prio3Sum", "Prio3SumVec", "Prio3Histogram"};
+    private static final TaskId LOOPBACK_TASK_ID = TaskId.parse("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+    private static final long REFRESH_INTERVAL_MILLIS = 250;
+
+    private ActivityStressBinding binding;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private ExecutorService coordinator;
+    private volatile StressRun run;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        binding = ActivityStressBinding.inflate(getLayoutInflater());
+        setContentView(binding.getRoot());
+
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, VDAFS);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        binding.vdaf.setAdapter(adapter);
+        binding.loopback.setVisibility(LoopbackAggregator.AVAILABLE ? View.VISIBLE : View.GONE);
+
+        binding.leaderEndpoint.setText(getIntent().getStringExtra(EXTRA_LEADER_ENDPOINT));
+        binding.helperEndpoint.setText(getIntent().getStringExtra(EXTRA_HELPER_ENDPOINT));
+        binding.taskId.setText(getIntent().getStringExtra(EXTRA_TASK_ID));
+        binding.timePrecision.setText(getIntent().getStringExtra(EXTRA_TIME_PRECISION));
+
+        this.coordinator = Executors.newSingleThreadExecutor();
+        binding.startButton.setOnClickListener(this::start);
+        binding.stopButton.setOnClickListener(view -> {
+            StressRun current = this.run;
+            if (current != null) {
+                current.stop();
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        StressRun current = this.run;
+        if (current != null) {
+            current.stop();
+        }
+        this.coordinator.shutdown();
+        this.handler.removeCallbacksAndMessages(null);
+    }
+
+    private void start(View view) {
+        if (this.run != null) {
+            Snackbar.make(view, "A run is already in progress", Snackbar.LENGTH_LONG).show();
+            return;
+        }
+        StressRun newRun;
+        try {
+            newRun = new StressRun(
+                    (String) binding.vdaf.getSelectedItem(),
+                    binding.loopback.isChecked(),
+                    binding.loopback.isChecked() ? null : new URI(binding.leaderEndpoint.getText().toString()),
+                    binding.loopback.isChecked() ? null : new URI(binding.helperEndpoint.getText().toString()),
+                    binding.loopback.isChecked() ? LOOPBACK_TASK_ID : TaskId.parse(binding.taskId.getText().toString()),
+                    binding.loopback.isChecked() ? 300 : parseLong(binding.timePrecision.getText().toString(), "time precision"),
+                    parseLong(binding.bits.getText().toString(), "bits"),
+                    parseLong(binding.length.getText().toString(), "length"),
+                    parseLong(binding.chunkLength.getText().toString(), "chunk length"),
+                    (int) parseLong(binding.reportCount.getText().toString(), "report count"),
+                    (int) parseLong(binding.concurrency.getText().toString(), "concurrency")
+            );
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            Snackbar.make(view, "Invalid parameters: " + e.getMessage(), Snackbar.LENGTH_LONG).show();
+            return;
+        }
+        this.run = newRun;
+        binding.results.setText("Starting...");
+        this.coordinator.submit(() -> {
+            try {
+                newRun.execute();
+            } catch (Exception e) {
+                Log.e(TAG, "stress run failed", e);
+                handler.post(() -> binding.results.setText("Run failed: " + e));
+            } finally {
+                handler.post(() -> {
+                    this.refresh(newRun);
+                    this.run = null;
+                });
+            }
+        });
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (StressActivity.this.run == newRun) {
+                    refresh(newRun);
+                    handler.postDelayed(this, REFRESH_INTERVAL_MILLIS);
+                }
+            }
+        }, REFRESH_INTERVAL_MILLIS);
+    }
+
+    private void refresh(StressRun run) {
+        StressStats stats = run.stats;
+        if (stats != null) {
+            binding.results.setText(stats.snapshot(SystemClock.elapsedRealtimeNanos()).describe(run.reportCount));
+        }
+    }
+
+    private static long parseLong(String value, String name) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    /**
+     * A client and a source of random valid measurements for it.
+     */
+    private abstract static class Workload<M> {
+        private final Client<M> client;
+
+        Workload(Client<M> client) {
+            this.client = client;
+        }
+
+        abstract M randomMeasurement(ThreadLocalRandom random);
+
+        int reportSize() throws IOException {
+            return this.client.estimateCost(this.randomMeasurement(ThreadLocalRandom.current()), 1).getEncodedBytes();
+        }
+
+        void send() throws IOException {
+            this.client.sendMeasurement(this.randomMeasurement(ThreadLocalRandom.current()));
+        }
+    }
+
+    /**
+     * One run of the stress test, started from the coordinator thread.
+     */
+    private final class StressRun {
+        private final String vdaf;
+        private final boolean loopback;
+        private final URI leaderEndpoint, helperEndpoint;
+        private final TaskId taskId;
+        private final long timePrecision, bits, length, chunkLength;
+        private final int reportCount, concurrency;
+        private volatile ExecutorService workers;
+        private volatile boolean stopped;
+        volatile StressStats stats;
+
+        StressRun(
+                String vdaf,
+                boolean loopback,
+                URI leaderEndpoint,
+                URI helperEndpoint,
+                TaskId taskId,
+                long timePrecision,
+                long bits,
+                long length,
+                long chunkLength,
+                int reportCount,
+                int concurrency
+        ) {
+            if (reportCount <= 0 || concurrency <= 0) {
+                throw new IllegalArgumentException("report count and concurrency must be positive");
+            }
+            this.vdaf = vdaf;
+            this.loopback = loopback;
+            this.leaderEndpoint = leaderEndpoint;
+            this.helperEndpoint = helperEndpoint;
+            this.taskId = taskId;
+            this.timePrecision = timePrecision;
+            this.bits = bits;
+            this.length = length;
+            this.chunkLength = chunkLength;
+            this.reportCount = reportCount;
+            this.concurrency = concurrency;
+        }
+
+        void execute() throws IOException, InterruptedException {
+            LoopbackAggregator server = null;
+            try {
+                URI leader = this.leaderEndpoint, helper = this.helperEndpoint;
+                if (this.loopback) {
+                    server = LoopbackAggregator.start();
+                    leader = helper = server.endpoint();
+                }
+                Workload<?> workload = this.createWorkload(leader, helper);
+                // Preparing a sample report also fetches HPKE configs, which are then cached.
+                int reportSize = workload.reportSize();
+                StressStats stats = new StressStats(SystemClock.elapsedRealtimeNanos(), reportSize);
+                this.stats = stats;
+                ExecutorService workers = Executors.newFixedThreadPool(this.concurrency);
+                this.workers = workers;
+                for (int i = 0; i < this.reportCount && !this.stopped; i++) {
+                    workers.submit(() -> {
+                        long start = SystemClock.elapsedRealtimeNanos();
+                        try {
+                            workload.send();
+                            stats.recordSuccess(SystemClock.elapsedRealtimeNanos() - start);
+                        } catch (IOException | RuntimeException e) {
+                            Log.w(TAG, "report failed", e);
+                            stats.recordFailure();
+                        }
+                    });
+                }
+                workers.shutdown();
+                workers.awaitTermination(1, TimeUnit.DAYS);
+                stats.finish(SystemClock.elapsedRealtimeNanos());
+            } finally {
+                if (server != null) {
+                    server.close();
+                }
+            }
+        }
+
+        void stop() {
+            this.stopped = true;
+            ExecutorService workers = this.workers;
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+        }
+
+        private Workload<?> createWorkload(URI leader, URI helper) {
+            switch (this.vdaf) {
+                case "Prio3Sum":
+                    return new Workload<Long>(Client.createPrio3Sum(
+                            StressActivity.this, leader, helper, this.taskId, this.timePrecision, this.bits)) {
+                        @Override
+                        Long randomMeasurement(ThreadLocalRandom random) {
+                            return random.nextLong(1L << Math.min(bits, 62));
+                        }
+                    };
+                case "Prio3SumVec":
+                    return new Workload<long[]>(Client.createPrio3SumVec(
+                            StressActivity.this, leader, helper, this.taskId, this.timePrecision, this.length, this.bits, this.chunkLength)) {
+                        @Override
+                        long[] randomMeasurement(ThreadLocalRandom random) {
+                            long[] measurement = new long[(int) length];
+                            for (int i = 0; i < measurement.length; i++) {
+                                measurement[i] = random.nextLong(1L << Math.min(bits, 62));
+                            }
+                            return measurement;
+                        }
+                    };
+                case "Prio3Histogram":
+                    return new Workload<Long>(Client.createPrio3Histogram(
+                            StressActivity.this, leader, helper, this.taskId, this.timePrecision, this.length, this.chunkLength)) {
+                        @Override
+                        Long randomMeasurement(ThreadLocalRandom random) {
+                            return random.nextLong(length);
+                        }
+                    };
+                default:
+                    return new Workload<Boolean>(Client.createPrio3Count(
+                            StressActivity.this, leader, helper, this.taskId, this.timePrecision)) {
+                        @Override
+                        Boolean randomMeasurement(ThreadLocalRandom random) {
+                            return random.nextBoolean();
+                        }
+                    };
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.divviup.sampleapp;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of a stress run, updated concurrently by the threads sending reports, and read
+ * periodically to show progress. Objects of this class are thread-safe.
+ */
+class StressStats {
+    private final long startNanos;
+    private final int reportSize;
+    private long[] latencies = new long[64];
+    private int successes, failures;
+    private long finishNanos = -1;
+
+    /**
+     * @param reportSize    the encoded size of every report in the run, in bytes
+     */
+    StressStats(long startNanos, int reportSize) {
+        this.startNanos = startNanos;
+        this.reportSize = reportSize;
+    }
+
+    synchronized void recordSuccess(long latencyNanos) {
+        if (this.successes == this.latencies.length) {
+            this.latencies = Arrays.copyOf(this.latencies, 2 * this.latencies.length);
+        }
+        this.latencies[this.successes++] = latencyNanos;
+    }
+
+    synchronized void recordFailure() {
+        this.failures++;
+    }
+
+    synchronized void finish(long nowNanos) {
+        this.finishNanos = nowNanos;
+    }
+
+    synchronized Snapshot snapshot(long nowNanos) {
+        long end = this.finishNanos >= 0 ? this.finishNanos : nowNanos;
+        long[] sorted = Arrays.copyOf(this.latencies, this.successes);
+        Arrays.sort(sorted);
+        return new Snapshot(end - this.startNanos, sorted, this.failures, (long) this.reportSize * this.successes);
+    }
+
+    /**
+     * A consistent view of the results so far.
+     */
+    static final class Snapshot {
+        final long elapsedNanos;
+        final int successes, failures;
+        final long bytesSent;
+        private final long[] sortedLatencies;
+
+        private Snapshot(long elapsedNanos, long[] sortedLatencies, int failures, long bytesSent) {
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencies = sortedLatencies;
+            this.successes = sortedLatencies.length;
+            this.failures = failures;
+            this.bytesSent = bytesSent;
+        }
+
+        /**
+         * @return  successful reports per second
+         */
+        double throughput() {
+            if (this.elapsedNanos <= 0) {
+                return 0;
+            }
+            return this.successes * (double) TimeUnit.SECONDS.toNanos(1) / this.elapsedNanos;
+        }
+
+        /**
+         * Gets a latency percentile of successful reports, using the nearest-rank method.
+         *
+         * @param percentile    between 0 and 100
+         * @return              the latency in nanoseconds, or 0 if no reports have succeeded
+         */
+        long latencyPercentile(double percentile) {
+            if (this.sortedLatencies.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * this.sortedLatencies.length);
+            return this.sortedLatencies[Math.max(rank, 1) - 1];
+        }
+
+        String describe(int total) {
+            return String.format(
+                    Locale.ROOT,
+                    "%d/%d sent, %d failed in %.1f s\n"
+                            + "%.1f reports/s, %d KiB sent\n"
+                            + "latency p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    this.successes,
+                    total,
+                    this.failures,
+                    this.elapsedNanos / 1e9,
+                    this.throughput(),
+                    this.bytesSent / 1024,
+                    this.latencyPercentile(50) / 1e6,
+                    this.latencyPercentile(90) / 1e6,
+                    this.latencyPercentile(99) / 1e6,
+                    this.latencyPercentile(100) / 1e6
+            );
+        }
+    }
+}
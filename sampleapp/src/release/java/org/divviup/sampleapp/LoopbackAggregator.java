@@ -0,0 +1,27 @@
+package org.divviup.sampleapp;
+
+import java.io.Closeable;
+import java.net.URI;
+
+/**
+ * Stands in for the debug build's mock aggregator. Release builds do not include the mock
+ * aggregator or its test dependencies, so loopback mode is not available.
+ */
+final class LoopbackAggregator implements Closeable {
+    static final boolean AVAILABLE = false;
+
+    private LoopbackAggregator() {
+    }
+
+    static LoopbackAggregator start() {
+        throw new UnsupportedOperationException("loopback mode is only available in debug builds");
+    }
+
+    URI endpoint() {
+        throw new UnsupportedOperationException("loopback mode is only available in debug builds");
+    }
+
+    @Override
+    public void close() {
+    }
+}
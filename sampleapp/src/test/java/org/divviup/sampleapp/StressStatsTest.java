@@ -0,0 +1,36 @@
+package org.divviup.sampleapp;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StressStatsTest {
+    @Test
+    public void percentilesAndThroughput() {
+        StressStats stats = new StressStats(0, 100);
+        for (int i = 100; i >= 1; i--) {
+            stats.recordSuccess(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        stats.recordFailure();
+        stats.finish(TimeUnit.SECONDS.toNanos(2));
+
+        StressStats.Snapshot snapshot = stats.snapshot(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(100, snapshot.successes);
+        assertEquals(1, snapshot.failures);
+        assertEquals(10_000, snapshot.bytesSent);
+        assertEquals(50.0, snapshot.throughput(), 1e-9);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), snapshot.latencyPercentile(50));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(99), snapshot.latencyPercentile(99));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), snapshot.latencyPercentile(100));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), snapshot.latencyPercentile(0));
+    }
+
+    @Test
+    public void emptyRun() {
+        StressStats.Snapshot snapshot = new StressStats(0, 100).snapshot(0);
+        assertEquals(0, snapshot.latencyPercentile(50));
+        assertEquals(0.0, snapshot.throughput(), 0);
+    }
+}